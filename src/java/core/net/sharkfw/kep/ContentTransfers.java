@@ -0,0 +1,260 @@
+package net.sharkfw.kep;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Keeps track of chunked information content transfers - on both sides.
+ *
+ * <p>Since KEP 1.1, information content is sent in numbered chunks, each
+ * followed by a digest. A receiving peer keeps chunks of a transfer
+ * which could not be finished (e.g. connection dropped) in a directory.
+ * If the same content is sent again, the receiver asks the sender for
+ * the missing chunks only (KEP resume command). The sender remembers that
+ * request and skips any chunk the receiver already has.</p>
+ *
+ * <p>A resume request arrives over the connection the content is written
+ * to. It is only valid for that connection and as long as that content
+ * is written - sending the same content to another peer or sending it
+ * again after a failure starts from scratch.</p>
+ *
+ * <p>Partial content which wasn't continued within <code>maxAge</code> is
+ * removed.</p>
+ *
+ * @see net.sharkfw.kep.format.ChunkedContent
+ * @see PartialContent
+ *
+ * @author thsc
+ */
+public class ContentTransfers {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1 MByte
+
+    public static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000; // 1 week
+
+    /**
+     * Partial content is checked for its age at most that often.
+     */
+    private static final long COLLECT_INTERVAL = 60 * 60 * 1000;
+
+    private final File directory;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private long maxAge = DEFAULT_MAX_AGE;
+    private long lastCollection = 0;
+
+    /**
+     * Transfers which are written right now - and chunks the receiver
+     * is still missing (null: all).
+     */
+    private final HashMap<Sending, BitSet> sending = new HashMap<>();
+
+    /**
+     * A content which is written over a connection
+     */
+    private static class Sending {
+        private final Object connection;
+        private final String transferID;
+
+        Sending(Object connection, String transferID) {
+            this.connection = connection;
+            this.transferID = transferID;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.connection) + this.transferID.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Sending)) {
+                return false;
+            }
+
+            Sending other = (Sending) o;
+            return this.connection == other.connection
+                    && this.transferID.equals(other.transferID);
+        }
+    }
+
+    /**
+     * Partial content is kept in a folder within the temp directory.
+     */
+    public ContentTransfers() {
+        this(new File(System.getProperty("java.io.tmpdir"), "sharkfw_partial"));
+    }
+
+    /**
+     * @param directory folder in which partial content is kept.
+     */
+    public ContentTransfers(File directory) {
+        this.directory = directory;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * Set size of chunks in which content is sent. Received content
+     * is assembled with chunk size of the sender.
+     *
+     * @param chunkSize
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public synchronized long getMaxAge() {
+        return this.maxAge;
+    }
+
+    /**
+     * @param millis partial content which wasn't continued for that time
+     * is removed
+     */
+    public synchronized void setMaxAge(long millis) {
+        this.maxAge = millis;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                             sender side                            //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Content is going to be written over that connection. Resume
+     * requests are accepted from now on.
+     *
+     * @param connection e.g. stream connection - null if content cannot
+     * be resumed (e.g. message based protocol)
+     * @param transferID
+     */
+    public synchronized void transferStarted(Object connection, String transferID) {
+        if(connection != null) {
+            this.sending.put(new Sending(connection, transferID), null);
+        }
+    }
+
+    /**
+     * Remembers that a receiver still needs those chunks. Called when
+     * a resume request arrived. Requests for content which isn't written
+     * over that connection (any longer) are ignored.
+     *
+     * @param connection connection the request arrived on
+     * @param transferID
+     * @param missing
+     */
+    public synchronized void missingChunks(Object connection, String transferID, BitSet missing) {
+        Sending key = new Sending(connection, transferID);
+        if(this.sending.containsKey(key)) {
+            this.sending.put(key, missing);
+        }
+    }
+
+    /**
+     * @param connection
+     * @param transferID
+     * @param chunk
+     * @return false if receiver said to have that chunk already
+     */
+    public synchronized boolean chunkNeeded(Object connection, String transferID, int chunk) {
+        if(connection == null) {
+            return true;
+        }
+
+        BitSet missing = this.sending.get(new Sending(connection, transferID));
+        if(missing == null) {
+            return true;
+        }
+
+        return missing.get(chunk);
+    }
+
+    /**
+     * Content was written completely or writing failed. A remembered
+     * resume request isn't valid any longer.
+     *
+     * @param connection
+     * @param transferID
+     */
+    public synchronized void transferFinished(Object connection, String transferID) {
+        if(connection != null) {
+            this.sending.remove(new Sending(connection, transferID));
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                            receiver side                           //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns partial content of a transfer. Chunks received in earlier
+     * attempts are already set.
+     *
+     * @param transferID
+     * @param len overall content length
+     * @param chunkSize
+     * @return
+     * @throws IOException
+     */
+    public PartialContent getPartialContent(String transferID, long len,
+            int chunkSize) throws IOException {
+
+        if(!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("cannot create directory for partial content: "
+                    + this.directory.getAbsolutePath());
+        }
+
+        boolean collect;
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            collect = now - this.lastCollection > COLLECT_INTERVAL;
+            if(collect) {
+                this.lastCollection = now;
+            }
+        }
+
+        if(collect) {
+            this.collectGarbage();
+        }
+
+        return new PartialContent(this.directory, transferID, len, chunkSize);
+    }
+
+    /**
+     * Removes partial content which wasn't continued within max age.
+     * Called now and then when partial content is requested.
+     *
+     * @return number of removed partial contents
+     */
+    public int collectGarbage() {
+        File[] files = this.directory.listFiles();
+        if(files == null) {
+            return 0;
+        }
+
+        long oldest = System.currentTimeMillis() - this.getMaxAge();
+        int removed = 0;
+        for(File file : files) {
+            // second file of a removed partial content doesn't exist any longer
+            if(file.exists() && PartialContent.removeIfOlder(file, oldest)) {
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * A receiver asks for missing chunks of a transfer.
+     */
+    public interface ResumeListener {
+        /**
+         * @param transferID
+         * @param missing set of chunks that are still missing
+         */
+        public void requestMissingChunks(String transferID, BitSet missing);
+    }
+}
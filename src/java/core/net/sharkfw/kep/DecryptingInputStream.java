@@ -40,8 +40,8 @@ public class DecryptingInputStream extends InputStream {
             this.refillBlock();
         }
         
-        byte b = this.block[this.counter];
-        int retVal = b;
+        // unsigned - -1 would mean end of stream
+        int retVal = this.block[this.counter] & 0xff;
 //        System.out.print("r(" + this.counter + ")" + retVal + ",");
 //        if(this.counter == 15) {
 //            System.out.print("\n");
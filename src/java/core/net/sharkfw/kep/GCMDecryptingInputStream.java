@@ -0,0 +1,161 @@
+package net.sharkfw.kep;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import net.sharkfw.security.utility.SharkCryptoService;
+
+/**
+ * Reads a stream written by {@link GCMEncryptingOutputStream}. Nothing
+ * is read behind the final chunk. Each chunk is authenticated before
+ * it is passed on - a modified or truncated stream causes an IOException.
+ *
+ * @author thsc
+ */
+public class GCMDecryptingInputStream extends InputStream {
+    /** chunks aren't larger - prevents allocating anything for a broken length */
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private final InputStream is;
+    private final Key key;
+    private Cipher cipher;
+    private byte[] nonce = null;
+    private byte[] chunk = null;
+    private int counter = 0;
+    private int chunkNumber = 0;
+    private boolean finished = false;
+
+    public GCMDecryptingInputStream(InputStream is, Key key) throws GeneralSecurityException {
+        this.is = is;
+        this.key = key;
+        this.cipher = SharkCryptoService.getCipher(GCMEncryptingOutputStream.TRANSFORMATION);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!this.fill()) {
+            return -1;
+        }
+
+        return this.chunk[this.counter++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+
+        if(!this.fill()) {
+            return -1;
+        }
+
+        int n = Math.min(len, this.chunk.length - this.counter);
+        System.arraycopy(this.chunk, this.counter, b, off, n);
+        this.counter += n;
+
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.chunk == null ? 0 : this.chunk.length - this.counter;
+    }
+
+    /**
+     * @return false if final chunk is read completely
+     */
+    private boolean fill() throws IOException {
+        while(this.chunk == null || this.counter == this.chunk.length) {
+            if(this.finished) {
+                return false;
+            }
+
+            this.readChunk();
+        }
+
+        return true;
+    }
+
+    private void readChunk() throws IOException {
+        if(this.nonce == null) {
+            this.nonce = new byte[GCMEncryptingOutputStream.NONCE_LENGTH];
+            GCMDecryptingInputStream.readFully(this.is, this.nonce);
+        }
+
+        byte[] headerBytes = new byte[4];
+        int header = GCMDecryptingInputStream.readHeader(this.is);
+
+        boolean last = (header & GCMEncryptingOutputStream.FINAL_CHUNK) != 0;
+        byte[] encrypted = new byte[GCMDecryptingInputStream.length(header)];
+        GCMDecryptingInputStream.readFully(this.is, encrypted);
+
+        try {
+            this.cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(
+                    GCMEncryptingOutputStream.TAG_LENGTH * 8,
+                    GCMEncryptingOutputStream.chunkNonce(this.nonce, this.chunkNumber)));
+            this.cipher.updateAAD(new byte[] {(byte) (last ? 1 : 0)});
+            this.chunk = this.cipher.doFinal(encrypted);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("encrypted content cannot be authenticated: " + ex.getMessage());
+        }
+
+        this.counter = 0;
+        this.chunkNumber++;
+        this.finished = last;
+
+        if(last) {
+            SharkCryptoService.releaseCipher(GCMEncryptingOutputStream.TRANSFORMATION, this.cipher);
+            this.cipher = null;
+        }
+    }
+
+    /**
+     * Reads an encrypted stream up to its final chunk without decrypting
+     * it - e.g. if its key is unknown. Stream can be read on behind.
+     *
+     * @param is
+     * @throws IOException
+     */
+    public static void skip(InputStream is) throws IOException {
+        GCMDecryptingInputStream.readFully(is, new byte[GCMEncryptingOutputStream.NONCE_LENGTH]);
+
+        int header;
+        do {
+            header = GCMDecryptingInputStream.readHeader(is);
+            GCMDecryptingInputStream.readFully(is, new byte[GCMDecryptingInputStream.length(header)]);
+        } while((header & GCMEncryptingOutputStream.FINAL_CHUNK) == 0);
+    }
+
+    private static int readHeader(InputStream is) throws IOException {
+        byte[] headerBytes = new byte[4];
+        GCMDecryptingInputStream.readFully(is, headerBytes);
+
+        return ((headerBytes[0] & 0xff) << 24) | ((headerBytes[1] & 0xff) << 16)
+                | ((headerBytes[2] & 0xff) << 8) | (headerBytes[3] & 0xff);
+    }
+
+    private static int length(int header) throws IOException {
+        int length = header & ~GCMEncryptingOutputStream.FINAL_CHUNK;
+        if(length < GCMEncryptingOutputStream.TAG_LENGTH
+                || length > MAX_CHUNK_SIZE + GCMEncryptingOutputStream.TAG_LENGTH) {
+            throw new IOException("malformed encrypted chunk: " + length);
+        }
+
+        return length;
+    }
+
+    private static void readFully(InputStream is, byte[] bytes) throws IOException {
+        int got = 0;
+        while(got < bytes.length) {
+            int n = is.read(bytes, got, bytes.length - got);
+            if(n < 0) {
+                throw new IOException("encrypted stream ended before final chunk");
+            }
+            got += n;
+        }
+    }
+}
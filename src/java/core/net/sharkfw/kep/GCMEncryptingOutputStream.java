@@ -0,0 +1,141 @@
+package net.sharkfw.kep;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import net.sharkfw.security.utility.SharkCryptoService;
+
+/**
+ * Encrypts and authenticates a stream with AES-GCM.
+ *
+ * <p>Data are collected into chunks which are encrypted at once. Stream
+ * starts with a random nonce. Each chunk is written as length and
+ * ciphertext (including tag). Highest bit of length marks the final chunk.
+ * Chunk nonce is stream nonce xor chunk number. The final flag is
+ * authenticated - a truncated stream is detected by the reader.</p>
+ *
+ * @see GCMDecryptingInputStream
+ * @author thsc
+ */
+public class GCMEncryptingOutputStream extends OutputStream {
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final int FINAL_CHUNK = 0x80000000;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final OutputStream os;
+    private final Key key;
+    private Cipher cipher;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private final byte[] chunk;
+    private int counter = 0;
+    private int chunkNumber = 0;
+    private boolean finished = false;
+
+    public GCMEncryptingOutputStream(OutputStream os, Key key) throws GeneralSecurityException {
+        this(os, key, DEFAULT_CHUNK_SIZE);
+    }
+
+    public GCMEncryptingOutputStream(OutputStream os, Key key, int chunkSize)
+            throws GeneralSecurityException {
+
+        this.os = os;
+        this.key = key;
+        this.cipher = SharkCryptoService.getCipher(TRANSFORMATION);
+        this.chunk = new byte[chunkSize];
+        GCMEncryptingOutputStream.random.nextBytes(this.nonce);
+    }
+
+    @Override
+    public void write(int i) throws IOException {
+        if(this.counter == this.chunk.length) {
+            this.sendChunk(false);
+        }
+
+        this.chunk[this.counter++] = (byte)i;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(this.counter == this.chunk.length) {
+                this.sendChunk(false);
+            }
+
+            int n = Math.min(len, this.chunk.length - this.counter);
+            System.arraycopy(b, off, this.chunk, this.counter, n);
+            this.counter += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void sendChunk(boolean last) throws IOException {
+        if(this.finished) {
+            throw new IOException("encrypted stream already finished");
+        }
+
+        if(this.chunkNumber == 0) {
+            this.os.write(this.nonce);
+        }
+
+        byte[] encrypted;
+        try {
+            this.cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(
+                    TAG_LENGTH * 8, chunkNonce(this.nonce, this.chunkNumber)));
+            this.cipher.updateAAD(new byte[] {(byte) (last ? 1 : 0)});
+            encrypted = this.cipher.doFinal(this.chunk, 0, this.counter);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("cannot encrypt: " + ex.getMessage());
+        }
+
+        int header = encrypted.length;
+        if(last) {
+            header |= FINAL_CHUNK;
+        }
+
+        this.os.write(new byte[] {(byte) (header >>> 24), (byte) (header >>> 16),
+            (byte) (header >>> 8), (byte) header});
+        this.os.write(encrypted);
+
+        this.chunkNumber++;
+        this.counter = 0;
+        this.finished = last;
+    }
+
+    static byte[] chunkNonce(byte[] nonce, int chunkNumber) {
+        byte[] chunkNonce = nonce.clone();
+        for(int i = 0; i < 4; i++) {
+            chunkNonce[NONCE_LENGTH - 1 - i] ^= (byte) (chunkNumber >>> (8 * i));
+        }
+
+        return chunkNonce;
+    }
+
+    /**
+     * Sends data which are still buffered - not finished yet.
+     */
+    @Override
+    public void flush() throws IOException {
+        this.os.flush();
+    }
+
+    /**
+     * Sends final chunk. Nothing can be written afterwards.
+     */
+    void doFinal() throws IOException {
+        this.sendChunk(true);
+        this.flush();
+
+        SharkCryptoService.releaseCipher(TRANSFORMATION, this.cipher);
+        this.cipher = null;
+    }
+}
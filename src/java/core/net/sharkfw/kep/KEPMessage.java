@@ -34,13 +34,55 @@ public abstract class KEPMessage {
      */
     public static final int KEP_INSERT = 2;
 
+    /**
+     * Receiver of chunked content asks for missing chunks
+     * @see ContentTransfers
+     */
+    public static final int KEP_RESUME = 3;
+
+    /**
+     * Receiver of knowledge cannot resolve vocabulary references and 
+     * asks sender to start a new vocabulary table
+     * @see VocabularyCache
+     */
+    public static final int KEP_VOCABULARY_RESET = 4;
+
+    /**
+     * Receiver of an encrypted message doesn't know the referenced 
+     * session key and asks sender to transmit a new one
+     * @see SessionKeyCache
+     */
+    public static final int KEP_SESSION_KEY_RESET = 5;
+
+    /**
+     * Receiver of knowledge has learned vocabulary table slots. Sender
+     * refers to acknowledged slots only.
+     * @see VocabularyCache
+     */
+    public static final int KEP_VOCABULARY_ACK = 6;
+
+    /**
+     * Receiver of an encrypted message has cached the transmitted session
+     * key. Sender refers to confirmed keys only.
+     * @see SessionKeyCache
+     */
+    public static final int KEP_SESSION_KEY_ACK = 7;
+
+    /**
+     * Written in front of session key field if content is encrypted 
+     * with AES-GCM in chunks. Content is encrypted block by block 
+     * otherwise.
+     * @see GCMEncryptingOutputStream
+     */
+    public static final int ENCRYPTION_GCM = -2;
+
     /**
      * Returns whether or not an integer number is a valid KEPCommand
      * @param cmd The integer value to check
      * @return <code>true</code> if it is a valid KEP command, <code>false</code> otherwise.
      */
     public static boolean validKEPCommand(int cmd) {
-        return (cmd >= 3 || cmd <= 5);
+        return (cmd >= KEP_EXPOSE && cmd <= KEP_SESSION_KEY_ACK);
     }
     /**
      * The maximum message length to be read
@@ -48,9 +90,28 @@ public abstract class KEPMessage {
     public static final int MAXMSGLEN = 5000;
     //public static final int VERSIONLEN = 20;
     /**
-     * The current KEP version.
+     * The current KEP version. Numbers are transmitted in their
+     * binary representation and information content in chunks 
+     * since version 1.1. It is only sent to peers which have shown to
+     * understand it - or if legacy format is switched off.
+     * 
+     * @see net.sharkfw.peer.SharkEngine#getKEPVersion(net.sharkfw.protocols.StreamConnection, String) 
+     */
+    public static final String THISVERSION = "KEP 1.1 ";
+    /**
+     * First KEP version - numbers were transmitted as strings. Messages 
+     * of that version are still understood and are sent by default.
+     * 
+     * @see net.sharkfw.peer.SharkEngine#setLegacyKEPFormat(boolean) 
+     */
+    public static final String VERSION_1_0 = "KEP 1.0 ";
+    /**
+     * KEP 1.0 message of a peer which understands the current version as
+     * well. Older peers don't check the version string. Recipients which
+     * understand the current version answer in that version - that's how
+     * peers switch to the current version.
      */
-    public static final String THISVERSION = "KEP 1.0 ";
+    public static final String VERSION_1_0_UPGRADE = "KEP 1.0 +1.1";
     /**
      * RDF based format
      */
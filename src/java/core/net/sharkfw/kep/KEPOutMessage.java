@@ -4,6 +4,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.*;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
 import javax.crypto.*;
 import net.sharkfw.knowledgeBase.Knowledge;
 import net.sharkfw.knowledgeBase.SharkCS;
@@ -13,7 +16,9 @@ import net.sharkfw.protocols.MessageStub;
 import net.sharkfw.protocols.SharkOutputStream;
 import net.sharkfw.protocols.StreamConnection;
 import net.sharkfw.protocols.UTF8SharkOutputStream;
+import net.sharkfw.security.utility.SharkCryptoService;
 import net.sharkfw.system.L;
+import net.sharkfw.system.Metrics;
 import net.sharkfw.system.Utils;
 
 /**
@@ -49,6 +54,21 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
     private SecretKey sessionKey = null;
     private String sendingPeerSIString = null;
     private boolean sign;
+    
+    /** held while writing on a pooled connection */
+    private Lock writeLock = null;
+    private boolean written = false;
+    
+    /** connection was pooled by an earlier message - it can be stale */
+    private boolean reusedConnection = false;
+    
+    /** for metrics - 0 if switched off */
+    private final long created = Metrics.start();
+    
+    /** sends this message again if recipient doesn't know its session key */
+    private Runnable resend = null;
+    private SessionKeyCache.SessionKey referredKey = null;
+    private byte[] referredNonce = null;
 
     /** 
      * Message will be sent via message based protocol
@@ -78,8 +98,6 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
         this.recipientAddress = con.getReceiverAddressString();
     }
 
-    private byte[] versionByte = null;
-
     /**
      * Methode ist called when anything is written into the
      * outputstream os. There are three constructor. Thus,
@@ -99,14 +117,15 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
                 // append signature
                 byte[] signature = sos.getSignature();
 
-                L.d(L.byteArrayToString(signature, "signature to be sent"), this);
+                if(L.isDebug()) {
+                    L.d(L.byteArrayToString(signature, "signature to be sent"), this);
+                }
                 
                 // done with signing - hang out digest stream
                 this.os.set(this.underDigestStream);
 
-                // write signature length as string!
-                String sigLenString = Integer.toString(signature.length);
-                this.os.write(sigLenString);
+                // write signature length
+                this.os.writeInt(signature.length);
 
                 // write signature
                 this.underDigestStream.write(signature);
@@ -125,6 +144,11 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
             }
         }
         
+        if(this.gcmStream != null) {
+            // final chunk must arrive - reader detects truncation otherwise
+            this.gcmStream.doFinal();
+        }
+        
         // Do I work on a message stub ?
         if(outStub != null) {
             if(this.baos == null) { /* impossible */ return; }
@@ -133,6 +157,9 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
 //            try {
                 // Use a byte[] to avoid encoding issues. Encoding is handled on a higher level (Shark[Output|Input]Stream).
                 this.outStub.sendMessage(this.baos.toByteArray(), this.recipientAddress);
+                if(Metrics.isEnabled()) {
+                    Metrics.add("stub." + Metrics.nameOf(this.outStub) + ".bytesOut", this.baos.size());
+                }
 //            }
 //            catch(IOException ioe) {
 //                // TODO - failure on protocol level...
@@ -149,19 +176,50 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
 //                }
             }
         }
+        
+        this.written = true;
+        Metrics.stop("kep.send", this.created);
+    }
+
+    /**
+     * Message is written or failed. Next message can be written on a 
+     * pooled connection. A connection which failed isn't used again.
+     */
+    private void writingDone() {
+        if(!this.written && this.referredKey != null) {
+            // failed - not to be sent again if rejected
+            this.referredKey.forget(this.referredNonce);
+        }
+        
+        if(this.con != null && this.se != null) {
+            this.se.getKepStub().getConnectionPool().writingDone(this.con, 
+                    this.writeLock, !this.written);
+        }
+        
+        this.writeLock = null;
     }
 
     private void writeHeader(int cmd, int format) throws IOException {
+        if(this.con != null && this.se != null) {
+            // other messages on a pooled connection have to wait
+            this.writeLock = this.se.getKepStub().getConnectionPool().startWriting(this.con);
+        }
+        
       //Base64.OutputStream bos = new Base64.OutputStream(os);
       // write version
 //      L.d("Writing Header", this);
         
-        if(this.versionByte == null) {
-            this.versionByte = KEPMessage.THISVERSION.getBytes("UTF-8");
+        // old peers only understand KEP 1.0
+        String version = KEPMessage.VERSION_1_0;
+        if(this.se != null) {
+            version = this.se.getKEPVersion(this.con, this.recipientAddress);
         }
-
-        this.os.write(KEPMessage.THISVERSION);
-        L.d("Wrote version: " + KEPMessage.THISVERSION, this);
+        
+        // tell recipient that we understand the current version as well
+        this.os.write(version.equals(KEPMessage.VERSION_1_0) ? 
+                KEPMessage.VERSION_1_0_UPGRADE : version);
+        this.os.setBinaryNumbers(!version.equals(KEPMessage.VERSION_1_0));
+        L.d("Wrote version: " + version, this);
 
 /*        
         String replyAddress = null;
@@ -182,11 +240,11 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
 */
         
         // write cmd
-        os.write(Integer.toString(cmd));
+        os.writeInt(cmd);
 //        L.d("Wrote cmd " + cmd, this);
 
         // write format
-        os.write(Integer.toString(format));
+        os.writeInt(format);
 //        L.d("Wrote format:" + format, this);
         
         if((this.sign() || this.encrypt()) && (this.sendingPeerSIString != null)) { 
@@ -209,57 +267,125 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
             this.os.write("n");
         }
 
+        // old peers don't know session key references
+        SessionKeyCache sessionKeys = null;
+        if(this.se != null && !version.equals(KEPMessage.VERSION_1_0)) {
+            sessionKeys = this.se.getSessionKeyCache();
+        }
+        
+        this.sessionKey = null;
+        this.referredKey = null;
+        
+        // authenticated encryption - old peers only know block encryption
+        boolean gcm = this.encrypt() && !version.equals(KEPMessage.VERSION_1_0)
+                && (this.se == null || !this.se.getLegacyEncryption());
+        if(gcm) {
+            this.os.writeInt(KEPMessage.ENCRYPTION_GCM);
+        }
+        
         // do we want to encrypt ?
-        if(this.encrypt()) {
+        if(this.encrypt() && sessionKeys != null) {
+            // session key already known by recipient?
+            SessionKeyCache.SessionKey known = sessionKeys.sentTo(this.publicKeyRecipient);
+            if(known != null) {
+                try {
+                    byte[] nonce = sessionKeys.createNonce();
+                    this.sessionKey = SessionKeyCache.deriveKey(known.getKey(), nonce);
+                    
+                    if(known.isConfirmed()) {
+                        L.d("refer to session key: " + known.getID(), this);
+                        this.os.writeInt(SessionKeyCache.KEY_REFERENCE);
+                        this.os.writeLong(known.getID());
+                        
+                        if(this.resend != null) {
+                            // recipient might have lost that key - reset can come before we're done
+                            known.referred(nonce, this.resend);
+                            this.referredKey = known;
+                            this.referredNonce = nonce;
+                        }
+                    } else {
+                        // recipient might have lost it - send it again
+                        L.d("resend session key: " + known.getID(), this);
+                        byte[] wrappedKey = known.getWrappedKey();
+                        this.os.writeInt(SessionKeyCache.KEY_RESENT);
+                        this.os.writeInt(wrappedKey.length);
+                        this.os.getOutputStream().write(wrappedKey);
+                    }
+                    this.os.getOutputStream().write(nonce);
+                } catch (GeneralSecurityException ex) {
+                    // transmit a new one
+                    L.w("cannot derive message key: " + ex.getMessage(), this);
+                    sessionKeys.reset(known.getID());
+                    this.sessionKey = null;
+                }
+            }
+        }
+        
+        if(this.encrypt() && this.sessionKey == null) {
             L.d("create session key", this);
             // encryption needed - setup session key
+            SecretKey newSessionKey = null;
             try {
                 // create AES session key
                 KeyGenerator gen = KeyGenerator.getInstance("AES");
                 
-                this.sessionKey = gen.generateKey();
+                newSessionKey = gen.generateKey();
             } catch (NoSuchAlgorithmException ex) {
                 L.d(ex.getMessage(), this);
             }
-        } else { // make sure not to encrypt
-            this.sessionKey = null;
-        }
-        
-        String encryptedSessionKey = null;
-        // do we encrypt that stuff?
-        if(this.sessionKey != null) {
+            
             try {
                 // encrypt that thing
                 L.d("wrap session key", this);
-                Cipher cipher = Cipher.getInstance("RSA");
-                cipher.init(Cipher.WRAP_MODE, this.publicKeyRecipient);
-                byte[] sessionKeyBytes = cipher.wrap(this.sessionKey);
+                byte[] sessionKeyBytes;
+                Cipher cipher = SharkCryptoService.getCipher("RSA");
+                try {
+                    cipher.init(Cipher.WRAP_MODE, this.publicKeyRecipient);
+                    sessionKeyBytes = cipher.wrap(newSessionKey);
+                }
+                finally {
+                    SharkCryptoService.releaseCipher("RSA", cipher);
+                }
                 
 //                System.out.println("\n session key bytes len (sent): " + sessionKeyBytes.length);
                 L.printByte(sessionKeyBytes, "wrapped session key bytes (sent)");
                 
-                this.os.write(String.valueOf(sessionKeyBytes.length));
+                this.os.writeInt(sessionKeyBytes.length);
                 this.os.getOutputStream().write(sessionKeyBytes);
                 
+                this.sessionKey = newSessionKey;
+                if(sessionKeys != null) {
+                    sessionKeys.wrapped(this.publicKeyRecipient, newSessionKey, sessionKeyBytes);
+                }
+                
             } catch (GeneralSecurityException ex) {
                 
                 L.e(ex.getMessage(), this);
-                this.os.write("0");
+                this.os.writeInt(0);
             } catch(IOException ioe) {
                 // I don't know
             } 
-        } else {
+        } else if(!this.encrypt()) {
             // make sure there won't be a session key
-            this.os.write("0");
+            this.os.writeInt(0);
         }
         
         // we are done here - set up encrypting protocol stack
         
         // add encryption stream if necessary
-        if (this.encrypt()) {
+        if (this.encrypt() && this.sessionKey != null) {
             L.d("put encryption stream on top of output stream", this);
-            this.encryptingStream = new EncryptingOutputStream(this.os.getOutputStream(), this.sessionKey);
-            this.os.set(this.encryptingStream);
+            if(gcm) {
+                try {
+                    this.gcmStream = new GCMEncryptingOutputStream(this.os.getOutputStream(), this.sessionKey);
+                } catch (GeneralSecurityException ex) {
+                    throw new IOException("cannot encrypt: " + ex.getMessage());
+                }
+                this.os.set(this.gcmStream);
+            } else {
+                this.encryptingStream = new EncryptingOutputStream(this.os.getOutputStream(), this.sessionKey);
+                this.os.set(this.encryptingStream);
+            }
         }
 
         // add signing stream if necessary
@@ -275,6 +401,7 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
     private SigningOutputStream sos = null;
     private Cipher cipher;
     private EncryptingOutputStream encryptingStream;
+    private GCMEncryptingOutputStream gcmStream;
     
     private DigestOutputStream digestStream = null;
     private OutputStream underDigestStream = null;
@@ -302,6 +429,18 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
         return this.responseSent;
     }
 
+    public void setReusedConnection(boolean reused) {
+        this.reusedConnection = reused;
+    }
+
+    /**
+     * @return true if message is written on a pooled connection which 
+     * was opened for an earlier message
+     */
+    public boolean isReusedConnection() {
+        return this.reusedConnection;
+    }
+
     /**
      * Create an insert command containing the <code>Knowledge</code> passed.
      *
@@ -350,20 +489,31 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
       // Having reached this point shows that some information must still be sent
       L.d(">>>>>>>>>>>> send insert", this);        
 //      try {
-        // write header
-        this.writeHeader(KEPMessage.KEP_INSERT, this.se.getKnowledgeFormat());
-//          L.d("Wrote header.", this);
+        VocabularyCache.Table vocabulary = null;
+        if(address != null) {
+            vocabulary = this.se.getVocabularyCache().sentTo(address);
+        }
+        
         try {
-            this.ks.write(k, os);
+            // write header
+            this.writeHeader(KEPMessage.KEP_INSERT, this.se.getKnowledgeFormat());
+//          L.d("Wrote header.", this);
+            this.ks.write(k, os, this.se.getContentTransfers(), this.con, vocabulary);
+            
+            // notify we are done with that message
+            this.sent();
         }
         catch(SharkKBException e) {
+            // tags put into the table are sent again until acknowledged
             throw new IOException(e.getMessage());
         }
-//          L.d("Wrote knowledge", this);
-      // notify we are done with that message
-        this.sent();
+        finally {
+            this.writingDone();
+        }
         L.d(">>>>>>>>>>> insert sent", this);
-        L.d(L.knowledge2String(k.contextPoints()), this);
+        if(L.isDebug()) {
+            L.d(L.knowledge2String(k.contextPoints()), this);
+        }
 
         // Remember that this knowledge has been sent
         this.se.setSentInformation(k, address); 
@@ -379,6 +529,131 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
       this.responseSent =  true;
     }
 
+    /**
+     * Ask sender of chunked content to send missing chunks only.
+     *
+     * @param transferID identifies content
+     * @param missing numbers of missing chunks
+     * @see net.sharkfw.kep.ContentTransfers
+     */
+    public void resume(String transferID, BitSet missing) throws IOException {
+        try {
+            this.writeHeader(KEPMessage.KEP_RESUME, this.se.getKnowledgeFormat());
+        
+            this.os.write(transferID);
+            byte[] bits = missing.toByteArray();
+            this.os.writeInt(bits.length);
+            this.os.getOutputStream().write(bits);
+        
+            this.sent();
+            L.d(">>>>>>>>>>> resume sent: " + transferID, this);
+        
+            this.responseSent = true;
+        }
+        finally {
+            this.writingDone();
+        }
+    }
+
+    /**
+     * Tell sender of knowledge which vocabulary table slots were learned.
+     *
+     * @param id vocabulary table id
+     * @param refs references of learned slots
+     * @see net.sharkfw.kep.VocabularyCache
+     */
+    public void acknowledgeVocabulary(long id, List<String> refs) throws IOException {
+        try {
+            this.writeHeader(KEPMessage.KEP_VOCABULARY_ACK, this.se.getKnowledgeFormat());
+        
+            this.os.writeLong(id);
+            this.os.writeInt(refs.size());
+            for(String ref : refs) {
+                this.os.write(ref);
+            }
+        
+            this.sent();
+            L.d(">>>>>>>>>>> vocabulary ack sent: " + id, this);
+        
+            this.responseSent = true;
+        }
+        finally {
+            this.writingDone();
+        }
+    }
+
+    /**
+     * Ask sender of knowledge to drop a vocabulary table. References into
+     * that table couldn't be resolved - sender sends that message again.
+     *
+     * @param id vocabulary table id
+     * @param message number of rejected message
+     * @see net.sharkfw.kep.VocabularyCache
+     */
+    public void resetVocabulary(long id, int message) throws IOException {
+        try {
+            this.writeHeader(KEPMessage.KEP_VOCABULARY_RESET, this.se.getKnowledgeFormat());
+        
+            this.os.writeLong(id);
+            this.os.writeInt(message);
+        
+            this.sent();
+            L.d(">>>>>>>>>>> vocabulary reset sent: " + id, this);
+        
+            this.responseSent = true;
+        }
+        finally {
+            this.writingDone();
+        }
+    }
+
+    /**
+     * Tell sender of an encrypted message that its session key is cached.
+     *
+     * @param id session key id
+     * @see net.sharkfw.kep.SessionKeyCache
+     */
+    public void confirmSessionKey(long id) throws IOException {
+        try {
+            this.writeHeader(KEPMessage.KEP_SESSION_KEY_ACK, this.se.getKnowledgeFormat());
+        
+            this.os.writeLong(id);
+        
+            this.sent();
+            L.d(">>>>>>>>>>> session key ack sent: " + id, this);
+        
+            this.responseSent = true;
+        }
+        finally {
+            this.writingDone();
+        }
+    }
+
+    /**
+     * Ask sender of an encrypted message to drop a session key. The key
+     * is unknown here - sender sends that message again.
+     *
+     * @param id session key id
+     * @param nonce nonce of rejected message
+     * @see net.sharkfw.kep.SessionKeyCache
+     */
+    public void resetSessionKey(long id, byte[] nonce) throws IOException {
+        try {
+            this.writeHeader(KEPMessage.KEP_SESSION_KEY_RESET, this.se.getKnowledgeFormat());
+        
+            this.os.writeLong(id);
+            this.os.getOutputStream().write(nonce);
+        
+            this.sent();
+            L.d(">>>>>>>>>>> session key reset sent: " + id, this);
+        
+            this.responseSent = true;
+        }
+        finally {
+            this.writingDone();
+        }
+    }
+
     /**
      * Create an expose command with the <code>ExposedInterest</code> passed.
      *
@@ -398,18 +673,21 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
 //      try {
         // write header
 //        L.d("Writing header ... ", this);
-        this.writeHeader(KEPMessage.KEP_EXPOSE, this.se.getKnowledgeFormat());
-//        L.d("Wrote header", this);
         try {
+            this.writeHeader(KEPMessage.KEP_EXPOSE, this.se.getKnowledgeFormat());
+//          L.d("Wrote header", this);
             this.ks.write(interest, os);
+
+//          L.d("Wrote interest", this);
+            // notify we are done with that message
+            this.sent();
         }
         catch(SharkKBException e) {
             throw new IOException(e.getMessage());
         }
-
-//        L.d("Wrote interest", this);
-        // notify we are done with that message
-        this.sent();
+        finally {
+            this.writingDone();
+        }
         
         // notify message accounting
         this.se.getKepStub().sentInterest(interest);
@@ -424,6 +702,14 @@ public class KEPOutMessage extends KEPMessage implements KEPEngine {
       this.responseSent = true;
     }
 
+    /**
+     * @param resend sends this message again - called if recipient 
+     * rejects it because it doesn't know the session key it refers to
+     */
+    public void setResend(Runnable resend) {
+        this.resend = resend;
+    }
+
     /**
      * @param privateKey must be set if signing or encryption is wanted
      * @param publicKeyRemotePeer if set - message will be encrypted.
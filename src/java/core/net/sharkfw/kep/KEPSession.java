@@ -2,6 +2,7 @@ package net.sharkfw.kep;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import net.sharkfw.knowledgeBase.SharkKBException;
@@ -10,8 +11,11 @@ import net.sharkfw.peer.SharkEngine;
 import net.sharkfw.peer.SharkEngine.SecurityLevel;
 import net.sharkfw.peer.SharkEngine.SecurityReplyPolicy;
 import net.sharkfw.pki.SharkPublicKeyStorage;
+import net.sharkfw.protocols.IdleAwareConnection;
+import net.sharkfw.protocols.Protocols;
 import net.sharkfw.protocols.StreamConnection;
 import net.sharkfw.system.L;
+import net.sharkfw.system.Metrics;
 import net.sharkfw.system.SharkNotSupportedException;
 import net.sharkfw.system.SharkSecurityException;
 import net.sharkfw.system.Streamer;
@@ -35,6 +39,11 @@ public class KEPSession extends Thread {
     private SharkPublicKeyStorage publicKeyStorage;
     private SecurityReplyPolicy replyPolicy;
     private boolean refuseUnverifiably;
+    
+    /**
+     * Connections which cannot wait for data are checked that often
+     */
+    private static final long POLL_INTERVAL = 50;
 
     KEPSession(SharkEngine se, StreamConnection con, KEPStub kepStub) {
         this.se = se;
@@ -49,63 +58,26 @@ public class KEPSession extends Thread {
     public void run() {
     	L.d("Started.", this);
     	boolean handled = false;
+    	boolean broken = false;
 
     	do {
     		L.d("Next run starts.", this);
     		try { 
-    			L.d("Creating KEPRequest from connection replyaddress: " + this.con.getReplyAddressString(), this);
-    			KEPInMessage inMsg = new KEPInMessage(this.se, this.con);
-    			inMsg.initSecurity(this.privateKey, this.publicKeyStorage,
-                                this.encryptionLevel, this.signatureLevel,
-                                this.replyPolicy, this.refuseUnverifiably);
-    			inMsg.parse();
-    			L.d("Created KEPRequest object", this);
-    			handled = this.kepStub.callListener(inMsg);
-    			handled = handled && inMsg.keepOpen();
-    		} catch (SharkNotSupportedException e) {
-    			L.e("unsupported KEP format: " + e.getMessage(), this);
-//              e.printStackTrace();
+    			handled = this.handleMessage();
     		} catch (IOException ioe) {
     			// connection closed - bye
     			handled = false;
     			L.d("IOException while handling KEP Request - go ahead", this);
-    		} catch (SharkSecurityException ioe) {
-    			// connection closed - bye
-    			handled = false;
-    			L.d("Security Exception", this);
+    			if(!(ioe instanceof InterruptedIOException)) {
+    				// broken - don't send further messages over it
+    				this.kepStub.removeStreamConnection(this.con);
+    				broken = true;
+    			}
     		}
-            catch (SharkKBException ioe) {
-            	// connection closed - bye
-            	handled = false;
-            	L.d("SharkKB Exception", this);
-            }
-            catch(RuntimeException re) {
-            	L.d("connection refused - peer already gone", this);
-            }
 
     		L.d("Handled = " + handled, this);
-    		if(!handled) {
-    			L.d("Checking for more KEP-Commands", this);
-                // no listener handled that request
-                // maybe there is another KEP methode in the stream
-                try {
-                    if(this.con.getInputStream().available() > 0) {
-                    	L.d("More bytes available on inputstream" , this);
-                    	handled = true;
-                    } else {
-                        // maybe remote peer wasn't fast enough - give it some time
-                        L.d("Waiting for remotepeer for: " + se.getConnectionTimeOut(), this);
-                        Thread.sleep(se.getConnectionTimeOut());
-                        if(this.con.getInputStream().available() > 0) {
-                        	handled = true;
-                        }
-                    }
-                }
-                catch(Exception e) {
-                    // ignore and go ahead
-                }
-            }
-        } while (handled);
+    		// maybe there is another KEP methode in the stream
+        } while (!broken && this.awaitNextMessage());
 
         try {
             final InputStream inputStream = this.con.getInputStream().getInputStream();
@@ -121,6 +93,99 @@ public class KEPSession extends Thread {
         this.con.close();
     }
 
+    /**
+     * Waits until next message arrives but not longer than idle timeout
+     * of that protocol.
+     * 
+     * @return false if connection is idle (or closed)
+     * @see SharkEngine#getIdleTimeout(int) 
+     */
+    private boolean awaitNextMessage() {
+        long idleTimeout = this.getIdleTimeout();
+        L.d("Waiting for remotepeer for: " + idleTimeout, this);
+        
+        try {
+            if(this.con instanceof IdleAwareConnection) {
+                return ((IdleAwareConnection) this.con).awaitData(idleTimeout);
+            }
+            
+            // cannot wait on connection - poll it
+            long deadline = System.currentTimeMillis() + idleTimeout;
+            while(this.con.getInputStream().available() <= 0) {
+                long left = deadline - System.currentTimeMillis();
+                if(left <= 0) {
+                    return false;
+                }
+                
+                Thread.sleep(Math.min(left, POLL_INTERVAL));
+            }
+            
+            L.d("More bytes available on inputstream" , this);
+            return true;
+        }
+        catch(IOException e) {
+            L.d("connection closed while waiting: " + e.getMessage(), this);
+            return false;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    private long getIdleTimeout() {
+        try {
+            return this.se.getIdleTimeout(
+                    Protocols.getValueByAddress(this.con.getReceiverAddressString()));
+        }
+        catch(SharkProtocolNotSupportedException e) {
+            // unknown protocol - take default
+            return this.se.getConnectionTimeOut();
+        }
+        catch(RuntimeException e) {
+            // no receiver address
+            return this.se.getConnectionTimeOut();
+        }
+    }
+
+    /**
+     * Reads a single KEP message from connection and hands it to listeners.
+     * 
+     * @return true if message was handled and connection is to be kept open
+     * @throws IOException connection closed or message couldn't be read - 
+     * connection is in undefined state
+     */
+    boolean handleMessage() throws IOException {
+        try {
+            L.d("Creating KEPRequest from connection replyaddress: " + this.con.getReplyAddressString(), this);
+            KEPInMessage inMsg = new KEPInMessage(this.se, this.con);
+            inMsg.initSecurity(this.privateKey, this.publicKeyStorage,
+                    this.encryptionLevel, this.signatureLevel,
+                    this.replyPolicy, this.refuseUnverifiably);
+            long start = Metrics.start();
+            inMsg.parse();
+            Metrics.stop("kep.parse", start);
+            L.d("Created KEPRequest object", this);
+            start = Metrics.start();
+            boolean handled = this.kepStub.callListener(inMsg);
+            Metrics.stop("kep.dispatch", start);
+            return handled && inMsg.keepOpen();
+        } catch (SharkNotSupportedException e) {
+            L.e("unsupported KEP format: " + e.getMessage(), this);
+//          e.printStackTrace();
+            return false;
+        } catch (SharkSecurityException sse) {
+            L.d("Security Exception", this);
+            throw new IOException(sse.getMessage());
+        } catch (SharkKBException kbe) {
+            L.d("SharkKB Exception", this);
+            throw new IOException(kbe.getMessage());
+        } catch(RuntimeException re) {
+            L.d("connection refused - peer already gone", this);
+            return false;
+        }
+    }
+
     private SecurityLevel signatureLevel = SharkEngine.SecurityLevel.IF_POSSIBLE;
     private SecurityLevel encryptionLevel = SharkEngine.SecurityLevel.IF_POSSIBLE;
     private PublicKey publicKeyRemotePeer;
@@ -0,0 +1,281 @@
+package net.sharkfw.kep;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.system.L;
+
+/**
+ * Runs KEP sessions on a bounded number of threads.
+ *
+ * <p>Each incoming stream used to get a thread of its own. A burst of peers
+ * (e.g. after a network partition heals) created as many threads as there
+ * were connections. This executor admits at most <code>maxThreads</code>
+ * running and <code>maxQueued</code> waiting sessions. A single peer
+ * (remote host) has a fair share of <code>maxPerPeer</code> sessions. Beyond
+ * that share it gets a place only if one is free - it is rejected first when
+ * the executor fills up and one busy peer cannot lock out the others.</p>
+ *
+ * <p>If there is no place left the {@link OverloadPolicy} decides:
+ * <code>REJECT</code> closes the new connection immediately,
+ * <code>BLOCK</code> lets the calling thread (usually a server accepting
+ * connections) wait until there is a place again. Meanwhile new connections
+ * pile up in the listen backlog of the OS which slows down the peers.
+ * A blocked caller gives up after <code>blockTimeout</code> and closes the
+ * connection.</p>
+ *
+ * <p>Threads are created on demand and end after being idle for a while.</p>
+ *
+ * @see KEPStub#setSessionExecutor(KEPSessionExecutor)
+ * @author thsc
+ */
+public class KEPSessionExecutor {
+
+    public static final int DEFAULT_MAX_THREADS = 64;
+    public static final int DEFAULT_MAX_QUEUED = 256;
+    public static final int DEFAULT_MAX_PER_PEER = 16;
+    public static final long DEFAULT_BLOCK_TIMEOUT = 5000;
+
+    private static final long KEEP_ALIVE = 30000;
+
+    /**
+     * What to do with a session if executor is full
+     */
+    public enum OverloadPolicy {
+        /** close connection */
+        REJECT,
+        /** caller waits for a free place, at most block timeout */
+        BLOCK
+    }
+
+    private final int maxPerPeer;
+    private final OverloadPolicy policy;
+    private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+
+    private final Semaphore places;
+    private final ThreadPoolExecutor pool;
+    private final HashMap<String, Integer> peerSessions = new HashMap<>();
+
+    private int rejected = 0;
+
+    public KEPSessionExecutor() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED, DEFAULT_MAX_PER_PEER,
+                OverloadPolicy.BLOCK);
+    }
+
+    /**
+     * @param maxThreads sessions running at the same time
+     * @param maxQueued sessions waiting for a thread
+     * @param maxPerPeer fair share of sessions (running or waiting) of a
+     * single remote host, 0 for no limit
+     * @param policy what to do if there is no place left
+     */
+    public KEPSessionExecutor(int maxThreads, int maxQueued, int maxPerPeer,
+            OverloadPolicy policy) {
+
+        if(maxThreads < 1) {
+            throw new IllegalArgumentException("at least one thread required");
+        }
+
+        this.maxPerPeer = maxPerPeer;
+        this.policy = policy;
+        this.places = new Semaphore(maxThreads + Math.max(0, maxQueued), true);
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+                KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "KEPSession-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param millis time a caller waits for a place with policy BLOCK
+     */
+    public void setBlockTimeout(long millis) {
+        this.blockTimeout = millis;
+    }
+
+    /**
+     * Runs session as soon as there is a thread. Connection is closed if
+     * session isn't admitted.
+     *
+     * @param session
+     * @param con connection handled by that session
+     * @return false if session was rejected
+     */
+    public boolean execute(final Runnable session, final StreamConnection con) {
+        final String peer = KEPSessionExecutor.peerOf(con);
+
+        // a peer beyond its share gets a place only if there is one right now
+        boolean fairShare = this.enterPeer(peer);
+        boolean admitted = fairShare ? this.acquirePlace() : this.places.tryAcquire();
+
+        if(!admitted) {
+            this.leavePeer(peer);
+            L.w("no place left for session with " + peer + " - connection closed", this);
+            this.reject(con);
+            return false;
+        }
+
+        try {
+            this.pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.run();
+                    }
+                    finally {
+                        KEPSessionExecutor.this.places.release();
+                        KEPSessionExecutor.this.leavePeer(peer);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException ree) {
+            // shut down
+            this.places.release();
+            this.leavePeer(peer);
+            this.reject(con);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs session on a connection this peer opened and shares by its
+     * {@link StreamConnectionPool}. Such a session isn't rejected - closing
+     * the connection would break messages written on it. It waits for a
+     * thread instead.
+     *
+     * @param session
+     * @param con connection handled by that session
+     * @return false if executor is shut down
+     */
+    public boolean executePooled(final Runnable session, final StreamConnection con) {
+        final String peer = KEPSessionExecutor.peerOf(con);
+        this.enterPeer(peer);
+
+        try {
+            this.pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.run();
+                    }
+                    finally {
+                        KEPSessionExecutor.this.leavePeer(peer);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException ree) {
+            this.leavePeer(peer);
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean acquirePlace() {
+        if(this.policy == OverloadPolicy.REJECT) {
+            return this.places.tryAcquire();
+        }
+
+        try {
+            return this.places.tryAcquire(this.blockTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return false if peer already has its share of sessions
+     */
+    private synchronized boolean enterPeer(String peer) {
+        Integer n = this.peerSessions.get(peer);
+        int sessions = n == null ? 0 : n;
+
+        this.peerSessions.put(peer, sessions + 1);
+
+        return this.maxPerPeer <= 0 || sessions < this.maxPerPeer;
+    }
+
+    private synchronized void leavePeer(String peer) {
+        Integer n = this.peerSessions.get(peer);
+        if(n == null || n <= 1) {
+            this.peerSessions.remove(peer);
+        } else {
+            this.peerSessions.put(peer, n - 1);
+        }
+    }
+
+    private void reject(StreamConnection con) {
+        synchronized(this) {
+            this.rejected++;
+        }
+
+        con.close();
+    }
+
+    /**
+     * Sessions are counted per remote host - a peer can open connections
+     * from any port.
+     */
+    private static String peerOf(StreamConnection con) {
+        String address = con.getReceiverAddressString();
+        if(address == null) {
+            return "";
+        }
+
+        int schemeEnd = address.indexOf("://");
+        int portStart = address.lastIndexOf(':');
+        if(schemeEnd >= 0 && portStart > schemeEnd + 2) {
+            return address.substring(0, portStart);
+        }
+
+        return address;
+    }
+
+    /**
+     * @return sessions running or waiting for a thread
+     */
+    public synchronized int getNumberSessions() {
+        int n = 0;
+        for(Integer sessions : this.peerSessions.values()) {
+            n += sessions;
+        }
+
+        return n;
+    }
+
+    /**
+     * @return number of connections closed because executor was full
+     */
+    public synchronized int getNumberRejected() {
+        return this.rejected;
+    }
+
+    /**
+     * Running sessions are finished, no new session is accepted.
+     */
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+}
@@ -1,5 +1,6 @@
 package net.sharkfw.kep;
 
+import java.io.IOException;
 import java.security.PrivateKey;
 import java.util.Enumeration;
 import java.util.Iterator;
@@ -14,6 +15,7 @@ import net.sharkfw.peer.SharkEngine;
 import net.sharkfw.peer.SharkEngine.SecurityLevel;
 import net.sharkfw.peer.SharkEngine.SecurityReplyPolicy;
 import net.sharkfw.protocols.RequestHandler;
+import net.sharkfw.protocols.StreamConnection;
 import net.sharkfw.system.InterestStore;
 import net.sharkfw.system.KnowledgeStore;
 
@@ -74,6 +76,17 @@ public abstract class KEPStub implements RequestHandler, KEPConnectionPool, KEPM
      */
     abstract public void withdrawListener(KnowledgePort listener);
 
+    /**
+     * A listener changed its interest. Stubs which route messages by 
+     * interest refresh their index. Nothing happens if that listener
+     * isn't registered.
+     * 
+     * @param listener
+     */
+    public void listenerChanged(KnowledgePort listener) {
+        // this stub doesn't route messages
+    }
+
     /**
      * Call all listeners to handle the message.
      *
@@ -85,6 +98,18 @@ public abstract class KEPStub implements RequestHandler, KEPConnectionPool, KEPM
      */
     abstract protected boolean callListener(KEPInMessage inMsg);
 
+    /**
+     * Handles a single KEP message which arrives on that connection. Unlike
+     * {@link #handleStream(StreamConnection)} no thread is started. Stubs
+     * watching lots of connections by their own (e.g. selector based) call 
+     * this method whenever data arrive on a connection.
+     * 
+     * @param con 
+     * @return True if at least one handler was able to process the message. False otherwise.
+     * @throws IOException connection is broken and has to be closed
+     */
+    abstract public boolean handleStreamMessage(StreamConnection con) throws IOException;
+
     public void initSecurity(PrivateKey privateKey, SharkPublicKeyStorage publicKeyStorage, 
             SecurityLevel encryptionLevel, SecurityLevel signatureLevel, 
             SecurityReplyPolicy replyPolicy, boolean refuseUnverifiably) {
@@ -97,6 +122,35 @@ public abstract class KEPStub implements RequestHandler, KEPConnectionPool, KEPM
         this.refuseUnverifiably = refuseUnverifiably;
     }
     
+    /**
+     * Sessions on incoming streams run on this executor. It is bounded by
+     * default.
+     */
+    protected KEPSessionExecutor sessionExecutor = new KEPSessionExecutor();
+
+    /**
+     * Set executor running KEP sessions. A <code>null</code> executor lets
+     * each session run in a thread of its own (no limit at all).
+     * 
+     * @param sessionExecutor 
+     */
+    public void setSessionExecutor(KEPSessionExecutor sessionExecutor) {
+        this.sessionExecutor = sessionExecutor;
+    }
+
+    public KEPSessionExecutor getSessionExecutor() {
+        return this.sessionExecutor;
+    }
+
+    /**
+     * Outgoing connections kept open for further messages
+     */
+    protected StreamConnectionPool connectionPool = new StreamConnectionPool();
+
+    public StreamConnectionPool getConnectionPool() {
+        return this.connectionPool;
+    }
+
     public abstract void setNotHandledRequestKP(KnowledgePort kp);
 
     public abstract void resetNotHandledRequestKP();
@@ -0,0 +1,198 @@
+package net.sharkfw.kep;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import net.sharkfw.knowledgeBase.SemanticTag;
+import net.sharkfw.knowledgeBase.STSet;
+import net.sharkfw.knowledgeBase.SharkCSAlgebra;
+import net.sharkfw.knowledgeBase.SharkKBException;
+import net.sharkfw.peer.KnowledgePort;
+
+/**
+ * Index of registered knowledge ports by topics of their interests.
+ *
+ * <p>A knowledge port can only find a mutual interest with a message if
+ * both share at least one topic (subject identifier) - or if either of them
+ * doesn't restrict topics at all. Ports tell their topics by
+ * {@link KnowledgePort#getRoutingTopicSIs()}. Ports without restriction
+ * are candidates for any message.</p>
+ *
+ * <p>Index is copy on write. Lookups don't need a lock. Candidates are
+ * returned in order of registration.</p>
+ *
+ * @author thsc
+ */
+final class KnowledgePortIndex {
+
+    /**
+     * Immutable state of the index
+     */
+    private static class Snapshot {
+        final List<KnowledgePort> ports;
+        final HashMap<KnowledgePort, Integer> positions = new HashMap<>();
+        final HashMap<String, List<KnowledgePort>> bySI = new HashMap<>();
+        final List<KnowledgePort> anyTopic = new ArrayList<>();
+
+        Snapshot(List<KnowledgePort> ports, HashMap<KnowledgePort, Set<String>> routing) {
+            this.ports = Collections.unmodifiableList(ports);
+
+            for(int i = 0; i < ports.size(); i++) {
+                KnowledgePort kp = ports.get(i);
+                this.positions.put(kp, i);
+
+                Set<String> sis = routing.get(kp);
+                if(sis == null) {
+                    this.anyTopic.add(kp);
+                    continue;
+                }
+
+                for(String si : sis) {
+                    String key = KnowledgePortIndex.key(si);
+                    List<KnowledgePort> kps = this.bySI.get(key);
+                    if(kps == null) {
+                        kps = new ArrayList<>();
+                        this.bySI.put(key, kps);
+                    } else if(kps.contains(kp)) {
+                        continue;
+                    }
+                    kps.add(kp);
+                }
+            }
+        }
+    }
+
+    private final ArrayList<KnowledgePort> ports = new ArrayList<>();
+    private final HashMap<KnowledgePort, Set<String>> routing = new HashMap<>();
+
+    private volatile Snapshot snapshot = new Snapshot(
+            new ArrayList<KnowledgePort>(), new HashMap<KnowledgePort, Set<String>>());
+
+    /**
+     * Add port or refresh its topics if already registered.
+     *
+     * @param kp
+     * @return false if port was already registered
+     */
+    synchronized boolean add(KnowledgePort kp) {
+        boolean isNew = !this.ports.contains(kp);
+        if(isNew) {
+            this.ports.add(kp);
+        }
+
+        this.routing.put(kp, kp.getRoutingTopicSIs());
+        this.rebuild();
+
+        return isNew;
+    }
+
+    /**
+     * Refresh topics of a registered port. Unknown ports are ignored.
+     *
+     * @param kp
+     */
+    synchronized void update(KnowledgePort kp) {
+        if(this.ports.contains(kp)) {
+            this.routing.put(kp, kp.getRoutingTopicSIs());
+            this.rebuild();
+        }
+    }
+
+    synchronized void remove(KnowledgePort kp) {
+        if(this.ports.remove(kp)) {
+            this.routing.remove(kp);
+            this.rebuild();
+        }
+    }
+
+    private void rebuild() {
+        this.snapshot = new Snapshot(new ArrayList<>(this.ports),
+                new HashMap<>(this.routing));
+    }
+
+    /**
+     * @return all ports in order of registration
+     */
+    List<KnowledgePort> all() {
+        return this.snapshot.ports;
+    }
+
+    /**
+     * @param messageSIs topics of a message (see {@link #topicSIs(STSet)}) -
+     * null means any topic
+     * @return ports which could find a mutual interest with that message
+     */
+    List<KnowledgePort> candidates(Set<String> messageSIs) {
+        final Snapshot s = this.snapshot;
+
+        if(messageSIs == null) {
+            return s.ports;
+        }
+
+        HashSet<KnowledgePort> found = new HashSet<>(s.anyTopic);
+        for(String si : messageSIs) {
+            List<KnowledgePort> kps = s.bySI.get(si);
+            if(kps != null) {
+                found.addAll(kps);
+            }
+        }
+
+        ArrayList<KnowledgePort> result = new ArrayList<>(found);
+        Collections.sort(result, new Comparator<KnowledgePort>() {
+            @Override
+            public int compare(KnowledgePort a, KnowledgePort b) {
+                return s.positions.get(a) - s.positions.get(b);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * @param topics
+     * @return subject identifiers (as index keys) of all tags or null if set
+     * is any
+     */
+    static Set<String> topicSIs(STSet topics) {
+        if(SharkCSAlgebra.isAny(topics)) {
+            return null;
+        }
+
+        HashSet<String> sis = new HashSet<>();
+        try {
+            Enumeration<SemanticTag> tagEnum = topics.tags();
+            while(tagEnum != null && tagEnum.hasMoreElements()) {
+                String[] tagSIs = tagEnum.nextElement().getSI();
+                if(SharkCSAlgebra.isAny(tagSIs)) {
+                    // tag without identity fits anything
+                    return null;
+                }
+
+                for(String si : tagSIs) {
+                    sis.add(KnowledgePortIndex.key(si));
+                }
+            }
+        }
+        catch(SharkKBException e) {
+            // cannot tell - offer message to everybody
+            return null;
+        }
+
+        return sis;
+    }
+
+    /**
+     * Subject identifiers are compared ignoring case.
+     *
+     * @see SharkCSAlgebra#identical(String, String)
+     */
+    private static String key(String si) {
+        return si.toLowerCase(Locale.ROOT);
+    }
+}
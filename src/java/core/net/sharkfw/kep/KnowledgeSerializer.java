@@ -36,6 +36,22 @@ public interface KnowledgeSerializer {
      */
     void write(Knowledge k, SharkOutputStream os) throws IOException, SharkKBException;
 
+    /**
+     * Write a Knowledge object unto the given OutputStream. Information 
+     * content is sent in chunks if the stream uses KEP 1.1 framing.
+     * Chunks that the receiver already has are skipped. Background
+     * vocabulary that the receiver already knows is only referenced.
+     *
+     * @param k The Knowledge object to be written
+     * @param os The OutputStream on which to write
+     * @param transfers state of chunked transfers - can be null
+     * @param connection connection resume requests arrive on - can be null
+     * @param vocabulary vocabulary table of the recipient - can be null
+     * @throws IOException Is thrown if problems with the stream occur.
+     */
+    void write(Knowledge k, SharkOutputStream os, ContentTransfers transfers,
+            Object connection, VocabularyCache.Table vocabulary) throws IOException, SharkKBException;
+
     /**
      * Parse Knowledge from an InputStream and return a Knowledge object.
      *
@@ -45,6 +61,26 @@ public interface KnowledgeSerializer {
      */
     Knowledge parseKnowledge(SharkInputStream is) throws IOException, SharkKBException;
 
+    /**
+     * Parse Knowledge from an InputStream and return a Knowledge object.
+     * Chunked content of earlier interrupted transfers is resumed.
+     * Information with incomplete content are not part of the returned
+     * knowledge. Referenced vocabulary is taken from vocabulary tables.
+     * Knowledge with references which cannot be resolved is rejected.
+     *
+     * @param is The InputStream to read from
+     * @param transfers state of chunked transfers - can be null
+     * @param listener is asked to request missing chunks - can be null
+     * @param vocabularies vocabulary tables of senders - can be null
+     * @param vocabularyListener is told about learned vocabulary and asked
+     * to reset a vocabulary table which could not be resolved - can be null
+     * @return A Knowledge object containing the deserialized knowledge
+     * @throws IOException Is thrown if problems with the stream occur.
+     */
+    Knowledge parseKnowledge(SharkInputStream is, ContentTransfers transfers, 
+            ContentTransfers.ResumeListener listener, VocabularyCache vocabularies,
+            VocabularyCache.Listener vocabularyListener) throws IOException, SharkKBException;
+
     /**
      * Deserialize an interest from a given InputStream.
      *
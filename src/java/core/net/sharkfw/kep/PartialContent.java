@@ -0,0 +1,236 @@
+package net.sharkfw.kep;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import net.sharkfw.knowledgeBase.Information;
+
+/**
+ * Content of a chunked transfer which is received. Chunks are written
+ * into a data file, numbers of received chunks are kept in a second
+ * file. Both survive an interrupted transfer - even a restart of the peer.
+ *
+ * @see ContentTransfers
+ * @author thsc
+ */
+public class PartialContent {
+
+    private static final String DATA_SUFFIX = ".part";
+    private static final String CHUNKS_SUFFIX = ".chunks";
+
+    private final File dataFile;
+    private final File chunkFile;
+    private final long len;
+    private final int chunkSize;
+    private final int numberChunks;
+    private BitSet received = new BitSet();
+
+    private RandomAccessFile data = null;
+
+    PartialContent(File directory, String transferID, long len, int chunkSize) throws IOException {
+        this.len = len;
+        this.chunkSize = chunkSize;
+        this.numberChunks = PartialContent.numberChunks(len, chunkSize);
+
+        String name = PartialContent.fileName(transferID);
+        this.dataFile = new File(directory, name + DATA_SUFFIX);
+        this.chunkFile = new File(directory, name + CHUNKS_SUFFIX);
+
+        this.restore();
+    }
+
+    /**
+     * Removes both files of a partial content if that file belongs to
+     * a partial content which wasn't changed since a given time.
+     *
+     * @param file any file of the partial content directory
+     * @param oldest
+     * @return true if partial content was removed
+     */
+    static boolean removeIfOlder(File file, long oldest) {
+        String name = file.getName();
+        String base;
+        if(name.endsWith(DATA_SUFFIX)) {
+            base = name.substring(0, name.length() - DATA_SUFFIX.length());
+        } else if(name.endsWith(CHUNKS_SUFFIX)) {
+            base = name.substring(0, name.length() - CHUNKS_SUFFIX.length());
+        } else {
+            return false;
+        }
+
+        File dataFile = new File(file.getParentFile(), base + DATA_SUFFIX);
+        File chunkFile = new File(file.getParentFile(), base + CHUNKS_SUFFIX);
+        if(dataFile.lastModified() >= oldest || chunkFile.lastModified() >= oldest) {
+            // lastModified is 0 if file doesn't exist
+            return false;
+        }
+
+        // chunk numbers first - data without them is never used
+        chunkFile.delete();
+        return dataFile.delete() || !dataFile.exists();
+    }
+
+    public static int numberChunks(long len, int chunkSize) {
+        return (int) ((len + chunkSize - 1) / chunkSize);
+    }
+
+    public long getContentLength() {
+        return this.len;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    public int getNumberChunks() {
+        return this.numberChunks;
+    }
+
+    public int receivedChunks() {
+        return this.received.cardinality();
+    }
+
+    public boolean complete() {
+        return this.received.cardinality() == this.numberChunks;
+    }
+
+    public BitSet missingChunks() {
+        BitSet missing = new BitSet(this.numberChunks);
+        missing.set(0, this.numberChunks);
+        missing.andNot(this.received);
+
+        return missing;
+    }
+
+    /**
+     * Writes bytes of a chunk into the data file.
+     *
+     * @param chunk chunk number
+     * @param offset offset within that chunk
+     */
+    public void write(int chunk, int offset, byte[] b, int off, int n) throws IOException {
+        if(this.data == null) {
+            this.data = new RandomAccessFile(this.dataFile, "rw");
+        }
+
+        this.data.seek((long) chunk * this.chunkSize + offset);
+        this.data.write(b, off, n);
+    }
+
+    /**
+     * Chunk was written and its digest was ok.
+     * @param chunk
+     * @throws IOException
+     */
+    public void chunkReceived(int chunk) throws IOException {
+        this.received.set(chunk);
+        this.persist();
+    }
+
+    /**
+     * Closes data file. Object can still be used.
+     */
+    public void close() {
+        if(this.data != null) {
+            try {
+                this.data.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+            this.data = null;
+        }
+    }
+
+    /**
+     * Sets assembled content as content of that information.
+     * @param info
+     * @throws IOException
+     */
+    public void copyTo(Information info) throws IOException {
+        this.close();
+
+        FileInputStream fis = new FileInputStream(this.dataFile);
+        try {
+            // file based information copies from file channel
+            info.setContent(fis, this.len);
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Removes any file of this partial content.
+     */
+    public void remove() {
+        this.close();
+        this.dataFile.delete();
+        this.chunkFile.delete();
+    }
+
+    private void persist() throws IOException {
+        DataOutputStream dos = new DataOutputStream(new FileOutputStream(this.chunkFile));
+        try {
+            dos.writeLong(this.len);
+            dos.writeInt(this.chunkSize);
+            byte[] bits = this.received.toByteArray();
+            dos.writeInt(bits.length);
+            dos.write(bits);
+        }
+        finally {
+            dos.close();
+        }
+    }
+
+    private void restore() throws IOException {
+        if(!this.chunkFile.exists()) {
+            return;
+        }
+
+        DataInputStream dis = new DataInputStream(new FileInputStream(this.chunkFile));
+        try {
+            long storedLen = dis.readLong();
+            int storedChunkSize = dis.readInt();
+            if(storedLen != this.len || storedChunkSize != this.chunkSize) {
+                // something else than expected - start again
+                return;
+            }
+
+            byte[] bits = new byte[dis.readInt()];
+            dis.readFully(bits);
+            this.received = BitSet.valueOf(bits);
+        }
+        catch(IOException ioe) {
+            // broken - start again
+            this.received = new BitSet();
+        }
+        finally {
+            dis.close();
+        }
+    }
+
+    private static String fileName(String transferID) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(transferID.getBytes("UTF-8"));
+
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; i < digest.length; i++) {
+                sb.append(Integer.toHexString((digest[i] & 0xFF) | 0x100).substring(1));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            return Integer.toHexString(transferID.hashCode());
+        } catch (UnsupportedEncodingException ex) {
+            return Integer.toHexString(transferID.hashCode());
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package net.sharkfw.kep;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import net.sharkfw.system.Base64;
+
+/**
+ * Remembers AES session keys exchanged with other peers.
+ *
+ * <p>Encrypted KEP messages carry an AES session key which is wrapped
+ * with the public RSA key of the recipient. Unwrapping costs a private key
+ * operation on receiver side which is far more expensive than decrypting
+ * a small message. Since KEP 1.1, a sender keeps the session key it has
+ * wrapped for a recipient key and reuses it for a while. Later messages
+ * only refer to that key by its id and come with a fresh nonce. Content
+ * of those messages is encrypted with a key derived from session key and
+ * nonce - no message key is used twice.</p>
+ *
+ * <p>Key ids are calculated from the wrapped key. Both sides know it
+ * without transmitting it.</p>
+ *
+ * <p>A receiver confirms a session key it has cached (KEP session key ack
+ * command). Until then, the sender keeps on transmitting the wrapped key
+ * together with a nonce. A receiver which has cached that key already
+ * finds it by its id and skips unwrapping.</p>
+ *
+ * <p>Sender keys are dropped after a maximum age or number of messages.
+ * A receiver which doesn't know a referenced key nevertheless (e.g. after
+ * a restart) rejects the message and asks the sender to drop the key (KEP
+ * session key reset command). The sender transmits a new wrapped key with
+ * the next message.</p>
+ *
+ * <p>A sender remembers how to send its last messages which refered to a
+ * key again. A reset names the rejected message by its nonce. That message
+ * and any later one which refered to that key are sent again - with a new
+ * wrapped key.</p>
+ *
+ * @author thsc
+ */
+public class SessionKeyCache {
+
+    /** session keys are renewed each hour */
+    public static final long DEFAULT_MAX_AGE = 60 * 60 * 1000;
+
+    /** ... or after that number of messages */
+    public static final int DEFAULT_MAX_USES = 1000;
+
+    /**
+     * Written instead of the length of a wrapped key. Key id and
+     * nonce follow.
+     */
+    public static final int KEY_REFERENCE = -1;
+
+    /**
+     * Written instead of the length of a wrapped key if a key is reused
+     * which isn't confirmed yet. Length of wrapped key, wrapped key and
+     * nonce follow.
+     */
+    public static final int KEY_RESENT = -3;
+
+    public static final int NONCE_LENGTH = 16;
+
+    /**
+     * Number of keys kept for recipients and from senders each.
+     */
+    private static final int MAX_KEYS = 1024;
+
+    /**
+     * Number of messages kept per key for sending them again. Older ones
+     * are taken as delivered.
+     */
+    private static final int MAX_REFERRING = 16;
+
+    private static final String DERIVATION_ALGORITHM = "HmacSHA256";
+
+    private long maxAge = DEFAULT_MAX_AGE;
+    private int maxUses = DEFAULT_MAX_USES;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final Map<String, SessionKey> sent = new LinkedHashMap<String, SessionKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SessionKey> eldest) {
+            return this.size() > MAX_KEYS;
+        }
+    };
+
+    // reset keys - messages in transit may still be rejected
+    private final Map<Long, SessionKey> dropped = new LinkedHashMap<Long, SessionKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SessionKey> eldest) {
+            return this.size() > MAX_KEYS;
+        }
+    };
+
+    private final Map<Long, SessionKey> received = new LinkedHashMap<Long, SessionKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SessionKey> eldest) {
+            return this.size() > MAX_KEYS;
+        }
+    };
+
+    /**
+     * @param maxAge session keys are used at most that long (ms) for
+     * sending. Received keys are kept twice that long.
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param maxUses session keys are used at most for that number of
+     * messages - 1 switches off reuse.
+     */
+    public void setMaxUses(int maxUses) {
+        this.maxUses = maxUses;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                             sender side                            //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param recipient public key of recipient
+     * @return session key to be referenced in a message to that recipient
+     * or null if a new key is to be wrapped.
+     */
+    public synchronized SessionKey sentTo(PublicKey recipient) {
+        String fingerprint = SessionKeyCache.fingerprint(recipient);
+        SessionKey sessionKey = this.sent.get(fingerprint);
+        if(sessionKey == null) {
+            return null;
+        }
+
+        if(sessionKey.uses >= this.maxUses
+                || System.currentTimeMillis() - sessionKey.created > this.maxAge) {
+            // rotate
+            this.sent.remove(fingerprint);
+            return null;
+        }
+
+        sessionKey.uses++;
+        return sessionKey;
+    }
+
+    /**
+     * A new session key was wrapped for a recipient.
+     *
+     * @param recipient public key of recipient
+     * @param key session key
+     * @param wrappedKey session key wrapped with recipient key
+     * @return remembered session key
+     */
+    public synchronized SessionKey wrapped(PublicKey recipient, SecretKey key, byte[] wrappedKey) {
+        SessionKey sessionKey = new SessionKey(SessionKeyCache.keyID(wrappedKey), key);
+        sessionKey.wrappedKey = wrappedKey;
+        sessionKey.uses = 1;
+        this.sent.put(SessionKeyCache.fingerprint(recipient), sessionKey);
+
+        return sessionKey;
+    }
+
+    /**
+     * Drop a session key used for sending - receiver doesn't know it
+     * (any longer).
+     *
+     * @param id
+     */
+    public synchronized void reset(long id) {
+        Iterator<SessionKey> keyIter = this.sent.values().iterator();
+        while(keyIter.hasNext()) {
+            SessionKey sessionKey = keyIter.next();
+            if(sessionKey.getID() == id) {
+                keyIter.remove();
+                this.dropped.put(id, sessionKey);
+            }
+        }
+    }
+
+    /**
+     * Receiver has rejected a message - it doesn't know that session key
+     * (any longer). Key is dropped.
+     *
+     * @param id session key id
+     * @param nonce nonce of rejected message
+     * @return resends of rejected message and of any later message which
+     * refered to that key - empty if messages are forgotten
+     */
+    public synchronized List<Runnable> reset(long id, byte[] nonce) {
+        this.reset(id);
+
+        SessionKey sessionKey = this.dropped.get(id);
+        if(sessionKey == null) {
+            return new ArrayList<>();
+        }
+
+        return sessionKey.rejected(nonce);
+    }
+
+    /**
+     * Receiver has cached that session key - later messages refer to it.
+     *
+     * @param id
+     */
+    public synchronized void confirmed(long id) {
+        for(SessionKey sessionKey : this.sent.values()) {
+            if(sessionKey.getID() == id) {
+                sessionKey.confirmed = true;
+            }
+        }
+    }
+
+    /**
+     * @return random nonce for a message which refers to a session key
+     */
+    public byte[] createNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        this.random.nextBytes(nonce);
+        return nonce;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                            receiver side                           //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A wrapped session key was received and unwrapped.
+     *
+     * @param wrappedKey
+     * @param key
+     */
+    public synchronized void unwrapped(byte[] wrappedKey, SecretKey key) {
+        long id = SessionKeyCache.keyID(wrappedKey);
+        this.received.put(id, new SessionKey(id, key));
+    }
+
+    /**
+     * @param id key id written by the sender
+     * @return session key or null if unknown
+     */
+    public synchronized SecretKey receivedKey(long id) {
+        SessionKey sessionKey = this.received.get(id);
+        if(sessionKey == null) {
+            return null;
+        }
+
+        if(System.currentTimeMillis() - sessionKey.created > 2 * this.maxAge) {
+            this.received.remove(id);
+            return null;
+        }
+
+        return sessionKey.getKey();
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                              helper                                //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param sessionKey
+     * @param nonce
+     * @return AES key for a single message
+     * @throws GeneralSecurityException
+     */
+    public static SecretKey deriveKey(SecretKey sessionKey, byte[] nonce)
+            throws GeneralSecurityException {
+
+        Mac mac = Mac.getInstance(DERIVATION_ALGORITHM);
+        mac.init(new SecretKeySpec(sessionKey.getEncoded(), DERIVATION_ALGORITHM));
+        byte[] derived = mac.doFinal(nonce);
+
+        return new SecretKeySpec(derived, 0, sessionKey.getEncoded().length, "AES");
+    }
+
+    /**
+     * @param wrappedKey
+     * @return id of session key - first eight bytes of a hash of the wrapped key
+     */
+    public static long keyID(byte[] wrappedKey) {
+        byte[] hash = SessionKeyCache.hash(wrappedKey);
+
+        long id = 0;
+        for(int i = 0; i < 8; i++) {
+            id = (id << 8) | (hash[i] & 0xff);
+        }
+
+        return id;
+    }
+
+    private static String fingerprint(PublicKey key) {
+        return Base64.encodeBytes(SessionKeyCache.hash(key.getEncoded()));
+    }
+
+    private static byte[] hash(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        }
+        catch(NoSuchAlgorithmException e) {
+            // each java platform must support SHA-256
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public static class SessionKey {
+        private final long id;
+        private final SecretKey key;
+        private final long created = System.currentTimeMillis();
+        private int uses = 0;
+        private byte[] wrappedKey = null;
+        private boolean confirmed = false;
+        private final Map<String, Runnable> referring = new LinkedHashMap<String, Runnable>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Runnable> eldest) {
+                return this.size() > MAX_REFERRING;
+            }
+        };
+
+        SessionKey(long id, SecretKey key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        public long getID() {
+            return this.id;
+        }
+
+        public SecretKey getKey() {
+            return this.key;
+        }
+
+        /**
+         * @return session key wrapped with recipient key - sent again
+         * until receiver has confirmed it
+         */
+        public byte[] getWrappedKey() {
+            return this.wrappedKey;
+        }
+
+        /**
+         * @return true if receiver has cached that key
+         */
+        public boolean isConfirmed() {
+            return this.confirmed;
+        }
+
+        /**
+         * A message refered to that key.
+         *
+         * @param nonce nonce of that message
+         * @param resend sends that message again
+         */
+        synchronized void referred(byte[] nonce, Runnable resend) {
+            this.referring.put(Base64.encodeBytes(nonce), resend);
+        }
+
+        /**
+         * Message which refered to that key wasn't sent.
+         *
+         * @param nonce nonce of that message
+         */
+        synchronized void forget(byte[] nonce) {
+            this.referring.remove(Base64.encodeBytes(nonce));
+        }
+
+        private synchronized List<Runnable> rejected(byte[] nonce) {
+            List<Runnable> resends = new ArrayList<>();
+            String rejected = Base64.encodeBytes(nonce);
+
+            Iterator<Map.Entry<String, Runnable>> referringIter = this.referring.entrySet().iterator();
+            while(referringIter.hasNext()) {
+                Map.Entry<String, Runnable> entry = referringIter.next();
+                if(!resends.isEmpty() || entry.getKey().equals(rejected)) {
+                    resends.add(entry.getValue());
+                    referringIter.remove();
+                }
+            }
+
+            return resends;
+        }
+    }
+}
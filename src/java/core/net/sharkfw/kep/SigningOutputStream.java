@@ -3,6 +3,7 @@ package net.sharkfw.kep;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.*;
+import net.sharkfw.security.utility.SharkCryptoService;
 import net.sharkfw.system.L;
 
 /**
@@ -10,13 +11,15 @@ import net.sharkfw.system.L;
  * @author thsc
  */
 public class SigningOutputStream extends OutputStream {
+    static final String ALGORITHM = "MD5withRSA";
+    
     private OutputStream os = null;
     private Signature signature = null;
     
     public SigningOutputStream(OutputStream os, PrivateKey privateKey) {
         try {
             this.os = os;
-            this.signature = Signature.getInstance("MD5withRSA");
+            this.signature = SharkCryptoService.getSignature(ALGORITHM);
             this.signature.initSign(privateKey);
             
 //            System.out.println(">>>>>>>>>>>>> init signing with private Key:\n" + privateKey.toString());
@@ -42,6 +45,19 @@ public class SigningOutputStream extends OutputStream {
         }
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.os.write(b, off, len);
+        try {
+            this.signature.update(b, off, len);
+        } catch (SignatureException ex) {
+            L.d(ex.getMessage(), this);
+        }
+    }
+
+    /**
+     * Signature object is given back - nothing can be written afterwards.
+     */
     byte[] getSignature() {
 //        System.out.println(">>>>>>>>>>>>>>>> counter, sign: " + this.counter);
         try {
@@ -49,6 +65,10 @@ public class SigningOutputStream extends OutputStream {
         } catch (SignatureException ex) {
             L.d(ex.getMessage(), this);
         }
+        finally {
+            SharkCryptoService.releaseSignature(ALGORITHM, this.signature);
+            this.signature = null;
+        }
         
         return null;
     }
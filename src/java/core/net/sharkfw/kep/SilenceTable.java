@@ -0,0 +1,324 @@
+package net.sharkfw.kep;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.STSet;
+import net.sharkfw.knowledgeBase.SemanticTag;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.SharkKBException;
+import net.sharkfw.knowledgeBase.SpatialSemanticTag;
+import net.sharkfw.knowledgeBase.TimeSemanticTag;
+import net.sharkfw.knowledgeBase.geom.SharkGeometry;
+
+/**
+ * Remembers when context spaces were sent. It is used by message accounting
+ * to suppress sending the same interest or knowledge again within the
+ * silent period.
+ *
+ * <p>Context spaces are not stored but a 128 bit fingerprint of them. The
+ * fingerprint is calculated by walking through the semantic tags. Order
+ * of tags within a dimension and order of subject identifiers within a tag
+ * don't matter.</p>
+ *
+ * <p>Entries are kept in time buckets. A bucket is dropped as a whole
+ * when the silent period is over. This happens with any access - there
+ * is no need to look up an entry to get rid of it. If the table is
+ * full, oldest entries are dropped earlier - one by one, a burst within
+ * a single bucket cannot exceed the limit either.</p>
+ *
+ * @author thsc
+ */
+public class SilenceTable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * Number of buckets covering a silent period
+     */
+    private static final int BUCKETS_PER_PERIOD = 4;
+
+    private long silentPeriod;
+    private long bucketLength;
+    private final int maxEntries;
+
+    private final HashMap<Fingerprint, Long> sent = new HashMap<>();
+    private final LinkedList<Bucket> buckets = new LinkedList<>();
+
+    /** fingerprints in buckets - the same one can be listed more than once */
+    private int listed = 0;
+
+    public SilenceTable(long silentPeriod) {
+        this(silentPeriod, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param silentPeriod time in milliseconds a fingerprint stays in the table
+     * @param maxEntries maximum number of fingerprints kept in the table
+     */
+    public SilenceTable(long silentPeriod, int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.setSilentPeriod(silentPeriod);
+    }
+
+    public final synchronized void setSilentPeriod(long silentPeriod) {
+        this.silentPeriod = silentPeriod;
+        this.bucketLength = Math.max(1, silentPeriod / BUCKETS_PER_PERIOD);
+    }
+
+    /**
+     * Remember that a context space with this fingerprint was sent now.
+     * @param fp
+     */
+    public synchronized void sent(Fingerprint fp) {
+        long now = System.currentTimeMillis();
+        this.sweep(now);
+
+        Bucket bucket = this.buckets.peekLast();
+        if(bucket == null || now >= bucket.start + this.bucketLength) {
+            bucket = new Bucket(now);
+            this.buckets.addLast(bucket);
+        }
+
+        bucket.fingerprints.add(fp);
+        this.listed++;
+        this.sent.put(fp, now);
+
+        // drop oldest entries if table is full
+        while(this.sent.size() > this.maxEntries || this.listed > 2 * this.maxEntries) {
+            this.dropOldest();
+        }
+    }
+
+    private void dropOldest() {
+        Bucket oldest = this.buckets.peekFirst();
+        if(oldest.next == oldest.fingerprints.size()) {
+            this.buckets.removeFirst();
+            return;
+        }
+
+        Fingerprint fp = oldest.fingerprints.get(oldest.next);
+        oldest.fingerprints.set(oldest.next++, null);
+        this.listed--;
+
+        // fingerprint could have been sent again - it's in a later bucket then
+        Long timestamp = this.sent.get(fp);
+        if(timestamp != null && timestamp < oldest.start + this.bucketLength) {
+            this.sent.remove(fp);
+        }
+    }
+
+    /**
+     * @param fp
+     * @return true if a context space with that fingerprint was sent within
+     * the silent period.
+     */
+    public synchronized boolean silent(Fingerprint fp) {
+        long now = System.currentTimeMillis();
+        this.sweep(now);
+
+        Long timestamp = this.sent.get(fp);
+        if(timestamp == null) {
+            return false;
+        }
+
+        if(now - timestamp > this.silentPeriod) {
+            this.sent.remove(fp);
+            return false;
+        }
+
+        return true;
+    }
+
+    public synchronized int size() {
+        return this.sent.size();
+    }
+
+    /**
+     * Drops any bucket which is completely outside the silent period.
+     */
+    private void sweep(long now) {
+        Bucket oldest = this.buckets.peekFirst();
+        while(oldest != null && now - (oldest.start + this.bucketLength) > this.silentPeriod) {
+            this.drop(this.buckets.removeFirst());
+            oldest = this.buckets.peekFirst();
+        }
+    }
+
+    private void drop(Bucket bucket) {
+        long end = bucket.start + this.bucketLength;
+        for(int i = bucket.next; i < bucket.fingerprints.size(); i++) {
+            Fingerprint fp = bucket.fingerprints.get(i);
+            this.listed--;
+            
+            // fingerprint could have been sent again - it's in a later bucket then
+            Long timestamp = this.sent.get(fp);
+            if(timestamp != null && timestamp < end) {
+                this.sent.remove(fp);
+            }
+        }
+    }
+
+    private static class Bucket {
+        private final long start;
+        private final ArrayList<Fingerprint> fingerprints = new ArrayList<>();
+        /** entries before were dropped already */
+        private int next = 0;
+
+        Bucket(long start) {
+            this.start = start;
+        }
+    }
+
+    /**
+     * 128 bit fingerprint of a context space.
+     */
+    public static final class Fingerprint {
+        private final long high;
+        private final long low;
+
+        public Fingerprint(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Fingerprint)) {
+                return false;
+            }
+
+            Fingerprint other = (Fingerprint) o;
+            return this.high == other.high && this.low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (this.low ^ (this.low >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString(this.high) + Long.toHexString(this.low);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                        calculate fingerprints                      //
+    ////////////////////////////////////////////////////////////////////////
+
+    private static final long SEED_HIGH = 0xcbf29ce484222325L;
+    private static final long SEED_LOW = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Calculates a fingerprint of a context space. Equal context spaces
+     * result in equal fingerprints.
+     *
+     * @param cs
+     * @return fingerprint - never null.
+     * @throws SharkKBException
+     */
+    public static Fingerprint fingerprint(SharkCS cs) throws SharkKBException {
+        long[] acc = new long[] {SEED_HIGH, SEED_LOW};
+
+        addDimension(acc, SharkCS.DIM_DIRECTION, cs.getDirection(), 0);
+
+        long[] tag = new long[2];
+        PeerSemanticTag originator = cs.getOriginator();
+        if(originator != null) {
+            tag[0] = 0; tag[1] = 0;
+            hashTag(tag, originator);
+            addDimension(acc, SharkCS.DIM_ORIGINATOR, tag[0], tag[1]);
+        }
+
+        addSet(acc, SharkCS.DIM_REMOTEPEER, cs.getRemotePeers());
+        addSet(acc, SharkCS.DIM_PEER, cs.getPeers());
+        addSet(acc, SharkCS.DIM_TIME, cs.getTimes());
+        addSet(acc, SharkCS.DIM_LOCATION, cs.getLocations());
+        addSet(acc, SharkCS.DIM_TOPIC, cs.getTopics());
+
+        return new Fingerprint(mix(acc[0]), mix(acc[1]));
+    }
+
+    private static void addDimension(long[] acc, int dim, long high, long low) {
+        // order of dimensions matters - order within a dimension doesn't
+        acc[0] = mix(acc[0] ^ high) * 31 + dim;
+        acc[1] = mix(acc[1] + low) * 37 + dim;
+    }
+
+    private static void addSet(long[] acc, int dim, STSet set) throws SharkKBException {
+        if(set == null) {
+            return;
+        }
+
+        long high = 0, low = 0;
+        long[] tag = new long[2];
+        Iterator<SemanticTag> tagIter = set.stTags();
+        while(tagIter != null && tagIter.hasNext()) {
+            tag[0] = 0; tag[1] = 0;
+            hashTag(tag, tagIter.next());
+            // sum is commutative - order of tags doesn't matter
+            high += mix(tag[0]);
+            low += mix(tag[1]);
+        }
+
+        addDimension(acc, dim, high, low);
+    }
+
+    private static void hashTag(long[] tag, SemanticTag st) {
+        String[] sis = st.getSI();
+        if(sis != null) {
+            for(int i = 0; i < sis.length; i++) {
+                hashString(tag, sis[i]);
+            }
+        }
+
+        if(st instanceof TimeSemanticTag) {
+            TimeSemanticTag tst = (TimeSemanticTag) st;
+            tag[0] += mix(tst.getFrom());
+            tag[1] += mix(tst.getDuration() ^ SEED_LOW);
+        }
+
+        if(st instanceof SpatialSemanticTag) {
+            SharkGeometry geom = ((SpatialSemanticTag) st).getGeometry();
+            if(geom != null) {
+                hashString(tag, geom.getWKT());
+            }
+        }
+    }
+
+    /**
+     * Adds two independent 64 bit hashes of the string to tag.
+     */
+    private static void hashString(long[] tag, String s) {
+        if(s == null) {
+            return;
+        }
+
+        long h1 = SEED_HIGH; // FNV-1a
+        long h2 = SEED_LOW;
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h1 = (h1 ^ c) * 0x100000001b3L;
+            h2 = Long.rotateLeft(h2 ^ c, 27) * 0xc6a4a7935bd1e995L;
+        }
+
+        // sum is commutative - order of subject identifiers doesn't matter
+        tag[0] += mix(h1);
+        tag[1] += mix(h2 ^ s.length());
+    }
+
+    /**
+     * 64 bit finalizer of MurmurHash3
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,11 +1,9 @@
 package net.sharkfw.kep;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.Set;
 import net.sharkfw.knowledgeBase.SharkVocabulary;
 import net.sharkfw.knowledgeBase.Knowledge;
 import net.sharkfw.knowledgeBase.PeerSemanticTag;
@@ -18,9 +16,9 @@ import net.sharkfw.peer.SharkEngine;
 import net.sharkfw.protocols.MessageStub;
 import net.sharkfw.protocols.StreamConnection;
 import net.sharkfw.system.L;
+import net.sharkfw.system.Metrics;
 import net.sharkfw.system.SharkNotSupportedException;
 import net.sharkfw.system.SharkSecurityException;
-import net.sharkfw.system.Util;
 
 /**
  * Simple implementation of KEP-Protocol engine.
@@ -31,11 +29,13 @@ import net.sharkfw.system.Util;
 
 public class SimpleKEPStub extends KEPStub {
   /**
-   * A <code>Vector</code> containing all active KPs
+   * All active KPs indexed by topics. Copy on write - messages are 
+   * dispatched without lock and KPs can be added or withdrawn during 
+   * message handling.
    */
-	private Vector<KnowledgePort> listener;
+	private final KnowledgePortIndex listener;
         
-        private KnowledgePort notHandledRequestsHandler;
+        private volatile KnowledgePort notHandledRequestsHandler;
 
   /**
    * The instance of the <code>SharkEngine</code> of this peer.
@@ -43,29 +43,23 @@ public class SimpleKEPStub extends KEPStub {
 	private SharkEngine se;
 
   /**
-   * A table containing the connection pool of this <code>KEPStub</code>
+   * Fingerprints of sent interests plus the timestamp when they've been sent.
    */
-  private Hashtable<String, StreamConnection> table;
-
-  /**
-   * The table that stores all messages' contextspaces in their serialized form plus the timestamp when they've been sent.
-   */
-  private Hashtable<String, Long> messages = new Hashtable<String, Long>();
+  private SilenceTable messages = new SilenceTable(this.silentPeriod);
 
 
   /**
-   * This table stores all knowledges' contextspaces in their serialized form plus the timestamp when they've been sent.
+   * Fingerprints of sent knowledge vocabularies plus the timestamp when they've been sent.
    */
-  private Hashtable<String, Long> knowledges = new Hashtable<String, Long>();
+  private SilenceTable knowledges = new SilenceTable(this.silentPeriod);
   /**
    * Create a new <code>SimpleKEPStub</code> for the <code>SharkEngine</code> se.
    *
    * @param se The <code>SharkEngine</code> for which a new <code>SimpleKEPStub</code> is instantiated.
    */
 	public SimpleKEPStub(SharkEngine se) {
-		this.listener = new Vector<KnowledgePort>();
+		this.listener = new KnowledgePortIndex();
 		this.se = se;
-                this.table = new Hashtable<String, StreamConnection>();
 	}
 
 	/**
@@ -80,10 +74,32 @@ public class SimpleKEPStub extends KEPStub {
                 session.initSecurity(this.privateKey, this.publicKeyStorage,
                                 this.encryptionLevel, this.signatureLevel,
                                 this.replyPolicy, this.refuseUnverifiably);
-                session.start();
-                
+
+                KEPSessionExecutor executor = this.sessionExecutor;
+                if(executor != null && this.connectionPool.getAddress(con) != null) {
+                    // shared outgoing connection - not rejected when full
+                    if(!executor.executePooled(session, con)) {
+                        this.connectionPool.remove(con);
+                        con.close();
+                    }
+                } else if(executor != null) {
+                    executor.execute(session, con);
+                } else {
+                    session.start();
+                }
 	}
 
+    @Override
+    public final boolean handleStreamMessage(StreamConnection con) throws IOException {
+        KEPSession session = new KEPSession(this.se, con, this);
+        session.initSecurity(this.privateKey, this.publicKeyStorage,
+                this.encryptionLevel, this.signatureLevel,
+                this.replyPolicy, this.refuseUnverifiably);
+        
+        // session isn't started - message is handled by calling thread
+        return session.handleMessage();
+    }
+
     /**
      * This message is to be called when a new connection was establised e.g.
      * in a spontaneous network and this peer shall try to start KEP message
@@ -104,13 +120,20 @@ public class SimpleKEPStub extends KEPStub {
 	public final void handleMessage(byte[] msg, MessageStub stub) {
     // Use byte[] to avoid encoding issues. Encoding is job of the sending and receiving parties.
 		L.d("KEPStub: message received: " + msg, this);
+		if(Metrics.isEnabled()) {
+			Metrics.add("stub." + Metrics.nameOf(stub) + ".bytesIn", msg.length);
+		}
 		try {
 			KEPInMessage inMsg = new KEPInMessage(this.se, msg, stub);
                         inMsg.initSecurity(this.privateKey, this.publicKeyStorage,
                                 this.encryptionLevel, this.signatureLevel,
                                 this.replyPolicy, this.refuseUnverifiably);
+                        long start = Metrics.start();
                         inMsg.parse();
+                        Metrics.stop("kep.parse", start);
+                        start = Metrics.start();
 			this.callListener(inMsg);
+                        Metrics.stop("kep.dispatch", start);
 		} catch (SharkNotSupportedException e) {
 			L.e("unsupported KEP format: " + e.getMessage(), this);
 		} catch (IOException ioe) {
@@ -134,21 +157,27 @@ public class SimpleKEPStub extends KEPStub {
    * @return True if at least one listener was able to handle the message. False otherwise.
   */
     @Override
-    final synchronized protected boolean callListener(KEPInMessage msg) {
-        Enumeration<KnowledgePort> lenum = listener.elements();
-        /* make a copy of listener - kp can be added or withdrawn during message handling
-         * which can cause strange side effects.
-         */
-        
-        ArrayList<KnowledgePort> kpList = new ArrayList<KnowledgePort>();
-        while(lenum.hasMoreElements()) {
-            kpList.add(lenum.nextElement());
+    final protected boolean callListener(KEPInMessage msg) {
+        if(msg.getCmd() == KEPMessage.KEP_RESUME 
+                || msg.getCmd() == KEPMessage.KEP_VOCABULARY_RESET
+                || msg.getCmd() == KEPMessage.KEP_VOCABULARY_ACK
+                || msg.getCmd() == KEPMessage.KEP_SESSION_KEY_RESET
+                || msg.getCmd() == KEPMessage.KEP_SESSION_KEY_ACK) {
+            // handled by engine while parsing - nothing for knowledge ports
+            msg.finished();
+            return true;
         }
         
-        // iterate kp now
+        /* candidates are a snapshot - kp can be added or withdrawn during
+         * message handling. Messages of other sessions are dispatched in
+         * parallel, each KP serializes its own calls.
+         * 
+         * KPs which cannot share a topic with that message aren't called.
+         */
         boolean handled = false;
         
-        Iterator<KnowledgePort> kpIter = kpList.iterator();
+        Iterator<KnowledgePort> kpIter = 
+                this.listener.candidates(this.getTopicSIs(msg)).iterator();
         while (kpIter.hasNext()) {
           KnowledgePort l = kpIter.next();
           if (l.handleMessage(msg)) {
@@ -158,8 +187,9 @@ public class SimpleKEPStub extends KEPStub {
         
         // do we have a final handler for not handled messages ?
         if(!handled) {
-            if(this.notHandledRequestsHandler != null) {
-                handled = this.notHandledRequestsHandler.handleMessage(msg);
+            KnowledgePort notHandledKP = this.notHandledRequestsHandler;
+            if(notHandledKP != null) {
+                handled = notHandledKP.handleMessage(msg);
             }
             else {
                 // remember unhandled message
@@ -181,6 +211,15 @@ public class SimpleKEPStub extends KEPStub {
                 }
             }
         }
+        
+        // sender is reachable - retry what couldn't be sent to it
+        if(this.se.getOutboundQueue() != null) {
+            try {
+                this.se.peerReachable(msg.getSender());
+            } catch (SharkKBException ex) {
+                // unknown sender
+            }
+        }
 
         // that it - bye
         msg.finished();
@@ -190,6 +229,39 @@ public class SimpleKEPStub extends KEPStub {
         return handled;
     }
     
+    /**
+     * @param msg
+     * @return subject identifiers of topics in that message - null if
+     * message isn't restricted to any topic
+     */
+    private Set<String> getTopicSIs(KEPInMessage msg) {
+        SharkCS topicSource = null;
+        
+        switch(msg.getCmd()) {
+            case KEPMessage.KEP_EXPOSE:
+                topicSource = msg.getInterest();
+                break;
+            case KEPMessage.KEP_INSERT:
+                try {
+                    Knowledge k = msg.getKnowledge();
+                    if(k != null && k.getVocabulary() != null) {
+                        topicSource = k.getVocabulary().asSharkCS();
+                    }
+                } catch (IOException ex) {
+                    // knowledge ports will see that problem as well
+                } catch (SharkKBException ex) {
+                    // dito
+                }
+                break;
+        }
+        
+        if(topicSource == null) {
+            return null;
+        }
+        
+        return KnowledgePortIndex.topicSIs(topicSource.getTopics());
+    }
+    
     public final void setNotHandledRequestKP(KnowledgePort kp) {
         this.notHandledRequestsHandler = kp;
     }
@@ -200,30 +272,27 @@ public class SimpleKEPStub extends KEPStub {
 
     @Override
     public final void addListener(KnowledgePort newListener) {
-        final int size = this.listener.size();
-            for (int i = 0; i < size; i++){
-                    if (this.listener.elementAt(i).equals(newListener)){
-                            return;
-            }
-        }
         this.listener.add(newListener);
 
-
 //        L.d("Listener added.", this);
 //        L.d("Having " + this.listener.size() + " listeners.", this);
-        };
+    }
 
     @Override
     public final void withdrawListener(KnowledgePort listener) {
 //        L.d("Listener withdrawn.", this);
 //        L.d("Having " + this.listener.size() + " listeners.", this);
-        this.listener.removeElement(listener);
-    };
+        this.listener.remove(listener);
+    }
+
+    @Override
+    public final void listenerChanged(KnowledgePort listener) {
+        this.listener.update(listener);
+    }
 
 
   /*
-   * Prototypical implementation of connection pool for StreamConnections.
-   * Does not work as expected yet.
+   * Connection pool - see StreamConnectionPool
    */
   
   /**
@@ -232,22 +301,17 @@ public class SimpleKEPStub extends KEPStub {
     @Override
   public void clear() {
     L.d("Clearing connection pool.", this);
-    this.table.clear();
+    this.connectionPool.clear();
   }
 
     @Override
   public StreamConnection getConnectionByAddress(String address) {
-    /*
-     * Todo: maybe update the Timestamp of this connection
-     */
-    return (StreamConnection) this.table.get(address);
+    return this.connectionPool.get(address);
   }
 
     @Override
   public void addConnection(String address, StreamConnection connection) {
-    address = Util.resolveDNtoIPinGCFString(address);
-    this.table.put(address, connection);
-    L.d("Adding connection with address: " + address + " to accounting.", this);
+    this.connectionPool.add(address, connection);
   }
 
   /**
@@ -273,35 +337,19 @@ public class SimpleKEPStub extends KEPStub {
 
     @Override
   public void removeStreamConnection(StreamConnection con) {
-    if(this.table != null) {
-      // Check if the connection is in the table at all
-      Enumeration<String> keys = this.table.keys();
-      // check each key's value
-      while(keys != null && keys.hasMoreElements()) {
-        String key = (String) keys.nextElement();
-        //ROPeerSemanticTag key = (ROPeerSemanticTag) keys.nextElement();
-        StreamConnection storedCon = (StreamConnection) this.table.get(key);
-        if(con.equals(storedCon)) {
-          this.table.remove(key);
-        }
-      }
-    }
+    this.connectionPool.remove(con);
   }
 
     @Override
   public Enumeration<String> getConnectedAddresses() {
-    if(this.table != null) {
-      return table.keys();
-
-    } else {
-      Vector<String> v = new Vector<String>();
-      return v.elements();
-    }
+    return this.connectionPool.getAddresses();
   }
 
     @Override
   public void setSilentPeriod(int millis) {
     this.silentPeriod = millis;
+    this.messages.setSilentPeriod(millis);
+    this.knowledges.setSilentPeriod(millis);
   }
 
   /*
@@ -320,20 +368,10 @@ public class SimpleKEPStub extends KEPStub {
     }
 
     try {
-      // Create a string representation to be used as a key
-      KnowledgeSerializer ks = KEPMessage.getKnowledgeSerializer(KEPMessage.XML);
-      String key = ks.serializeSharkCS(interest);
-      // Generate timestamp
-      Long timestamp = System.currentTimeMillis();
-
-      // Save key along with timestamp
-      this.messages.put(key, timestamp);
-
+      // remember fingerprint along with timestamp
+      this.messages.sent(SilenceTable.fingerprint(interest));
     } catch (SharkKBException ex) {
-      L.e("Exception while serializing context space:", this);
-      ex.printStackTrace();
-    } catch (SharkNotSupportedException ex) {
-      L.e("Exception while serializing context space:", this);
+      L.e("Exception while calculating fingerprint of context space:", this);
       ex.printStackTrace();
     }
   }
@@ -351,27 +389,15 @@ public class SimpleKEPStub extends KEPStub {
     }
 
     try {
-      // Create a string representation to be used as a key
-      KnowledgeSerializer ks = KEPMessage.getKnowledgeSerializer(KEPMessage.XML);
-      
       SharkVocabulary context = knowledge.getVocabulary();
       if(context == null) {
           return;
       }
       
-      SharkCS cs = context.asSharkCS();
-      String key = ks.serializeSharkCS(cs);
-      // Generate timestamp
-      Long timestamp = System.currentTimeMillis();
-
-      // Save key along with timestamp
-      this.knowledges.put(key, timestamp);
-
+      // remember fingerprint along with timestamp
+      this.knowledges.sent(SilenceTable.fingerprint(context.asSharkCS()));
     } catch (SharkKBException ex) {
-      L.e("Exception while serializing context space:", this);
-      ex.printStackTrace();
-    } catch (SharkNotSupportedException ex) {
-      L.e("Exception while serializing context space:", this);
+      L.e("Exception while calculating fingerprint of context space:", this);
       ex.printStackTrace();
     }
   }
@@ -384,39 +410,18 @@ public class SimpleKEPStub extends KEPStub {
     }
 
     try {
-      // Generate a serialized representation to be used as a key in the table.
-      KnowledgeSerializer ks = KEPMessage.getKnowledgeSerializer(KEPMessage.XML);
-      String key = ks.serializeSharkCS(interest);
-
-      // Find out when the interest has been sent last
-      Long timestamp = null;
-      timestamp = this.messages.get(key);
-
-      if(timestamp == null) {
-        // Interest is not inside the silence table. Allowed.
-        return true;
-      }
-
-      Long currentTime = System.currentTimeMillis();
-      Long delta = currentTime - timestamp;
-      // Check if it is still inside the silence period. Return true.
-      if(delta > this.silentPeriod) {
-        // It's not. Remove it from the table.
-        this.messages.remove(key);
-        L.d("Interest is allowed. Silence period is over.", this);
+      // Check if it is still inside the silence period.
+      if(!this.messages.silent(SilenceTable.fingerprint(interest))) {
+        L.d("Interest is allowed. Not sent within silence period.", this);
         return true;
       } else {
         // It is INSIDE the silence period. Return false.
         L.l("Interest is inside silence period. Interest won't be sent.", this);
         return false;
-//        L.d("Silence feature was switched OFF, though", this);
-//        return true;
       }
 
     } catch (SharkKBException ex) {
       L.e("Exceptionin KB while checking message for allowance in message accountine", this);
-    } catch (SharkNotSupportedException ex) {
-      L.e("Exception while checking message for allowance in message accounting", this);
     }
 
     // If we can't find out if the message is allowed for some reasons we send it.
@@ -430,9 +435,6 @@ public class SimpleKEPStub extends KEPStub {
     }
 
     try {
-      // Generate a serialized representation to be used as a key in the table.
-      KnowledgeSerializer ks = KEPMessage.getKnowledgeSerializer(KEPMessage.XML);
-      
       SharkVocabulary context = knowledge.getVocabulary();
       if(context == null) {
           return true; // TODO 
@@ -440,24 +442,9 @@ public class SimpleKEPStub extends KEPStub {
       
       SharkCS cs = context.asSharkCS(); // using the context map
       
-      String key = ks.serializeSharkCS(cs);
-
-      // Find out when the knowledge has been sent last
-      Long timestamp = null;
-      timestamp = this.knowledges.get(key);
-
-      if(timestamp == null) {
-        L.d("Knowledge is not inside the silence table. Allowed.", this);
-        return true;
-      }
-
-      Long currentTime = System.currentTimeMillis();
-      Long delta = currentTime - timestamp;
-      // Check if it is still inside the silence period. Return true.
-      if(delta > this.silentPeriod) {
-        // It's not. Remove it from the table.
-        this.knowledges.remove(key);
-        L.d("Knowledge is allowed. Silence period is over.", this);
+      // Check if it is still inside the silence period.
+      if(!this.knowledges.silent(SilenceTable.fingerprint(cs))) {
+        L.d("Knowledge is allowed. Not sent within silence period.", this);
         return true;
       } else {
         // It is INSIDE the silence period. Return false.
@@ -467,8 +454,6 @@ public class SimpleKEPStub extends KEPStub {
 
     } catch (SharkKBException ex) {
       L.e("Exceptionin KB while checking message for allowance in message accountine", this);
-    } catch (SharkNotSupportedException ex) {
-      L.e("Exception while checking message for allowance in message accounting", this);
     }
 
     // If we can't find out if the message is allowed for some reasons we send it.
@@ -0,0 +1,329 @@
+package net.sharkfw.kep;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.system.L;
+
+/**
+ * Outgoing stream connections kept open for further KEP messages.
+ *
+ * <p>A KEP session reads on each outgoing connection anyway (responses).
+ * Remote session reads more messages as long as they come within its
+ * connection timeout. Thus, a connection can carry more than one KEP message
+ * if it is used again soon. That saves a connection setup (TCP handshake
+ * and whatever security handshake comes on top) per message.</p>
+ *
+ * <ul>
+ * <li>Keep alive: A connection which wasn't used for <code>keepAlive</code>
+ * milliseconds is closed and not used again. Keep it below the connection
+ * timeout of remote peers - they close idle sessions after that time.
+ * Idle connections are swept periodically as long as there are pooled
+ * connections - even to peers which are never contacted again.</li>
+ * <li>Health: Local session removes its connection as soon as it breaks
+ * or ends. A connection which fails while writing is removed as well.</li>
+ * <li>Multiplexing: Messages are written one after another. Writers take
+ * turns by a lock of the connection. That includes responses written by
+ * the local session on that connection.</li>
+ * <li>Limits: A free connection is taken first. A new one is opened if
+ * all are busy and there are less than <code>maxPerPeer</code> connections
+ * to that address. Otherwise, writer queues on the least busy one.</li>
+ * </ul>
+ *
+ * <p>A keep alive of 0 disables pooling - each message gets a connection
+ * of its own.</p>
+ *
+ * @see KEPConnectionPool
+ * @author thsc
+ */
+public class StreamConnectionPool {
+
+    public static final long DEFAULT_KEEP_ALIVE = 1000;
+    public static final int DEFAULT_MAX_PER_PEER = 2;
+
+    private long keepAlive = DEFAULT_KEEP_ALIVE;
+    private int maxPerPeer = DEFAULT_MAX_PER_PEER;
+
+    private final HashMap<String, ArrayList<Entry>> connections = new HashMap<>();
+    private final HashMap<StreamConnection, Entry> entries = new HashMap<>();
+
+    /** periodic eviction - only while there are pooled connections */
+    private ScheduledFuture<?> sweep = null;
+
+    private static ScheduledThreadPoolExecutor sweeper = null; // guarded by StreamConnectionPool.class
+
+    private static synchronized ScheduledThreadPoolExecutor getSweeper() {
+        if(StreamConnectionPool.sweeper == null) {
+            StreamConnectionPool.sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "StreamConnectionPoolSweeper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            StreamConnectionPool.sweeper.setRemoveOnCancelPolicy(true);
+        }
+
+        return StreamConnectionPool.sweeper;
+    }
+
+    private static class Entry {
+        final String address;
+        final StreamConnection con;
+        final ReentrantLock lock = new ReentrantLock(true);
+        long lastUsed = System.currentTimeMillis();
+
+        Entry(String address, StreamConnection con) {
+            this.address = address;
+            this.con = con;
+        }
+    }
+
+    /**
+     * @param millis idle connections are closed after that time, 0 disables
+     * pooling
+     */
+    public synchronized void setKeepAlive(long millis) {
+        this.keepAlive = millis;
+        this.stopSweep();
+        if(millis <= 0) {
+            this.evict(Long.MAX_VALUE);
+        } else if(!this.entries.isEmpty()) {
+            this.startSweep();
+        }
+    }
+
+    public synchronized long getKeepAlive() {
+        return this.keepAlive;
+    }
+
+    /**
+     * @param max open connections per address
+     */
+    public synchronized void setMaxConnectionsPerPeer(int max) {
+        this.maxPerPeer = Math.max(1, max);
+    }
+
+    /**
+     * @param address
+     * @return connection for next message to that address - null if a new
+     * connection is to be established
+     */
+    public synchronized StreamConnection get(String address) {
+        if(this.keepAlive <= 0) {
+            return null;
+        }
+
+        this.evict(System.currentTimeMillis() - this.keepAlive);
+
+        ArrayList<Entry> list = this.connections.get(address);
+        if(list == null || list.isEmpty()) {
+            return null;
+        }
+
+        Entry leastBusy = null;
+        for(Entry e : list) {
+            if(!e.lock.isLocked()) {
+                e.lastUsed = System.currentTimeMillis();
+                return e.con;
+            }
+
+            if(leastBusy == null || e.lock.getQueueLength() < leastBusy.lock.getQueueLength()) {
+                leastBusy = e;
+            }
+        }
+
+        if(list.size() < this.maxPerPeer) {
+            // all busy - open another one
+            return null;
+        }
+
+        leastBusy.lastUsed = System.currentTimeMillis();
+        return leastBusy.con;
+    }
+
+    /**
+     * Keep a newly established outgoing connection
+     *
+     * @param address
+     * @param con
+     */
+    public synchronized void add(String address, StreamConnection con) {
+        if(this.keepAlive <= 0 || this.entries.containsKey(con)) {
+            return;
+        }
+
+        ArrayList<Entry> list = this.connections.get(address);
+        if(list == null) {
+            list = new ArrayList<>();
+            this.connections.put(address, list);
+        }
+
+        Entry e = new Entry(address, con);
+        list.add(e);
+        this.entries.put(con, e);
+
+        L.d("pooled connection to: " + address, this);
+
+        if(this.sweep == null) {
+            this.startSweep();
+        }
+    }
+
+    private void startSweep() {
+        // connections to peers never contacted again are closed as well
+        this.sweep = StreamConnectionPool.getSweeper().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                StreamConnectionPool.this.sweep();
+            }
+        }, this.keepAlive, this.keepAlive, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void sweep() {
+        this.evict(System.currentTimeMillis() - this.keepAlive);
+    }
+
+    /**
+     * @param con
+     * @return address connection is pooled for or null
+     */
+    public synchronized String getAddress(StreamConnection con) {
+        Entry e = this.entries.get(con);
+        return e == null ? null : e.address;
+    }
+
+    /**
+     * Connection is closed or broken and must not be used again.
+     *
+     * @param con
+     */
+    public synchronized void remove(StreamConnection con) {
+        Entry e = this.entries.remove(con);
+        if(e == null) {
+            return;
+        }
+
+        ArrayList<Entry> list = this.connections.get(e.address);
+        if(list != null) {
+            list.remove(e);
+            if(list.isEmpty()) {
+                this.connections.remove(e.address);
+            }
+        }
+
+        if(this.entries.isEmpty()) {
+            this.stopSweep();
+        }
+    }
+
+    /**
+     * Caller is going to write a KEP message on that connection. Call blocks
+     * while another message is written.
+     *
+     * @param con
+     * @return lock held by caller or null if connection isn't pooled. Lock
+     * must be released by {@link #writingDone(StreamConnection, Lock, boolean)}
+     */
+    public Lock startWriting(StreamConnection con) {
+        Entry e;
+        synchronized(this) {
+            e = this.entries.get(con);
+        }
+
+        if(e == null) {
+            return null;
+        }
+
+        e.lock.lock();
+        return e.lock;
+    }
+
+    /**
+     * @param con
+     * @param lock lock returned by {@link #startWriting(StreamConnection)}
+     * @param broken true if message couldn't be written
+     */
+    public void writingDone(StreamConnection con, Lock lock, boolean broken) {
+        synchronized(this) {
+            Entry e = this.entries.get(con);
+            if(e != null) {
+                e.lastUsed = System.currentTimeMillis();
+            }
+        }
+
+        if(lock != null) {
+            lock.unlock();
+        }
+
+        if(broken) {
+            this.remove(con);
+        }
+    }
+
+    /**
+     * Forget all connections. They are closed by their sessions.
+     */
+    public synchronized void clear() {
+        this.connections.clear();
+        this.entries.clear();
+        this.stopSweep();
+    }
+
+    private void stopSweep() {
+        if(this.sweep != null) {
+            this.sweep.cancel(false);
+            this.sweep = null;
+        }
+    }
+
+    public synchronized Enumeration<String> getAddresses() {
+        return Collections.enumeration(new ArrayList<>(this.connections.keySet()));
+    }
+
+    /**
+     * Close connections unused since that time. Connections being written
+     * are kept.
+     */
+    private void evict(long unusedSince) {
+        Iterator<Entry> entryIter = this.entries.values().iterator();
+        while(entryIter.hasNext()) {
+            Entry e = entryIter.next();
+            if(e.lastUsed > unusedSince || !e.lock.tryLock()) {
+                continue;
+            }
+
+            try {
+                entryIter.remove();
+
+                ArrayList<Entry> list = this.connections.get(e.address);
+                if(list != null) {
+                    list.remove(e);
+                    if(list.isEmpty()) {
+                        this.connections.remove(e.address);
+                    }
+                }
+
+                L.d("closing idle pooled connection to: " + e.address, this);
+                e.con.close();
+            }
+            finally {
+                e.lock.unlock();
+            }
+        }
+
+        if(this.entries.isEmpty()) {
+            this.stopSweep();
+        }
+    }
+}
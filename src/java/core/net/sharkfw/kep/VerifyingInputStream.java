@@ -3,68 +3,193 @@ package net.sharkfw.kep;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.*;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sharkfw.security.utility.SharkCryptoService;
 import net.sharkfw.system.L;
 
 /**
+ * Passes read bytes to a signature which is verified at the end.
+ *
+ * <p>Read bytes are collected into chunks. Larger messages are hashed by
+ * a shared pool of verifier threads while the reading thread goes on
+ * parsing. Chunks of a stream are processed one after another in the
+ * order they were read. {@link #verify(byte[])} waits for the remaining
+ * chunks. Small messages (a single chunk) are hashed by the reader.</p>
  *
  * @author thsc
  */
 public class VerifyingInputStream extends InputStream {
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final long KEEP_ALIVE = 30000;
+    private static ThreadPoolExecutor verifiers = null;
+
     private InputStream is;
     private Signature signature;
+    private boolean signatureFailed = false;
+
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int counter = 0;
+
+    /** chunks handed over to verifiers - guarded by this */
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private boolean hashing = false;
     
     public VerifyingInputStream(InputStream is, PublicKey publicKey) {
         try {
             this.is = is;
-            this.signature = Signature.getInstance("MD5withRSA");
+            this.signature = SharkCryptoService.getSignature(SigningOutputStream.ALGORITHM);
             this.signature.initVerify(publicKey);
 
-            byte[] buffer = new byte[1024];
-            int len;
-            while (is.available() > 0) {
-                len = is.read(buffer);
-                signature.update(buffer, 0, len);
-            };
-            
 //            System.out.println(">>>>>>>>>>>>> init verifying with public key:\n" + publicKey.toString());
         } catch (InvalidKeyException ex) {
             L.d(ex.getMessage(), this);
+            this.signatureFailed = true;
         } catch (NoSuchAlgorithmException ex) {
             L.d(ex.getMessage(), this);
-        } catch (IOException ex) {
-            Logger.getLogger(VerifyingInputStream.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (SignatureException ex) {
-            Logger.getLogger(VerifyingInputStream.class.getName()).log(Level.SEVERE, null, ex);
+            this.signatureFailed = true;
         }
         
     }
 
+    private static synchronized ThreadPoolExecutor getVerifiers() {
+        if(VerifyingInputStream.verifiers == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            final AtomicInteger threadNumber = new AtomicInteger();
+            VerifyingInputStream.verifiers = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "KEPVerifier-" + threadNumber.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+
+            VerifyingInputStream.verifiers.allowCoreThreadTimeOut(true);
+        }
+
+        return VerifyingInputStream.verifiers;
+    }
+
 //    private int counter = 0;
     @Override
     public int read() throws IOException {
-        try {
-            int i = this.is.read();
-//            System.out.print("v[" + this.counter + "]" + i + " ");
-//            this.counter++;
+        int i = this.is.read();
+//        System.out.print("v[" + this.counter + "]" + i + " ");
+        if(i != -1) {
+            if(this.counter == this.chunk.length) {
+                this.handOver();
+            }
+
+            this.chunk[this.counter++] = (byte)i;
+        }
             
-            this.signature.update((byte)i);
+        return i;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = this.is.read(b, off, len);
+        
+        int done = 0;
+        while(done < n) {
+            if(this.counter == this.chunk.length) {
+                this.handOver();
+            }
             
-            return i;
+            int m = Math.min(n - done, this.chunk.length - this.counter);
+            System.arraycopy(b, off + done, this.chunk, this.counter, m);
+            this.counter += m;
+            done += m;
+        }
+
+        return n;
+    }
+
+    /**
+     * Full chunk is hashed by a verifier thread.
+     */
+    private void handOver() {
+        byte[] full = this.chunk;
+        this.chunk = new byte[CHUNK_SIZE];
+        this.counter = 0;
+
+        synchronized(this) {
+            this.pending.add(full);
+            if(this.hashing) {
+                // verifier is still busy with this stream and takes that chunk, too
+                return;
+            }
+            this.hashing = true;
+        }
+
+        VerifyingInputStream.getVerifiers().execute(new Runnable() {
+            @Override
+            public void run() {
+                VerifyingInputStream.this.hashPending();
+            }
+        });
+    }
+
+    private void hashPending() {
+        for(;;) {
+            byte[] next;
+            synchronized(this) {
+                next = this.pending.poll();
+                if(next == null) {
+                    this.hashing = false;
+                    this.notifyAll();
+                    return;
+                }
+            }
+
+            this.update(next, next.length);
+        }
+    }
+
+    private void update(byte[] bytes, int len) {
+        if(this.signatureFailed) {
+            return;
+        }
+        
+        try {
+            this.signature.update(bytes, 0, len);
         } catch (SignatureException ex) {
             L.d(ex.getMessage(), this);
+            this.signatureFailed = true;
         }
-        
-        // will be reached in case of an exception
-        return -1;
-        
     }
-    
 
+    /**
+     * Waits for verifier threads and checks signature. Signature object is
+     * given back - nothing can be read afterwards.
+     */
     public boolean verify(byte[] signature) {
 //        System.out.println(">>>>>>>>>>>>>>>> counter, verify: " + this.counter);
         try {
+            synchronized(this) {
+                while(this.hashing) {
+                    this.wait();
+                }
+            }
+
+            // rest is hashed here
+            this.update(this.chunk, this.counter);
+            this.counter = 0;
+            
+            if(this.signatureFailed) {
+                return false;
+            }
+            
             boolean verifyResult = this.signature.verify(signature);
 //            if(verifyResult) {
 //                System.out.println(">>>>>>>>>>>>>>>>>>>>>>>>> verification OK <<<<<<<<<<<<<<< ");
@@ -74,6 +199,14 @@ public class VerifyingInputStream extends InputStream {
             return verifyResult;
         } catch (SignatureException ex) {
             L.d(ex.getMessage(), this);
+        } catch (InterruptedException ex) {
+            // a verifier might still use that signature - don't give it back
+            Thread.currentThread().interrupt();
+            this.signature = null;
+        }
+        finally {
+            SharkCryptoService.releaseSignature(SigningOutputStream.ALGORITHM, this.signature);
+            this.signature = null;
         }
         
         return false;
@@ -0,0 +1,430 @@
+package net.sharkfw.kep;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.sharkfw.knowledgeBase.Knowledge;
+
+/**
+ * Remembers background vocabulary exchanged with other peers.
+ *
+ * <p>Knowledge is sent with its vocabulary. Peers exchanging knowledge
+ * frequently send the same tags again and again. Since KEP 1.1, a sender
+ * puts any tag it sends in full into a numbered slot of a vocabulary table
+ * it keeps for the recipient. Receiver keeps a table with the same
+ * id and fills the same slots. Later messages refer to a tag by its
+ * slot only.</p>
+ *
+ * <p>Slots are keyed by the serialized tag. A changed tag (name, subject
+ * identifiers, addresses, properties) is a new tag - it is sent in full
+ * and gets a new slot. Slots are reused round robin on both sides.</p>
+ *
+ * <p>A receiver acknowledges slots it has learned (KEP vocabulary ack
+ * command). A sender refers to acknowledged slots only - a tag is sent in
+ * full until its slot was acknowledged. A receiver which nevertheless
+ * cannot resolve a reference (e.g. its table was dropped) rejects the
+ * message and asks the sender to reset that table (KEP vocabulary reset
+ * command). The sender starts a new table with the next message.</p>
+ *
+ * <p>Messages are numbered per table. A sender remembers the last
+ * messages which refered to slots. A reset names the rejected message -
+ * the sender sends it again in full.</p>
+ *
+ * @see net.sharkfw.kep.format.XMLSerializer
+ * @author thsc
+ */
+public class VocabularyCache {
+
+    public static final int DEFAULT_TABLE_SIZE = 1024;
+
+    /**
+     * Number of tables kept for recipients and for senders each.
+     */
+    static final int MAX_TABLES = 64;
+
+    /**
+     * Number of messages with references kept per table for sending
+     * them again. Older ones are taken as delivered.
+     */
+    private static final int MAX_REFERRING = 16;
+
+    /**
+     * Marks a message which comes without vocabulary table.
+     */
+    public static final long NO_TABLE = 0;
+
+    private final int tableSize;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final Map<String, Table> sent = new LinkedHashMap<String, Table>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Table> eldest) {
+            return this.size() > MAX_TABLES;
+        }
+    };
+
+    // reset tables - messages in transit may still be rejected
+    private final Map<Long, Table> dropped = new LinkedHashMap<Long, Table>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Table> eldest) {
+            return this.size() > MAX_TABLES;
+        }
+    };
+
+    private final Map<Long, Table> received = new LinkedHashMap<Long, Table>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Table> eldest) {
+            return this.size() > MAX_TABLES;
+        }
+    };
+
+    public VocabularyCache() {
+        this(DEFAULT_TABLE_SIZE);
+    }
+
+    /**
+     * @param tableSize number of tags remembered per peer
+     */
+    public VocabularyCache(int tableSize) {
+        this.tableSize = tableSize;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                             sender side                            //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param address address of recipient
+     * @return vocabulary table used for messages to that address
+     */
+    public synchronized Table sentTo(String address) {
+        Table table = this.sent.get(address);
+        if(table == null) {
+            long id;
+            do {
+                id = this.random.nextLong();
+            } while(id == NO_TABLE);
+
+            table = new Table(id, this.tableSize, address);
+            this.sent.put(address, table);
+        }
+
+        return table;
+    }
+
+    /**
+     * Drop a table used for sending - receiver doesn't know it
+     * (any longer).
+     *
+     * @param id
+     * @return dropped table - it still knows messages rejected by
+     * receiver. Null if there is no such table.
+     */
+    public synchronized Table reset(long id) {
+        Table reset = this.dropped.get(id);
+
+        Iterator<Table> tableIter = this.sent.values().iterator();
+        while(tableIter.hasNext()) {
+            Table table = tableIter.next();
+            if(table.getID() == id) {
+                tableIter.remove();
+                this.dropped.put(id, table);
+                reset = table;
+            }
+        }
+
+        return reset;
+    }
+
+    /**
+     * Receiver has learned those slots - later messages refer to them.
+     *
+     * @param id table id
+     * @param refs references of learned slots
+     */
+    public synchronized void acknowledged(long id, List<String> refs) {
+        for(Table table : this.sent.values()) {
+            if(table.getID() == id) {
+                for(String ref : refs) {
+                    table.acknowledge(ref);
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                            receiver side                           //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param id table id written by the sender
+     * @return table filled by messages which came with that id
+     */
+    public synchronized Table receivedFrom(long id) {
+        Table table = this.received.get(id);
+        if(table == null) {
+            table = new Table(id, this.tableSize, null);
+            this.received.put(id, table);
+        }
+
+        return table;
+    }
+
+    /**
+     * Slots of tags known by both sides. References have the format
+     * <code>slot.check</code> - check is the hash code of the serialized tag.
+     * Receivers ignore a slot with wrong content.
+     */
+    public static class Table {
+        private final long id;
+        private final String[] tags;
+        private final boolean[] acknowledged;
+        private final HashMap<String, Integer> slots = new HashMap<>();
+        private int nextSlot = 0;
+
+        private final String address;
+        private int nextMessage = 0;
+        private final Map<Integer, Knowledge> referring = new LinkedHashMap<Integer, Knowledge>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Knowledge> eldest) {
+                return this.size() > MAX_REFERRING;
+            }
+        };
+
+        Table(long id, int size, String address) {
+            this.id = id;
+            this.tags = new String[size];
+            this.acknowledged = new boolean[size];
+            this.address = address;
+        }
+
+        public long getID() {
+            return this.id;
+        }
+
+        /**
+         * @return address of recipient - null on receiver side
+         */
+        public String getAddress() {
+            return this.address;
+        }
+
+        /**
+         * Sender side
+         *
+         * @return next message written with this table
+         */
+        public synchronized Message startMessage() {
+            return new Message(this, this.nextMessage++);
+        }
+
+        /**
+         * Sender side
+         *
+         * @param number message number
+         * @return knowledge of a message which refered to slots - null
+         * if there was none or it is forgotten
+         */
+        public synchronized Knowledge rejected(int number) {
+            return this.referring.remove(number);
+        }
+
+        private synchronized void referred(int number, Knowledge k) {
+            this.referring.put(number, k);
+        }
+
+        /**
+         * @param serializedTag
+         * @return reference to that tag or null if receiver hasn't
+         * acknowledged it yet
+         */
+        public synchronized String lookup(String serializedTag) {
+            Integer slot = this.slots.get(serializedTag);
+            if(slot == null || !this.acknowledged[slot]) {
+                return null;
+            }
+
+            return Table.ref(slot, serializedTag);
+        }
+
+        /**
+         * Puts tag into the next slot. A tag in that slot is forgotten.
+         * A tag which waits for its acknowledgement keeps its slot.
+         *
+         * @param serializedTag
+         * @return reference of that tag
+         */
+        public synchronized String assign(String serializedTag) {
+            Integer assigned = this.slots.get(serializedTag);
+            if(assigned != null) {
+                return Table.ref(assigned, serializedTag);
+            }
+
+            int slot = this.nextSlot;
+            this.nextSlot = (this.nextSlot + 1) % this.tags.length;
+
+            this.put(slot, serializedTag);
+
+            return Table.ref(slot, serializedTag);
+        }
+
+        /**
+         * Sender side: receiver has learned that slot. Ignored if slot
+         * was reused meanwhile.
+         *
+         * @param ref
+         */
+        public synchronized void acknowledge(String ref) {
+            int slot = this.slot(ref);
+            if(slot >= 0 && this.tags[slot] != null
+                    && ref.equals(Table.ref(slot, this.tags[slot]))) {
+
+                this.acknowledged[slot] = true;
+            }
+        }
+
+        /**
+         * Receiver side: sender put that tag into a slot.
+         *
+         * @param ref
+         * @param serializedTag
+         * @return false if reference is malformed
+         */
+        public synchronized boolean learn(String ref, String serializedTag) {
+            int slot = this.slot(ref);
+            if(slot < 0) {
+                return false;
+            }
+
+            this.put(slot, serializedTag);
+            return true;
+        }
+
+        /**
+         * Receiver side
+         *
+         * @param ref
+         * @return serialized tag or null if unknown
+         */
+        public synchronized String resolve(String ref) {
+            int slot = this.slot(ref);
+            if(slot < 0 || this.tags[slot] == null) {
+                return null;
+            }
+
+            String serializedTag = this.tags[slot];
+            if(!ref.equals(Table.ref(slot, serializedTag))) {
+                // slot was reused in a message we didn't get
+                return null;
+            }
+
+            return serializedTag;
+        }
+
+        private void put(int slot, String serializedTag) {
+            String old = this.tags[slot];
+            if(old != null) {
+                this.slots.remove(old);
+            }
+
+            this.tags[slot] = serializedTag;
+            this.acknowledged[slot] = false;
+            this.slots.put(serializedTag, slot);
+        }
+
+        private int slot(String ref) {
+            int dot = ref.indexOf('.');
+            if(dot < 1) {
+                return -1;
+            }
+
+            try {
+                int slot = Integer.parseInt(ref.substring(0, dot));
+                return slot < this.tags.length ? slot : -1;
+            }
+            catch(NumberFormatException nfe) {
+                return -1;
+            }
+        }
+
+        private static String ref(int slot, String serializedTag) {
+            return slot + "." + Integer.toHexString(serializedTag.hashCode());
+        }
+    }
+
+    /**
+     * A message written with a vocabulary table (sender side). Only a
+     * message which refers to slots can be rejected - it is remembered
+     * when sent.
+     */
+    public static class Message {
+        private final Table table;
+        private final int number;
+        private boolean referring = false;
+
+        Message(Table table, int number) {
+            this.table = table;
+            this.number = number;
+        }
+
+        public long getTableID() {
+            return this.table.getID();
+        }
+
+        public int getNumber() {
+            return this.number;
+        }
+
+        /**
+         * @see Table#lookup(java.lang.String)
+         */
+        public String lookup(String serializedTag) {
+            String ref = this.table.lookup(serializedTag);
+            if(ref != null) {
+                this.referring = true;
+            }
+
+            return ref;
+        }
+
+        /**
+         * @see Table#assign(java.lang.String)
+         */
+        public String assign(String serializedTag) {
+            return this.table.assign(serializedTag);
+        }
+
+        /**
+         * Message is written completely.
+         *
+         * @param k knowledge of that message
+         */
+        public void sent(Knowledge k) {
+            if(this.referring) {
+                this.table.referred(this.number, k);
+            }
+        }
+    }
+
+    /**
+     * A receiver acknowledges learned slots or asks a sender to drop a
+     * vocabulary table.
+     */
+    public interface Listener {
+        /**
+         * @param id table id
+         * @param refs references of slots which were filled by a message
+         */
+        public void acknowledgeVocabulary(long id, List<String> refs);
+
+        /**
+         * @param id id of a table which couldn't be resolved
+         * @param message number of the rejected message
+         */
+        public void resetVocabulary(long id, int message);
+    }
+}
@@ -0,0 +1,393 @@
+package net.sharkfw.kep.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import net.sharkfw.kep.ContentTransfers;
+import net.sharkfw.kep.PartialContent;
+import net.sharkfw.knowledgeBase.ChannelInformation;
+import net.sharkfw.knowledgeBase.Information;
+import net.sharkfw.protocols.ChannelWatchdog;
+import net.sharkfw.protocols.SharkInputStream;
+import net.sharkfw.protocols.SharkOutputStream;
+
+/**
+ * Writes and reads information content in chunks (KEP 1.1). Format:
+ *
+ * <pre>
+ * transfer id (string)
+ * chunk size (int)
+ * { chunk number (int), chunk length (int), bytes, CRC32 of bytes (long) }
+ * -1 (int)
+ * </pre>
+ *
+ * Chunks can be left out if the receiver said to have them already.
+ * A receiver keeps content of more than one chunk in a partial content
+ * until it is complete.
+ *
+ * @see ContentTransfers
+ * @author thsc
+ */
+public class ChunkedContent {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int NO_MORE_CHUNKS = -1;
+
+    /**
+     * Identifies content of an information. Changed content results in
+     * a different id.
+     */
+    public static String getTransferID(Information info, long len) {
+        return info.getUniqueID() + "_" + info.lastModified() + "_" + len;
+    }
+
+    /**
+     * Writes content of that information in chunks.
+     *
+     * @param info
+     * @param len content length
+     * @param os
+     * @param transfers can be null - all chunks are sent in that case
+     * @param connection connection resume requests arrive on - can be null
+     * @throws IOException
+     */
+    public static void write(Information info, long len, SharkOutputStream os,
+            ContentTransfers transfers, Object connection) throws IOException {
+
+        String transferID = ChunkedContent.getTransferID(info, len);
+        int chunkSize = transfers != null ? transfers.getChunkSize() : ContentTransfers.DEFAULT_CHUNK_SIZE;
+
+        if(transfers == null) {
+            connection = null;
+        } else {
+            transfers.transferStarted(connection, transferID);
+        }
+
+        try {
+            os.write(transferID);
+            os.writeInt(chunkSize);
+
+            ChunkedContent.writeChunks(info, len, os, transferID, chunkSize, transfers, connection);
+
+            os.writeInt(NO_MORE_CHUNKS);
+        }
+        finally {
+            // a failed transfer starts from scratch next time
+            if(transfers != null) {
+                transfers.transferFinished(connection, transferID);
+            }
+        }
+    }
+
+    private static void writeChunks(Information info, long len, SharkOutputStream os,
+            String transferID, int chunkSize, ContentTransfers transfers,
+            Object connection) throws IOException {
+
+        int numberChunks = PartialContent.numberChunks(len, chunkSize);
+
+        WritableByteChannel channel = os.getChannel();
+        if(channel != null && info instanceof ChannelInformation && len <= Integer.MAX_VALUE) {
+            // plain connection: write mapped content directly into channel
+            ByteBuffer content = ((ChannelInformation) info).mapContent();
+            CRC32 crc = new CRC32();
+            ChannelWatchdog watchdog = new ChannelWatchdog(channel);
+
+            for(int chunk = 0; chunk < numberChunks; chunk++) {
+                if(transfers != null && !transfers.chunkNeeded(connection, transferID, chunk)) {
+                    continue;
+                }
+
+                int position = chunk * chunkSize;
+                int chunkLen = (int) Math.min(chunkSize, len - position);
+
+                ByteBuffer bytes = content.duplicate();
+                bytes.limit(position + chunkLen);
+                bytes.position(position);
+
+                // digest first - it follows the bytes. Digest reads mapped bytes directly
+                crc.reset();
+                crc.update(bytes.duplicate());
+
+                os.writeInt(chunk);
+                os.writeInt(chunkLen);
+                ChunkedContent.writeFully(channel, bytes, watchdog);
+                os.writeLong(crc.getValue());
+            }
+        } else {
+            ChunkWriter writer = new ChunkWriter(os, len, transferID, chunkSize,
+                    transfers, connection);
+
+            // information reports no error - writer keeps it
+            info.streamContent(writer);
+            writer.finish();
+        }
+    }
+
+    /**
+     * Writes buffer in slices - each slice must be written within
+     * socket timeout.
+     */
+    private static void writeFully(WritableByteChannel channel, ByteBuffer bytes,
+            ChannelWatchdog watchdog) throws IOException {
+
+        int end = bytes.limit();
+        while(bytes.position() < end) {
+            bytes.limit(Math.min(end, bytes.position() + BUFFER_SIZE));
+
+            watchdog.arm();
+            try {
+                while(bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            catch(ClosedChannelException e) {
+                throw watchdog.failure(e, "writing chunk");
+            }
+            finally {
+                watchdog.disarm();
+            }
+
+            bytes.limit(end);
+        }
+    }
+
+    /**
+     * Reads chunked content into that information. Content which consists
+     * of more than one chunk is assembled in a partial content if
+     * transfers are given. The listener is asked to request missing chunks
+     * if chunks of this content were received earlier.
+     *
+     * @param info
+     * @param len
+     * @param is
+     * @param transfers can be null - content is read into information directly
+     * @param listener can be null
+     * @return true if content is complete
+     * @throws IOException
+     */
+    public static boolean read(Information info, long len, SharkInputStream is,
+            ContentTransfers transfers, ContentTransfers.ResumeListener listener)
+            throws IOException {
+
+        String transferID = is.readUTF8();
+        int chunkSize = is.readInt();
+        if(chunkSize <= 0) {
+            throw new IOException("illegal chunk size: " + chunkSize);
+        }
+
+        int numberChunks = PartialContent.numberChunks(len, chunkSize);
+
+        if(numberChunks <= 1) {
+            return ChunkedContent.readSingleChunk(info, len, is, transferID);
+        }
+
+        if(transfers == null) {
+            // assemble in temp directory
+            transfers = new ContentTransfers();
+        }
+
+        PartialContent partial = transfers.getPartialContent(transferID, len, chunkSize);
+        if(partial.receivedChunks() > 0 && listener != null) {
+            // we've seen that content before - ask for the rest only
+            listener.requestMissingChunks(transferID, partial.missingChunks());
+        }
+
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(len, 1))];
+        CRC32 crc = new CRC32();
+
+        try {
+            int chunk = is.readInt();
+            while(chunk != NO_MORE_CHUNKS) {
+                int chunkLen = is.readInt();
+                if(chunk < 0 || chunk >= numberChunks || chunkLen < 0 || chunkLen > chunkSize) {
+                    throw new IOException("malformed chunk " + chunk + " of " + transferID);
+                }
+
+                crc.reset();
+                InputStream in = is.getInputStream();
+                int got = 0;
+                while(got < chunkLen) {
+                    int n = in.read(buffer, 0, Math.min(buffer.length, chunkLen - got));
+                    if(n < 0) {
+                        throw new IOException("stream ended within chunk " + chunk + " of " + transferID);
+                    }
+                    crc.update(buffer, 0, n);
+                    partial.write(chunk, got, buffer, 0, n);
+                    got += n;
+                }
+
+                long digest = is.readLong();
+                if(digest == crc.getValue()) {
+                    partial.chunkReceived(chunk);
+                }
+                // otherwise chunk stays missing
+
+                chunk = is.readInt();
+            }
+        }
+        finally {
+            partial.close();
+        }
+
+        if(!partial.complete()) {
+            return false;
+        }
+
+        partial.copyTo(info);
+        partial.remove();
+
+        return true;
+    }
+
+    /**
+     * Content fits into a single chunk - it's read into memory and set if
+     * its digest is ok.
+     */
+    private static boolean readSingleChunk(Information info, long len,
+            SharkInputStream is, String transferID) throws IOException {
+
+        byte[] content = null;
+        int chunk = is.readInt();
+        while(chunk != NO_MORE_CHUNKS) {
+            int chunkLen = is.readInt();
+            if(chunk != 0 || content != null || chunkLen != len) {
+                throw new IOException("malformed chunk " + chunk + " of " + transferID);
+            }
+
+            content = new byte[chunkLen];
+            InputStream in = is.getInputStream();
+            int got = 0;
+            while(got < chunkLen) {
+                int n = in.read(content, got, chunkLen - got);
+                if(n < 0) {
+                    throw new IOException("stream ended within chunk " + chunk + " of " + transferID);
+                }
+                got += n;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, chunkLen);
+            if(is.readLong() != crc.getValue()) {
+                throw new IOException("wrong digest of chunk " + chunk + " of " + transferID);
+            }
+
+            chunk = is.readInt();
+        }
+
+        if(content == null) {
+            return len == 0;
+        }
+
+        info.setContent(content);
+        return true;
+    }
+
+    /**
+     * Cuts streamed content into chunks. Chunks the receiver has already
+     * are dropped. Errors are kept - information doesn't pass them on.
+     */
+    private static class ChunkWriter extends OutputStream {
+        private final SharkOutputStream os;
+        private final OutputStream out;
+        private final long len;
+        private final String transferID;
+        private final int chunkSize;
+        private final ContentTransfers transfers;
+        private final Object connection;
+
+        private final CRC32 crc = new CRC32();
+        private long position = 0;
+        private int chunkLen = 0;
+        private int inChunk = 0;
+        private boolean needed;
+        private IOException failure = null;
+
+        ChunkWriter(SharkOutputStream os, long len, String transferID, int chunkSize,
+                ContentTransfers transfers, Object connection) {
+
+            this.os = os;
+            this.out = os.getOutputStream();
+            this.len = len;
+            this.transferID = transferID;
+            this.chunkSize = chunkSize;
+            this.transfers = transfers;
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            try {
+                if(this.failure != null) {
+                    throw this.failure;
+                }
+
+                while(n > 0) {
+                    if(this.inChunk == this.chunkLen) {
+                        this.startChunk();
+                    }
+
+                    int m = Math.min(n, this.chunkLen - this.inChunk);
+                    if(this.needed) {
+                        this.crc.update(b, off, m);
+                        this.out.write(b, off, m);
+                    }
+
+                    this.inChunk += m;
+                    this.position += m;
+                    off += m;
+                    n -= m;
+
+                    if(this.inChunk == this.chunkLen && this.needed) {
+                        this.os.writeLong(this.crc.getValue());
+                    }
+                }
+            }
+            catch(IOException ioe) {
+                this.failure = ioe;
+                throw ioe;
+            }
+        }
+
+        private void startChunk() throws IOException {
+            if(this.position >= this.len) {
+                throw new IOException("content longer than announced: " + this.transferID);
+            }
+
+            int chunk = (int) (this.position / this.chunkSize);
+            this.chunkLen = (int) Math.min(this.chunkSize, this.len - this.position);
+            this.inChunk = 0;
+
+            this.needed = this.transfers == null
+                    || this.transfers.chunkNeeded(this.connection, this.transferID, chunk);
+
+            if(this.needed) {
+                this.os.writeInt(chunk);
+                this.os.writeInt(this.chunkLen);
+                this.crc.reset();
+            }
+        }
+
+        /**
+         * @throws IOException if content couldn't be written completely
+         */
+        void finish() throws IOException {
+            if(this.failure != null) {
+                throw this.failure;
+            }
+
+            if(this.position != this.len) {
+                throw new IOException("content shorter than announced: " + this.transferID);
+            }
+        }
+    }
+}
@@ -2,13 +2,16 @@ package net.sharkfw.kep.format;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 
 import net.sharkfw.system.TimeLong;
+import net.sharkfw.kep.ContentTransfers;
 import net.sharkfw.kep.KnowledgeSerializer;
+import net.sharkfw.kep.VocabularyCache;
 import net.sharkfw.knowledgeBase.*;
 import net.sharkfw.knowledgeBase.inmemory.*;
 import net.sharkfw.protocols.SharkInputStream;
@@ -59,6 +62,10 @@ public class XMLSerializer implements KnowledgeSerializer {
     private final String SI_TAG = "si";
     private final String ADDRESS_TAG = "addr";
     
+    // vocabulary tables (KEP 1.1)
+    private final String REF_TAG = "ref";
+    private final String SLOT_TAG = "slot";
+    
     private final String PROPERTIES_TAG = "props";
     private final String PROPERTY_TAG = "p";
     private final String VALUE_TAG = "v";
@@ -77,6 +84,18 @@ public class XMLSerializer implements KnowledgeSerializer {
      */
     @Override
     public String serializeSharkCS(SharkCS sharkCS) throws SharkKBException {
+        return this.serializeSharkCS(sharkCS, null);
+    }
+    
+    /**
+     * Serializes context space. Tags are put into vocabulary table and
+     * are only referenced if they already are in that table.
+     * 
+     * @param vocabulary can be null - any tag is serialized in full
+     */
+    private String serializeSharkCS(SharkCS sharkCS, VocabularyCache.Message vocabulary) 
+            throws SharkKBException {
+        
         if(sharkCS == null) {
             return null;
         }
@@ -88,7 +107,7 @@ public class XMLSerializer implements KnowledgeSerializer {
         STSet topics = sharkCS.getTopics();
         if(topics != null && !topics.isEmpty()) {
             buf.append(this.startTag(TOPICS_TAG));
-            buf.append(this.serializeSTSet(topics));
+            buf.append(this.serializeSTSet(topics, vocabulary));
             buf.append(this.endTag(TOPICS_TAG));
         }
         
@@ -103,28 +122,28 @@ public class XMLSerializer implements KnowledgeSerializer {
         PeerSTSet peers = sharkCS.getPeers();
         if(peers != null && !peers.isEmpty()) {
             buf.append(this.startTag(PEERS_TAG));
-            buf.append(this.serializeSTSet(peers));
+            buf.append(this.serializeSTSet(peers, vocabulary));
             buf.append(this.endTag(PEERS_TAG));
         }
         // remote peers
         PeerSTSet remotePeers = sharkCS.getRemotePeers();
         if(remotePeers != null && !remotePeers.isEmpty()) {
             buf.append(this.startTag(REMOTE_PEERS_TAG));
-            buf.append(this.serializeSTSet(remotePeers));
+            buf.append(this.serializeSTSet(remotePeers, vocabulary));
             buf.append(this.endTag(REMOTE_PEERS_TAG));
         }
         // location
         SpatialSTSet locations = sharkCS.getLocations();
         if(locations != null && !locations.isEmpty()) {
             buf.append(this.startTag(LOCATIONS_TAG));
-            buf.append(this.serializeSTSet(locations));
+            buf.append(this.serializeSTSet(locations, vocabulary));
             buf.append(this.endTag(LOCATIONS_TAG));
         }
         // times
         TimeSTSet times = sharkCS.getTimes();
         if(times != null && !times.isEmpty()) {
             buf.append(this.startTag(TIMES_TAG));
-            buf.append(this.serializeSTSet(times));
+            buf.append(this.serializeSTSet(times, vocabulary));
             buf.append(this.endTag(TIMES_TAG));
         }
 
@@ -150,6 +169,12 @@ public class XMLSerializer implements KnowledgeSerializer {
      */
     @Override
     public String serializeSTSet(STSet stset) throws SharkKBException {
+        return this.serializeSTSet(stset, null);
+    }
+    
+    private String serializeSTSet(STSet stset, VocabularyCache.Message vocabulary) 
+            throws SharkKBException {
+        
         if(stset == null) {
             return null;
         }
@@ -167,7 +192,7 @@ public class XMLSerializer implements KnowledgeSerializer {
 
         // add tags
         while(tags.hasMoreElements()) {
-            buf.append(this.serializeTag(tags.nextElement()));
+            buf.append(this.serializeTag(tags.nextElement(), vocabulary));
         }
         
         buf.append(this.endTag(TAGS_ENUM_TAG));
@@ -362,6 +387,44 @@ public class XMLSerializer implements KnowledgeSerializer {
         }
     }
 
+    /**
+     * Serializes tag. A tag which is already in vocabulary table is
+     * replaced by a reference. Otherwise, it is put into the table
+     * and the slot is sent along with the tag.
+     */
+    private String serializeTag(SemanticTag tag, VocabularyCache.Message vocabulary) 
+            throws SharkKBException {
+        
+        String serializedTag = this.serializeTag(tag);
+        
+        // time tags are parsed from whole set - always send them in full
+        if(vocabulary == null || serializedTag == null || tag instanceof TimeSemanticTag) {
+            return serializedTag;
+        }
+        
+        String innerTag = serializedTag.substring(this.startTag(TAG_TAG).length(), 
+                serializedTag.length() - this.endTag(TAG_TAG).length());
+        
+        StringBuilder buf = new StringBuilder();
+        buf.append(this.startTag(TAG_TAG));
+        
+        String ref = vocabulary.lookup(innerTag);
+        if(ref != null) {
+            buf.append(this.startTag(REF_TAG));
+            buf.append(ref);
+            buf.append(this.endTag(REF_TAG));
+        } else {
+            buf.append(this.startTag(SLOT_TAG));
+            buf.append(vocabulary.assign(innerTag));
+            buf.append(this.endTag(SLOT_TAG));
+            buf.append(innerTag);
+        }
+        
+        buf.append(this.endTag(TAG_TAG));
+        
+        return buf.toString();
+    }
+    
     private String serializeTag(SemanticTag tag) throws SharkKBException {
         if(tag == null) {
             return null;
@@ -432,6 +495,39 @@ public class XMLSerializer implements KnowledgeSerializer {
      * @param target
      * @param s
      */
+    private SemanticTag deserializeTag(STSet targetSet, String s, 
+            ReceivedVocabulary vocabulary) throws SharkKBException {
+        
+        if(s.startsWith(this.startTag(REF_TAG))) {
+            // sent earlier - take it from vocabulary table
+            String ref = this.stringBetween(REF_TAG, s, 0);
+            s = null;
+            if(ref != null && vocabulary != null && vocabulary.table != null) {
+                s = vocabulary.table.resolve(ref);
+            }
+            
+            if(s == null) {
+                L.l("cannot resolve vocabulary reference: " + ref, this);
+                if(vocabulary != null) {
+                    vocabulary.unresolved = true;
+                }
+                return null;
+            }
+        } 
+        else if(s.startsWith(this.startTag(SLOT_TAG))) {
+            // remember tag in vocabulary table
+            String ref = this.stringBetween(SLOT_TAG, s, 0);
+            s = s.substring(s.indexOf(this.endTag(SLOT_TAG)) + this.endTag(SLOT_TAG).length());
+            if(ref != null && vocabulary != null && vocabulary.table != null
+                    && vocabulary.table.learn(ref, s)) {
+                
+                vocabulary.learned.add(ref);
+            }
+        }
+        
+        return this.deserializeTag(targetSet, s);
+    }
+    
     private SemanticTag deserializeTag(STSet targetSet, String s) throws SharkKBException {
         int index;
         String name;
@@ -601,6 +697,12 @@ public class XMLSerializer implements KnowledgeSerializer {
     
     @Override
     public boolean deserializeSTSet(STSet target, String serializedSTSet) throws SharkKBException {
+        return this.deserializeSTSet(target, serializedSTSet, null);
+    }
+    
+    private boolean deserializeSTSet(STSet target, String serializedSTSet, 
+            ReceivedVocabulary vocabulary) throws SharkKBException {
+        
         if(target == null || serializedSTSet == null) {
             return false;
         }
@@ -627,7 +729,7 @@ public class XMLSerializer implements KnowledgeSerializer {
             if(tagString != null) {
                 found = true;
                 
-                this.deserializeTag(target, tagString);
+                this.deserializeTag(target, tagString, vocabulary);
 
                 index = tagsString.indexOf(this.endTag(TAG_TAG), index) + 1;
             }
@@ -872,6 +974,12 @@ public class XMLSerializer implements KnowledgeSerializer {
 
     @Override
     public SharkCS deserializeSharkCS(String contextSpaceString) throws SharkKBException {
+        return this.deserializeSharkCS(contextSpaceString, null);
+    }
+    
+    private SharkCS deserializeSharkCS(String contextSpaceString, 
+            ReceivedVocabulary vocabulary) throws SharkKBException {
+        
         if(contextSpaceString == null) {
             return null;
         }
@@ -890,7 +998,7 @@ public class XMLSerializer implements KnowledgeSerializer {
         if(partString != null) {
             // create topics target
             topics = new InMemoSemanticNet();
-            if(!this.deserializeSTSet(topics, partString)) {
+            if(!this.deserializeSTSet(topics, partString, vocabulary)) {
                 // failure
                 topics = null;
             }
@@ -915,7 +1023,7 @@ public class XMLSerializer implements KnowledgeSerializer {
         if(partString != null) {
         
             peers = InMemoSharkKB.createInMemoPeerSemanticNet();
-            if(!this.deserializeSTSet(peers, partString)) {
+            if(!this.deserializeSTSet(peers, partString, vocabulary)) {
                 peers = null;
             }
         }
@@ -927,7 +1035,7 @@ public class XMLSerializer implements KnowledgeSerializer {
         if(partString != null) {
         
             remotePeers = InMemoSharkKB.createInMemoPeerSemanticNet();
-            if(!this.deserializeSTSet(remotePeers, partString)) {
+            if(!this.deserializeSTSet(remotePeers, partString, vocabulary)) {
                 remotePeers = null;
             }
         }
@@ -940,7 +1048,7 @@ public class XMLSerializer implements KnowledgeSerializer {
         if(partString != null) {
         
             locations = InMemoSharkKB.createInMemoSpatialSTSet();
-            if(!this.deserializeSTSet(locations, partString)) {
+            if(!this.deserializeSTSet(locations, partString, vocabulary)) {
                 locations = null;
             }
         }
@@ -1001,6 +1109,13 @@ public class XMLSerializer implements KnowledgeSerializer {
 
     @Override
     public void write(Knowledge k, SharkOutputStream os) throws IOException, SharkKBException {
+        this.write(k, os, null, null, null);
+    }
+
+    @Override
+    public void write(Knowledge k, SharkOutputStream os, ContentTransfers transfers,
+            Object connection, VocabularyCache.Table vocabulary) throws IOException, SharkKBException {
+        
         if(k == null || os == null) {
             throw new SharkKBException("knowledge or outputstream not set - fatal");
         }
@@ -1014,7 +1129,22 @@ public class XMLSerializer implements KnowledgeSerializer {
         }
         
         SharkCS background = context.asSharkCS();
-        String serialBackground = this.serializeSharkCS(background);
+        
+        String serialBackground;
+        VocabularyCache.Message message = null;
+        if(os.getBinaryNumbers()) {
+            // KEP 1.1 - vocabulary table of recipient and message number
+            if(vocabulary != null) {
+                message = vocabulary.startMessage();
+                os.writeLong(message.getTableID());
+                os.writeInt(message.getNumber());
+            } else {
+                os.writeLong(VocabularyCache.NO_TABLE);
+            }
+            serialBackground = this.serializeSharkCS(background, message);
+        } else {
+            serialBackground = this.serializeSharkCS(background);
+        }
 
         L.d("send serialBackground: " + serialBackground, this);
         os.write(serialBackground);
@@ -1022,7 +1152,7 @@ public class XMLSerializer implements KnowledgeSerializer {
         // pruefe ob cps vorhanden moeglich
 
         L.d("send number: " + number, this);
-        os.write(Integer.toString(number));
+        os.writeInt(number);
 
         for (int i = 0; i < number; i++) {
             ContextPoint cp = k.getCP(i);
@@ -1041,7 +1171,7 @@ public class XMLSerializer implements KnowledgeSerializer {
 
             int infonumber = cp.getNumberInformation();
             L.d("send infonumber: " + infonumber, this);
-            os.write(Integer.toString(infonumber));
+            os.writeInt(infonumber);
 
             Enumeration<Information> infoEnum = cp.enumInformation();
             if(infoEnum != null) {
@@ -1064,28 +1194,75 @@ public class XMLSerializer implements KnowledgeSerializer {
                     an der richtigen stelle auftaucht (und nicht z.B. VOR dem eigentlichen Dokument
                         */
                     L.d("send len: " + len, this);
-                    os.write(Long.toString(len));
+                    os.writeLong(len);
                     L.d("send type: " + type, this);
                     os.write(type);
-                    info.streamContent(os.getOutputStream());
+                    
+                    // plain connection and file based content: let the os copy it
+                    WritableByteChannel channel = os.getChannel();
+                    if(os.getBinaryNumbers()) {
+                        // KEP 1.1 - content in chunks
+                        ChunkedContent.write(info, len, os, transfers, connection);
+                    } else if(channel != null && info instanceof ChannelInformation) {
+                        ((ChannelInformation) info).transferContentTo(channel);
+                    } else {
+                        info.streamContent(os.getOutputStream());
+                    }
                     }
                 }
             }
         }
+        
+        if(message != null) {
+            // sent again in full if rejected
+            message.sent(k);
+        }
     }
 
     @Override
     public Knowledge parseKnowledge(SharkInputStream is) 
             throws IOException, SharkKBException {
+        
+        return this.parseKnowledge(is, null, null, null, null);
+    }
+    
+    @Override
+    public Knowledge parseKnowledge(SharkInputStream is, ContentTransfers transfers,
+            ContentTransfers.ResumeListener listener, VocabularyCache vocabularies,
+            VocabularyCache.Listener vocabularyListener) 
+            throws IOException, SharkKBException {
+        
         L.d("XMLSerializer starts parsing knowledge with stream ", is);
         
         InMemoSharkKB target = new InMemoSharkKB();
+        
+        ReceivedVocabulary vocabulary = null;
+        if(is.getBinaryNumbers()) {
+            // KEP 1.1 - vocabulary table of sender
+            long tableID = is.readLong();
+            if(tableID != VocabularyCache.NO_TABLE) {
+                int message = is.readInt();
+                vocabulary = new ReceivedVocabulary(tableID, message,
+                        vocabularies != null ? vocabularies.receivedFrom(tableID) : null);
+            }
+        }
+        
         String serialBg = is.readUTF8();
         L.d("read background knowledge: " + serialBg, this);
         
-        SharkCS background = this.deserializeSharkCS(serialBg);
+        SharkCS background = this.deserializeSharkCS(serialBg, vocabulary);
         L.d("serialized background", this);
         
+        if(vocabulary != null && vocabularyListener != null) {
+            if(vocabulary.unresolved) {
+                // some tags are lost - sender must not refer to that table any longer
+                vocabularyListener.resetVocabulary(vocabulary.id, vocabulary.message);
+            } else if(!vocabulary.learned.isEmpty()) {
+                // sender may refer to those slots from now on
+                vocabularyListener.acknowledgeVocabulary(vocabulary.id, vocabulary.learned);
+            }
+        }
+        
         // background can be null
         if(background != null) {
             Util.merge(target, background);
@@ -1093,10 +1270,9 @@ public class XMLSerializer implements KnowledgeSerializer {
         
         Knowledge k = target.createKnowledge();
 
-        String numberCpString = is.readUTF8();
-        L.d("read numberCpString: " + numberCpString, this);
+        int numberCp = is.readInt();
+        L.d("read numberCp: " + numberCp, this);
         
-        int numberCp = Integer.parseInt(numberCpString);
         if (numberCp > 0) {
             for (int cpCount = 0; cpCount < numberCp; cpCount++) {
                 String serialCo = is.readUTF8();
@@ -1113,9 +1289,8 @@ public class XMLSerializer implements KnowledgeSerializer {
                 
                 this.deserializeProperties(cp, serializedCPProperties);
 
-                String numberInfoString = is.readUTF8();
-                L.d("read numberInfoString: " + numberInfoString, this);
-                int numberInfo = Integer.parseInt(numberInfoString);
+                int numberInfo = is.readInt();
+                L.d("read numberInfo: " + numberInfo, this);
 
                 if (numberInfo > 0) {
                     for (int infoCount = 0; infoCount < numberInfo; infoCount++) {
@@ -1125,17 +1300,25 @@ public class XMLSerializer implements KnowledgeSerializer {
 
                         this.deserializeProperties(info, infoPropertyString);
 
-                        String lenString = is.readUTF8();
-                        L.d("read lenString: " + lenString, this);
-                        long len = TimeLong.parse(lenString);
+                        long len = is.readLong();
+                        L.d("read len: " + len, this);
 
                         String type = is.readUTF8();
                         L.d("read type: " + type, this);
                         info.setContentType(type);
 
-                        OutputStream os = info.getOutputStream();
-                        Streamer.stream(is.getInputStream(), os, 
-                                UTF8SharkOutputStream.STREAM_BUFFER_SIZE, len);
+                        if(is.getBinaryNumbers()) {
+                            // KEP 1.1 - content in chunks
+                            if(!ChunkedContent.read(info, len, is, transfers, listener)) {
+                                // missing chunks come with another message
+                                L.l("content incomplete - information removed: " + info.getName(), this);
+                                cp.removeInformation(info);
+                            }
+                        } else {
+                            OutputStream os = info.getOutputStream();
+                            Streamer.stream(is.getInputStream(), os, 
+                                    UTF8SharkOutputStream.STREAM_BUFFER_SIZE, len);
+                        }
                     }
                     
                     // there was at least a single information - add cp
@@ -1145,6 +1328,12 @@ public class XMLSerializer implements KnowledgeSerializer {
                 k.addContextPoint(cp);
             }
         }
+        
+        if(vocabulary != null && vocabulary.unresolved) {
+            // message is read completely but it lacks tags - reject it
+            throw new SharkKBException("cannot resolve vocabulary references - knowledge rejected");
+        }
+        
         return k;
     }
 
@@ -1193,9 +1382,10 @@ public class XMLSerializer implements KnowledgeSerializer {
     }
 
     // TODO
-    private boolean deserializeSTSet(SpatialSTSet locations, String partString) throws SharkKBException {
+    private boolean deserializeSTSet(SpatialSTSet locations, String partString, 
+            ReceivedVocabulary vocabulary) throws SharkKBException {
         // TODO - workaround until spatial and time tags finished
-        return this.deserializeSTSet((STSet) locations, partString);
+        return this.deserializeSTSet((STSet) locations, partString, vocabulary);
     }
     
     // TODO
@@ -1239,6 +1429,23 @@ public class XMLSerializer implements KnowledgeSerializer {
         return !times.isEmpty();
     }
     
+    /**
+     * Vocabulary table of a message which is parsed.
+     */
+    private static class ReceivedVocabulary {
+        private final long id;
+        private final int message;
+        private final VocabularyCache.Table table;
+        private final List<String> learned = new ArrayList<>();
+        private boolean unresolved = false;
+        
+        ReceivedVocabulary(long id, int message, VocabularyCache.Table table) {
+            this.id = id;
+            this.message = message;
+            this.table = table;
+        }
+    }
+    
     private SemanticNet cast2SN(STSet stset) throws SharkKBException {
         SemanticNet sn;
         try {
@@ -1260,4 +1467,4 @@ public class XMLSerializer implements KnowledgeSerializer {
         
         return sn;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
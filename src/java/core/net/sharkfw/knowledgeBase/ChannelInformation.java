@@ -0,0 +1,42 @@
+package net.sharkfw.knowledgeBase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>Information which keep their content in a file can implement this
+ * interface. It allows moving content with channel operations
+ * (<code>FileChannel.transferTo</code>) instead of pushing each byte
+ * through java streams.</p>
+ *
+ * <p>KEP uses these methods when the underlying connection offers a
+ * channel - which is the case for plain (neither encrypted nor signed)
+ * TCP connections. Operating systems can transfer file content to a socket
+ * without copying it into the java heap in that case. Received content
+ * is read into memory - parsed knowledge isn't file based.</p>
+ *
+ * @see net.sharkfw.protocols.SharkOutputStream#getChannel()
+ *
+ * @author thsc
+ */
+public interface ChannelInformation extends Information {
+
+    /**
+     * Writes the whole content into the channel.
+     *
+     * @param target channel to write to
+     * @return number of bytes transferred
+     * @throws IOException
+     */
+    public long transferContentTo(WritableByteChannel target) throws IOException;
+
+    /**
+     * Maps content into memory (read only). Large content can be
+     * read that way without allocating a heap buffer of content size.
+     *
+     * @return read only buffer containing the content
+     * @throws IOException
+     */
+    public ByteBuffer mapContent() throws IOException;
+}
@@ -1349,7 +1349,9 @@ public abstract class SharkCSAlgebra {
         Interest effectiveBackground = SharkCSAlgebra.contextualize(
                 knowledge.getVocabulary().asSharkCS(), interest, backgroundFP);
         
-        L.d("Effective background for assimilation\n" + L.contextSpace2String(effectiveBackground), target);
+        if(L.isDebug()) {
+            L.d("Effective background for assimilation\n" + L.contextSpace2String(effectiveBackground), target);
+        }
         
         if(effectiveBackground == null) {
             L.d("no effective background - no assimilation", null);
@@ -1380,7 +1382,9 @@ public abstract class SharkCSAlgebra {
                     SharkCS.DIRECTION_IN
                     );
             
-            L.d("Algebra: #1225: check, whether this cp fits:\n" + L.contextSpace2String(cc), target);
+            if(L.isDebug()) {
+                L.d("Algebra: #1225: check, whether this cp fits:\n" + L.contextSpace2String(cc), target);
+            }
             // check if this cp fits to effective background
             
             if(SharkCSAlgebra.isIn(effectiveBackground, cc)) {
@@ -0,0 +1,205 @@
+package net.sharkfw.peer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Observed quality of peer addresses.
+ *
+ * <p>Each connect attempt is recorded with its outcome. Successful
+ * attempts update a moving average of connect latency. A failed attempt
+ * suspends an address for a while (negative cache) - it is tried after
+ * all other addresses of a peer until it is suspended no longer or it
+ * worked again.</p>
+ *
+ * <p>Statistics of at most {@link #MAX_ADDRESSES} addresses are kept.
+ * Addresses which weren't used for a long time are forgotten first.</p>
+ *
+ * @author thsc
+ */
+public class AddressStatistics {
+
+    public static final long DEFAULT_NEGATIVE_TTL = 30000;
+    public static final int MAX_ADDRESSES = 1024;
+
+    /**
+     * Weight of a new latency sample in moving average
+     */
+    private static final double ALPHA = 0.3;
+
+    /**
+     * Health of a single address.
+     */
+    public static class Health {
+        private int successes = 0;
+        private int failures = 0;
+        private int consecutiveFailures = 0;
+        private long latency = -1;
+        private long lastFailure = 0;
+
+        Health() {
+        }
+
+        Health(Health h) {
+            this.successes = h.successes;
+            this.failures = h.failures;
+            this.consecutiveFailures = h.consecutiveFailures;
+            this.latency = h.latency;
+            this.lastFailure = h.lastFailure;
+        }
+
+        public int getSuccesses() {
+            return this.successes;
+        }
+
+        public int getFailures() {
+            return this.failures;
+        }
+
+        /**
+         * @return failures since last success
+         */
+        public int getConsecutiveFailures() {
+            return this.consecutiveFailures;
+        }
+
+        /**
+         * @return average connect time in ms or -1 if never connected
+         */
+        public long getLatency() {
+            return this.latency;
+        }
+
+        /**
+         * @return time of last failure or 0
+         */
+        public long getLastFailure() {
+            return this.lastFailure;
+        }
+
+        /**
+         * @return success rate - an unknown address is rated 0.5
+         */
+        public double getSuccessRate() {
+            return (this.successes + 1.0) / (this.successes + this.failures + 2.0);
+        }
+    }
+
+    private final LinkedHashMap<String, Health> addresses =
+            new LinkedHashMap<String, Health>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Health> eldest) {
+                    return this.size() > MAX_ADDRESSES;
+                }
+            };
+
+    private long negativeTTL = DEFAULT_NEGATIVE_TTL;
+
+    /**
+     * @param negativeTTL time in ms an address is suspended after a failure
+     * - 0 switches negative cache off
+     */
+    public void setNegativeTTL(long negativeTTL) {
+        this.negativeTTL = Math.max(0, negativeTTL);
+    }
+
+    public long getNegativeTTL() {
+        return this.negativeTTL;
+    }
+
+    /**
+     * @param address
+     * @param latency time in ms to establish connection
+     */
+    public synchronized void success(String address, long latency) {
+        Health h = this.get(address);
+        h.successes++;
+        h.consecutiveFailures = 0;
+        latency = Math.max(0, latency);
+        if(h.latency < 0) {
+            h.latency = latency;
+        } else {
+            h.latency = Math.round(ALPHA * latency + (1 - ALPHA) * h.latency);
+        }
+    }
+
+    public synchronized void failure(String address) {
+        Health h = this.get(address);
+        h.failures++;
+        h.consecutiveFailures++;
+        h.lastFailure = System.currentTimeMillis();
+    }
+
+    /**
+     * Forget failures of that address, e.g. because peer has just
+     * contacted us.
+     */
+    public synchronized void reachable(String address) {
+        Health h = this.addresses.get(address);
+        if(h != null) {
+            h.consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * @return true if last attempt failed recently
+     */
+    public synchronized boolean isSuspended(String address) {
+        return this.isSuspended(this.addresses.get(address), System.currentTimeMillis());
+    }
+
+    private boolean isSuspended(Health h, long now) {
+        return h != null && h.consecutiveFailures > 0
+                && now - h.lastFailure < this.negativeTTL;
+    }
+
+    /**
+     * @return copy of health of that address or null if never used
+     */
+    public synchronized Health getHealth(String address) {
+        Health h = this.addresses.get(address);
+        return h == null ? null : new Health(h);
+    }
+
+    /**
+     * Rates addresses. Higher is better. Success rate is weighted with
+     * latency - an address answering in 1 s has half of the score of an
+     * address answering immediately. Suspended addresses are rated
+     * below zero.
+     *
+     * @param addrs
+     * @return score of each address in same order
+     */
+    public synchronized double[] score(String[] addrs) {
+        long now = System.currentTimeMillis();
+        double[] scores = new double[addrs.length];
+
+        for(int i = 0; i < addrs.length; i++) {
+            Health h = this.addresses.get(addrs[i]);
+            if(h == null) {
+                scores[i] = 0.5;
+            } else if(this.isSuspended(h, now)) {
+                scores[i] = -1.0 / h.consecutiveFailures;
+            } else {
+                double latency = Math.max(0, h.latency);
+                scores[i] = h.getSuccessRate() * 1000.0 / (1000.0 + latency);
+            }
+        }
+
+        return scores;
+    }
+
+    public synchronized void clear() {
+        this.addresses.clear();
+    }
+
+    private Health get(String address) {
+        Health h = this.addresses.get(address);
+        if(h == null) {
+            h = new Health();
+            this.addresses.put(address, h);
+        }
+
+        return h;
+    }
+}
@@ -0,0 +1,186 @@
+package net.sharkfw.peer;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sharkfw.system.L;
+
+/**
+ * Sends KEP messages in background.
+ *
+ * <p>Messages to the same peer are queued and sent one after another by
+ * a single thread. They go out over the same pooled connection without
+ * waiting for the caller. Messages to different peers are sent in
+ * parallel - at most <code>maxParallelPeers</code> peers at a time.</p>
+ *
+ * <p>A peer with a long queue gives its thread back after a burst of
+ * messages. Other peers are not starved by a large publish to one of
+ * them.</p>
+ *
+ * @see SharkEngine#sendInterestAsync(net.sharkfw.knowledgeBase.SharkCS, net.sharkfw.knowledgeBase.PeerSemanticTag, KnowledgePort)
+ * @author thsc
+ */
+public class AsyncKEPSender {
+
+    public static final int DEFAULT_MAX_PARALLEL_PEERS = 8;
+
+    private static final int MAX_BURST = 16;
+    private static final long KEEP_ALIVE = 30000;
+
+    private final ThreadPoolExecutor pool;
+    private final HashMap<String, PeerQueue> queues = new HashMap<>();
+
+    /**
+     * Messages to one peer. Queue is scheduled in pool as long as it isn't
+     * empty.
+     */
+    private class PeerQueue implements Runnable {
+        private final String peer;
+        private final LinkedList<FutureTask<Void>> messages = new LinkedList<>();
+
+        PeerQueue(String peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void run() {
+            for(int i = 0; i < MAX_BURST; i++) {
+                FutureTask<Void> message;
+                synchronized(AsyncKEPSender.this) {
+                    message = this.messages.poll();
+                    if(message == null) {
+                        AsyncKEPSender.this.queues.remove(this.peer);
+                        return;
+                    }
+                }
+
+                // exceptions are kept by future
+                message.run();
+            }
+
+            // let other peers go first
+            AsyncKEPSender.this.schedule(this);
+        }
+    }
+
+    public AsyncKEPSender() {
+        this(DEFAULT_MAX_PARALLEL_PEERS);
+    }
+
+    /**
+     * @param maxParallelPeers peers messages are sent to at the same time
+     */
+    public AsyncKEPSender(int maxParallelPeers) {
+        if(maxParallelPeers < 1) {
+            throw new IllegalArgumentException("at least one peer at a time required");
+        }
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(maxParallelPeers, maxParallelPeers,
+                KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "KEPSender-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param max peers messages are sent to at the same time
+     */
+    public void setMaxParallelPeers(int max) {
+        max = Math.max(1, max);
+        if(max > this.pool.getMaximumPoolSize()) {
+            this.pool.setMaximumPoolSize(max);
+            this.pool.setCorePoolSize(max);
+        } else {
+            this.pool.setCorePoolSize(max);
+            this.pool.setMaximumPoolSize(max);
+        }
+    }
+
+    public int getMaxParallelPeers() {
+        return this.pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Queue a message for a peer.
+     *
+     * @param peer messages with same peer are sent in order of calls
+     * @param send sends the message
+     * @return future of that message - get() throws an ExecutionException
+     * with the cause if sending failed
+     */
+    public Future<Void> send(String peer, Callable<Void> send) {
+        FutureTask<Void> message = new FutureTask<>(send);
+
+        PeerQueue queue;
+        synchronized(this) {
+            queue = this.queues.get(peer);
+            if(queue != null) {
+                // queue is already scheduled
+                queue.messages.add(message);
+                return message;
+            }
+
+            queue = new PeerQueue(peer);
+            queue.messages.add(message);
+            this.queues.put(peer, queue);
+        }
+
+        this.schedule(queue);
+
+        return message;
+    }
+
+    private void schedule(PeerQueue queue) {
+        try {
+            this.pool.execute(queue);
+        }
+        catch(RejectedExecutionException ree) {
+            // shut down - nothing will be sent
+            L.w("sender is shut down - drop messages to " + queue.peer, this);
+            synchronized(this) {
+                this.queues.remove(queue.peer);
+                for(FutureTask<Void> message : queue.messages) {
+                    message.cancel(false);
+                }
+                queue.messages.clear();
+            }
+        }
+    }
+
+    /**
+     * @return number of messages waiting to be sent
+     */
+    public synchronized int getNumberWaiting() {
+        int n = 0;
+        for(PeerQueue queue : this.queues.values()) {
+            n += queue.messages.size();
+        }
+
+        return n;
+    }
+
+    /**
+     * No new message is accepted. Messages which are still queued might be
+     * dropped (their futures are cancelled).
+     */
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+}
@@ -0,0 +1,196 @@
+package net.sharkfw.peer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.protocols.StreamStub;
+import net.sharkfw.system.L;
+
+/**
+ * Connects to the first of some addresses which answers.
+ *
+ * <p>First address is tried immediately. If it hasn't answered after
+ * <code>stagger</code> ms (or failed), the next one is tried in parallel
+ * and so forth. First connection wins - connections which are
+ * established later are closed. An address which doesn't answer
+ * costs a stagger, not a connect timeout.</p>
+ *
+ * <p>Outcome of each attempt is recorded in {@link AddressStatistics}.</p>
+ *
+ * @author thsc
+ */
+class ConnectionRacer {
+
+    public static final long DEFAULT_STAGGER = 250;
+
+    private static final long KEEP_ALIVE = 30000;
+
+    private final AddressStatistics statistics;
+    private final ThreadPoolExecutor pool;
+    private long stagger = DEFAULT_STAGGER;
+
+    /**
+     * Connection and address it was established to
+     */
+    static class Connected {
+        final String address;
+        final StreamConnection connection;
+
+        Connected(String address, StreamConnection connection) {
+            this.address = address;
+            this.connection = connection;
+        }
+    }
+
+    ConnectionRacer(AddressStatistics statistics) {
+        this.statistics = statistics;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Connect-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * @param stagger ms to wait for an address before next one is tried
+     */
+    void setStagger(long stagger) {
+        this.stagger = Math.max(0, stagger);
+    }
+
+    long getStagger() {
+        return this.stagger;
+    }
+
+    /**
+     * @param addresses in order of preference
+     * @param stubs stub of each address
+     * @return first established connection or null if no address could
+     * be reached
+     */
+    Connected connect(List<String> addresses, List<StreamStub> stubs) {
+        if(addresses.size() == 1) {
+            // nothing to race - don't change threads
+            try {
+                return this.attempt(addresses.get(0), stubs.get(0));
+            }
+            catch(IOException ioe) {
+                L.d("cannot connect: " + ioe.getMessage(), this);
+                return null;
+            }
+        }
+
+        ExecutorCompletionService<Connected> ecs = new ExecutorCompletionService<>(this.pool);
+        List<Future<Connected>> running = new ArrayList<>();
+
+        int started = 0;
+        Connected winner = null;
+        try {
+            while(winner == null && (started < addresses.size() || !running.isEmpty())) {
+                if(started < addresses.size()) {
+                    running.add(ecs.submit(this.attemptTask(
+                            addresses.get(started), stubs.get(started))));
+                    started++;
+                }
+
+                Future<Connected> done;
+                if(started < addresses.size()) {
+                    // give it a head start
+                    done = ecs.poll(this.stagger, TimeUnit.MILLISECONDS);
+                } else {
+                    done = ecs.take();
+                }
+
+                if(done == null) {
+                    continue;
+                }
+
+                running.remove(done);
+                try {
+                    winner = done.get();
+                }
+                catch(ExecutionException ee) {
+                    L.d("cannot connect: " + ee.getCause().getMessage(), this);
+                }
+            }
+        }
+        catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        // connections of losers aren't needed
+        for(final Future<Connected> loser : running) {
+            this.pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loser.get().connection.close();
+                    }
+                    catch(InterruptedException ie) {
+                        // thread ends anyway
+                    }
+                    catch(ExecutionException ee) {
+                        // not connected - nothing to close
+                    }
+                }
+            });
+        }
+
+        return winner;
+    }
+
+    private Callable<Connected> attemptTask(final String address, final StreamStub stub) {
+        return new Callable<Connected>() {
+            @Override
+            public Connected call() throws IOException {
+                return ConnectionRacer.this.attempt(address, stub);
+            }
+        };
+    }
+
+    private Connected attempt(String address, StreamStub stub) throws IOException {
+        long start = System.currentTimeMillis();
+        StreamConnection con;
+        try {
+            con = stub.createStreamConnection(address);
+        }
+        catch(IOException ioe) {
+            this.statistics.failure(address);
+            throw ioe;
+        }
+        catch(RuntimeException re) {
+            this.statistics.failure(address);
+            throw new IOException(re.getMessage());
+        }
+
+        if(con == null) {
+            this.statistics.failure(address);
+            throw new IOException("no connection to " + address);
+        }
+
+        this.statistics.success(address, System.currentTimeMillis() - start);
+        return new Connected(address, con);
+    }
+
+    void shutdown() {
+        this.pool.shutdown();
+    }
+}
@@ -4,11 +4,15 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
@@ -19,6 +23,7 @@ import net.sharkfw.peer.SharkEngine.SecurityLevel;
 import net.sharkfw.peer.SharkEngine.SecurityReplyPolicy;
 import net.sharkfw.pki.SharkPublicKeyStorage;
 import net.sharkfw.protocols.*;
+import net.sharkfw.security.utility.SharkCryptoService;
 import net.sharkfw.system.*;
 
 
@@ -58,9 +63,13 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
     // information directly parsed from message
     private SharkCS receivedInterest = null;
     private Knowledge knowledge = null;
+    private SharkKBException rejection = null; // knowledge read but rejected
 
     // derived information
     private String version = null;
+    
+    /** sender understands current KEP version - even if it used KEP 1.0 */
+    private boolean currentVersionUnderstood = false;
     private int kFormat = KEPMessage.XML;
 
     private int cmd;
@@ -229,7 +238,7 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
     /**
      * read header: KEP version, address, command, format
      */
-    private void parseHeader() throws IOException {
+    private void parseHeader() throws IOException, SharkNotSupportedException {
 
 //      L.d("Parsing header", this);
       
@@ -247,16 +256,36 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
 
         // Read version
 //        L.d("Parsing version", this);
-        this.version = is.readUTF8();
-        L.d("parse version: " + this.version, this);
+        String receivedVersion = is.readUTF8();
+        L.d("parse version: " + receivedVersion, this);
+        
+        if(KEPMessage.THISVERSION.equals(receivedVersion)) {
+            this.version = KEPMessage.THISVERSION;
+            this.currentVersionUnderstood = true;
+        } else if(KEPMessage.VERSION_1_0_UPGRADE.equals(receivedVersion)) {
+            this.version = KEPMessage.VERSION_1_0;
+            this.currentVersionUnderstood = true;
+        } else if(KEPMessage.VERSION_1_0.equals(receivedVersion)) {
+            this.version = KEPMessage.VERSION_1_0;
+            this.currentVersionUnderstood = false;
+        } else {
+            throw new SharkNotSupportedException("unsupported KEP version: " + receivedVersion);
+        }
+        
+        // KEP 1.0 peers send numbers as strings
+        is.setBinaryNumbers(!KEPMessage.VERSION_1_0.equals(this.version));
+        
+        if(this.currentVersionUnderstood && this.se != null) {
+            // answer in current version over this connection
+            this.se.currentKEPReceived(this.con, null);
+        }
 
         // Read replyAddress
 //        this.replyAddress = is.readUTF8();
 //        L.d("parse Header: replyAddress: " + this.replyAddress, this);
 
         // Read cmd
-        String cmdString = is.readUTF8();
-        this.cmd = Integer.parseInt(cmdString);
+        this.cmd = is.readInt();
         if(this.cmd == -1) {
             exit = true;
 //        	throw new IOException("KEPRequest.parseHeader: no more data to read");
@@ -264,8 +293,7 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
         L.d("cmd: " + this.cmd, this);
 
         // Read format
-        String formatString = is.readUTF8();
-        this.kFormat = Integer.parseInt(formatString);
+        this.kFormat = is.readInt();
         if(this.kFormat == -1) {
         	exit = true;
             throw new IOException("KEPRequest.parseHeader: no more data to read");
@@ -296,25 +324,108 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
       }
       
       // encryption?
-      String sessionKeyLenString = this.is.readUTF8();
-      L.d("\n session key len: " + sessionKeyLenString, this);
+      int sessionKeyLen = this.is.readInt();
+      
+      // authenticated encryption in chunks?
+      this.gcm = sessionKeyLen == KEPMessage.ENCRYPTION_GCM;
+      if(this.gcm) {
+          sessionKeyLen = this.is.readInt();
+      }
+      L.d("\n session key len: " + sessionKeyLen, this);
+
+      SessionKeyCache sessionKeys = this.se != null ? this.se.getSessionKeyCache() : null;
+      
+      // only knowledge and interests are answered - no ping pong of acks
+      boolean answer = this.cmd == KEPMessage.KEP_INSERT || this.cmd == KEPMessage.KEP_EXPOSE;
       
-      int sessionKeyLen = Integer.parseInt(sessionKeyLenString);
-      if(sessionKeyLen > 0) {
+      if(sessionKeyLen == SessionKeyCache.KEY_REFERENCE 
+              || sessionKeyLen == SessionKeyCache.KEY_RESENT) {
+          
+          // sender refers to a session key sent before
+          long keyID;
+          SecretKey known = null;
+          if(sessionKeyLen == SessionKeyCache.KEY_REFERENCE) {
+              keyID = this.is.readLong();
+              if(sessionKeys != null) {
+                  known = sessionKeys.receivedKey(keyID);
+              }
+          } else {
+              // ... and sends it again - not confirmed yet
+              byte[] sessionKeyBytes = new byte[this.is.readInt()];
+              this.readFully(sessionKeyBytes);
+              keyID = SessionKeyCache.keyID(sessionKeyBytes);
+              if(sessionKeys != null) {
+                  known = sessionKeys.receivedKey(keyID);
+              }
+              
+              if(known == null) {
+                  try {
+                      known = this.unwrap(sessionKeyBytes);
+                      if(sessionKeys != null) {
+                          sessionKeys.unwrapped(sessionKeyBytes, known);
+                      }
+                  } catch (GeneralSecurityException ex) {
+                      this.dropConnection();
+                      throw new IOException("cannot unwrap session key: " + ex.getMessage());
+                  }
+              }
+          }
+          
+          byte[] nonce = new byte[SessionKeyCache.NONCE_LENGTH];
+          this.readFully(nonce);
+          
+          if(known == null) {
+              // cannot decrypt - sender has to transmit a new key
+              if(answer) {
+                  // message is encrypted - reset is encrypted as well
+                  this.encrypted = true;
+                  this.senderRequests.resetSessionKey(keyID, nonce);
+              }
+              
+              if(this.gcm) {
+                  // chunks can be skipped - next message can be read
+                  GCMDecryptingInputStream.skip(this.is.getInputStream());
+                  throw new SharkNotSupportedException("unknown session key - message skipped: " + keyID);
+              }
+              
+              this.dropConnection();
+              throw new IOException("unknown session key: " + keyID);
+          }
+          
+          try {
+              this.sessionKey = SessionKeyCache.deriveKey(known, nonce);
+              this.encrypted = true;
+          } catch (GeneralSecurityException ex) {
+              this.dropConnection();
+              throw new IOException("cannot derive message key: " + ex.getMessage());
+          }
+          
+          if(sessionKeyLen == SessionKeyCache.KEY_RESENT && sessionKeys != null && answer) {
+              // sender can refer to that key from now on
+              this.senderRequests.confirmSessionKey(keyID);
+          }
+      }
+      else if(sessionKeyLen > 0) {
           
         try {
             // we have an encryption key - convert
             byte[] sessionKeyBytes = new byte[sessionKeyLen];
-            this.is.getInputStream().read(sessionKeyBytes);
+            this.readFully(sessionKeyBytes);
 
             L.printByte(sessionKeyBytes, "session key bytes (received)");
 
-            // encrypt
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.UNWRAP_MODE, this.privateKey);
-            this.sessionKey = (SecretKey) cipher.unwrap(sessionKeyBytes, "AES", Cipher.SECRET_KEY);
+            this.sessionKey = this.unwrap(sessionKeyBytes);
             this.encrypted = true;
             
+            // sender might refer to that key later
+            if(sessionKeys != null) {
+                sessionKeys.unwrapped(sessionKeyBytes, this.sessionKey);
+                if(answer) {
+                    this.senderRequests.confirmSessionKey(
+                            SessionKeyCache.keyID(sessionKeyBytes));
+                }
+            }
+            
 //            System.out.println(">>>>>>>>>>>>>>>> session key encrypted <<<<<<<<<<<<<<<<");
         } catch (Exception ex) {
 //            System.out.println(">>>>>>>>>>>>>>>> session key not encrypted <<<<<<<<<<<<<<<<");
@@ -329,16 +440,68 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
       }
 }
 
+    /**
+     * @return session key unwrapped with our private key
+     */
+    private SecretKey unwrap(byte[] sessionKeyBytes) throws GeneralSecurityException {
+        Cipher cipher = SharkCryptoService.getCipher("RSA");
+        try {
+            cipher.init(Cipher.UNWRAP_MODE, this.privateKey);
+            return (SecretKey) cipher.unwrap(sessionKeyBytes, "AES", Cipher.SECRET_KEY);
+        }
+        finally {
+            SharkCryptoService.releaseCipher("RSA", cipher);
+        }
+    }
+
+    /**
+     * Rest of message cannot be read - connection isn't used again.
+     */
+    private void dropConnection() {
+        if(this.con != null) {
+            if(this.se != null && this.se.getKepStub() != null) {
+                this.se.getKepStub().removeStreamConnection(this.con);
+            }
+            this.con.close();
+        }
+    }
+
+    private void readFully(byte[] bytes) throws IOException {
+        int got = 0;
+        while(got < bytes.length) {
+            int n = this.is.getInputStream().read(bytes, got, bytes.length - got);
+            if(n < 0) {
+                throw new IOException("Stream ended.");
+            }
+            got += n;
+        }
+    }
+
+    /**
+     * @return stream decrypting content with session key
+     */
+    private InputStream decryptingStream() throws IOException {
+        if(!this.gcm) {
+            return new DecryptingInputStream(this.is.getInputStream(), this.sessionKey);
+        }
+        
+        try {
+            return new GCMDecryptingInputStream(this.is.getInputStream(), this.sessionKey);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("cannot decrypt: " + ex.getMessage());
+        }
+    }
+
     private SecretKey sessionKey;
+    private boolean gcm = false;
     private DigestInputStream digestStream = null;
     private VerifyingInputStream sin = null;
     
-    private void setupSecurity() throws SharkSecurityException {
+    private void setupSecurity() throws SharkSecurityException, IOException {
         if (this.encryptionLevel != SharkEngine.SecurityLevel.NO
                 && this.sessionKey != null) {
             
-            InputStream decryptingIS = new DecryptingInputStream(
-                    this.is.getInputStream(), this.sessionKey);
+            InputStream decryptingIS = this.decryptingStream();
             
             this.is.set(decryptingIS);
         }
@@ -346,28 +509,40 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
         // we need a valid underSign... later. Keep this.
         this.underSigningInputStream = this.is.getInputStream();
         if (this.signatureLevel != SharkEngine.SecurityLevel.NO) {
-            // try to find public key remote peer
-            
-            // this code can throw an runtime shark security exception
-            try {
-                if(this.publicKeyStorage == null) {
-                    throw new SharkSecurityException("no public key storage found");
-                }
-                
-                this.publicKeyRemotePeer = 
-                        this.publicKeyStorage.getPublicKey(this.remotePeerSI);
-                
-                // we have a key
-                this.sin = new VerifyingInputStream(this.is.getInputStream(), 
-                        this.publicKeyRemotePeer);
-                this.is.set(this.sin);
-            } catch(SharkException sse) {
-                if(this.refuseUnverifiably) {
-                    throw new SharkSecurityException(sse.getMessage());
-                    
-                } else {
-                    // ignore
-                }
+            this.setupVerification();
+        }
+    }
+    
+    /**
+     * Puts a verifying stream with public key of remote peer on top of
+     * input stream. Without a key the message is refused if unverifiable 
+     * messages are to be refused - it is read without verification 
+     * otherwise.
+     */
+    private void setupVerification() throws SharkSecurityException {
+        // this code can throw an runtime shark security exception
+        try {
+            if(this.publicKeyStorage == null) {
+                throw new SharkSecurityException("no public key storage found");
+            }
+
+            this.publicKeyRemotePeer = 
+                    this.publicKeyStorage.getPublicKey(this.remotePeerSI);
+
+            if(this.publicKeyRemotePeer == null) {
+                // decide before reading any content
+                throw new SharkSecurityException("no public key of remote peer found");
+            }
+
+            // we have a key
+            this.sin = new VerifyingInputStream(this.is.getInputStream(), 
+                    this.publicKeyRemotePeer);
+            this.is.set(this.sin);
+        } catch(SharkException sse) {
+            if(this.refuseUnverifiably) {
+                throw new SharkSecurityException(sse.getMessage());
+            } else {
+                // ignore
             }
         }
     }
@@ -401,8 +576,7 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
                     throw new SharkSecurityException("message is encrypted but encrypted messages are not excepted");
                 }
                 
-                InputStream decryptingIS = new DecryptingInputStream(
-                        this.is.getInputStream(), this.sessionKey);
+                InputStream decryptingIS = this.decryptingStream();
 
                 this.is.set(decryptingIS);
             } else {
@@ -421,28 +595,8 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
                     // is encrypted but must not be
                     throw new SharkSecurityException("message is signed but signed messages are not excepted");
                 }
-                // try to find public key remote peer
-
-                // this code can throw an runtime shark security exception
-                try {
-                    if(this.publicKeyStorage == null) {
-                        throw new SharkSecurityException("no public key storage found");
-                    }
-
-                    this.publicKeyRemotePeer = 
-                            this.publicKeyStorage.getPublicKey(this.remotePeerSI);
-
-                    // we have a key
-                    this.sin = new VerifyingInputStream(this.is.getInputStream(), 
-                            this.publicKeyRemotePeer);
-                    this.is.set(this.sin);
-                } catch(SharkException sse) {
-                    if(this.refuseUnverifiably) {
-                        throw new SharkSecurityException(sse.getMessage());
-                    } else {
-                        // ignore
-                    }
-                }
+                
+                this.setupVerification();
             } else {
                 if(this.signatureLevel == SecurityLevel.MUST) {
                     // is encrypted but must not be
@@ -470,16 +624,108 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
                     // parseKnowledge message
                     InMemoSharkKB tempKB = new InMemoSharkKB();
                     this.receivedInterest = ks.parseSharkCS(tempKB, this.is);
+                    this.currentKEPReceived(this.getSender());
                 } catch (SharkKBException ex) {
                     throw new RuntimeException(ex.getMessage());
                 }
 
             } 
+            else if(this.cmd == KEPMessage.KEP_RESUME) {
+                // remote peer asks for missing chunks only
+                String transferID = this.is.readUTF8();
+                byte[] bits = new byte[this.is.readInt()];
+                int got = 0;
+                while(got < bits.length) {
+                    int n = this.is.getInputStream().read(bits, got, bits.length - got);
+                    if(n < 0) {
+                        throw new IOException("Stream ended.");
+                    }
+                    got += n;
+                }
+                
+                final String resumeID = transferID;
+                final BitSet missing = BitSet.valueOf(bits);
+                this.commit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // valid for content written over this connection only
+                        KEPInMessage.this.se.getContentTransfers().missingChunks(
+                                KEPInMessage.this.con, resumeID, missing);
+                    }
+                });
+            }
+            else if(this.cmd == KEPMessage.KEP_VOCABULARY_RESET) {
+                // remote peer couldn't resolve our vocabulary references
+                final long vocabularyID = this.is.readLong();
+                final int message = this.is.readInt();
+                this.commit(new Runnable() {
+                    @Override
+                    public void run() {
+                        VocabularyCache.Table dropped = 
+                                KEPInMessage.this.se.getVocabularyCache().reset(vocabularyID);
+                        
+                        if(dropped != null) {
+                            Knowledge rejected = dropped.rejected(message);
+                            if(rejected != null) {
+                                KEPInMessage.this.resendRejected(rejected, dropped.getAddress());
+                            }
+                        }
+                    }
+                });
+            }
+            else if(this.cmd == KEPMessage.KEP_VOCABULARY_ACK) {
+                // remote peer has learned our vocabulary table slots
+                final long vocabularyID = this.is.readLong();
+                int number = this.is.readInt();
+                final List<String> refs = new ArrayList<>();
+                for(int i = 0; i < number; i++) {
+                    refs.add(this.is.readUTF8());
+                }
+                this.commit(new Runnable() {
+                    @Override
+                    public void run() {
+                        KEPInMessage.this.se.getVocabularyCache().acknowledged(vocabularyID, refs);
+                    }
+                });
+            }
+            else if(this.cmd == KEPMessage.KEP_SESSION_KEY_ACK) {
+                // remote peer has cached our session key
+                final long keyID = this.is.readLong();
+                this.commit(new Runnable() {
+                    @Override
+                    public void run() {
+                        SessionKeyCache sessionKeys = KEPInMessage.this.se.getSessionKeyCache();
+                        if(sessionKeys != null) {
+                            sessionKeys.confirmed(keyID);
+                        }
+                    }
+                });
+            }
+            else if(this.cmd == KEPMessage.KEP_SESSION_KEY_RESET) {
+                // remote peer doesn't know session key we refered to
+                final long keyID = this.is.readLong();
+                final byte[] nonce = new byte[SessionKeyCache.NONCE_LENGTH];
+                this.readFully(nonce);
+                this.commit(new Runnable() {
+                    @Override
+                    public void run() {
+                        SessionKeyCache sessionKeys = KEPInMessage.this.se.getSessionKeyCache();
+                        if(sessionKeys != null) {
+                            // sent again with a new wrapped key
+                            for(Runnable resend : sessionKeys.reset(keyID, nonce)) {
+                                resend.run();
+                            }
+                        }
+                    }
+                });
+            }
             else if(this.cmd == KEPMessage.KEP_INSERT) {
                 /* 
                  * knowledge is read from string when getKnowledge is called.
                  * Prefetching must only take place if a signature has to be
-                 * verified first.
+                 * verified first. Knowledge stays in this message (quarantine)
+                 * - it isn't passed to any knowledge port before verification
+                 * succeeded. Meanwhile, verifier threads hash the content.
                  */
 
                 if(signed) { // prefetch !
@@ -505,14 +751,15 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
                 // first hang out verifier
                 this.is.set(this.underSigningInputStream);
                 
-                // read length as string
-                String sigLenString = this.is.readUTF8();
-                int sigLen = Integer.parseInt(sigLenString);
+                // read length
+                int sigLen = this.is.readInt();
                 
                 byte[] signature = new byte[sigLen];
-                this.is.getInputStream().read(signature);
+                this.readFully(signature);
                 
-                L.d(L.byteArrayToString(signature, "received signature"), this);
+                if(L.isDebug()) {
+                    L.d(L.byteArrayToString(signature, "received signature"), this);
+                }
                 
                 // verify
                 if(this.sin != null) {
@@ -531,10 +778,31 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
             L.l("wrong signature in KEP message; throw security exception", this);
             throw new SharkSecurityException("wrong signature in KEP message");
         }
+        
+        // message is verified (or unsigned) - apply quarantined changes
+        if(this.quarantined != null) {
+            this.quarantined.run();
+            this.quarantined = null;
+        }
     }
     
     private boolean signatureOK = true;
     
+    /** changes of engine state which wait for signature verification */
+    private Runnable quarantined = null;
+    
+    /**
+     * Changes engine state as requested by remote peer. Changes requested
+     * by a signed message are made after the signature is verified.
+     */
+    private void commit(Runnable change) {
+        if(this.signed) {
+            this.quarantined = change;
+        } else {
+            change.run();
+        }
+    }
+    
     private boolean sendingPropertiesSet = false;
     
     public static void setHiddenProperties(SystemPropertyHolder element, 
@@ -688,6 +956,97 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
         return this.receivedInterest;
     }
 
+    /**
+     * Asks sender of chunked content for missing chunks and sender of
+     * vocabulary references to reset its vocabulary table - or session key.
+     * Learned vocabulary is acknowledged. Requests are sent back over the 
+     * same connection while knowledge is still received.
+     */
+    private class SenderRequests implements ContentTransfers.ResumeListener,
+            VocabularyCache.Listener {
+        
+        @Override
+        public void requestMissingChunks(String transferID, BitSet missing) {
+            try {
+                KEPOutMessage request = KEPInMessage.this.createResponse(null);
+                request.resume(transferID, missing);
+            } catch (Exception ex) {
+                // sender will send whole content
+                L.w("cannot request missing chunks: " + ex.getMessage(), KEPInMessage.this);
+            }
+        }
+
+        @Override
+        public void acknowledgeVocabulary(long id, List<String> refs) {
+            try {
+                KEPOutMessage request = KEPInMessage.this.createResponse(null);
+                request.acknowledgeVocabulary(id, refs);
+            } catch (Exception ex) {
+                // sender keeps on sending those tags in full
+                L.w("cannot acknowledge vocabulary: " + ex.getMessage(), KEPInMessage.this);
+            }
+        }
+
+        @Override
+        public void resetVocabulary(long id, int message) {
+            try {
+                KEPOutMessage request = KEPInMessage.this.createResponse(null);
+                request.resetVocabulary(id, message);
+            } catch (Exception ex) {
+                // sender keeps on refering to that table
+                L.w("cannot request vocabulary reset: " + ex.getMessage(), KEPInMessage.this);
+            }
+        }
+        
+        void confirmSessionKey(long id) {
+            try {
+                KEPOutMessage request = KEPInMessage.this.createResponse(null);
+                request.confirmSessionKey(id);
+            } catch (Exception ex) {
+                // sender keeps on sending wrapped key
+                L.d("cannot confirm session key: " + ex.getMessage(), KEPInMessage.this);
+            }
+        }
+        
+        void resetSessionKey(long id, byte[] nonce) {
+            try {
+                KEPOutMessage request = KEPInMessage.this.createResponse(null);
+                request.resetSessionKey(id, nonce);
+            } catch (Exception ex) {
+                // sender keeps on refering to that key until it expires
+                L.w("cannot request session key reset: " + ex.getMessage(), KEPInMessage.this);
+            }
+        }
+    }
+    
+    private final SenderRequests senderRequests = new SenderRequests();
+
+    /**
+     * Knowledge was rejected by its recipient - send it again in full.
+     * 
+     * @param k
+     * @param address recipient address - used if this message didn't
+     * come over a stream connection
+     */
+    private void resendRejected(Knowledge k, String address) {
+        try {
+            KEPOutMessage response = this.createResponse(new String[] {address});
+            response.insert(k);
+        } catch (Exception ex) {
+            L.w("cannot resend rejected knowledge: " + ex.getMessage(), this);
+        }
+    }
+
+    /**
+     * Sender understands current KEP version - it gets it as well.
+     */
+    private void currentKEPReceived(PeerSemanticTag sender) {
+        if(sender != null && this.currentVersionUnderstood) {
+            
+            this.se.currentKEPReceived(null, sender.getAddresses());
+        }
+    }
+
     /**
      * Parses the <code>Knowledge</code> from the stream.
      * Knowledge is not parsed before this method is called to keep memory usage low.
@@ -697,11 +1056,25 @@ public class KEPInMessage extends KEPMessage implements KEPConnection {
      */
     public Knowledge getKnowledge() throws IOException, SharkKBException {
         if(this.knowledge == null) {
-            this.knowledge = this.ks.parseKnowledge(is);
+            // message is read once - stream is at next message already
+            if(this.rejection != null) {
+                throw this.rejection;
+            }
+            
+            try {
+                this.knowledge = this.ks.parseKnowledge(is, 
+                        this.se.getContentTransfers(), this.senderRequests,
+                        this.se.getVocabularyCache(), this.senderRequests);
+            }
+            catch(SharkKBException e) {
+                this.rejection = e;
+                throw e;
+            }
         }
 
         // set sender as property
         PeerSemanticTag senderPeer = this.getSender();
+        this.currentKEPReceived(senderPeer);
         if(senderPeer != null) {
             String[] senderSI = senderPeer.getSI();
             String senderSIString = Util.array2string(senderSI);
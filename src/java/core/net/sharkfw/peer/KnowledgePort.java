@@ -3,12 +3,14 @@ package net.sharkfw.peer;
 import java.io.IOException;
 import java.security.PrivateKey;
 import java.util.Enumeration;
+import java.util.Set;
 import java.util.Vector;
 import net.sharkfw.kep.KEPStub;
 import net.sharkfw.knowledgeBase.*;
 import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
 import net.sharkfw.kp.KPListener;
 import net.sharkfw.system.L;
+import net.sharkfw.system.Metrics;
 import net.sharkfw.system.SharkSecurityException;
 
 /**
@@ -49,6 +51,7 @@ abstract public class KnowledgePort {
     @SuppressWarnings("unused")
     private PrivateKey privateKey;
     private AccessListManager accessList;
+    private final Object dispatchLock = new Object(); // messages one at a time
 
     /**
      * Section 5.1 requires this constructor
@@ -162,6 +165,34 @@ abstract public class KnowledgePort {
         } catch (SharkKBException ex) {
             this.interest = interest;
         }
+        
+        this.routingChanged();
+    }
+    
+    /**
+     * KEP stub offers a message only to KPs which could share a topic with
+     * it. A KP can only tell that if its reaction depends on a mutual 
+     * interest with the message and if the topics of that mutual interest
+     * must be found in its own topics (subject identifiers). 
+     * 
+     * This implementation returns null: KP gets all messages.
+     * 
+     * @return subject identifiers of topics this KP is interested in or null
+     * if it wants to see messages on any topic
+     * @see #routingChanged() 
+     */
+    public Set<String> getRoutingTopicSIs() {
+        return null;
+    }
+    
+    /**
+     * Must be called if the result of {@link #getRoutingTopicSIs()} 
+     * has changed.
+     */
+    protected void routingChanged() {
+        if(this.kepStub != null) {
+            this.kepStub.listenerChanged(this);
+        }
     }
 
     /** 
@@ -202,7 +233,31 @@ abstract public class KnowledgePort {
      *
      * @param msg Request retrieved by a KEP Stub
      */
-    public synchronized final boolean handleMessage(KEPInMessage msg) {
+    public final boolean handleMessage(KEPInMessage msg) {
+        if(this.isThreadSafe()) {
+            return this.dispatchMessage(msg);
+        }
+        
+        synchronized(this.dispatchLock) {
+            return this.dispatchMessage(msg);
+        }
+    }
+    
+    /**
+     * Stub calls a KP from several threads if messages arrive on several
+     * connections. Calls are serialized by default: A KP handles one message
+     * at a time. KPs sharing a knowledge base rely on its own synchronization.
+     * A KP which can cope with concurrent calls of 
+     * {@link #doInsert(Knowledge, KEPConnection)} and 
+     * {@link #doExpose(SharkCS, KEPConnection)} can overwrite this method.
+     * 
+     * @return true if this KP can handle messages concurrently
+     */
+    protected boolean isThreadSafe() {
+        return false;
+    }
+    
+    private boolean dispatchMessage(KEPInMessage msg) {
         L.d("KP.handleMessage()", this);
         
         // check black-/white list
@@ -252,6 +307,7 @@ abstract public class KnowledgePort {
         // set security setting
         this.se.initSecurity(msg);
         
+        long start = Metrics.start();
         switch (cmd) {
             case KEPInMessage.KEP_INSERT:
                 try {
@@ -259,6 +315,9 @@ abstract public class KnowledgePort {
                 } catch (Exception ex) {
                     L.e("Error while handling insert request:\n" + ex.getMessage(), this);
                 }
+                if(start != 0) {
+                    Metrics.stop("kp." + Metrics.nameOf(this) + ".insert", start);
+                }
                 break;
             case KEPInMessage.KEP_EXPOSE:
                 try {
@@ -266,6 +325,9 @@ abstract public class KnowledgePort {
                 } catch (Exception ex) {
                     L.e("Error while handling expose request:\n" + ex.getMessage(), this);
                 }
+                if(start != 0) {
+                    Metrics.stop("kp." + Metrics.nameOf(this) + ".expose", start);
+                }
                 break;
         }
 
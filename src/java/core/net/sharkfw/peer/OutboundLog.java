@@ -0,0 +1,227 @@
+package net.sharkfw.peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import net.sharkfw.system.L;
+
+/**
+ * Append only file of an {@link OutboundQueue}.
+ *
+ * <p>A queued message is appended once. A sent (or expired) message
+ * appends a short done record. Nothing is rewritten while messages come
+ * and go. Loading the file replays all records - messages without done
+ * record are pending.</p>
+ *
+ * <p>File is compacted if most of its records are done: pending messages
+ * are written to a new file which replaces the old one. A record which
+ * was written partially (e.g. process was killed) is ignored.</p>
+ *
+ * @author thsc
+ */
+public class OutboundLog {
+
+    private static final byte ADDED = 1;
+    private static final byte DONE = 2;
+
+    /**
+     * Don't compact small files
+     */
+    private static final int MIN_COMPACTION_RECORDS = 128;
+
+    private final File file;
+    private DataOutputStream out = null;
+
+    private int pending = 0;
+    private int done = 0;
+
+    /**
+     * @param file log file - created if it doesn't exist
+     */
+    public OutboundLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return pending messages in order they were added
+     * @throws IOException
+     */
+    synchronized List<OutboundQueue.Entry> load() throws IOException {
+        LinkedHashMap<Long, OutboundQueue.Entry> entries = new LinkedHashMap<>();
+        int records = 0;
+
+        if(this.file.exists()) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(this.file)));
+            try {
+                for(;;) {
+                    byte type = in.readByte();
+                    if(type == ADDED) {
+                        OutboundQueue.Entry e = OutboundLog.readEntry(in);
+                        entries.put(e.id, e);
+                    } else if(type == DONE) {
+                        entries.remove(in.readLong());
+                    } else {
+                        L.w("outbound log corrupted - rest of file ignored: " + this.file, this);
+                        break;
+                    }
+                    records++;
+                }
+            }
+            catch(EOFException eof) {
+                // end of file - last record may be incomplete
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        ArrayList<OutboundQueue.Entry> result = new ArrayList<>(entries.values());
+        this.pending = result.size();
+        this.done = records - result.size();
+
+        // start with a clean file - drops done and broken records
+        this.compact(result);
+
+        return result;
+    }
+
+    synchronized void append(OutboundQueue.Entry e) throws IOException {
+        DataOutputStream dos = this.getOutputStream();
+        dos.writeByte(ADDED);
+        OutboundLog.writeEntry(e, dos);
+        dos.flush();
+
+        this.pending++;
+    }
+
+    synchronized void done(long id) throws IOException {
+        DataOutputStream dos = this.getOutputStream();
+        dos.writeByte(DONE);
+        dos.writeLong(id);
+        dos.flush();
+
+        this.done++;
+    }
+
+    /**
+     * @return true if most of the file describes messages which are done
+     */
+    synchronized boolean needsCompaction() {
+        return this.done > MIN_COMPACTION_RECORDS && this.done > 2 * this.pending;
+    }
+
+    /**
+     * Replaces file by one containing only pending messages.
+     *
+     * @param entries pending messages
+     * @throws IOException
+     */
+    synchronized void compact(List<OutboundQueue.Entry> entries) throws IOException {
+        this.close();
+
+        File tmp = new File(this.file.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            for(OutboundQueue.Entry e : entries) {
+                dos.writeByte(ADDED);
+                OutboundLog.writeEntry(e, dos);
+            }
+        }
+        finally {
+            dos.close();
+        }
+
+        // old file is valid until new one is in place
+        Files.move(tmp.toPath(), this.file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        this.pending = entries.size();
+        this.done = 0;
+    }
+
+    /**
+     * Closes file. It is opened again with next record.
+     */
+    public synchronized void close() throws IOException {
+        if(this.out != null) {
+            this.out.close();
+            this.out = null;
+        }
+    }
+
+    private DataOutputStream getOutputStream() throws IOException {
+        if(this.out == null) {
+            this.out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(this.file, true)));
+        }
+
+        return this.out;
+    }
+
+    private static void writeEntry(OutboundQueue.Entry e, DataOutputStream dos) throws IOException {
+        dos.writeLong(e.id);
+        dos.writeLong(e.expires);
+        dos.writeUTF(e.recipientName == null ? "" : e.recipientName);
+        OutboundLog.writeStrings(e.recipientSIs, dos);
+        OutboundLog.writeStrings(e.recipientAddresses, dos);
+        dos.writeByte(e.type);
+        dos.writeInt(e.content.length);
+        dos.write(e.content);
+    }
+
+    private static OutboundQueue.Entry readEntry(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long expires = in.readLong();
+        String name = in.readUTF();
+        String[] sis = OutboundLog.readStrings(in);
+        String[] addresses = OutboundLog.readStrings(in);
+        byte type = in.readByte();
+        int len = in.readInt();
+        if(len < 0) {
+            throw new EOFException("broken record");
+        }
+        byte[] content = new byte[len];
+        in.readFully(content);
+
+        return new OutboundQueue.Entry(id, expires, name, sis, addresses, type, content);
+    }
+
+    private static void writeStrings(String[] strings, DataOutputStream dos) throws IOException {
+        if(strings == null) {
+            dos.writeInt(-1);
+            return;
+        }
+
+        dos.writeInt(strings.length);
+        for(String s : strings) {
+            dos.writeUTF(s == null ? "" : s);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if(n < 0) {
+            return null;
+        }
+
+        String[] strings = new String[n];
+        for(int i = 0; i < n; i++) {
+            strings[i] = in.readUTF();
+        }
+
+        return strings;
+    }
+}
@@ -0,0 +1,523 @@
+package net.sharkfw.peer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.sharkfw.kep.format.XMLSerializer;
+import net.sharkfw.knowledgeBase.Knowledge;
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.SharkCSAlgebra;
+import net.sharkfw.knowledgeBase.SharkKBException;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.protocols.StandardSharkInputStream;
+import net.sharkfw.protocols.UTF8SharkOutputStream;
+import net.sharkfw.system.L;
+
+/**
+ * Messages which couldn't be sent, waiting for another attempt.
+ *
+ * <ul>
+ * <li>Order: Each recipient has a queue of its own. Messages to a recipient
+ * are sent in order of their arrival - a message is not tried before
+ * the ones in front of it are sent (or expired). The engine doesn't send
+ * a new message directly while older ones to that recipient are waiting
+ * (see {@link #isWaiting(PeerSemanticTag)}).</li>
+ * <li>Backoff: A failed attempt delays the next one to that recipient.
+ * Delay doubles with each failure up to <code>maxDelay</code>. Recipients
+ * which are offline for long are tried rarely - there is no resend storm
+ * when a network comes back.</li>
+ * <li>Reachability: A message from a recipient proves it is reachable.
+ * Its queue is tried immediately (see {@link #peerReachable(PeerSemanticTag)}).
+ * Peer sensors can call that method as well.</li>
+ * <li>TTL: Messages are dropped after their time to live.</li>
+ * <li>Persistence: Queue can write its messages to an {@link OutboundLog}.
+ * Messages survive a restart of the engine.</li>
+ * </ul>
+ *
+ * <p>Messages are sent in background by the engine's
+ * {@link AsyncKEPSender} - callers are never blocked by retries.</p>
+ *
+ * @see SharkEngine#setOutboundQueue(OutboundQueue)
+ * @author thsc
+ */
+public class OutboundQueue {
+
+    public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000; // 1 day
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    public static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000; // 5 minutes
+
+    static final byte INTEREST = 0;
+    static final byte KNOWLEDGE = 1;
+    static final byte MESSAGE = 2;
+
+    /**
+     * A message waiting to be sent
+     */
+    static class Entry {
+        final long id;
+        final long expires;
+        final String recipientName;
+        final String[] recipientSIs;
+        final String[] recipientAddresses;
+        final byte type;
+        final byte[] content;
+
+        Entry(long id, long expires, String recipientName, String[] recipientSIs,
+                String[] recipientAddresses, byte type, byte[] content) {
+
+            this.id = id;
+            this.expires = expires;
+            this.recipientName = recipientName;
+            this.recipientSIs = recipientSIs;
+            this.recipientAddresses = recipientAddresses;
+            this.type = type;
+            this.content = content;
+        }
+
+        PeerSemanticTag getRecipient() {
+            return InMemoSharkKB.createInMemoPeerSemanticTag(this.recipientName,
+                    this.recipientSIs, this.recipientAddresses);
+        }
+    }
+
+    /**
+     * Messages to a single recipient
+     */
+    private class RecipientQueue implements Callable<Void> {
+        final String key;
+        final PeerSemanticTag recipient;
+        final LinkedList<Entry> entries = new LinkedList<>();
+
+        int failures = 0;
+        ScheduledFuture<?> nextAttempt = null;
+        boolean sending = false;
+
+        RecipientQueue(String key, PeerSemanticTag recipient) {
+            this.key = key;
+            this.recipient = recipient;
+        }
+
+        /**
+         * Sends messages in order until queue is empty or an attempt fails.
+         */
+        @Override
+        public Void call() {
+            OutboundQueue.this.drain(this);
+            return null;
+        }
+    }
+
+    private final SharkEngine se;
+    private final OutboundLog log;
+
+    private long ttl = DEFAULT_TTL;
+    private long initialDelay = DEFAULT_INITIAL_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+
+    private final ArrayList<RecipientQueue> queues = new ArrayList<>();
+    private long nextId = 0;
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * @param se engine which sends messages
+     * @param log messages are kept in that log - null keeps messages in
+     * memory only
+     * @throws IOException log couldn't be read
+     */
+    public OutboundQueue(SharkEngine se, OutboundLog log) throws IOException {
+        this.se = se;
+        this.log = log;
+
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "OutboundQueue");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if(log != null) {
+            List<Entry> entries = log.load();
+            for(Entry e : entries) {
+                this.nextId = Math.max(this.nextId, e.id + 1);
+                this.add(e);
+            }
+
+            L.d("outbound queue restored messages: " + entries.size(), this);
+        }
+    }
+
+    /**
+     * @param millis time to live of messages queued from now on
+     */
+    public void setTTL(long millis) {
+        this.ttl = millis;
+    }
+
+    /**
+     * @param initialDelay delay after first failed attempt
+     * @param maxDelay delay doubles with each failure up to that value
+     */
+    public synchronized void setBackoff(long initialDelay, long maxDelay) {
+        this.initialDelay = Math.max(1, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+    }
+
+    /**
+     * Queue interest for another attempt.
+     *
+     * @param interest
+     * @param recipient
+     * @return false if message cannot be queued, e.g. recipient has no
+     * address
+     */
+    public boolean add(SharkCS interest, PeerSemanticTag recipient) {
+        try {
+            byte[] content = this.getSerializer().serializeSharkCS(interest).getBytes("UTF-8");
+            return this.add(INTEREST, content, recipient);
+        } catch (SharkKBException ex) {
+            L.w("cannot serialize unsent interest: " + ex.getMessage(), this);
+        } catch (IOException ex) {
+            L.w("cannot queue unsent interest: " + ex.getMessage(), this);
+        }
+
+        return false;
+    }
+
+    /**
+     * Queue knowledge for another attempt.
+     *
+     * @param k
+     * @param recipient
+     * @return false if message cannot be queued, e.g. recipient has no
+     * address
+     */
+    public boolean add(Knowledge k, PeerSemanticTag recipient) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            this.getSerializer().write(k, new UTF8SharkOutputStream(baos));
+            return this.add(KNOWLEDGE, baos.toByteArray(), recipient);
+        } catch (SharkKBException ex) {
+            L.w("cannot serialize unsent knowledge: " + ex.getMessage(), this);
+        } catch (IOException ex) {
+            L.w("cannot queue unsent knowledge: " + ex.getMessage(), this);
+        }
+
+        return false;
+    }
+
+    /**
+     * Queue a message which a message stub couldn't deliver, e.g. part of
+     * a failed mail batch.
+     *
+     * @param msg message as handed to the stub
+     * @param recAddress
+     * @return false if message cannot be queued
+     * @see SharkEngine#resendMessage(byte[], String)
+     */
+    public boolean add(byte[] msg, String recAddress) {
+        try {
+            PeerSemanticTag recipient = InMemoSharkKB.createInMemoPeerSemanticTag(
+                    recAddress, (String[]) null, new String[] {recAddress});
+
+            return this.add(MESSAGE, msg, recipient);
+        } catch (IOException ex) {
+            L.w("cannot queue undelivered message: " + ex.getMessage(), this);
+        }
+
+        return false;
+    }
+
+    private boolean add(byte type, byte[] content, PeerSemanticTag recipient) throws IOException {
+        ArrayList<String> addressList = new ArrayList<>();
+        if(recipient.getAddresses() != null) {
+            for(String address : recipient.getAddresses()) {
+                if(address != null && address.length() > 0) {
+                    addressList.add(address);
+                }
+            }
+        }
+
+        String[] addresses = addressList.toArray(new String[addressList.size()]);
+        if(addresses.length == 0) {
+            L.w("recipient has no address - message dropped", this);
+            return false;
+        }
+
+        synchronized(this) {
+            Entry e = new Entry(this.nextId++, System.currentTimeMillis() + this.ttl,
+                    recipient.getName(), recipient.getSI(), addresses, type, content);
+
+            if(this.log != null) {
+                this.log.append(e);
+            }
+
+            this.add(e);
+        }
+
+        return true;
+    }
+
+    private synchronized void add(Entry e) {
+        RecipientQueue queue = this.getQueue(e.getRecipient(), true);
+        queue.entries.add(e);
+
+        if(!queue.sending && queue.nextAttempt == null) {
+            this.schedule(queue, queue.failures == 0 ? 0 : this.getDelay(queue));
+        }
+    }
+
+    /**
+     * Recipient is reachable (e.g. it just sent a message). Its messages
+     * are tried immediately.
+     *
+     * @param peer
+     */
+    public synchronized void peerReachable(PeerSemanticTag peer) {
+        if(peer == null) {
+            return;
+        }
+
+        RecipientQueue queue = this.getQueue(peer, false);
+        if(queue == null || queue.sending) {
+            return;
+        }
+
+        queue.failures = 0;
+        if(queue.nextAttempt != null) {
+            queue.nextAttempt.cancel(false);
+        }
+        this.schedule(queue, 0);
+    }
+
+    /**
+     * @param peer
+     * @return true if messages to that peer are waiting - new ones are
+     * queued behind them
+     */
+    public synchronized boolean isWaiting(PeerSemanticTag peer) {
+        if(peer == null) {
+            return false;
+        }
+
+        RecipientQueue queue = this.getQueue(peer, false);
+        return queue != null && !queue.entries.isEmpty();
+    }
+
+    /**
+     * @return failed attempts since last message to that peer was sent
+     */
+    synchronized int getFailures(PeerSemanticTag peer) {
+        RecipientQueue queue = this.getQueue(peer, false);
+        return queue == null ? 0 : queue.failures;
+    }
+
+    /**
+     * All waiting messages are tried immediately.
+     */
+    public synchronized void retryAll() {
+        for(RecipientQueue queue : this.queues) {
+            if(!queue.sending) {
+                if(queue.nextAttempt != null) {
+                    queue.nextAttempt.cancel(false);
+                }
+                this.schedule(queue, 0);
+            }
+        }
+    }
+
+    /**
+     * @return number of messages waiting
+     */
+    public synchronized int size() {
+        int n = 0;
+        for(RecipientQueue queue : this.queues) {
+            n += queue.entries.size();
+        }
+
+        return n;
+    }
+
+    /**
+     * Drop all waiting messages
+     */
+    public synchronized void clear() throws IOException {
+        for(RecipientQueue queue : this.queues) {
+            if(queue.nextAttempt != null) {
+                queue.nextAttempt.cancel(false);
+            }
+            queue.entries.clear();
+        }
+        this.queues.clear();
+
+        if(this.log != null) {
+            this.log.compact(new ArrayList<Entry>());
+        }
+    }
+
+    private RecipientQueue getQueue(PeerSemanticTag recipient, boolean create) {
+        for(RecipientQueue queue : this.queues) {
+            if(OutboundQueue.samePeer(queue.recipient, recipient)) {
+                return queue;
+            }
+        }
+
+        if(!create) {
+            return null;
+        }
+
+        RecipientQueue queue = new RecipientQueue(SharkEngine.getPeerKey(recipient), recipient);
+        this.queues.add(queue);
+
+        return queue;
+    }
+
+    /**
+     * Peers are identified by subject identifiers. Peers without any
+     * are compared by addresses.
+     */
+    private static boolean samePeer(PeerSemanticTag a, PeerSemanticTag b) {
+        if(!SharkCSAlgebra.isAny(a) && !SharkCSAlgebra.isAny(b)) {
+            return SharkCSAlgebra.identical(a, b);
+        }
+
+        String[] addrA = a.getAddresses();
+        String[] addrB = b.getAddresses();
+        return addrA != null && addrB != null 
+                && SharkCSAlgebra.identical(addrA, addrB);
+    }
+
+    private long getDelay(RecipientQueue queue) {
+        long delay = this.initialDelay;
+        for(int i = 1; i < queue.failures && delay < this.maxDelay; i++) {
+            delay *= 2;
+        }
+
+        return Math.min(delay, this.maxDelay);
+    }
+
+    private void schedule(final RecipientQueue queue, long delay) {
+        queue.nextAttempt = this.timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(OutboundQueue.this) {
+                    if(queue.sending) {
+                        return;
+                    }
+                    queue.sending = true;
+                    queue.nextAttempt = null;
+                }
+
+                // messages to same recipient are sent in order by sender
+                OutboundQueue.this.se.getAsyncSender().send(queue.key, queue);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain(RecipientQueue queue) {
+        for(;;) {
+            Entry e;
+            synchronized(this) {
+                e = queue.entries.peek();
+                if(e == null) {
+                    queue.sending = false;
+                    queue.failures = 0;
+                    this.queues.remove(queue);
+                    return;
+                }
+            }
+
+            boolean done;
+            if(e.expires < System.currentTimeMillis()) {
+                L.d("unsent message expired - dropped", this);
+                done = true;
+            } else {
+                done = this.send(e, queue.recipient);
+            }
+
+            if(!done) {
+                synchronized(this) {
+                    queue.failures++;
+                    queue.sending = false;
+                    this.schedule(queue, this.getDelay(queue));
+                }
+                return;
+            }
+
+            synchronized(this) {
+                queue.entries.remove(e);
+
+                if(this.log != null) {
+                    try {
+                        this.log.done(e.id);
+                        if(this.log.needsCompaction()) {
+                            this.log.compact(this.pending());
+                        }
+                    } catch (IOException ex) {
+                        L.w("cannot write outbound log: " + ex.getMessage(), this);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Entry> pending() {
+        ArrayList<Entry> entries = new ArrayList<>();
+        for(RecipientQueue queue : this.queues) {
+            entries.addAll(queue.entries);
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return true if message was sent
+     */
+    private boolean send(Entry e, PeerSemanticTag recipient) {
+        try {
+            if(e.type == MESSAGE) {
+                return this.se.resendMessage(e.content, e.recipientAddresses[0]);
+            }
+
+            SharkCS interest = null;
+            Knowledge k = null;
+            if(e.type == INTEREST) {
+                interest = this.getSerializer().deserializeSharkCS(new String(e.content, "UTF-8"));
+            } else {
+                k = this.getSerializer().parseKnowledge(
+                        new StandardSharkInputStream(new ByteArrayInputStream(e.content)));
+            }
+
+            return this.se.sendQueued(interest, k, recipient);
+        }
+        catch(Exception ex) {
+            L.d("sending queued message failed: " + ex.getMessage(), this);
+            return false;
+        }
+    }
+
+    /**
+     * Serializer keeps state while parsing - each thread needs its own.
+     */
+    private XMLSerializer getSerializer() {
+        return new XMLSerializer();
+    }
+
+    /**
+     * No further attempts. Messages are kept in log.
+     */
+    public void shutdown() {
+        this.timer.shutdownNow();
+    }
+}
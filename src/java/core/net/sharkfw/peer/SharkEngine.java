@@ -5,10 +5,19 @@ import java.io.OutputStream;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.sharkfw.kep.*;
 import net.sharkfw.kep.format.XMLSerializer;
 import net.sharkfw.knowledgeBase.*;
@@ -18,7 +27,9 @@ import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
 import net.sharkfw.pki.SharkPublicKeyStorage;
 import net.sharkfw.protocols.*;
 import net.sharkfw.system.EnumerationChain;
+import net.sharkfw.system.Gauge;
 import net.sharkfw.system.L;
+import net.sharkfw.system.Metrics;
 import net.sharkfw.system.SharkException;
 import net.sharkfw.system.SharkNotSupportedException;
 import net.sharkfw.system.SharkSecurityException;
@@ -44,6 +55,11 @@ import net.sharkfw.system.Util;
  */
 abstract public class SharkEngine implements WhiteAndBlackListManager {
 
+    /**
+     * Stream addresses of a peer which are tried in parallel by default
+     */
+    public static final int DEFAULT_RACE_WIDTH = 2;
+
     // security settings
     private PrivateKey privateKey = null;
     private PeerSemanticTag engineOwnerPeer;
@@ -79,6 +95,22 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
      * in <code>KnowledgePort</code>s.
      */
     protected Vector<KnowledgePort> kps;
+    /**
+     * Queues and sends messages of the asynchronous send methods.
+     */
+    private final AsyncKEPSender asyncSender = new AsyncKEPSender();
+    /**
+     * Observed quality of peer addresses - used to order them.
+     */
+    private final AddressStatistics addressStatistics = new AddressStatistics();
+    /**
+     * Connects to best of several stream addresses.
+     */
+    private final ConnectionRacer connectionRacer = new ConnectionRacer(this.addressStatistics);
+    /**
+     * Stream addresses which are tried in parallel
+     */
+    private int raceWidth = DEFAULT_RACE_WIDTH;
     /**
      * Storage for opened stubs to certain underlying protocols.
      */
@@ -120,6 +152,82 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
         //this.environment = this.kepStub.getEnvironment();
     }
 
+    private static final AtomicInteger engineCounter = new AtomicInteger();
+    
+    private final String metricsPrefix = "engine." + engineCounter.incrementAndGet() + ".";
+    private boolean gaugesRegistered = false;
+    
+    /**
+     * @return names of gauges of this engine start with that prefix,
+     * e.g. <code>engine.1.</code>
+     */
+    public String getMetricsPrefix() {
+        return this.metricsPrefix;
+    }
+    
+    /**
+     * Queue depths of this engine are part of {@link Metrics} while
+     * a protocol is running. Gauges are removed when the last protocol
+     * stops - metrics don't keep stopped engines alive.
+     */
+    private synchronized void updateGauges() {
+        boolean running = false;
+        for(Stub stub : this.protocolStubs) {
+            if(stub != null) {
+                running = true;
+            }
+        }
+        
+        if(running == this.gaugesRegistered) {
+            return;
+        }
+        
+        this.gaugesRegistered = running;
+        if(!running) {
+            Metrics.unregisterGauge(this.metricsPrefix + "kep.sessions");
+            Metrics.unregisterGauge(this.metricsPrefix + "kep.sessionsRejected");
+            Metrics.unregisterGauge(this.metricsPrefix + "asyncSender.waiting");
+            Metrics.unregisterGauge(this.metricsPrefix + "outboundQueue.size");
+            return;
+        }
+        
+        Metrics.registerGauge(this.metricsPrefix + "kep.sessions", new Gauge() {
+            @Override
+            public long getValue() {
+                KEPSessionExecutor executor = SharkEngine.this.getSessionExecutor();
+                return executor == null ? 0 : executor.getNumberSessions();
+            }
+        });
+
+        Metrics.registerGauge(this.metricsPrefix + "kep.sessionsRejected", new Gauge() {
+            @Override
+            public long getValue() {
+                KEPSessionExecutor executor = SharkEngine.this.getSessionExecutor();
+                return executor == null ? 0 : executor.getNumberRejected();
+            }
+        });
+
+        Metrics.registerGauge(this.metricsPrefix + "asyncSender.waiting", new Gauge() {
+            @Override
+            public long getValue() {
+                return SharkEngine.this.asyncSender.getNumberWaiting();
+            }
+        });
+
+        Metrics.registerGauge(this.metricsPrefix + "outboundQueue.size", new Gauge() {
+            @Override
+            public long getValue() {
+                OutboundQueue queue = SharkEngine.this.outboundQueue;
+                return queue == null ? 0 : queue.size();
+            }
+        });
+    }
+    
+    private KEPSessionExecutor getSessionExecutor() {
+        KEPStub stub = this.kepStub;
+        return stub == null ? null : stub.getSessionExecutor();
+    }
+
     /**
      * TODO: Pr�fen, ob wir finalize() noch brauchen
      */
@@ -138,6 +246,8 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
         } else {
             throw new SharkProtocolNotSupportedException("unknown protocol number: " + type);
         }
+        
+        this.updateGauges();
     }
     
     protected final void removeProtocolStub(int type) throws SharkProtocolNotSupportedException {
@@ -151,6 +261,8 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
         } else {
             throw new SharkProtocolNotSupportedException("unknown protocol number: " + type);
         }
+        
+        this.updateGauges();
     }
     
     public Stub getProtocolStub(int type) throws SharkProtocolNotSupportedException {
@@ -729,6 +841,49 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
     public void setConnectionTimeOut(long millis) {
         this.kepSessionTimeOut = millis;
     }
+    
+    private final long[] idleTimeOuts = SharkEngine.unsetIdleTimeOuts();
+    
+    private static long[] unsetIdleTimeOuts() {
+        long[] timeOuts = new long[Protocols.NUMBERPROTOCOLS];
+        Arrays.fill(timeOuts, -1);
+        return timeOuts;
+    }
+    
+    /**
+     * Set how long a KEP session keeps an incoming connection of that 
+     * protocol open after a message. Session handles the next message as
+     * soon as it arrives and closes the connection if nothing arrived
+     * within that time. 0 closes a connection after each message (no 
+     * keep alive). The selector based TCP stub takes the TCP value when it
+     * is created.
+     * 
+     * <p>Outgoing connections are pooled for reuse (see 
+     * {@link StreamConnectionPool#setKeepAlive(long)}). Keep alive
+     * should be below the idle timeout of remote peers.</p>
+     * 
+     * @param protocol e.g. {@link Protocols#TCP}
+     * @param millis idle timeout, negative value for connection timeout
+     * @see #setConnectionTimeOut(long) 
+     */
+    public void setIdleTimeout(int protocol, long millis) {
+        this.idleTimeOuts[protocol] = millis;
+    }
+    
+    /**
+     * @param protocol
+     * @return idle timeout of connections of that protocol - connection
+     * timeout if none was set
+     * @see #setIdleTimeout(int, long) 
+     */
+    public long getIdleTimeout(int protocol) {
+        if(protocol >= 0 && protocol < this.idleTimeOuts.length 
+                && this.idleTimeOuts[protocol] >= 0) {
+            return this.idleTimeOuts[protocol];
+        }
+        
+        return this.getConnectionTimeOut();
+    }
 
     /**
      * Return whether or not the SharkEngine has any open communication stubs.
@@ -780,15 +935,127 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
     }
     
     public void sendInterest(SharkCS interest, PeerSemanticTag recipient, KnowledgePort kp) throws SharkSecurityException, SharkKBException, IOException {
-        this.sendKEPCommand(interest, null, kp, recipient);
+        this.sendOrRemember(interest, null, kp, recipient);
     }
     
     public void sendKnowledge(Knowledge k, PeerSemanticTag recipient, KnowledgePort kp) throws SharkSecurityException, SharkKBException, IOException {
-        this.sendKEPCommand(null, k, kp, recipient);
+        this.sendOrRemember(null, k, kp, recipient);
+    }
+    
+    /**
+     * Message which couldn't be sent to any address of recipient is 
+     * remembered for another attempt. Message is queued right away if 
+     * older messages to that recipient are still waiting - it must not
+     * overtake them.
+     */
+    private void sendOrRemember(SharkCS interest, Knowledge k, KnowledgePort kp, PeerSemanticTag recipient) throws SharkSecurityException, SharkKBException, IOException {
+        OutboundQueue queue = this.outboundQueue;
+        if((queue == null || !queue.isWaiting(recipient))
+                && this.sendKEPCommand(interest, k, kp, recipient)) {
+            
+            return;
+        }
+        
+        if(interest != null) {
+            this.rememberUnsentInterest(interest, recipient);
+        }
+        
+        if(k != null) {
+            this.rememberUnsentKnowledge(k, recipient);
+        }
     }
 
-    @SuppressWarnings("unused")
-    private void sendKEPCommand(SharkCS interest, Knowledge k, KnowledgePort kp, PeerSemanticTag recipient) throws SharkSecurityException, SharkKBException, IOException {
+    /**
+     * Like {@link #publishKP(KnowledgePort, PeerSemanticTag)} but returns
+     * immediately. 
+     * 
+     * @param kp
+     * @param recipient
+     * @return future of that message
+     * @see #getAsyncSender() 
+     */
+    public Future<Void> publishKPAsync(KnowledgePort kp, PeerSemanticTag recipient) {
+        return this.sendInterestAsync(kp.getInterest(), recipient, kp);
+    }
+    
+    /**
+     * Like {@link #sendInterest(SharkCS, PeerSemanticTag, KnowledgePort)} but
+     * returns immediately. Messages to the same peer are sent in order of 
+     * calls.
+     * 
+     * @param interest
+     * @param recipient
+     * @param kp
+     * @return future of that message
+     * @see #getAsyncSender() 
+     */
+    public Future<Void> sendInterestAsync(SharkCS interest, PeerSemanticTag recipient, KnowledgePort kp) {
+        return this.sendKEPCommandAsync(interest, null, kp, recipient);
+    }
+    
+    /**
+     * Like {@link #sendKnowledge(Knowledge, PeerSemanticTag, KnowledgePort)} but
+     * returns immediately. Messages to the same peer are sent in order of 
+     * calls.
+     * 
+     * @param k
+     * @param recipient
+     * @param kp
+     * @return future of that message
+     * @see #getAsyncSender() 
+     */
+    public Future<Void> sendKnowledgeAsync(Knowledge k, PeerSemanticTag recipient, KnowledgePort kp) {
+        return this.sendKEPCommandAsync(null, k, kp, recipient);
+    }
+    
+    private Future<Void> sendKEPCommandAsync(final SharkCS interest, final Knowledge k, 
+            final KnowledgePort kp, final PeerSemanticTag recipient) {
+        
+        // same key as retries of queued messages to that peer
+        return this.asyncSender.send(SharkEngine.getPeerKey(recipient), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                SharkEngine.this.sendOrRemember(interest, k, kp, recipient);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Peers are identified by their first subject identifier - by their
+     * first address if they have none.
+     * 
+     * @param peer
+     * @return key of messages to that peer in asynchronous sender
+     */
+    static String getPeerKey(PeerSemanticTag peer) {
+        String[] sis = peer.getSI();
+        if(sis != null && sis.length > 0 && sis[0] != null) {
+            return sis[0];
+        }
+        
+        String[] addresses = peer.getAddresses();
+        if(addresses != null && addresses.length > 0 && addresses[0] != null) {
+            return addresses[0];
+        }
+        
+        return "";
+    }
+    
+    /**
+     * Sender of all asynchronous messages of this engine. Its number of
+     * peers served in parallel can be changed.
+     * 
+     * @return 
+     */
+    public AsyncKEPSender getAsyncSender() {
+        return this.asyncSender;
+    }
+
+    /**
+     * @return true if message was sent
+     */
+    private boolean sendKEPCommand(SharkCS interest, Knowledge k, KnowledgePort kp, PeerSemanticTag recipient) throws SharkSecurityException, SharkKBException, IOException {
         L.d("Send KEP command to recipient: >>>>>>>>>>>\n", this);
         
         // See if a response has been sent yet
@@ -801,27 +1068,33 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
 
         if (addresses == null) {
             L.e("KP cannot send KEP message: No address in remote peer dimension in interest and no address set in publish found. Aborting.", this);
-            return;
+            return false;
         }
 
-        KEPOutMessage response = this.createKEPOutMessage(addresses, recipient);
+        KEPOutMessage response = this.createKEPOutMessage(addresses, recipient, true);
 
         if (response != null) {
             // Response could be created
 
             try {
-                // send interest
-                if(interest != null) {
-                    response.expose(interest);
-                }
-
-                // send knowledge
-                if(k != null) {
-                    response.insert(k);
-                }
+                this.writeKEPCommand(response, interest, k, kp, recipient);
             }
             catch(IOException e) {
-                throw new SharkKBException(e.getMessage());
+                if(!response.isReusedConnection() || response.responseSent()) {
+                    throw new SharkKBException(e.getMessage());
+                }
+                
+                // pooled connection was stale - try once on a new one
+                L.d("pooled connection failed - retry on new connection: " + e.getMessage(), this);
+                response = this.createKEPOutMessage(addresses, recipient, false);
+                if(response != null) {
+                    try {
+                        this.writeKEPCommand(response, interest, k, kp, recipient);
+                    }
+                    catch(IOException ex) {
+                        throw new SharkKBException(ex.getMessage());
+                    }
+                }
             }
         }
 
@@ -831,6 +1104,30 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
         }
 
         L.d("<<<<<<<<<<<<<<<<<< End sending knowledge or interest to recipient", this);
+        
+        return sent;
+    }
+    
+    private void writeKEPCommand(KEPOutMessage response, final SharkCS interest, 
+            final Knowledge k, final KnowledgePort kp, final PeerSemanticTag recipient) throws IOException {
+        
+        // recipient might have lost session key - send it again with a new one
+        response.setResend(new Runnable() {
+            @Override
+            public void run() {
+                SharkEngine.this.sendKEPCommandAsync(interest, k, kp, recipient);
+            }
+        });
+        
+        // send interest
+        if(interest != null) {
+            response.expose(interest);
+        }
+
+        // send knowledge
+        if(k != null) {
+            response.insert(k);
+        }
     }
     
     /**
@@ -839,7 +1136,9 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
      * is taken.
      * 
      * This method puts stream addresses up. More concret: TCP comes first, than
-     * HTTP, than mail, anything else afterwords.
+     * HTTP, than mail, anything else afterwords. Addresses of same kind are
+     * ordered by their observed quality (see {@link #getAddressStatistics()}).
+     * Addresses which failed recently come last.
      * 
      * @param addresses
      * @return 
@@ -849,32 +1148,84 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
             return null;
         }
         
-        String[] orderedAddresses = new String[addresses.length];
+        // rate once - statistics can change while sorting
+        final double[] scores = this.addressStatistics.score(addresses);
+        Integer[] order = new Integer[addresses.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
         
-        // make a copy first
-        System.arraycopy(addresses, 0, orderedAddresses, 0, addresses.length);
-
-        // bubble sort
-        boolean changed;
-        do {
-            changed = false;
-            String temp;
-            for(int i = 0; i < orderedAddresses.length-1; i++) {
-                int j = i+1;
+        final String[] addrs = addresses;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                boolean aSuspended = scores[a] < 0;
+                boolean bSuspended = scores[b] < 0;
+                if(aSuspended != bSuspended) {
+                    return aSuspended ? 1 : -1;
+                }
                 
-                if(this.better(orderedAddresses[j], orderedAddresses[i])) {
-                    // lower address has "better" address - bubble!
-                    temp = orderedAddresses[i];
-                    orderedAddresses[i] = orderedAddresses[j];
-                    orderedAddresses[j] = temp;
-                    changed = true;
+                if(SharkEngine.this.better(addrs[a], addrs[b])) {
+                    return -1;
+                }
+                if(SharkEngine.this.better(addrs[b], addrs[a])) {
+                    return 1;
                 }
+                
+                return Double.compare(scores[b], scores[a]);
             }
-        } while(changed);
+        });
+        
+        String[] orderedAddresses = new String[addresses.length];
+        for(int i = 0; i < order.length; i++) {
+            orderedAddresses[i] = addresses[order[i]];
+        }
         
         return orderedAddresses;
     }
     
+    /**
+     * Each connect attempt is recorded. Statistics are used to order
+     * addresses of a peer.
+     * 
+     * @return statistics of addresses this engine tried to connect to
+     */
+    public AddressStatistics getAddressStatistics() {
+        return this.addressStatistics;
+    }
+    
+    /**
+     * A peer can have several stream addresses. If first one doesn't
+     * answer within <code>stagger</code> ms next one is tried in parallel.
+     * First connection is used.
+     * 
+     * @param width number of stream addresses tried in parallel - 1 tries
+     * addresses one after another
+     * @param stagger ms an address is waited for before next one is tried
+     */
+    public void setAddressRacing(int width, long stagger) {
+        this.raceWidth = Math.max(1, width);
+        this.connectionRacer.setStagger(stagger);
+    }
+    
+    /**
+     * @return stream stub of that address or null if it isn't a stream
+     * address or no stub is running
+     */
+    private StreamStub getStreamStub(String address) {
+        try {
+            Stub stub = this.getStub(address);
+            if(stub instanceof StreamStub) {
+                return (StreamStub) stub;
+            }
+        }
+        catch(SharkProtocolNotSupportedException e) {
+            // no stream
+        }
+        
+        return null;
+    }
+    
     /**
      * Defines if address A or B is "better". This implementation
      * is pretty simple: stream protocols are better than message based
@@ -903,10 +1254,11 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
      * Creates a new KEPOutMessage without security initialization.
      * 
      * @param addresses
+     * @param reuse false if a new connection is to be opened even if
+     * there is a pooled one
      * @return 
      */
-    @SuppressWarnings("rawtypes")
-    private KEPOutMessage createKEPOutMessage(String[] addresses) {
+    private KEPOutMessage createKEPOutMessage(String[] addresses, boolean reuse) {
         KEPOutMessage response = null;
         MessageStub mStub;
         StreamStub sStub;
@@ -919,11 +1271,13 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
         // sort addresses first
         addresses = this.prioritizeAddresses(addresses);
 
-        Enumeration addrEnum = Util.array2Enum(addresses);
-        while (addrEnum.hasMoreElements()) {            
-            String address = (String) addrEnum.nextElement();
+        int next;
+        for (int i = 0; i < addresses.length; i = next) {
+            String address = addresses[i];
+            next = i + 1;
             L.d("sendInterest: try address:"+address, this);
-            //boolean fromPool = false;
+            boolean fromPool = false;
+            sConn = null;
             try {
                 /*
                  * Check if stub is available
@@ -937,18 +1291,40 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
                  */
                 if (protocolStub instanceof StreamStub) {
                     sStub = (StreamStub) protocolStub;
-                    //        sConn = this.kepStub.getConnectionByAddress(address);
-                    //      if(sConn == null) {
-                    try {
-                        sConn = sStub.createStreamConnection(address);
+                    // reuse an open connection if any
+                    if(reuse) {
+                        sConn = this.kepStub.getConnectionByAddress(address);
                     }
-                    catch(RuntimeException re) {
-                        throw new SharkException(re.getMessage());
+                    if(sConn == null) {
+                        // race following stream addresses against this one
+                        List<String> candidates = new ArrayList<>();
+                        List<StreamStub> stubs = new ArrayList<>();
+                        candidates.add(address);
+                        stubs.add(sStub);
+                        while(next < addresses.length && candidates.size() < this.raceWidth) {
+                            StreamStub nextStub = this.getStreamStub(addresses[next]);
+                            if(nextStub == null || (reuse && this.kepStub.getConnectionByAddress(addresses[next]) != null)) {
+                                break;
+                            }
+                            candidates.add(addresses[next]);
+                            stubs.add(nextStub);
+                            next++;
+                        }
+                        
+                        ConnectionRacer.Connected connected = this.connectionRacer.connect(candidates, stubs);
+                        if(connected == null) {
+                            throw new IOException("cannot connect to " + candidates);
+                        }
+                        
+                        address = connected.address;
+                        sConn = connected.connection;
+                        this.kepStub.addConnection(address, sConn);
+                    } else {
+                        L.d("reuse pooled connection to: " + address, this);
+                        fromPool = true;
                     }
-                    //    } else {
-                    //  fromPool = true;
-                    //  }
                     response = new KEPOutMessage(this, sConn, KEPMessage.getKnowledgeSerializer(this.kFormat));
+                    response.setReusedConnection(fromPool);
                 } else {
                     mStub = (MessageStub) protocolStub;
                     response = new KEPOutMessage(this, mStub, KEPMessage.getKnowledgeSerializer(this.kFormat), address);
@@ -965,12 +1341,10 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
                 L.e(spn.getMessage(), this);
 //                spn.printStackTrace();
                 continue;
-            } catch(SharkException sse) {
-                L.w("cannot create KEP message: " + sse.getMessage(), this);
-                continue;
             }
 
-            if (sConn != null /*&& !fromPool*/) {
+            // a pooled connection has its session already
+            if (sConn != null && !fromPool) {
                 this.kepStub.handleStream(sConn);
             }
             
@@ -987,8 +1361,8 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
      * Create a KEP message that shall be send to on (!) of those addresses
      * @return 
      */
-    private KEPOutMessage createKEPOutMessage(String[] addresses, PeerSemanticTag recipient) throws SharkSecurityException, SharkKBException {
-        KEPOutMessage response = this.createKEPOutMessage(addresses);
+    private KEPOutMessage createKEPOutMessage(String[] addresses, PeerSemanticTag recipient, boolean reuse) throws SharkSecurityException, SharkKBException {
+        KEPOutMessage response = this.createKEPOutMessage(addresses, reuse);
 
         if(response != null) {
             this.initSecurity(response, recipient);
@@ -1017,7 +1391,7 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
                     this.getKnowledgeSerializer());
         }
         else { // there is no open connection
-            response = this.createKEPOutMessage(addresses);
+            response = this.createKEPOutMessage(addresses, true);
         }
         
         if(response == null) {
@@ -1241,6 +1615,51 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
 
     }
 
+    /**
+     * Like {@link #publishKP(KnowledgePort)} but returns immediately. 
+     * Interest is sent to all remote peers in parallel.
+     * 
+     * @param kp
+     * @return futures of all messages
+     */
+    public List<Future<Void>> publishKPAsync(KnowledgePort kp) {
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        
+        SharkCS interest = kp.getInterest();
+        if (interest == null) {
+            return futures;
+        }
+        
+        try {
+            PeerSTSet recipients = (PeerSTSet) interest.getSTSet(SharkCS.DIM_REMOTEPEER);
+            Enumeration<SemanticTag> recipientTags = recipients.tags();
+            while (recipientTags != null && recipientTags.hasMoreElements()) {
+                PeerSemanticTag ropst = (PeerSemanticTag) recipientTags.nextElement();
+                futures.add(this.publishKPAsync(kp, ropst));
+            }
+        } catch (SharkKBException ex) {
+            L.e(ex.getMessage(), this);
+        }
+        
+        return futures;
+    }
+    
+    /**
+     * Like {@link #publishAllKP()} but returns immediately.
+     * 
+     * @return futures of all messages
+     */
+    public List<Future<Void>> publishAllKPAsync() {
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        
+        Enumeration<KnowledgePort> kpEnum = this.kps.elements();
+        while (kpEnum.hasMoreElements()) {
+            futures.addAll(this.publishKPAsync(kpEnum.nextElement()));
+        }
+        
+        return futures;
+    }
+
     public void publishAllKP(PeerSemanticTag recipient) throws SharkSecurityException, SharkKBException, IOException {
         L.d("Publishing all KPs", this);
 
@@ -1424,10 +1843,172 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
         return this.allowEmptyContextPoints;
     }
     
+    /**
+     * Peers running older framework versions only understand KEP 1.0 which 
+     * transmits numbers as strings. That's why KEP messages are sent in 
+     * KEP 1.0 format by default. Those messages announce that this engine
+     * understands the current version ({@link KEPMessage#VERSION_1_0_UPGRADE}).
+     * A peer which has sent a message in the current KEP version or has 
+     * announced to understand it gets the current version as well - over 
+     * the same connection and to its addresses. Clear this flag if any peer 
+     * is known to understand the current version. Incoming messages are 
+     * understood in any case.
+     * 
+     * @param legacy false if messages are to be sent in the current KEP 
+     * version to any peer
+     * @see #getKEPVersion(StreamConnection, String) 
+     */
+    public void setLegacyKEPFormat(boolean legacy) {
+        this.legacyKEPFormat = legacy;
+    }
+    
+    public boolean getLegacyKEPFormat() {
+        return this.legacyKEPFormat;
+    }
+    
+    /**
+     * A message in the current KEP version or a message which announced
+     * it was received.
+     * 
+     * @param con connection which it was received from - can be null
+     * @param addresses addresses of sender - can be null
+     */
+    public void currentKEPReceived(StreamConnection con, String[] addresses) {
+        synchronized(this.currentKEPPeers) {
+            if(con != null) {
+                this.currentKEPConnections.put(con, Boolean.TRUE);
+            }
+            
+            if(addresses != null) {
+                for(String address : addresses) {
+                    this.currentKEPPeers.put(address, Boolean.TRUE);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param con connection a message is sent over - can be null
+     * @param address recipient address - can be null
+     * @return KEP version of a message to that recipient
+     */
+    public String getKEPVersion(StreamConnection con, String address) {
+        if(!this.legacyKEPFormat) {
+            return KEPMessage.THISVERSION;
+        }
+        
+        synchronized(this.currentKEPPeers) {
+            if((con != null && this.currentKEPConnections.containsKey(con))
+                    || (address != null && this.currentKEPPeers.containsKey(address))) {
+                
+                return KEPMessage.THISVERSION;
+            }
+        }
+        
+        return KEPMessage.VERSION_1_0;
+    }
+    
+    /**
+     * Content of encrypted messages is encrypted and authenticated 
+     * with AES-GCM in chunks by default. Older framework versions only
+     * understand block by block encryption. Set this flag if such peers 
+     * are to be reached. Incoming messages are understood in any case.
+     * 
+     * @param legacy true if content is to be encrypted block by block
+     */
+    public void setLegacyEncryption(boolean legacy) {
+        this.legacyEncryption = legacy;
+    }
+    
+    public boolean getLegacyEncryption() {
+        return this.legacyEncryption;
+    }
+    
+    /**
+     * Information content is sent in chunks (since KEP 1.1). Chunks of 
+     * interrupted transfers are kept and only missing chunks are 
+     * requested when the same content is sent again.
+     * 
+     * @return state of chunked content transfers of this engine
+     */
+    public ContentTransfers getContentTransfers() {
+        return this.contentTransfers;
+    }
+    
+    /**
+     * Replace default chunked transfer handling - e.g. to keep partial
+     * content in another folder than the temp directory.
+     * 
+     * @param transfers 
+     */
+    public void setContentTransfers(ContentTransfers transfers) {
+        this.contentTransfers = transfers;
+    }
+    
+    /**
+     * Background vocabulary is remembered per peer (since KEP 1.1). 
+     * Tags which were already exchanged are only referenced in later 
+     * messages.
+     * 
+     * @return vocabulary tables of this engine
+     */
+    public VocabularyCache getVocabularyCache() {
+        return this.vocabularyCache;
+    }
+    
+    /**
+     * Replace default vocabulary cache - e.g. with larger tables.
+     * 
+     * @param vocabularyCache 
+     */
+    public void setVocabularyCache(VocabularyCache vocabularyCache) {
+        this.vocabularyCache = vocabularyCache;
+    }
+    
+    /**
+     * Session keys of encrypted messages are reused per peer (since 
+     * KEP 1.1). Later messages only refer to a key which was already 
+     * transmitted.
+     * 
+     * @return session keys of this engine - null if each message 
+     * transmits its own session key
+     */
+    public SessionKeyCache getSessionKeyCache() {
+        return this.sessionKeyCache;
+    }
+    
+    /**
+     * Replace default session key cache - e.g. with another rotation
+     * policy. Set null to transmit a new session key with each message.
+     * Received keys are forgotten in that case.
+     * 
+     * @param sessionKeyCache 
+     */
+    public void setSessionKeyCache(SessionKeyCache sessionKeyCache) {
+        this.sessionKeyCache = sessionKeyCache;
+    }
+    
     private final HashMap<Integer,String> deliveredInformation = 
             new HashMap<>();
     
     private boolean allowEmptyContextPoints = true;
+    private boolean legacyKEPFormat = true;
+    
+    /** peers which have sent messages in current KEP version */
+    private static final int MAX_CURRENT_KEP_PEERS = 1024;
+    private final Map<String, Boolean> currentKEPPeers = 
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return this.size() > MAX_CURRENT_KEP_PEERS;
+        }
+    };
+    private final WeakHashMap<StreamConnection, Boolean> currentKEPConnections = 
+            new WeakHashMap<>();
+    private boolean legacyEncryption = false;
+    private ContentTransfers contentTransfers = new ContentTransfers();
+    private VocabularyCache vocabularyCache = new VocabularyCache();
+    private SessionKeyCache sessionKeyCache = new SessionKeyCache();
     
     /**
      * This methods checks whether information are already sent to a peer
@@ -1571,6 +2152,80 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
        this.unsentMessagesKB = kb; 
     }
     
+    private OutboundQueue outboundQueue = null;
+    
+    /**
+     * Messages which couldn't be sent are put into that queue. They are 
+     * sent again in background. Replaces unsent messages KB.
+     * 
+     * @param queue null switches queuing off
+     */
+    public void setOutboundQueue(OutboundQueue queue) {
+        this.outboundQueue = queue;
+    }
+    
+    public OutboundQueue getOutboundQueue() {
+        return this.outboundQueue;
+    }
+    
+    /**
+     * Another attempt to send a queued message.
+     * 
+     * @return true if message was sent
+     */
+    boolean sendQueued(SharkCS interest, Knowledge k, PeerSemanticTag recipient) throws SharkSecurityException, SharkKBException, IOException {
+        return this.sendKEPCommand(interest, k, null, recipient);
+    }
+    
+    /**
+     * A message stub accepted a message but couldn't deliver it later on.
+     * It is put into the outbound queue and is sent again by
+     * {@link #resendMessage(byte[], String)}.
+     * 
+     * @param msg
+     * @param recAddress 
+     */
+    public void rememberUndeliveredMessage(byte[] msg, String recAddress) {
+        OutboundQueue queue = this.outboundQueue;
+        if(queue == null || !queue.add(msg, recAddress)) {
+            L.w("undelivered message to " + recAddress + " dropped", this);
+        }
+    }
+    
+    /**
+     * Another attempt to send a message which a message stub couldn't
+     * deliver. Engines which register an undelivered message listener
+     * at a stub send it by that stub. This implementation doesn't.
+     * 
+     * @param msg
+     * @param recAddress
+     * @return true if message was sent
+     * @throws IOException
+     */
+    protected boolean resendMessage(byte[] msg, String recAddress) throws IOException {
+        return false;
+    }
+    
+    /**
+     * Peer has just sent a message. Its addresses aren't suspended any 
+     * longer and messages waiting for that peer are sent now.
+     * 
+     * @param peer 
+     */
+    public void peerReachable(PeerSemanticTag peer) {
+        String[] addresses = peer != null ? peer.getAddresses() : null;
+        if(addresses != null) {
+            for(String address : addresses) {
+                this.addressStatistics.reachable(address);
+            }
+        }
+        
+        OutboundQueue queue = this.outboundQueue;
+        if(queue != null && peer != null) {
+            queue.peerReachable(peer);
+        }
+    }
+    
     private ContextCoordinates getUnsentCC(PeerSemanticTag recipient) {
         return InMemoSharkKB.createInMemoContextCoordinates(
                 this.unsentMessagesST, recipient, null, null, 
@@ -1603,11 +2258,18 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
     }
 
     /**
-     * stores unsent message somewhere... TODO
+     * Remembers unsent interest - in outbound queue if there is one, in 
+     * unsent messages KB otherwise.
      * @param interest
      * @param recipient 
      */
     public void rememberUnsentInterest(SharkCS interest, PeerSemanticTag recipient) {
+        OutboundQueue queue = this.outboundQueue;
+        if(queue != null) {
+            queue.add(interest, recipient);
+            return;
+        }
+        
         ContextPoint cp = this.getUnsentMessageCP(recipient);
         
         if(cp == null) {
@@ -1627,11 +2289,18 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
     }
     
     /**
-     * stores unsent knowledge somewhere... TODO
+     * Remembers unsent knowledge - in outbound queue if there is one, in 
+     * unsent messages KB otherwise.
      * @param k
      * @param recipient
      */
     public void rememberUnsentKnowledge(Knowledge k, PeerSemanticTag recipient) {
+        OutboundQueue queue = this.outboundQueue;
+        if(queue != null) {
+            queue.add(k, recipient);
+            return;
+        }
+        
         ContextPoint cp = this.getUnsentMessageCP(recipient);
         
         if(cp == null) {
@@ -1651,9 +2320,15 @@ abstract public class SharkEngine implements WhiteAndBlackListManager {
     }
     
     /**
-     * Re-send unsent messages.
+     * Re-send unsent messages. Messages in outbound queue are tried
+     * immediately.
      */
     public void sendUnsentMessages() {
+        OutboundQueue queue = this.outboundQueue;
+        if(queue != null) {
+            queue.retryAll();
+        }
+        
         if(this.unsentMessagesKB != null) {
             try {
                 Enumeration<ContextPoint> cpEnum = this.unsentMessagesKB.getAllContextPoints();
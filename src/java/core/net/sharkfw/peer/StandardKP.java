@@ -1,7 +1,11 @@
 package net.sharkfw.peer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import net.sharkfw.knowledgeBase.*;
 import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
 import net.sharkfw.protocols.PeerAddress;
@@ -95,6 +99,9 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
         }
         
         this.kb.addListener(this);
+        
+        // registered with stub before interest was set
+        this.routingChanged();
     }
 
     /**
@@ -160,8 +167,10 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
 //        L.d(L.kbSpace2String(k.getBackgroundKnowledge()), this);
         
         try {
-            L.d("doInsert: local interest:\n ", this); 
-            L.d(L.contextSpace2String(this.getInterest()), this);
+            if(L.isDebug()) {
+                L.d("doInsert: local interest:\n ", this); 
+                L.d(L.contextSpace2String(this.getInterest()), this);
+            }
 
             this.notifyKnowledgeReceived(k);
             
@@ -178,8 +187,10 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
                 return;
             }
 
-            L.d("doInsert: effective interest:\n ", this); 
-            L.d(L.contextSpace2String(effectiveInterest), this);
+            if(L.isDebug()) {
+                L.d("doInsert: effective interest:\n ", this); 
+                L.d(L.contextSpace2String(effectiveInterest), this);
+            }
 
 			/* dead code removed */
             // assimilate this knowledge
@@ -188,8 +199,10 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
                                             this.getFP(), k, this.learn, 
                                             this.deleteAssimilated);
             
-            L.d("doInsert: knowledge base after assimilation:\n " + 
-                    L.kb2String(this.getKB()), this); 
+            if(L.isDebug()) {
+                L.d("doInsert: knowledge base after assimilation:\n " + 
+                        L.kb2String(this.getKB()), this); 
+            }
             
             // notify 
             if(assimilatedCC != null) {
@@ -225,8 +238,10 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
 
       try {
           // an interest has been retrieved from remote peer
-          L.d("doExpose: \n receivedInterest interest is:\n"+ L.contextSpace2String(receivedInterest), this);
-          L.d("doExpose: \n my Interest interest is:\n"+ L.contextSpace2String(this.getInterest()), this);
+          if(L.isDebug()) {
+              L.d("doExpose: \n receivedInterest interest is:\n"+ L.contextSpace2String(receivedInterest), this);
+              L.d("doExpose: \n my Interest interest is:\n"+ L.contextSpace2String(this.getInterest()), this);
+          }
           
           // check if internals would be revealed which isn't allowed.
           if(!this.revealingAndAllowed(receivedInterest, this.getInterest())) {
@@ -262,7 +277,9 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
               return;
           }
           
-          L.d("doExpose: \n mutual interest is:\n"+ L.contextSpace2String(mutualInterest), this);
+          if(L.isDebug()) {
+              L.d("doExpose: \n mutual interest is:\n"+ L.contextSpace2String(mutualInterest), this);
+          }
 
           int effectiveDirection = mutualInterest.getDirection();
 
@@ -303,7 +320,9 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
               
               mutualInterest.setDirection(SharkCS.DIRECTION_INOUT);
               
-              L.d("doExpose: \n extraction interest is:\n"+ L.contextSpace2String(mutualInterest), this);
+              if(L.isDebug()) {
+                  L.d("doExpose: \n extraction interest is:\n"+ L.contextSpace2String(mutualInterest), this);
+              }
               
             // Effective interest = sending interest. Extract knowledge.
             InMemoSharkKB tempKB = new InMemoSharkKB();
@@ -399,6 +418,7 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
      */
     public void setOtp(FragmentationParameter otp[]) {
       this.bgfp = otp;
+      this.routingChanged();
 
     }
 
@@ -409,6 +429,7 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
      */
     public void setFP(FragmentationParameter fp[]) {
       this.fp = fp;
+      this.routingChanged();
     }
 
     /**
@@ -438,7 +459,58 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
     public final void refreshDynamicInterest() throws SharkKBException {
         if(this.interest instanceof DynamicInterest) {
             ((DynamicInterest) this.interest).refresh();
+            this.routingChanged();
+        }
+    }
+    
+    /**
+     * Mutual interest with a message requires a topic of this KP interest
+     * (or a KB topic with the same identity). That's not the case if
+     * interest topics are any or if the OTP extends topics - a message
+     * can fit topics related to the interest as well.
+     * 
+     * @return subject identifiers of interest topics and identical KB topics
+     * or null if this KP can react on any topic
+     */
+    @Override
+    public Set<String> getRoutingTopicSIs() {
+        // called during super constructor as well
+        SharkCS localInterest = this.interest;
+        if(localInterest == null || this.kb == null 
+                || SharkCSAlgebra.isAny(localInterest.getTopics())) {
+            return null;
         }
+        
+        FragmentationParameter[] otp = this.bgfp;
+        if(otp != null && otp.length > SharkCS.DIM_TOPIC 
+                && otp[SharkCS.DIM_TOPIC] != null 
+                && otp[SharkCS.DIM_TOPIC].getDepth() > 0) {
+            return null;
+        }
+        
+        HashSet<String> sis = new HashSet<>();
+        try {
+            STSet kbTopics = this.kb.getTopicSTSet();
+            Enumeration<SemanticTag> tagEnum = localInterest.getTopics().tags();
+            while(tagEnum != null && tagEnum.hasMoreElements()) {
+                String[] tagSIs = tagEnum.nextElement().getSI();
+                if(SharkCSAlgebra.isAny(tagSIs)) {
+                    return null;
+                }
+                
+                sis.addAll(Arrays.asList(tagSIs));
+                
+                SemanticTag kbTag = kbTopics == null ? null : kbTopics.getSemanticTag(tagSIs);
+                if(kbTag != null && kbTag.getSI() != null) {
+                    sis.addAll(Arrays.asList(kbTag.getSI()));
+                }
+            }
+        } catch (SharkKBException ex) {
+            L.d("cannot tell routing topics - take all messages: " + ex.getMessage(), this);
+            return null;
+        }
+        
+        return sis;
     }
 
     /**
@@ -493,6 +565,7 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
     @Override
   public void topicAdded(SemanticTag tag) {
     this.syncInterest();
+    this.routingChanged();
   }
 
     @Override
@@ -513,6 +586,7 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
     @Override
   public void topicRemoved(SemanticTag tag) {
     this.syncInterest();
+    this.routingChanged();
   }
 
     @Override
@@ -571,5 +645,6 @@ public class StandardKP extends KnowledgePort implements KnowledgeBaseListener {
     @Override
     public void tagChanged(SemanticTag tag) {
         this.syncInterest();
+        this.routingChanged();
     }
 }
@@ -0,0 +1,154 @@
+package net.sharkfw.protocols;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.sharkfw.system.Metrics;
+
+/**
+ * A blocking socket channel ignores socket timeout - a thread writing to
+ * a stalled peer would block for ever. A watchdog closes the channels
+ * if an operation isn't finished within socket timeout. Closing wakes up
+ * the blocked thread.
+ *
+ * <pre>
+ * ChannelWatchdog watchdog = new ChannelWatchdog(socketChannel, fileChannel);
+ * watchdog.arm();
+ * try {
+ *     fileChannel.transferTo(position, count, socketChannel);
+ * }
+ * catch(ClosedChannelException e) {
+ *     throw watchdog.failure(e, "...");
+ * }
+ * finally {
+ *     watchdog.disarm();
+ * }
+ * </pre>
+ *
+ * Channels counted by {@link Metrics} are watched as well. A watchdog
+ * does nothing if the channel isn't a socket channel or socket has no
+ * timeout.
+ *
+ * @author thsc
+ */
+public class ChannelWatchdog {
+
+    private static ScheduledThreadPoolExecutor timer = null; // guarded by ChannelWatchdog.class
+
+    private final int timeout;
+    private final Channel[] channels;
+    private final AtomicBoolean timedOut = new AtomicBoolean(false);
+    private ScheduledFuture<?> alarm = null;
+
+    /**
+     * @param watched channel which is closed in case of timeout - its
+     * socket timeout is used
+     * @param others channels which are closed as well - e.g. a file
+     * channel which transfers into watched channel
+     * @throws IOException
+     */
+    public ChannelWatchdog(Channel watched, Channel... others) throws IOException {
+        this.timeout = ChannelWatchdog.getTimeout(watched);
+
+        this.channels = new Channel[others.length + 1];
+        // others first - a thread blocked in transferTo waits on file channel
+        System.arraycopy(others, 0, this.channels, 0, others.length);
+        this.channels[others.length] = watched;
+    }
+
+    /**
+     * @return socket timeout of that channel in milliseconds - 0 if
+     * there is none or it isn't a socket channel
+     */
+    public static int getTimeout(Channel channel) throws IOException {
+        Channel unwrapped = Metrics.unwrap(channel);
+        if(unwrapped instanceof SocketChannel) {
+            return ((SocketChannel) unwrapped).socket().getSoTimeout();
+        }
+
+        return 0;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer() {
+        if(ChannelWatchdog.timer == null) {
+            ChannelWatchdog.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ChannelWatchdog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            ChannelWatchdog.timer.setRemoveOnCancelPolicy(true);
+        }
+
+        return ChannelWatchdog.timer;
+    }
+
+    /**
+     * @return false if channels are never closed
+     */
+    public boolean enabled() {
+        return this.timeout > 0;
+    }
+
+    /**
+     * Channels are closed if watchdog isn't disarmed within timeout.
+     */
+    public void arm() {
+        if(!this.enabled()) {
+            return;
+        }
+
+        this.disarm();
+        this.alarm = ChannelWatchdog.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                ChannelWatchdog.this.timedOut.set(true);
+                for(Channel channel : ChannelWatchdog.this.channels) {
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        // closed anyway
+                    }
+                }
+            }
+        }, this.timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public void disarm() {
+        if(this.alarm != null) {
+            this.alarm.cancel(false);
+            this.alarm = null;
+        }
+    }
+
+    /**
+     * @return true if channels were closed by this watchdog
+     */
+    public boolean timedOut() {
+        return this.timedOut.get();
+    }
+
+    /**
+     * @param e exception thrown by a channel operation
+     * @param message describes what was done
+     * @return socket timeout exception if channel was closed by this
+     * watchdog - e otherwise
+     */
+    public IOException failure(ClosedChannelException e, String message) {
+        if(this.timedOut()) {
+            return new SocketTimeoutException(message + " timed out after "
+                    + this.timeout + " ms");
+        }
+
+        return e;
+    }
+}
@@ -0,0 +1,31 @@
+package net.sharkfw.protocols;
+
+import java.io.IOException;
+
+/**
+ * Stream connection which can wait for incoming data without consuming it.
+ *
+ * <p>A KEP session keeps a connection open after a message for a while -
+ * the remote peer might send another one. A connection implementing this
+ * interface lets the session block until data arrive or the idle timeout
+ * passed. The next message is handled as soon as its first byte
+ * arrives.</p>
+ *
+ * <p>Connections without that ability are polled by the session.</p>
+ *
+ * @see net.sharkfw.peer.SharkEngine#setIdleTimeout(int, long)
+ * @author thsc
+ */
+public interface IdleAwareConnection extends StreamConnection {
+
+    /**
+     * Blocks until data can be read or timeout passed. Data are not
+     * consumed.
+     *
+     * @param timeout milliseconds - 0 doesn't wait at all
+     * @return true if data can be read, false if nothing arrived in time or
+     * connection was closed by remote peer
+     * @throws IOException connection is broken
+     */
+    public boolean awaitData(long timeout) throws IOException;
+}
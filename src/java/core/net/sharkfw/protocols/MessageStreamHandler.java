@@ -0,0 +1,24 @@
+package net.sharkfw.protocols;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request handler which can take a received message as stream.
+ * Message stubs which decode messages (e.g. mail) pass decoded bytes
+ * without holding the whole message in memory.
+ *
+ * @author thsc
+ */
+public interface MessageStreamHandler extends RequestHandler {
+
+  /**
+   * Handle a message that has been received through message based communication.
+   * The stream must be read before this method returns.
+   *
+   * @param msg The message to handle.
+   * @param stub The <code>MessageStub</code> through which this message has been received.
+   * @throws IOException if message cannot be read
+   */
+  public void handleMessage(InputStream msg, MessageStub stub) throws IOException;
+}
@@ -40,4 +40,33 @@ public interface SharkInputStream {
   public InputStream getInputStream();
 
   public void set(InputStream encodingIS);
+
+  /**
+   * <p>Read an int value. It is read as four bytes (big endian) if
+   * binary numbers are switched on - as UTF-8 string otherwise.</p>
+   *
+   * @see #setBinaryNumbers(boolean)
+   */
+  public int readInt() throws IOException;
+
+  /**
+   * <p>Read a long value. It is read as eight bytes (big endian) if
+   * binary numbers are switched on - as UTF-8 string otherwise.</p>
+   *
+   * @see #setBinaryNumbers(boolean)
+   */
+  public long readLong() throws IOException;
+
+  /**
+   * <p>KEP 1.0 transmitted numbers as strings. Later versions use
+   * their binary representation. Default is false.</p>
+   *
+   * @param binary true if numbers are read in binary representation
+   */
+  public void setBinaryNumbers(boolean binary);
+
+  /**
+   * @return true if numbers are read in binary representation (KEP 1.1)
+   */
+  public boolean getBinaryNumbers();
 }
@@ -6,6 +6,7 @@ package net.sharkfw.protocols;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * <p>An output stream wrapping a java native outputstream which allows writing
@@ -32,4 +33,45 @@ public interface SharkOutputStream {
   public OutputStream getOutputStream();
 
     public void set(OutputStream os);
+
+  /**
+   * <p>Write an int value. It is written as four bytes (big endian) if
+   * binary numbers are switched on - as UTF-8 string otherwise.</p>
+   *
+   * @see #setBinaryNumbers(boolean)
+   */
+  public void writeInt(int value) throws IOException;
+
+  /**
+   * <p>Write a long value. It is written as eight bytes (big endian) if
+   * binary numbers are switched on - as UTF-8 string otherwise.</p>
+   *
+   * @see #setBinaryNumbers(boolean)
+   */
+  public void writeLong(long value) throws IOException;
+
+  /**
+   * <p>KEP 1.0 transmitted numbers as strings. Later versions use
+   * their binary representation. Default is false.</p>
+   *
+   * @param binary true if numbers are written in binary representation
+   */
+  public void setBinaryNumbers(boolean binary);
+
+  /**
+   * @return true if numbers are written in binary representation (KEP 1.1)
+   */
+  public boolean getBinaryNumbers();
+
+  /**
+   * <p>Return a channel that writes into the same destination as the
+   * underlying OutputStream.</p>
+   *
+   * <p>A channel is only returned if nothing (e.g. encryption or signing)
+   * was put on top of the original stream. Bytes written into the channel
+   * would bypass those streams otherwise.</p>
+   *
+   * @return channel or null if no channel is available
+   */
+    public WritableByteChannel getChannel();
 }
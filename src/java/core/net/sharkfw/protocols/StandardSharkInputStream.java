@@ -4,20 +4,40 @@
  */
 package net.sharkfw.protocols;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import net.sharkfw.system.Streamer;
-import net.sharkfw.system.Util;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 /**
+ * Reads strings and numbers from a stream. Buffers are kept and reused
+ * for the whole lifetime of this object - which is usually a connection.
  *
  * @author mfi
  */
 public class StandardSharkInputStream implements SharkInputStream {
 
+  /**
+   * Strings larger than that are decoded with temporary buffers which
+   * are not kept afterwards.
+   */
+  private static final int MAX_POOLED_LEN = 64 * 1024;
+  private static final int INITIAL_BUFFER_LEN = 256;
+
   private InputStream is = null;
   
+  private boolean binaryNumbers = false;
+  
+  private final byte[] numberBytes = new byte[8];
+  private byte[] bytes = new byte[INITIAL_BUFFER_LEN];
+  private CharBuffer chars = CharBuffer.allocate(INITIAL_BUFFER_LEN);
+  private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  
   public StandardSharkInputStream(InputStream stream) {
     this.is = stream;
   }
@@ -25,27 +45,94 @@ public class StandardSharkInputStream implements SharkInputStream {
   public String readUTF8() throws IOException {
     
     // Read 4 bytes as length info first
-    byte[] lenBytes = new byte[4];
-    int readLen = this.is.read(lenBytes);
-    if(readLen < 4) {
-      // No bytes read - stream at an end?!
-      throw new IOException("Stream ended.");
+    this.readFully(this.numberBytes, 4);
+    int len = this.intValue();
+    
+    if(len <= 0) {
+        return "";
     }
     
-    // Translate into long value
-    int len = Util.byteArrayToInt(lenBytes);
+    byte[] utfBytes = this.bytes;
+    CharBuffer utfChars = this.chars;
+    if(len > utfBytes.length) {
+        // UTF-8 never needs more chars than bytes
+        utfBytes = new byte[len];
+        utfChars = CharBuffer.allocate(len);
+        if(len <= MAX_POOLED_LEN) {
+            this.bytes = utfBytes;
+            this.chars = utfChars;
+        }
+    }
     
-    // Stream bytes
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Streamer.stream(this.is, baos, UTF8SharkOutputStream.STREAM_BUFFER_SIZE, len);
+    this.readFully(utfBytes, len);
     
-    // Create String with UTF-8 encoding
-//    String utfstring = new String(baos.toByteArray(), KEPMessage.ENCODING);
-    String utfstring = new String(baos.toByteArray(), "UTF-8");
+    // decode UTF-8 without creating an intermediate byte array
+    this.decoder.reset();
+    utfChars.clear();
+    this.decoder.decode(ByteBuffer.wrap(utfBytes, 0, len), utfChars, true);
+    this.decoder.flush(utfChars);
+    utfChars.flip();
     
-    return utfstring;
+    return utfChars.toString();
   }
   
+    @Override
+    public int readInt() throws IOException {
+        if(!this.binaryNumbers) {
+            return Integer.parseInt(this.readUTF8());
+        }
+        
+        this.readFully(this.numberBytes, 4);
+        return this.intValue();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        if(!this.binaryNumbers) {
+            return Long.parseLong(this.readUTF8());
+        }
+        
+        this.readFully(this.numberBytes, 8);
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (this.numberBytes[i] & 0xFF);
+        }
+        
+        return value;
+    }
+
+    @Override
+    public void setBinaryNumbers(boolean binary) {
+        this.binaryNumbers = binary;
+    }
+
+    @Override
+    public boolean getBinaryNumbers() {
+        return this.binaryNumbers;
+    }
+    
+    private int intValue() {
+        return ((this.numberBytes[0] & 0xFF) << 24)
+                | ((this.numberBytes[1] & 0xFF) << 16)
+                | ((this.numberBytes[2] & 0xFF) << 8)
+                | (this.numberBytes[3] & 0xFF);
+    }
+    
+    /**
+     * Read exactly len bytes - read() can return less than asked for.
+     */
+    private void readFully(byte[] buffer, int len) throws IOException {
+        int got = 0;
+        while(got < len) {
+            int n = this.is.read(buffer, got, len - got);
+            if(n < 0) {
+                // No bytes read - stream at an end?!
+                throw new IOException("Stream ended.");
+            }
+            got += n;
+        }
+    }
+  
     @Override
   public int available() throws IOException {
     return this.is.available();
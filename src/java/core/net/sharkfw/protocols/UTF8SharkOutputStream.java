@@ -4,15 +4,21 @@
  */
 package net.sharkfw.protocols;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import net.sharkfw.kep.KEPMessage;
-import net.sharkfw.system.Streamer;
-import net.sharkfw.system.Util;
 
 /**
+ * Writes strings and numbers into a stream. Each string is encoded into
+ * a buffer which is reused for the whole lifetime of this object - which
+ * is usually a connection. Length and string are written with a single
+ * write call.
  *
  * @author mfi
  */
@@ -22,36 +28,111 @@ public class UTF8SharkOutputStream implements SharkOutputStream{
 //    public static final int STREAM_BUFFER_SIZE = 524288; // = 0,5 MByte
     
     
+  /**
+   * Strings which need a larger buffer are encoded into a temporary one.
+   */
+  private static final int MAX_POOLED_LEN = 64 * 1024;
+  
+  /**
+   * UTF-8 needs up to three bytes per java char
+   */
+  private static final int MAX_BYTES_PER_CHAR = 3;
+  
   private OutputStream os = null;
   
+  private boolean binaryNumbers = false;
+  
+  private final byte[] numberBytes = new byte[8];
+  private ByteBuffer buffer = ByteBuffer.allocate(256);
+  private final CharsetEncoder encoder = Charset.forName(KEPMessage.ENCODING).newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  
+  private OutputStream channelOS = null;
+  private WritableByteChannel channel = null;
+  
   public UTF8SharkOutputStream(OutputStream stream) {
     this.os = stream;
   }
   
+  /**
+   * @param stream stream to write to
+   * @param channel channel which writes to the same destination as stream
+   * (e.g. a socket channel). Can be null.
+   */
+  public UTF8SharkOutputStream(OutputStream stream, WritableByteChannel channel) {
+    this.os = stream;
+    this.channelOS = stream;
+    this.channel = channel;
+  }
+  
   public void write(String utfString) throws IOException {
-    try {
       
-      // Translate the string to a byte array
-      byte[] bytes = utfString.getBytes(KEPMessage.ENCODING);
+      // 4 bytes length info followed by payload (byte representation of string)
+      int maxLen = 4 + utfString.length() * MAX_BYTES_PER_CHAR;
       
-      // Store the size of ths byte array
-      int len = bytes.length;
+      ByteBuffer out = this.buffer;
+      if(maxLen > out.capacity()) {
+          out = ByteBuffer.allocate(maxLen);
+          if(maxLen <= MAX_POOLED_LEN) {
+              this.buffer = out;
+          }
+      }
       
-      // Translate the long value into a byte[] for writing it on the stream
-      byte[] lenBytes = Util.intToByteArray(len);
+      out.clear();
+      out.position(4);
       
-      // Write length info first
-      this.os.write(lenBytes);
+      this.encoder.reset();
+      this.encoder.encode(CharBuffer.wrap(utfString), out, true);
+      this.encoder.flush(out);
       
-      // Write payload next (byte representation of string)
-      Streamer.stream(new ByteArrayInputStream(bytes), this.os, STREAM_BUFFER_SIZE, len);
+      // Store the size of the payload in front of it
+      int len = out.position() - 4;
+      out.putInt(0, len);
       
-    } catch (UnsupportedEncodingException ex) {
-      // Notify by IOException
-      throw new IOException(ex.getMessage());
-    }
+      this.os.write(out.array(), 0, out.position());
   }
 
+    @Override
+    public void writeInt(int value) throws IOException {
+        if(!this.binaryNumbers) {
+            this.write(Integer.toString(value));
+            return;
+        }
+        
+        this.numberBytes[0] = (byte) (value >>> 24);
+        this.numberBytes[1] = (byte) (value >>> 16);
+        this.numberBytes[2] = (byte) (value >>> 8);
+        this.numberBytes[3] = (byte) value;
+        
+        this.os.write(this.numberBytes, 0, 4);
+    }
+
+    @Override
+    public void writeLong(long value) throws IOException {
+        if(!this.binaryNumbers) {
+            this.write(Long.toString(value));
+            return;
+        }
+        
+        for(int i = 7; i >= 0; i--) {
+            this.numberBytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        
+        this.os.write(this.numberBytes, 0, 8);
+    }
+
+    @Override
+    public void setBinaryNumbers(boolean binary) {
+        this.binaryNumbers = binary;
+    }
+
+    @Override
+    public boolean getBinaryNumbers() {
+        return this.binaryNumbers;
+    }
+
   public OutputStream getOutputStream() {
     return this.os;
   }
@@ -60,5 +141,15 @@ public class UTF8SharkOutputStream implements SharkOutputStream{
     public void set(OutputStream os) {
         this.os = os;
     }
+
+    @Override
+    public WritableByteChannel getChannel() {
+        // channel bypasses any stream that was set on top of the original one
+        if(this.channel != null && this.os == this.channelOS) {
+            return this.channel;
+        }
+        
+        return null;
+    }
   
 }
@@ -0,0 +1,20 @@
+package net.sharkfw.protocols;
+
+import java.io.IOException;
+
+/**
+ * Informed about messages which a message stub has accepted but couldn't
+ * deliver later on, e.g. messages which were collected for a single mail.
+ *
+ * @author thsc
+ */
+public interface UndeliveredMessageListener {
+    /**
+     * Called by the thread which tried to deliver - return quickly.
+     *
+     * @param msg message as handed to the stub
+     * @param recAddress recipient
+     * @param cause
+     */
+    public void undelivered(byte[] msg, String recAddress, IOException cause);
+}
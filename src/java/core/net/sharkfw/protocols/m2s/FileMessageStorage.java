@@ -0,0 +1,589 @@
+package net.sharkfw.protocols.m2s;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import net.sharkfw.system.L;
+import net.sharkfw.system.SharkException;
+
+/**
+ * Keeps M2S messages in plain files - one file per message.
+ *
+ * <p>A message to be sent is written to <code>&lt;id&gt;.out.tmp</code>.
+ * The file is renamed to <code>&lt;id&gt;.out</code> when the message is
+ * complete. A part is read from file by its offset - there is no
+ * lookup.</p>
+ *
+ * <p>Received parts are appended to <code>&lt;id&gt;.in</code> in order
+ * of arrival. Each record carries package number, length and a checksum.
+ * Offsets of parts are kept in memory. They are rebuilt by scanning the
+ * file after a restart - a record which was written partially is cut
+ * off.</p>
+ *
+ * <p>Files are removed as soon as a message is read or completely
+ * received by the other side. Messages which never complete are removed
+ * after <code>maxAge</code> - when the storage is created and now and then
+ * when a message is stored.</p>
+ *
+ * @author thsc
+ */
+public class FileMessageStorage implements MessageStorage {
+
+    private static final int OUT_MAGIC = 0x4d32534f; // M2SO
+    private static final String OUT = ".out";
+    private static final String TMP = ".tmp";
+    private static final String IN = ".in";
+
+    /**
+     * package number, last, length, checksum
+     */
+    private static final int RECORD_HEADER_LENGTH = 4 + 1 + 4 + 8;
+
+    public static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000; // 1 week
+
+    /**
+     * Garbage is collected at most that often
+     */
+    private static final long COLLECT_INTERVAL = 60 * 60 * 1000;
+
+    private final File dir;
+    private long maxAge = DEFAULT_MAX_AGE;
+    private long lastCollection = 0;
+
+    private final HashMap<String, OutMessage> outMessages = new HashMap<>();
+    private final HashMap<String, OutputStream> openOS = new HashMap<>();
+    private final HashMap<String, InMessage> inMessages = new HashMap<>();
+
+    /**
+     * A message which is sent in packages.
+     */
+    private static class OutMessage {
+        File file;
+        String recipientAddress;
+        int maxLen;
+        long dataOffset;
+        long length;
+        int nextToSend = 0;
+    }
+
+    /**
+     * Parts of a message which arrive.
+     */
+    private static class InMessage {
+        File file;
+        // package number -> {offset of payload, length}
+        final HashMap<Integer, long[]> parts = new HashMap<>();
+        final BitSet received = new BitSet();
+        int lastPackageNumber = -1;
+        long end = 0;
+        int nextToRead = 0;
+    }
+
+    /**
+     * Messages left over from an earlier run which are older than
+     * {@link #DEFAULT_MAX_AGE} are removed.
+     *
+     * @param dir directory - created if it doesn't exist
+     * @throws SharkException if directory cannot be created
+     */
+    public FileMessageStorage(File dir) throws SharkException {
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new SharkException("cannot create message storage directory: " + dir);
+        }
+
+        this.dir = dir;
+        this.collectIfDue();
+    }
+
+    public synchronized long getMaxAge() {
+        return this.maxAge;
+    }
+
+    /**
+     * @param millis messages which weren't touched for that time are
+     * removed
+     */
+    public synchronized void setMaxAge(long millis) {
+        this.maxAge = millis;
+    }
+
+    private File getFile(String id, String suffix) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for(byte b : id.getBytes("UTF-8")) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+        }
+        catch(IOException e) {
+            // UTF-8 is always supported
+        }
+
+        return new File(this.dir, sb.toString() + suffix);
+    }
+
+    ///////////////////////////////////////////////////////////
+    //                    sender storage                     //
+    ///////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized OutputStream getOutputStream(String id, String recipientAddress, int maxLen) throws SharkException {
+        this.collectIfDue();
+        File tmp = this.getFile(id, OUT + TMP);
+        try {
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+
+            dos.writeInt(OUT_MAGIC);
+            dos.writeUTF(recipientAddress);
+            dos.writeInt(maxLen);
+
+            // stream is closed by storage - not by writer
+            OutputStream os = new FilterOutputStream(dos) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    this.out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    this.flush();
+                }
+            };
+
+            this.openOS.put(id, dos);
+
+            return os;
+        }
+        catch(IOException e) {
+            throw new SharkException("cannot create message file: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void finishedStoringForLaterSending(String id) throws SharkException {
+        OutputStream os = this.openOS.remove(id);
+        if(os == null) {
+            return;
+        }
+
+        try {
+            os.close();
+        }
+        catch(IOException e) {
+            throw new SharkException("cannot write message file: " + e.getMessage());
+        }
+
+        // rename marks message as complete
+        File tmp = this.getFile(id, OUT + TMP);
+        File file = this.getFile(id, OUT);
+        if(!tmp.renameTo(file)) {
+            throw new SharkException("cannot complete message file: " + file);
+        }
+    }
+
+    private OutMessage getOutMessage(String id) throws SharkException {
+        OutMessage m = this.outMessages.get(id);
+        if(m != null) {
+            return m;
+        }
+
+        File file = this.getFile(id, OUT);
+        if(!file.exists()) {
+            throw new SharkException("cannot find message with id: " + id);
+        }
+
+        m = new OutMessage();
+        m.file = file;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if(raf.readInt() != OUT_MAGIC) {
+                    throw new SharkException("not a message file: " + file);
+                }
+                m.recipientAddress = raf.readUTF();
+                m.maxLen = raf.readInt();
+                m.dataOffset = raf.getFilePointer();
+                m.length = raf.length() - m.dataOffset;
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch(IOException e) {
+            throw new SharkException("cannot read message file: " + e.getMessage());
+        }
+
+        this.outMessages.put(id, m);
+        return m;
+    }
+
+    @Override
+    public synchronized int getNumberOfPackages(String id) throws SharkException {
+        OutMessage m = this.getOutMessage(id);
+
+        // an empty message is still one package
+        return (int) Math.max(1, (m.length + m.maxLen - 1) / m.maxLen);
+    }
+
+    @Override
+    public synchronized int nextPackageNumberToSend(String id) throws SharkException {
+        return this.getOutMessage(id).nextToSend;
+    }
+
+    @Override
+    public synchronized void setNextPackageNumberToSend(String id, int packageNumber) throws SharkException {
+        this.getOutMessage(id).nextToSend = packageNumber;
+    }
+
+    @Override
+    public synchronized int getMaxPackageSize(String id) throws SharkException {
+        return this.getOutMessage(id).maxLen;
+    }
+
+    @Override
+    public synchronized String getRecipientAddress(String id) throws SharkException {
+        return this.getOutMessage(id).recipientAddress;
+    }
+
+    @Override
+    public synchronized void streamPackage(OutputStream os, String id, int packageNumber) throws SharkException {
+        OutMessage m = this.getOutMessage(id);
+
+        long offset = (long) packageNumber * m.maxLen;
+        long size = Math.min(m.maxLen, m.length - offset);
+        if(packageNumber < 0 || size < 0) {
+            throw new SharkException("no such package: " + packageNumber);
+        }
+
+        byte[] payload = new byte[(int) size];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(m.file, "r");
+            try {
+                raf.seek(m.dataOffset + offset);
+                raf.readFully(payload);
+            }
+            finally {
+                raf.close();
+            }
+
+            os.write(payload);
+        }
+        catch(IOException e) {
+            throw new SharkException("cannot read message file: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void removeToSend(String id) {
+        this.outMessages.remove(id);
+        this.getFile(id, OUT).delete();
+    }
+
+    ///////////////////////////////////////////////////////////
+    //                    receiver storage                   //
+    ///////////////////////////////////////////////////////////
+
+    /**
+     * @param create create message if it doesn't exist
+     * @return message or null if it doesn't exist
+     */
+    private InMessage getInMessage(String id, boolean create) throws SharkException {
+        InMessage m = this.inMessages.get(id);
+        if(m != null) {
+            return m;
+        }
+
+        File file = this.getFile(id, IN);
+        if(!file.exists() && !create) {
+            return null;
+        }
+
+        m = new InMessage();
+        m.file = file;
+        if(file.exists()) {
+            this.scan(m);
+        }
+
+        this.inMessages.put(id, m);
+        return m;
+    }
+
+    /**
+     * Rebuilds index of parts from file. A broken record and anything
+     * behind it is cut off.
+     */
+    private void scan(InMessage m) throws SharkException {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(m.file, "rw");
+            try {
+                long fileLength = raf.length();
+                long position = 0;
+                CRC32 crc = new CRC32();
+                try {
+                    while(position + RECORD_HEADER_LENGTH <= fileLength) {
+                        raf.seek(position);
+                        int packageNumber = raf.readInt();
+                        boolean last = raf.readBoolean();
+                        int len = raf.readInt();
+                        long checksum = raf.readLong();
+
+                        long payloadOffset = position + RECORD_HEADER_LENGTH;
+                        if(len < 0 || payloadOffset + len > fileLength) {
+                            break;
+                        }
+
+                        byte[] payload = new byte[len];
+                        raf.readFully(payload);
+                        crc.reset();
+                        crc.update(payload);
+                        if(crc.getValue() != checksum) {
+                            break;
+                        }
+
+                        this.index(m, packageNumber, last, payloadOffset, len);
+                        position = payloadOffset + len;
+                    }
+                }
+                catch(EOFException eof) {
+                    // incomplete record
+                }
+
+                if(position < fileLength) {
+                    L.w("drop incomplete message part in " + m.file, this);
+                    raf.setLength(position);
+                }
+                m.end = position;
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch(IOException e) {
+            throw new SharkException("cannot read message file: " + e.getMessage());
+        }
+    }
+
+    private void index(InMessage m, int packageNumber, boolean last, long offset, int len) {
+        m.parts.put(packageNumber, new long[] {offset, len});
+        m.received.set(packageNumber);
+        if(last) {
+            m.lastPackageNumber = packageNumber;
+        }
+    }
+
+    @Override
+    public synchronized boolean savePart(String id, int packageNumber, boolean last, InputStream is) throws SharkException {
+        this.collectIfDue();
+        InMessage m = this.getInMessage(id, true);
+
+        if(packageNumber < 0) {
+            throw new SharkException("invalid package number: " + packageNumber);
+        }
+
+        if(m.received.get(packageNumber)) {
+            L.d("drop duplicate message part: " + id + " / " + packageNumber, this);
+            return false;
+        }
+
+        try {
+            byte[] buf = new byte[1024];
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            int n;
+            while((n = is.read(buf)) != -1) {
+                payload.write(buf, 0, n);
+            }
+            byte[] bytes = payload.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            // one write per record - a crash leaves at most one broken record
+            ByteArrayOutputStream record = new ByteArrayOutputStream(
+                    RECORD_HEADER_LENGTH + bytes.length);
+            DataOutputStream dos = new DataOutputStream(record);
+            dos.writeInt(packageNumber);
+            dos.writeBoolean(last);
+            dos.writeInt(bytes.length);
+            dos.writeLong(crc.getValue());
+            dos.write(bytes);
+
+            FileOutputStream fos = new FileOutputStream(m.file, true);
+            try {
+                record.writeTo(fos);
+            }
+            finally {
+                fos.close();
+            }
+
+            this.index(m, packageNumber, last, m.end + RECORD_HEADER_LENGTH, bytes.length);
+            m.end += record.size();
+        }
+        catch(IOException e) {
+            throw new SharkException("couldn't save message part: " + e.getMessage());
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean completelyReceived(String id) throws SharkException {
+        InMessage m = this.getInMessage(id, false);
+
+        return m != null && m.lastPackageNumber >= 0
+                && m.received.nextClearBit(0) > m.lastPackageNumber;
+    }
+
+    @Override
+    public synchronized BitSet getReceivedPackageNumbers(String id) throws SharkException {
+        InMessage m = this.getInMessage(id, false);
+        if(m == null) {
+            throw new SharkException("cannot find message with id: " + id);
+        }
+
+        return (BitSet) m.received.clone();
+    }
+
+    @Override
+    public synchronized int getNextPackageSizeToRead(String id) throws SharkException {
+        InMessage m = this.getInMessage(id, false);
+        if(m == null) {
+            throw new SharkException("cannot find message with id: " + id);
+        }
+
+        long[] part = m.parts.get(m.nextToRead);
+        if(part == null) {
+            // all parts read
+            return -1;
+        }
+
+        return (int) part[1];
+    }
+
+    @Override
+    public synchronized InputStream getNextPartInputStream(String id) throws SharkException {
+        InMessage m = this.getInMessage(id, false);
+        if(m == null) {
+            throw new SharkException("cannot find message with id: " + id);
+        }
+
+        long[] part = m.parts.get(m.nextToRead);
+        if(part == null) {
+            return null;
+        }
+
+        byte[] payload = new byte[(int) part[1]];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(m.file, "r");
+            try {
+                raf.seek(part[0]);
+                raf.readFully(payload);
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch(IOException e) {
+            throw new SharkException("cannot read message file: " + e.getMessage());
+        }
+
+        m.nextToRead++;
+        return new ByteArrayInputStream(payload);
+    }
+
+    @Override
+    public synchronized void removeToRead(String id) {
+        this.inMessages.remove(id);
+        this.getFile(id, IN).delete();
+    }
+
+    private synchronized void collectIfDue() {
+        long now = System.currentTimeMillis();
+        if(now - this.lastCollection > COLLECT_INTERVAL) {
+            this.lastCollection = now;
+            int removed = this.collectGarbage(this.maxAge);
+            if(removed > 0) {
+                L.d("removed stale messages: " + removed, this);
+            }
+        }
+    }
+
+    /**
+     * Removes messages which weren't touched for a while - incomplete
+     * received messages and messages which were never acknowledged.
+     *
+     * @param maxAge in ms
+     * @return number of removed messages
+     */
+    public synchronized int collectGarbage(long maxAge) {
+        long limit = System.currentTimeMillis() - maxAge;
+        int removed = 0;
+
+        File[] files = this.dir.listFiles();
+        if(files == null) {
+            return 0;
+        }
+
+        for(File file : files) {
+            String name = file.getName();
+            if(!name.endsWith(IN) && !name.endsWith(OUT) && !name.endsWith(OUT + TMP)) {
+                continue;
+            }
+
+            if(file.lastModified() < limit && file.delete()) {
+                removed++;
+            }
+        }
+
+        if(removed > 0) {
+            // drop cached state of removed files
+            Iterator<OutMessage> outIter = this.outMessages.values().iterator();
+            while(outIter.hasNext()) {
+                if(!outIter.next().file.exists()) {
+                    outIter.remove();
+                }
+            }
+
+            Iterator<InMessage> inIter = this.inMessages.values().iterator();
+            while(inIter.hasNext()) {
+                if(!inIter.next().file.exists()) {
+                    inIter.remove();
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes all messages.
+     */
+    public synchronized void clear() {
+        for(OutputStream os : this.openOS.values()) {
+            try {
+                os.close();
+            }
+            catch(IOException e) {
+                // removed anyway
+            }
+        }
+        this.openOS.clear();
+
+        this.collectGarbage(-1);
+        this.outMessages.clear();
+        this.inMessages.clear();
+    }
+}
@@ -97,6 +97,14 @@ public class M2SConnection extends ConnectionListenerManager implements StreamCo
         this.mStub.sendMessage(msg, this.receiverAddress);
     }
 
+    /**
+     * Message was too long for a single message and was stored - send it
+     * in packages.
+     */
+    void sendStoredMessage(String messageID) throws IOException {
+        this.m2sStub.sendFirstPackages(messageID, this.receiverAddress);
+    }
+
     @Override
     public String getReplyAddressString() {
         return this.mStub.getReplyAddressString();
@@ -1,8 +1,10 @@
 package net.sharkfw.protocols.m2s;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.BitSet;
 import net.sharkfw.kep.KEPMessage;
 import net.sharkfw.system.Util;
 
@@ -13,6 +15,83 @@ import net.sharkfw.system.Util;
 class M2SMessage {
     static int FIRST_PACKAGE_NUMBER = 0;
     
+    /**
+     * @return number of bytes of an insert header with that id
+     */
+    static int headerLength(String id) throws IOException {
+        int len = 0;
+        
+        len += 2; // length of id (modified UTF-8)
+        len += id.getBytes("UTF-8").length; // id itself
+        len += 4; // command
+        len += 4; // package number
+        len += 1; // finished
+        
+        return len;
+    }
+    
+    /**
+     * Acknowledges received packages. All packages below <code>next</code>
+     * are received. Packages above are received if their bit is set in
+     * <code>received</code>. Packages between next and highest without 
+     * bit are missing.
+     * 
+     * <p>Format: <code>|id|ACK|reply address|next|highest|len|bitmap|</code>
+     * - bitmap has one bit for each package from next + 1 up to highest.</p>
+     */
+    static byte[] createM2SAck(String id, String replyAddress, int next, 
+            int highest, BitSet received) throws IOException {
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        
+        dos.writeUTF(id);
+        dos.writeInt(M2SStub.M2S_ACK);
+        dos.writeUTF(replyAddress);
+        dos.writeInt(next);
+        dos.writeInt(highest);
+        
+        int bits = Math.max(0, highest - next);
+        byte[] bitmap = new byte[(bits + 7) / 8];
+        for(int i = 0; i < bits; i++) {
+            if(received.get(next + 1 + i)) {
+                bitmap[i / 8] |= 1 << (i % 8);
+            }
+        }
+        
+        dos.writeInt(bitmap.length);
+        dos.write(bitmap);
+        dos.flush();
+        
+        return baos.toByteArray();
+    }
+    
+    /**
+     * Reads bitmap of an ack - id, command and reply address are already
+     * read.
+     * 
+     * @return received packages - all below next and those in bitmap
+     */
+    static BitSet readM2SAckBitmap(DataInputStream dis, int next, int highest) throws IOException {
+        int len = dis.readInt();
+        if(len < 0 || len > (Math.max(0, highest - next) + 7) / 8) {
+            throw new IOException("malformed m2s acknowledgement");
+        }
+        
+        byte[] bitmap = new byte[len];
+        dis.readFully(bitmap);
+        
+        BitSet received = new BitSet();
+        received.set(0, Math.max(0, next));
+        for(int i = 0; i < len * 8; i++) {
+            if((bitmap[i / 8] & (1 << (i % 8))) != 0) {
+                received.set(next + 1 + i);
+            }
+        }
+        
+        return received;
+    }
+    
     static void writeM2SHeader(ByteArrayOutputStream baos, String id, 
             int packageNumber, boolean finished) throws IOException {
 
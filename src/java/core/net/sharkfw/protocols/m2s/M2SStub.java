@@ -5,6 +5,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.sharkfw.protocols.MessageStreamHandler;
 import net.sharkfw.protocols.MessageStub;
 import net.sharkfw.protocols.RequestHandler;
 import net.sharkfw.protocols.StreamConnection;
@@ -24,29 +36,126 @@ import net.sharkfw.system.SharkException;
  * over a number of messages. Once all message parts are arrived, a stream is
  * created and publised to KEPStub which provides the whole KEP message.
  * 
+ * Parts are sent with a sliding window: sender sends up to
+ * <code>window</code> parts without waiting. Receiver acknowledges after
+ * each half window, when the last part arrived and when message is
+ * complete. An acknowledgement tells which parts arrived (cumulative 
+ * number and a bitmap of later parts). Sender sends parts which are
+ * missing and moves window. Parts can arrive in any order, duplicates
+ * are dropped.
+ * 
+ * <p>A gap is resent at most once per retransmit timeout. If no part is
+ * acknowledged within that time, sender resends all unacknowledged parts.
+ * Receiver answers a duplicate by an acknowledgement - it tells sender
+ * that an acknowledgement was lost. Sender gives up after
+ * {@link #MAX_RETRANSMITS} timeouts without progress.</p>
+ * 
+ * <p>Message ids start with a random prefix which is chosen when the stub is
+ * created. Ids of a restarted peer don't collide with those received
+ * before.</p>
+ * 
+ * <p>Older peers send a part, wait for {@link #M2S_ASK} and send the next
+ * one (stop and wait). Ids of a sliding window sender carry a mark. Parts
+ * with an unmarked id are answered by M2S_ASK - never by an
+ * acknowledgement. A sender which gets M2S_ASK talks to an older peer:
+ * it answers each M2S_ASK by the next part and doesn't retransmit.</p>
+ * 
  * @author thsc
  */
-public class M2SStub implements StreamStub, RequestHandler {
+public class M2SStub implements StreamStub, MessageStreamHandler {
   
     public static final int INT_TRUE = 1;
     public static final int INT_FALSE = 0;
 
-    public static final int M2S_INSERT = 1;
+    /** stop and wait: receiver asks for next part - sent by older peers */
     public static final int M2S_ASK = 0;
+    public static final int M2S_INSERT = 1;
+    public static final int M2S_ACK = 2;
+    
+    /**
+     * Ends id part (before ':') of a message id if sender uses a sliding window
+     */
+    static final String WINDOW_MARK = "+w";
+    
+    public static final int DEFAULT_WINDOW = 8;
+    
+    public static final long DEFAULT_RETRANSMIT_TIMEOUT = 60 * 1000;
+    
+    /**
+     * Timeouts without progress before a message is given up
+     */
+    public static final int MAX_RETRANSMITS = 10;
+    
+    /**
+     * Late parts of that many completely received messages are recognized
+     */
+    private static final int MAX_COMPLETED = 256;
     
     private final MessageStub mStub;
     private RequestHandler handler;
     private int ids = 0; // any connection gets its own id.
+    private final String idPrefix = M2SStub.createIDPrefix();
     private final MessageStorage storage;
+    private int window = DEFAULT_WINDOW;
+    private long retransmitTimeout = DEFAULT_RETRANSMIT_TIMEOUT;
+    
+    // received parts since last acknowledgement - per message
+    private final HashMap<String, Integer> unacknowledged = new HashMap<>();
+    
+    // ids of completely received messages - and their number of parts
+    private final LinkedHashMap<String, Integer> completed = 
+            new LinkedHashMap<String, Integer>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return this.size() > MAX_COMPLETED;
+                }
+            };
+    
+    // messages which are sent in parts and not yet completely acknowledged
+    private final HashMap<String, Outgoing> outgoing = new HashMap<>();
+    
+    private ScheduledThreadPoolExecutor timer = null; // guarded by this
+    
+    /**
+     * Sender state of a message which is sent in parts
+     */
+    private static class Outgoing {
+        final String recipientAddress;
+        final int numberOfPackages;
+        
+        /** parts recipient has acknowledged */
+        final BitSet acknowledged = new BitSet();
+        
+        /** when a part was resent last - 0 if never */
+        final long[] resent;
+        
+        long lastProgress = System.currentTimeMillis();
+        int retransmits = 0;
+        
+        /** recipient asks for each part - no acknowledgements */
+        boolean stopAndWait = false;
+        
+        Outgoing(String recipientAddress, int numberOfPackages) {
+            this.recipientAddress = recipientAddress;
+            this.numberOfPackages = numberOfPackages;
+            this.resent = new long[numberOfPackages];
+        }
+    }
     
 
     /*************************************************************************
      *                                ID handling                            * 
      *************************************************************************/ 
     
-    String getNewID() {
-        String idString = String.valueOf(ids++) + ":" + 
-                this.mStub.getReplyAddressString();
+    private static String createIDPrefix() {
+        // ':' separates address and must not be used
+        return Long.toString(System.currentTimeMillis(), 36) + "-" 
+                + Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+    }
+    
+    synchronized String getNewID() {
+        String idString = this.idPrefix + "." + String.valueOf(ids++) 
+                + WINDOW_MARK + ":" + this.mStub.getReplyAddressString();
         
         return idString;
     }
@@ -56,6 +165,14 @@ public class M2SStub implements StreamStub, RequestHandler {
         return id.substring(index+1);
     }
     
+    /**
+     * @return false if sender waits for M2S_ASK after each part
+     */
+    static boolean isWindowed(String id) {
+        int index = id.indexOf(":");
+        return (index < 0 ? id : id.substring(0, index)).endsWith(WINDOW_MARK);
+    }
+    
     /*************************************************************************
      *                                others                                 * 
      *************************************************************************/ 
@@ -95,6 +212,34 @@ public class M2SStub implements StreamStub, RequestHandler {
         
     }
 
+    /**
+     * @param window number of parts which are sent without waiting for
+     * an acknowledgement - should be the same on both sides
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+    
+    public int getWindow() {
+        return this.window;
+    }
+    
+    /**
+     * @param millis parts which aren't acknowledged in that time are resent -
+     * should be above round trip time of underlying protocol
+     */
+    public synchronized void setRetransmitTimeout(long millis) {
+        this.retransmitTimeout = Math.max(1, millis);
+        this.stopTimer();
+        if(!this.outgoing.isEmpty()) {
+            this.startTimer();
+        }
+    }
+    
+    public synchronized long getRetransmitTimeout() {
+        return this.retransmitTimeout;
+    }
+
     @Override
     public String getLocalAddress() {
         return this.mStub.getReplyAddressString();
@@ -102,6 +247,9 @@ public class M2SStub implements StreamStub, RequestHandler {
 
     @Override
     public void stop() {
+        synchronized(this) {
+            this.stopTimer();
+        }
         this.mStub.stop();
     }
 
@@ -117,145 +265,460 @@ public class M2SStub implements StreamStub, RequestHandler {
      */
     @Override
     public void handleMessage(byte[] msg, MessageStub stub) {
-      
-      ByteArrayInputStream bais = new ByteArrayInputStream(msg);
-      
         try {
-//            if(this.storage instanceof SharkKBMessageStorage) {
-//                SharkKBMessageStorage kbStorage = (SharkKBMessageStorage)this.storage;
-//                
-//                L.d("storage when entering M2SSub.handleMessage: " + 
-//                        L.kbSpace2String(kbStorage.getKB()), this);
-//            }
+            this.handleMessage(new ByteArrayInputStream(msg), stub);
+        } catch (IOException ex) {
+          L.d("IOException while handling message: " + ex.getMessage(), this);
+        }
+    }
+    
+    /**
+     * Message parts are streamed into storage - they aren't copied
+     * into memory before.
+     * 
+     * @param is
+     * @param stub
+     * @throws IOException 
+     */
+    @Override
+    public void handleMessage(InputStream is, MessageStub stub) throws IOException {
+//        if(this.storage instanceof SharkKBMessageStorage) {
+//            SharkKBMessageStorage kbStorage = (SharkKBMessageStorage)this.storage;
+//            
+//            L.d("storage when entering M2SSub.handleMessage: " + 
+//                    L.kbSpace2String(kbStorage.getKB()), this);
+//        }
+        
+        DataInputStream dis = new DataInputStream(is);
+        // read ID
+        String id = dis.readUTF();
+        
+        L.d("found message with id: " + id, this);
+        
+        // read command
+        int m2sCmd = dis.readInt();
+        L.d("m2s command: " + m2sCmd, this);
+        
+        // end parsing header
+        if(m2sCmd == M2SStub.M2S_INSERT) {
+            // received something 
+            
+            // read remaining insert header fields
             
-            DataInputStream dis = new DataInputStream(bais);
-            // read ID
-            String id = dis.readUTF();
+            // read package number
+            int packageNumber = dis.readInt();
+
+            // write finished
+            boolean isLast = dis.readBoolean();
             
-            L.d("found message with id: " + id, this);
+            L.d("package number: " + packageNumber, this);
+            L.d("is last package: " + isLast, this);
             
-            // read command
-            int m2sCmd = dis.readInt();
-            L.d("m2s command: " + m2sCmd, this);
+            /*
+             * Usually, a KEP message will fit into a single message
+             * Check if this is the case
+             */
+            if(packageNumber == M2SMessage.FIRST_PACKAGE_NUMBER && isLast) {
+                // that's all: this message contains the whole KEP message
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buf = new byte[1024];
+                int n;
+                while((n = is.read(buf)) != -1) {
+                    baos.write(buf, 0, n);
+                }
+
+                // create a stream connection
+                StreamConnection con = 
+                        new M2SConnection(this.storage, 
+                        new ByteArrayInputStream(baos.toByteArray()), 
+                        this.extractAddressString(id), this, stub, id);
+
+                this.handler.handleStream(con);
+            } else { // received message part
+                this.handlePart(id, packageNumber, isLast, is, stub);
+            }
+        } else if(m2sCmd == M2SStub.M2S_ACK) {
+            // remote peer tells which parts arrived
+            String replyAddress = dis.readUTF();
+            int next = dis.readInt();
+            int highest = dis.readInt();
+            BitSet received = M2SMessage.readM2SAckBitmap(dis, next, highest);
             
-            // end parsing header
-            if(m2sCmd == M2SStub.M2S_INSERT) {
-                // received something 
+            this.handleAck(id, replyAddress, next, highest, received);
+        } else if(m2sCmd == M2SStub.M2S_ASK) {
+            // older peer asks for next part
+            String replyAddress = dis.readUTF();
+            this.handleAsk(id, replyAddress);
+        } else {
+            L.w("unknown m2s command: " + m2sCmd, this);
+        }
+        
+        if(L.isDebug() && this.storage instanceof SharkKBMessageStorage) {
+            SharkKBMessageStorage kbStorage = (SharkKBMessageStorage)this.storage;
+            
+            L.d("storage after entering M2SSub.handleMessage: " + 
+                    L.kb2String(kbStorage.getKB()), this);
+        }
+    }
+
+    /**
+     * Stores a part. Hands over KEP message if it is complete. 
+     * Acknowledges if necessary.
+     */
+    private void handlePart(String id, int packageNumber, boolean isLast, 
+            InputStream is, MessageStub stub) throws IOException {
+        
+        Integer completedPackages;
+        synchronized(this) {
+            completedPackages = this.completed.get(id);
+        }
+        
+        boolean windowed = M2SStub.isWindowed(id);
+        
+        if(completedPackages != null) {
+            // resent part of a message which is already complete - final ack got lost
+            L.d("drop part of already received message: " + id, this);
+            if(!windowed) {
+                // older peers neither resend nor take acknowledgements
+                return;
+            }
+            BitSet all = new BitSet();
+            all.set(0, completedPackages);
+            this.sendAck(id, completedPackages, completedPackages - 1, all);
+            return;
+        }
+        
+        try {
+            // save this part
+            boolean isNew = this.storage.savePart(id, packageNumber, isLast, is);
+
+            // last part ?
+            if(this.storage.completelyReceived(id)) {
+                L.d("receveid last message part - transmit whole message to KEPStub", this);
+                BitSet received = this.storage.getReceivedPackageNumbers(id);
+                int number = received.nextClearBit(0);
+                synchronized(this) {
+                    this.completed.put(id, number);
+                    this.unacknowledged.remove(id);
+                }
                 
-                // read remaining insert header fields
+                // sender can drop message - older peers don't wait for that
+                if(windowed) {
+                    this.sendAck(id, number, number - 1, received);
+                }
                 
-                // read package number
-                int packageNumber = dis.readInt();
+                StreamConnection con = 
+                        new M2SConnection(this.storage, 
+                        this.extractAddressString(id), this, stub, id);
 
-                // write finished
-                boolean isLast = dis.readBoolean();
+                this.handler.handleStream(con);
+                return;
+            }
+            
+            if(!windowed) {
+                // stop and wait - ask older peer for next part
+                this.sendAsk(id);
+                return;
+            }
+            
+            int count;
+            synchronized(this) {
+                Integer value = this.unacknowledged.get(id);
+                count = (value == null ? 0 : value) + (isNew ? 1 : 0);
                 
-                L.d("package number: " + packageNumber, this);
-                L.d("is last package: " + isLast, this);
+                // a last part which doesn't complete the message means parts are missing,
+                // a duplicate means our acknowledgement didn't arrive
+                if(isNew && count < Math.max(1, this.window / 2) && !isLast) {
+                    this.unacknowledged.put(id, count);
+                    return;
+                }
                 
-                /*
-                 * Usually, a KEP message will fit into a single message
-                 * Check if this is the case
-                 */
-                if(packageNumber == M2SMessage.FIRST_PACKAGE_NUMBER && isLast) {
-                    // that's all: this message contains the whole KEP message
-
-                    // create a stream connection
-                    StreamConnection con = 
-                            new M2SConnection(this.storage, bais, 
-                            this.extractAddressString(id), this, stub, id);
-
-                    this.handler.handleStream(con);
-                } else { // received message part
-                    try {
-                        // save this part
-                        this.storage.savePart(id, packageNumber, isLast, bais);
-
-                        // last part ?
-                        if(this.storage.completelyReceived(id)) {
-                            L.d("receveid last message part - transmit whole message to KEPStub", this);
-                            StreamConnection con = 
-                                    new M2SConnection(this.storage, 
-                                    this.extractAddressString(id), this, stub, id);
+                this.unacknowledged.put(id, 0);
+            }
+            
+            BitSet received = this.storage.getReceivedPackageNumbers(id);
+            this.sendAck(id, received.nextClearBit(0), received.length() - 1, received);
+        }
+        catch(SharkException e) {
+            L.d("couldn't save message part: " + e.getMessage(), this);
+        }
+    }
+    
+    private void sendAck(String id, int next, int highest, BitSet received) throws IOException {
+        L.d("acknowledge " + id + ": next / highest: " + next + " / " + highest, this);
+        
+        byte[] ack = M2SMessage.createM2SAck(id, this.mStub.getReplyAddressString(), 
+                next, highest, received);
+        
+        this.mStub.sendMessage(ack, this.extractAddressString(id));
+    }
+    
+    private void sendAsk(String id) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(id);
+        dos.writeInt(M2SStub.M2S_ASK);
+        dos.writeUTF(this.mStub.getReplyAddressString());
+        dos.flush();
+        
+        this.mStub.sendMessage(baos.toByteArray(), this.extractAddressString(id));
+    }
+    
+    /**
+     * Older recipient asks after each part it got. First window was sent 
+     * already - each ask is answered by next unsent part.
+     */
+    private void handleAsk(String id, String replyAddress) throws IOException {
+        try {
+            Outgoing out = this.getOutgoing(id, replyAddress);
+            
+            synchronized(out) {
+                out.stopAndWait = true;
+                out.lastProgress = System.currentTimeMillis();
+                
+                int nextToSend = this.storage.nextPackageNumberToSend(id);
+                if(nextToSend < out.numberOfPackages) {
+                    this.sendPackage(id, nextToSend, out.numberOfPackages, replyAddress);
+                    nextToSend++;
+                    this.storage.setNextPackageNumberToSend(id, nextToSend);
+                }
+                
+                if(nextToSend >= out.numberOfPackages) {
+                    // recipient doesn't acknowledge - nothing left to do
+                    L.d("all parts sent to older peer: " + id, this);
+                    this.finished(id);
+                }
+            }
+        }
+        catch(SharkException e) {
+            L.d("couldn't found message part - already removed or never existed", this);
+        }
+    }
+    
+    /**
+     * Sends missing parts and moves window.
+     */
+    private void handleAck(String id, String replyAddress, int next, 
+            int highest, BitSet received) throws IOException {
+        
+        try {
+            Outgoing out = this.getOutgoing(id, replyAddress);
+            
+            synchronized(out) {
+                int numberOfPackages = out.numberOfPackages;
 
-                            this.handler.handleStream(con);
-                        } else {
-                            // ask other peer for next packet
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            DataOutputStream dos = new DataOutputStream(baos);
+                if(next >= numberOfPackages) {
+                    L.d("message completely received by remote peer: " + id, this);
+                    this.finished(id);
+                    return;
+                }
+                
+                // any new part acknowledged?
+                int before = out.acknowledged.cardinality();
+                out.acknowledged.set(0, next);
+                out.acknowledged.or(received);
+                
+                long now = System.currentTimeMillis();
+                if(out.acknowledged.cardinality() > before) {
+                    out.lastProgress = now;
+                    out.retransmits = 0;
+                }
 
-                            // write ID
-                            dos.writeUTF(id);
+                // parts below highest which didn't arrive are lost - 
+                // resend once per timeout, acks of a single loss pile up
+                long timeout = this.getRetransmitTimeout();
+                for(int i = next; i < highest && i < numberOfPackages; i++) {
+                    if(!received.get(i) && now - out.resent[i] >= timeout) {
+                        L.d("resend lost part " + i + " of " + id, this);
+                        this.sendPackage(id, i, numberOfPackages, replyAddress);
+                        out.resent[i] = now;
+                    }
+                }
 
-                            // aks remote peer for next packet
-                            dos.writeInt(M2SStub.M2S_ASK);
+                // move window
+                int nextToSend = this.storage.nextPackageNumberToSend(id);
+                int windowEnd = Math.min(numberOfPackages, next + this.window);
+                for(int i = nextToSend; i < windowEnd; i++) {
+                    this.sendPackage(id, i, numberOfPackages, replyAddress);
+                }
 
-                            dos.writeUTF(stub.getReplyAddressString());
+                if(windowEnd > nextToSend) {
+                    this.storage.setNextPackageNumberToSend(id, windowEnd);
+                }
+            }
+        }
+        catch(SharkException e) {
+            L.d("couldn't found message part - already removed or never existed", this);
+        }
+    }
+    
+    /**
+     * @return sender state - restored from storage if it is unknown (e.g.
+     * after a restart)
+     * @throws SharkException message isn't stored
+     */
+    private Outgoing getOutgoing(String id, String recipientAddress) throws SharkException {
+        synchronized(this) {
+            Outgoing out = this.outgoing.get(id);
+            if(out != null) {
+                return out;
+            }
+        }
+        
+        int numberOfPackages = this.storage.getNumberOfPackages(id);
+        
+        synchronized(this) {
+            Outgoing out = this.outgoing.get(id);
+            if(out == null) {
+                out = new Outgoing(recipientAddress, numberOfPackages);
+                this.outgoing.put(id, out);
+                this.startTimer();
+            }
+            
+            return out;
+        }
+    }
+    
+    private void finished(String id) {
+        synchronized(this) {
+            this.outgoing.remove(id);
+        }
+        
+        this.storage.removeToSend(id);
+    }
+    
+    private void startTimer() {
+        if(this.timer != null) {
+            return;
+        }
+        
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "M2SRetransmit");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        
+        long period = Math.max(1, this.retransmitTimeout / 4);
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                M2SStub.this.retransmit(System.currentTimeMillis());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    private void stopTimer() {
+        if(this.timer != null) {
+            this.timer.shutdownNow();
+            this.timer = null;
+        }
+    }
+    
+    /**
+     * Resends unacknowledged parts of messages which made no progress
+     * within retransmit timeout. Called by timer.
+     * 
+     * @param now current time
+     */
+    void retransmit(long now) {
+        List<Map.Entry<String, Outgoing>> messages;
+        long timeout;
+        synchronized(this) {
+            if(this.outgoing.isEmpty()) {
+                this.stopTimer();
+                return;
+            }
+            
+            messages = new ArrayList<>(this.outgoing.entrySet());
+            timeout = this.retransmitTimeout;
+        }
+        
+        for(Map.Entry<String, Outgoing> entry : messages) {
+            String id = entry.getKey();
+            Outgoing out = entry.getValue();
+            
+            synchronized(out) {
+                if(now - out.lastProgress < timeout) {
+                    continue;
+                }
+                
+                if(out.stopAndWait) {
+                    // older peer stopped asking - it doesn't expect resent parts
+                    L.w("give up sending message - no more asks: " + id, this);
+                    this.finished(id);
+                    continue;
+                }
 
-                            this.mStub.sendMessage(baos.toByteArray(), this.extractAddressString(id));
-                        }
-                    }
-                    catch(SharkException e) {
-                        L.d("couldn't save message part: " + e.getMessage(), this);
-                    }
+                if(++out.retransmits > MAX_RETRANSMITS) {
+                    L.w("give up sending message - no acknowledgement: " + id, this);
+                    this.finished(id);
+                    continue;
                 }
-            } else {
-                // asked for next package
-                String replyAddress = dis.readUTF();
+
                 try {
-                    int nextPackageNumber = this.storage.nextPackageNumberToSend(id);
-                    String recipientAddress = this.storage.getRecipientAddress(id);
-                    int packageSize = this.storage.getMaxPackageSize(id);
-                    
-                    int headerLen = id.length() + 20; // TODO 20 is a guess
-                    
-                    L.d("processing ASK request", this);
-                    
-                    // we have got the package: stream next part into next message
-                    int remainingBytes = this.storage.remainingNumberOfBytes(id, nextPackageNumber);
-                    L.d("recipient / packageSize / remaining Bytes: " + recipientAddress + " / " + packageSize + " / " + remainingBytes, this);
-                    
-                    boolean isLastPackage;    
-                    int size;
-                    
-                    if(remainingBytes + headerLen <= packageSize) {
-                        // last package
-                        isLastPackage = true;
-                        size = remainingBytes;
+                    int nextToSend = this.storage.nextPackageNumberToSend(id);
+                    for(int i = out.acknowledged.nextClearBit(0); i < nextToSend; 
+                            i = out.acknowledged.nextClearBit(i + 1)) {
                         
-                    } else {
-                        // next chunk to send
-                        isLastPackage = false;
-                        size = remainingBytes - headerLen;
+                        L.d("timeout - resend part " + i + " of " + id, this);
+                        this.sendPackage(id, i, out.numberOfPackages, out.recipientAddress);
+                        out.resent[i] = now;
                     }
-                    L.d("isLastPackage / size: " + isLastPackage + " / " + size, this);
-                    
-                    // create header
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    M2SMessage.writeM2SHeader(baos, id, nextPackageNumber, isLastPackage);
-
-                    // stream payload
-                    this.storage.streamNextPackageToSend(baos, id, size);
-
-                    byte[] newMsg = baos.toByteArray();
-
-                    this.mStub.sendMessage(newMsg, replyAddress);
+                }
+                catch(IOException e) {
+                    L.d("couldn't resend part of " + id + ": " + e.getMessage(), this);
                 }
                 catch(SharkException e) {
-                    L.d("couldn't found message part - already removed or never existed", this);
+                    L.d("couldn't resend part of " + id + ": " + e.getMessage(), this);
                 }
+                
+                out.lastProgress = now;
             }
+        }
+    }
+    
+    /**
+     * Message was stored because it didn't fit into a single message.
+     * Send first window of parts.
+     */
+    void sendFirstPackages(String id, String recipientAddress) throws IOException {
+        try {
+            int numberOfPackages = this.storage.getNumberOfPackages(id);
+            int windowEnd = Math.min(numberOfPackages, this.window);
             
-            if(this.storage instanceof SharkKBMessageStorage) {
-                SharkKBMessageStorage kbStorage = (SharkKBMessageStorage)this.storage;
-                
-                L.d("storage after entering M2SSub.handleMessage: " + 
-                        L.kb2String(kbStorage.getKB()), this);
+            for(int i = 0; i < windowEnd; i++) {
+                this.sendPackage(id, i, numberOfPackages, recipientAddress);
+            }
+            
+            if(numberOfPackages == 1) {
+                // a single message isn't acknowledged
+                this.storage.removeToSend(id);
+            } else {
+                this.storage.setNextPackageNumberToSend(id, windowEnd);
+                synchronized(this) {
+                    this.outgoing.put(id, new Outgoing(recipientAddress, numberOfPackages));
+                    this.startTimer();
+                }
             }
-
-        } catch (IOException ex) {
-          L.d("IOException while handling message: " + ex.getMessage(), this);
         }
+        catch(SharkException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+    
+    private void sendPackage(String id, int packageNumber, int numberOfPackages, 
+            String recipientAddress) throws IOException, SharkException {
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        M2SMessage.writeM2SHeader(baos, id, packageNumber, 
+                packageNumber == numberOfPackages - 1);
+        
+        this.storage.streamPackage(baos, id, packageNumber);
+        
+        this.mStub.sendMessage(baos.toByteArray(), recipientAddress);
     }
 
     @Override
@@ -1,77 +1,98 @@
-package net.sharkfw.protocols.m2s;
-
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import net.sharkfw.system.SharkException;
-
-/**
- *
- * @author thsc
- */
-public interface MessageStorage {
-
-    ///////////////////////////////////////////////////////////
-    //                    sender storage                     //
-    ///////////////////////////////////////////////////////////
-    
-    /**
-     * Create a temporary storage for a long message that is to be send
-     * 
-     * @param id message id
-     * @param firstOffset first by offset in original message
-     * @return 
-     */
-    public OutputStream getOutputStream(String id, String recipientAddress, int maxLen) throws SharkException;
-
-    public void finishedStoringForLaterSending(String id) throws SharkException;
-
-    /**
-     * Save all bytes beginning at offset with some meta information.
-     * @param id
-     * @param packageNumber
-     * @param last
-     * @param msg
-     * @param offset 
-     */
-    public void savePart(String id, int packageNumber, boolean last, InputStream is) throws SharkException;
-
-    // sending out message after message ////////////////////////////////////
-
-    /**
-     * What is next message to read
-     * @param id
-     * @return 
-     */
-    public int nextPackageNumberToSend(String id) throws SharkException;
-
-    /**
-     * @param id
-     * @param nextPackageNumber
-     * @return 
-     */
-    public int remainingNumberOfBytes(String id, int nextPackageNumber) throws SharkException;
-
-    public int getMaxPackageSize(String id) throws SharkException;
-
-    public void streamNextPackageToSend(ByteArrayOutputStream baos, String id, int size) throws SharkException;
-    
-    ///////////////////////////////////////////////////////////
-    //                    receiver storage                   //
-    ///////////////////////////////////////////////////////////
-    
-    /**
-     * Are all parts of this message stored
-     * @param id
-     * @return 
-     */
-    public boolean completelyReceived(String id) throws SharkException;
-
-    public String getRecipientAddress(String id) throws SharkException;
-
-    public int getNextPackageSizeToRead(String id) throws SharkException;
-
-    public InputStream getNextPartInputStream(String id) throws SharkException;
-
-    public void removeToRead(String id);
-}
+package net.sharkfw.protocols.m2s;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+import net.sharkfw.system.SharkException;
+
+/**
+ *
+ * @author thsc
+ */
+public interface MessageStorage {
+
+    ///////////////////////////////////////////////////////////
+    //                    sender storage                     //
+    ///////////////////////////////////////////////////////////
+    
+    /**
+     * Create a temporary storage for a long message that is to be send
+     * 
+     * @param id message id
+     * @param firstOffset first by offset in original message
+     * @return 
+     */
+    public OutputStream getOutputStream(String id, String recipientAddress, int maxLen) throws SharkException;
+
+    public void finishedStoringForLaterSending(String id) throws SharkException;
+
+    /**
+     * Save a received part with some meta information. Parts can arrive
+     * in any order. A part which is already stored is ignored.
+     * @param id
+     * @param packageNumber
+     * @param last
+     * @param is
+     * @return false if that part was already stored
+     */
+    public boolean savePart(String id, int packageNumber, boolean last, InputStream is) throws SharkException;
+
+    // sending out message after message ////////////////////////////////////
+
+    /**
+     * @param id
+     * @return number of packages the stored message is split into
+     */
+    public int getNumberOfPackages(String id) throws SharkException;
+
+    /**
+     * @param id
+     * @return lowest package number which wasn't sent yet
+     */
+    public int nextPackageNumberToSend(String id) throws SharkException;
+
+    public void setNextPackageNumberToSend(String id, int packageNumber) throws SharkException;
+
+    public int getMaxPackageSize(String id) throws SharkException;
+
+    /**
+     * Writes payload of a package. Packages can be streamed in any order
+     * and more than once.
+     * 
+     * @param os
+     * @param id
+     * @param packageNumber 
+     */
+    public void streamPackage(OutputStream os, String id, int packageNumber) throws SharkException;
+    
+    /**
+     * All packages are received by recipient - message is removed.
+     * @param id 
+     */
+    public void removeToSend(String id);
+    
+    ///////////////////////////////////////////////////////////
+    //                    receiver storage                   //
+    ///////////////////////////////////////////////////////////
+    
+    /**
+     * Are all parts of this message stored
+     * @param id
+     * @return 
+     */
+    public boolean completelyReceived(String id) throws SharkException;
+
+    /**
+     * @param id
+     * @return numbers of stored parts of that message
+     */
+    public BitSet getReceivedPackageNumbers(String id) throws SharkException;
+
+    public String getRecipientAddress(String id) throws SharkException;
+
+    public int getNextPackageSizeToRead(String id) throws SharkException;
+
+    public InputStream getNextPartInputStream(String id) throws SharkException;
+
+    public void removeToRead(String id);
+}
@@ -50,6 +50,8 @@ public class MessagesToStreamInputStream extends InputStream {
             if(currentStream == null) {
                 this.size = this.storage.getNextPackageSizeToRead(id);
                 if(this.size == -1) {
+                    // all parts read - remove temporary storage
+                    this.storage.removeToRead(this.id);
                     return -1;
                 }
 
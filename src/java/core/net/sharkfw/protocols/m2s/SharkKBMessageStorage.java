@@ -1,13 +1,12 @@
 package net.sharkfw.protocols.m2s;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.HashMap;
 
-import net.sharkfw.system.TimeLong;
 import net.sharkfw.knowledgeBase.ContextCoordinates;
 import net.sharkfw.knowledgeBase.ContextPoint;
 import net.sharkfw.knowledgeBase.Information;
@@ -27,16 +26,13 @@ import net.sharkfw.system.Streamer;
 public class SharkKBMessageStorage implements MessageStorage {
     private final SharkKB kb;
     private static final String RECIPIENT_ADDRESS = "kbStorage_recipientAddress";
-    private static final String CURRENT_OFFSET = "kbStorage_currentOffset";
     private static final String MAXLEN = "kbStorage_maxlen";
     
     private HashMap<String, OutputStream> openOS = new HashMap();
-    private static final String LAST_INFORMATION_INDEX = "kbStorage_lastInfoIndex";
     private static final String IS_LAST = "kbStorage_isLast";
-    private static final String OFFSET = "kbStorage_offset";
     private static final String PACKAGENUMBER = "kbStorage_packageNumber";
-    private static final String LAST_SEND_PACKAGE_NUMBER = "kbStorage_LastSendPackageNumber";
-    private static final String MESSAGE_COMPLETE = "kbStorage_messageComplete";
+    private static final String NEXT_PACKAGE_NUMBER_TO_SEND = "kbStorage_nextPackageNumberToSend";
+    private static final String LAST_PACKAGE_NUMBER = "kbStorage_lastPackageNumber";
     private static final String CURRENT_PACKAGE_TO_READ = "kbStorage_currentPackageToRead";
     private static final String SIZE = "kbStorage_size";
     
@@ -95,12 +91,11 @@ public class SharkKBMessageStorage implements MessageStorage {
         ContextPoint cp = this.createCP(id, true);
         
         cp.setProperty(RECIPIENT_ADDRESS, recipientAddress);
-        cp.setProperty(CURRENT_OFFSET, Integer.toString(0));
         cp.setProperty(MAXLEN, Integer.toString(maxLen));
+        cp.setProperty(NEXT_PACKAGE_NUMBER_TO_SEND, Integer.toString(0));
         
         try {
             Information i = cp.addInformation();
-            i.setName(recipientAddress); // help debugging
             OutputStream os = i.getOutputStream();
             
             this.openOS.put(id, os);
@@ -129,97 +124,102 @@ public class SharkKBMessageStorage implements MessageStorage {
     }
 
     /**
-     * Received a part and store until message is complete.
+     * Received a part and store until message is complete. Parts can
+     * arrive in any order - duplicates are dropped.
      * @param id
      * @param packageNumber
      * @param last
-     * @param msg
-     * @param offset 
+     * @param is
+     * @return false if part was already stored
      */
-    public void savePart(String id, int packageNumber, boolean last, InputStream is) throws SharkException {
+    public boolean savePart(String id, int packageNumber, boolean last, InputStream is) throws SharkException {
         ContextPoint cp = this.createCP(id, false);
-        // got a new part - create information for it
-        String infoIndexString = cp.getProperty(LAST_INFORMATION_INDEX);
         
-        int infoIndex = 0; // default 0
-        if(infoIndexString != null) {
-            infoIndex = Integer.parseInt(infoIndexString);
-            infoIndex++;
+        if(this.getInformation(id, Integer.toString(packageNumber)) != null) {
+            L.d("drop duplicate message part: " + id + " / " + packageNumber, this);
+            return false;
         }
         
         Information i = cp.addInformation();
-        i.setName(id); // helps debugging
         
         try {
             OutputStream infoOS = i.getOutputStream();
 
-            int size = Streamer.stream(is, infoOS, 100);
+            // read up to end - available() of a decoding stream can be 0 before
+            int size = 0;
+            byte[] buf = new byte[1024];
+            int n;
+            while((n = is.read(buf)) != -1) {
+                infoOS.write(buf, 0, n);
+                size += n;
+            }
 
             i.setProperty(IS_LAST, Boolean.toString(last));
             i.setProperty(PACKAGENUMBER, Integer.toString(packageNumber));
             i.setProperty(SIZE, Integer.toString(size));
 
-            cp.setProperty(LAST_INFORMATION_INDEX, Integer.toString(infoIndex));
-
             if(last) {
-                cp.setProperty(MESSAGE_COMPLETE, String.valueOf(true));
+                cp.setProperty(LAST_PACKAGE_NUMBER, Integer.toString(packageNumber));
             }
         }
         catch(Exception e) {
-            // TODO
+            throw new SharkException("couldn't save message part: " + e.getMessage());
         }
+        
+        return true;
     }
 
     /**
-     * Returns number of the next package that should be send to complete
-     * KEP message
+     * Stored message is sent in packages of max package size.
      * @param id
      * @return 
      */
-    public int nextPackageNumberToSend(String id) throws SharkException {
-        ContextPoint cp = this.getCP(id, true);
+    public int getNumberOfPackages(String id) throws SharkException {
+        Information i = this.getMessageToSend(id);
+        int maxLen = this.getMaxPackageSize(id);
         
-        String infoIndexString = cp.getProperty(LAST_INFORMATION_INDEX);
+        long len = i.getContentLength();
         
-        int infoIndex = 1; // default 1 - because 0 was the first part
-        if(infoIndexString != null) {
-            infoIndex = Integer.parseInt(infoIndexString);
-            infoIndex++;
+        // an empty message is still one package
+        long packages = Math.max(1, (len + maxLen - 1) / maxLen);
+        if(packages > Integer.MAX_VALUE) {
+            throw new SharkException("message too long: " + len);
         }
-
-        return infoIndex;
+        
+        return (int) packages;
     }
 
     /**
-     * Return number of byte in the information.
+     * Returns number of the next package that wasn't sent so far.
      * @param id
-     * @param packageNumber
      * @return 
      */
-    public int remainingNumberOfBytes(String id, int packageNumber) throws SharkException {
+    public int nextPackageNumberToSend(String id) throws SharkException {
+        ContextPoint cp = this.getCP(id, true);
+        
+        String value = cp.getProperty(NEXT_PACKAGE_NUMBER_TO_SEND);
+        if(value != null) {
+            return Integer.parseInt(value);
+        }
+        
+        return 0;
+    }
+    
+    public void setNextPackageNumberToSend(String id, int packageNumber) throws SharkException {
+        ContextPoint cp = this.getCP(id, true);
+        
+        cp.setProperty(NEXT_PACKAGE_NUMBER_TO_SEND, Integer.toString(packageNumber));
+    }
+    
+    private Information getMessageToSend(String id) throws SharkException {
         ContextPoint cp = this.getCP(id, true);
         
         Enumeration<Information> infoEnum = cp.enumInformation();
-        if(infoEnum != null) {
-            Information i = infoEnum.nextElement();
-
-            int currentOffset = 0;
-            String value = i.getProperty(CURRENT_OFFSET);
-            if(value != null) {
-                currentOffset = Integer.parseInt(value);
-            }
-            
-            // TODO: clean up types, remove cast to int
-            int remainingNumber = ((int)i.getContentLength()) - currentOffset;
-            
-            if(remainingNumber < 0) {
-                throw new SharkException("internal error: current offset in message storage is smaller than actual size - impossible");
-            }
-            
-            return remainingNumber;
+        if(infoEnum != null && infoEnum.hasMoreElements()) {
+            return infoEnum.nextElement();
         }
         
-        throw new SharkException("cannot find remaining message part - fatal");
+        throw new SharkException("cannot find stored message - fatal");
     }
     
     /**
@@ -238,7 +238,7 @@ public class SharkKBMessageStorage implements MessageStorage {
                 Information i = infoEnum.nextElement();
                 
                 String packageNumberString = i.getProperty(PACKAGENUMBER);
-                if(packageNumberString.equalsIgnoreCase(packageNumber)) {
+                if(packageNumber.equals(packageNumberString)) {
                     return i;
                 }
             }
@@ -269,49 +269,51 @@ public class SharkKBMessageStorage implements MessageStorage {
     }
 
     
-    public void streamNextPackageToSend(ByteArrayOutputStream baos, String id, int size) throws SharkException {
-        ContextPoint cp = this.getCP(id, true);
-        
-        String offsetString = cp.getProperty(CURRENT_OFFSET);
-        
-        long offset = 0;
-        if(offsetString != null) {
-            offset = TimeLong.parse(offsetString);
-        }
-        
-        String packageNumberString = cp.getProperty(LAST_SEND_PACKAGE_NUMBER);
-        int pNumber = 0;
-        if(packageNumberString != null) {
-            pNumber = Integer.parseInt(packageNumberString);
+    /**
+     * Package n contains bytes beginning at n * max package size.
+     * @param os
+     * @param id
+     * @param packageNumber 
+     */
+    public void streamPackage(OutputStream os, String id, int packageNumber) throws SharkException {
+        Information i = this.getMessageToSend(id);
+        long maxLen = this.getMaxPackageSize(id);
+        
+        long offset = packageNumber * maxLen;
+        long size = Math.min(maxLen, i.getContentLength() - offset);
+        if(packageNumber < 0 || size < 0) {
+            throw new SharkException("no such package: " + packageNumber);
         }
         
-        Information i = cp.enumInformation().nextElement();
-        
         try {
             InputStream inputStream = i.getInputStream();
-            long skipped = inputStream.skip(offset);
-            
-            if(skipped != offset) {
-                throw new SharkException("couldn't skip as much as I wanted to: fatal");
-            }
-            
-            Streamer.stream(inputStream, baos, 100, size);
-            
-            offset += size;
+            try {
+                long skipped = inputStream.skip(offset);
+
+                if(skipped != offset) {
+                    throw new SharkException("couldn't skip as much as I wanted to: fatal");
+                }
 
-            L.d("streamed message part: new offset / size:" + offset + " / " + i.getContentLength(), this);
-            if(offset >= i.getContentLength()) { 
-				// TODO: is it really >= ??
-                L.d("offset exceeds size - remove local storage", this);
-                // we are done - remove saved message part
-                this.kb.removeContextPoint(cp.getContextCoordinates());
-            } else {
-                L.d("set new offset and package number", this);
-                cp.setProperty(CURRENT_OFFSET, String.valueOf(offset));
-                cp.setProperty(LAST_SEND_PACKAGE_NUMBER, String.valueOf(++pNumber));
+                Streamer.stream(inputStream, os, 100, size);
             }
-        } catch (Exception ex) {
-            L.d(ex.getMessage(), this);
+            finally {
+                inputStream.close();
+            }
+        }
+        catch(IOException ex) {
+            throw new SharkException(ex.getMessage());
+        }
+        catch(SharkKBException ex) {
+            throw new SharkException(ex.getMessage());
+        }
+    }
+    
+    public void removeToSend(String id) {
+        try {
+            ContextPoint cp = this.getCP(id, true);
+            this.kb.removeContextPoint(cp.getContextCoordinates());
+        } catch (SharkException ex) {
+            // already removed
         }
     }
 
@@ -325,16 +327,35 @@ public class SharkKBMessageStorage implements MessageStorage {
     public boolean completelyReceived(String id) throws SharkException {
         ContextPoint cp = this.getCP(id, false);
         
-        if(cp == null) {
+        String value = cp.getProperty(LAST_PACKAGE_NUMBER);
+        if(value == null) {
+            // last part not yet arrived
             return false;
         }
         
-        String value = cp.getProperty(MESSAGE_COMPLETE);
-        if(value != null) {
-            return Boolean.valueOf(value);
+        int last = Integer.parseInt(value);
+        return this.getReceivedPackageNumbers(id).nextClearBit(0) > last;
+    }
+
+    /**
+     * @param id
+     * @return numbers of received parts which weren't read yet
+     */
+    public BitSet getReceivedPackageNumbers(String id) throws SharkException {
+        ContextPoint cp = this.getCP(id, false);
+        BitSet received = new BitSet();
+        
+        Enumeration<Information> infoEnum = cp.enumInformation();
+        if(infoEnum != null) {
+            while(infoEnum.hasMoreElements()) {
+                String value = infoEnum.nextElement().getProperty(PACKAGENUMBER);
+                if(value != null) {
+                    received.set(Integer.parseInt(value));
+                }
+            }
         }
         
-        return false;
+        return received;
     }
 
     /**
@@ -367,6 +388,10 @@ public class SharkKBMessageStorage implements MessageStorage {
         }
         
         Information info = this.getInformation(id, value);
+        if(info == null) {
+            // all parts read
+            return -1;
+        }
         
         value = info.getProperty(SIZE);
         
@@ -1,22 +1,20 @@
 package net.sharkfw.protocols.m2s;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import net.sharkfw.system.L;
 import net.sharkfw.system.SharkException;
-import net.sharkfw.system.Streamer;
 
 /**
- * <p>An OutputStream that accepts maxSize bytes, before sending a message prefixed
+ * <p>An OutputStream that buffers up to maxSize bytes. If stream is flushed
+ * or closed, these bytes are sent as single message prefixed
  * by a header: <code>|len of Id|Id|Packet#|finished|</code>. The header
  * is directly followed by the payload.</p>
  * 
- * <p>The message is also sent if flush() is called.</p>
- * 
- * <p>If the stream is closed the buffered bytes will be sent, the <code>finished</code>
- * part of the header will indicate, that this is the last packet on this stream.</p>
+ * <p>Longer KEP messages are written to message storage. If stream is
+ * flushed or closed stored message is handed over to {@link M2SStub} which
+ * sends it in packages.</p>
  * 
  * @author thsc
  */
@@ -33,9 +31,6 @@ public class StreamToMessageOutputStream extends OutputStream {
     // max size of packets
     private int maxSize;
     
-    // number of package on this stream
-    private int packageNumber = M2SMessage.FIRST_PACKAGE_NUMBER;
-
     private int count;
     
     private final MessageStorage storage;
@@ -73,9 +68,33 @@ public class StreamToMessageOutputStream extends OutputStream {
         
         if(count == this.maxSize) {
             L.d("must split mail into chunks, count: " + count, this);
-//        if(this.buf.toByteArray().length == this.maxSize) {
-            this.send(false);
+            this.switchToStorage();
+        }
+    }
+
+    /**
+     * Message doesn't fit into a single message. Write it to storage.
+     */
+    private void switchToStorage() throws IOException {
+        L.d("switched to local storage for later sending", this);
+        L.d("id / recipient / maxSize " + id + "/" + this.recipientAddress + "/" + maxSize, this);
+        
+        OutputStream storageOS;
+        try {
+            storageOS = this.storage.getOutputStream(this.id, 
+                    this.recipientAddress, this.maxSize);
+        }
+        catch(SharkException e) {
+            throw new IOException(e.getMessage());
         }
+        
+        // move buffered bytes - they are first package
+        ((ByteArrayOutputStream) this.buf).writeTo(storageOS);
+        this.buf = storageOS;
+        this.stored = true;
+
+        // there are no len constraints now
+        this.maxSize = Integer.MAX_VALUE;
     }
 
     /**
@@ -112,31 +131,22 @@ public class StreamToMessageOutputStream extends OutputStream {
      * @return An int value denoting the length of the header in byte[]
      */
     private int headerLen() {
-        int len = 0;
-        
-        len += 4; // int value of the id-length
-        len += this.id.length(); // id itself
-        len += 4; // int value of the package Number length (int = 4 byte)
-        len += 1; // boolean = one byte
-        
-        return len;
+        try {
+            return M2SMessage.headerLength(this.id);
+        }
+        catch(IOException e) {
+            // UTF-8 is always supported
+            return this.id.length() * 3 + 11;
+        }
     }
     
-    private boolean sentSomething = false;
+    private boolean stored = false;
     private boolean sendFinishedCalled = false;
     
     /**
-     * Send is called when message is to be sent. This can have 
-     * to reasons:
-     * 
-     * <ul>
-     * <li> Data to be sent have reached maximal number. Thus the whole
-     * message has to be split into parts. This reason is indicated by 
-     * finished == false
-     * <li> Data are complete and can be sent. This actually means that 
-     * the whole KEP message fits to a single message. This reason is
-     * indicated by finished == true
-     * </ul>
+     * Send is called when the KEP message is complete. Either the whole
+     * KEP message fits into a single message which is sent immediately or
+     * it was stored and is sent in packages.
      * 
      * Note: each call can one happens once - investigate the implementation
      * to find out why.
@@ -162,72 +172,31 @@ public class StreamToMessageOutputStream extends OutputStream {
 
         L.d("enter send", this);
         
-        /* 
-         * first data are sent immediately - subsequent are stored with 
-         * storage
-         */
-        
-        // no part is sent so far - that's the usual case
-        if(!this.sentSomething) {
-            // create a message that will be sent
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            
-            M2SMessage.writeM2SHeader(baos, this.id, packageNumber++, finished);
-
-            // Header written. Now add payload.
-            if(this.buf instanceof ByteArrayOutputStream) {
-                ByteArrayOutputStream bufBaos = (ByteArrayOutputStream) this.buf;
-                byte[] payload = bufBaos.toByteArray();
-                ByteArrayInputStream payloadStream = new ByteArrayInputStream(payload);
-                Streamer.stream(payloadStream, baos, 1000);
-                // Payload added to temp baos
-
-                // Make sure all changes are written
-                baos.flush();
-//                count = 0;
+        if(this.stored) {
+            // we are done - tell it storage
+            try {
+                this.storage.finishedStoringForLaterSending(this.id);
             }
-
-            // Send the package 'baos'
-            this.mssc.sendMessage(baos.toByteArray());
-            L.d("send bytes number: " + baos.size(), this);
-            
-            // remember - first message has been sent a few milliseconds ago
-            this.sentSomething = true;
-            
-            // we expect further bytes
-            if(!finished) {
-                L.d("switched to local storage for later sending", this);
-                L.d("id / recipient / maxSize " + id + "/" + this.recipientAddress + "/" + maxSize, this);
-                // reroute subsequent write ca, id)
-                // reroute subsequent write calls to local buffer
-                try {
-                    this.buf = this.storage.getOutputStream(this.id, 
-                            this.recipientAddress, this.maxSize);
-                }
-                catch(SharkException e) {
-                    throw new IOException(e.getMessage());
-                }
-
-                // there are no len constraints now
-                this.maxSize = Integer.MAX_VALUE;
+            catch(SharkException e) {
+                throw new IOException(e.getMessage());
             }
 
-        } else {
-            /* this branch is only reached
-            * when the rest of the message was stored locally
-            */
-            if(finished) {
-                // we are done - tell it storage
-                if(this.storage != null) {
-                    try {
-                        this.storage.finishedStoringForLaterSending(this.id);
-                    }
-                    catch(SharkException e) {
-                        throw new IOException(e.getMessage());
-                    }
-                }
-            }
+            // first packages are sent without being asked for
+            this.mssc.sendStoredMessage(this.id);
+            return;
         }
+        
+        // that's the usual case: KEP message fits into one message
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        M2SMessage.writeM2SHeader(baos, this.id, M2SMessage.FIRST_PACKAGE_NUMBER, true);
+
+        // Header written. Now add payload.
+        ((ByteArrayOutputStream) this.buf).writeTo(baos);
+
+        // Send the package 'baos'
+        this.mssc.sendMessage(baos.toByteArray());
+        L.d("send bytes number: " + baos.size(), this);
     }
     
     @Override
@@ -2,11 +2,14 @@ package net.sharkfw.security.pki.storage;
 
 import net.sharkfw.knowledgeBase.*;
 import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.pki.SharkPublicKeyStorage;
 import net.sharkfw.security.key.SharkKeyPairAlgorithm;
 import net.sharkfw.security.pki.SharkCertificate;
+import net.sharkfw.security.utility.SharkCryptoService;
 
-import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
@@ -23,9 +26,18 @@ import java.util.regex.Pattern;
 
 
 /**
+ * Certificates are read from the knowledge base once and kept in an index
+ * by subject identifier and by key fingerprint. Index is rebuilt after
+ * a certificate was added. Subject identifiers are compared ignoring case
+ * like anywhere else in Shark.
+ *
+ * <p>Storage can be passed to
+ * {@link net.sharkfw.peer.SharkEngine#initSecurity} - public keys of
+ * remote peers are looked up in the index then.</p>
+ *
  * @author ac
  */
-public class SharkPkiStorage implements PkiStorage {
+public class SharkPkiStorage implements PkiStorage, SharkPublicKeyStorage {
 
     public final static String PKI_CONTEXT_POINT_SEMANTIC_TAG_NAME = "certificate";
     public final static String PKI_CONTEXT_POINT_SEMANTIC_TAG_SI = "cc:certificate";
@@ -46,10 +58,12 @@ public class SharkPkiStorage implements PkiStorage {
     private final String LINKED_LIST_SEPARATOR_ADR = "<adr>";
     private final String LINKED_LIST_SEPARATOR_END = "<end>";
     ContextCoordinates contextCoordinatesFilter;
-    KeyFactory keyFactory;
     private HashSet<SharkCertificate> sharkCertificateList;
+    private HashMap<String, List<SharkCertificate>> certificatesBySI = null;
+    private HashMap<String, List<SharkCertificate>> certificatesByFingerprint = null;
     private SharkKB sharkPkiStorageKB;
     private PeerSemanticTag sharkPkiStorageOwner;
+    private PrivateKey privateKey = null;
     public SharkPkiStorage(SharkKB sharkKB, PeerSemanticTag owner) throws SharkKBException, NoSuchAlgorithmException {
         sharkPkiStorageKB = sharkKB;
         sharkPkiStorageOwner = owner;
@@ -62,7 +76,6 @@ public class SharkPkiStorage implements PkiStorage {
                 null,
                 null,
                 SharkCS.DIRECTION_INOUT);
-        keyFactory = KeyFactory.getInstance(SharkKeyPairAlgorithm.RSA.name()); //TODO: determine dynamically
     }
 
     @Override
@@ -88,12 +101,15 @@ public class SharkPkiStorage implements PkiStorage {
 
         //contextPoint.addInformation(publicKey);
         //contextPoint.addInformation(transmitterList);
+
+        invalidateIndex();
     }
 
     @Override
     public void addSharkCertificate(ContextPoint sharkCertificate) throws SharkKBException {
         //TODO add ContextPoint
         SharkCSAlgebra.merge(sharkPkiStorageKB, null, sharkCertificate, false);
+        invalidateIndex();
     }
 
     @Override
@@ -105,42 +121,179 @@ public class SharkPkiStorage implements PkiStorage {
 
     @Override
     public SharkCertificate getSharkCertificate(PeerSemanticTag subject, PublicKey publicKey) throws SharkKBException {
-        Knowledge knowledge = SharkCSAlgebra.extract(sharkPkiStorageKB, contextCoordinatesFilter);
-        for (ContextPoint cp : Collections.list(knowledge.contextPoints())) {
-            if (cp.getContextCoordinates().getRemotePeer().getName().equals(subject.getName())
-                    && Arrays.equals(cp.getInformation(PKI_INFORMATION_PUBLIC_KEY_NAME).next().getContentAsByte(), publicKey.getEncoded())) {
+        for (SharkCertificate sharkCertificate : lookup(false, fingerprint(publicKey.getEncoded()))) {
+            if (sharkCertificate.getIssuer().getName().equals(subject.getName())) {
+                return copy(sharkCertificate);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param si subject identifiers of a peer
+     * @return certificates of the first matching peer - empty if there are none
+     */
+    public List<SharkCertificate> getSharkCertificates(String[] si) throws SharkKBException {
+        List<SharkCertificate> result = new ArrayList<>();
+        if (si == null) {
+            return result;
+        }
 
-                Information transmitterList = extractInformation(cp, PKI_INFORMATION_PUBLIC_TRANSMITTER_LIST_NAME);
+        for (String s : si) {
+            for (SharkCertificate sharkCertificate : lookup(true, s)) {
+                result.add(copy(sharkCertificate));
+            }
 
-                return new SharkCertificate(
-                        cp.getContextCoordinates().getPeer(),
-                        cp.getContextCoordinates().getRemotePeer(),
-                        getLinkedListFromByteArray(transmitterList.getContentAsByte()),
-                        publicKey,
-                        new Date(cp.getContextCoordinates().getTime().getDuration()));
+            if (!result.isEmpty()) {
+                break;
             }
         }
 
-        return null;
+        return result;
+    }
+
+    /**
+     * @param si subject identifiers of a peer
+     * @return public key of the first matching peer or null
+     */
+    @Override
+    public PublicKey getPublicKey(String[] si) throws SharkKBException {
+        List<SharkCertificate> certificates = getSharkCertificates(si);
+        return certificates.isEmpty() ? null : certificates.get(0).getSubjectPublicKey();
+    }
+
+    @Override
+    public PublicKey getPublicKey(PeerSemanticTag peer) throws SharkKBException {
+        return peer == null ? null : getPublicKey(peer.getSI());
+    }
+
+    /**
+     * @param privateKey private key of storage owner - used by an engine
+     * which takes this storage
+     */
+    public void setPrivateKey(PrivateKey privateKey) {
+        this.privateKey = privateKey;
+    }
+
+    @Override
+    public PrivateKey getPrivateKey() {
+        return this.privateKey;
     }
 
     @Override
     public HashSet<SharkCertificate> getSharkCertificateList() throws SharkKBException, NoSuchAlgorithmException, InvalidKeySpecException {
+        synchronized (this) {
+            buildIndex();
+            sharkCertificateList = new HashSet<>();
+            for (List<SharkCertificate> certificates : certificatesByFingerprint.values()) {
+                for (SharkCertificate sharkCertificate : certificates) {
+                    sharkCertificateList.add(copy(sharkCertificate));
+                }
+            }
+        }
+        return sharkCertificateList;
+    }
+
+    private synchronized void invalidateIndex() {
+        certificatesBySI = null;
+        certificatesByFingerprint = null;
+    }
+
+    /**
+     * @param bySI look up subject identifier - key fingerprint otherwise
+     * @return indexed certificates - never null
+     */
+    private synchronized List<SharkCertificate> lookup(boolean bySI, String key) throws SharkKBException {
+        try {
+            buildIndex();
+        } catch (NoSuchAlgorithmException e) {
+            throw new SharkKBException(e.getMessage());
+        } catch (InvalidKeySpecException e) {
+            throw new SharkKBException(e.getMessage());
+        }
+
+        List<SharkCertificate> certificates = bySI ? certificatesBySI.get(siKey(key)) : certificatesByFingerprint.get(key);
+        return certificates != null ? certificates : Collections.<SharkCertificate>emptyList();
+    }
+
+    /**
+     * Reads all certificates from knowledge base - if not already done.
+     * Public keys are decoded only once.
+     */
+    private synchronized void buildIndex() throws SharkKBException, NoSuchAlgorithmException, InvalidKeySpecException {
+        if (certificatesByFingerprint != null) {
+            return;
+        }
+
+        HashMap<String, List<SharkCertificate>> bySI = new HashMap<>();
+        HashMap<String, List<SharkCertificate>> byFingerprint = new HashMap<>();
+
         Knowledge knowledge = SharkCSAlgebra.extract(sharkPkiStorageKB, contextCoordinatesFilter);
         for (ContextPoint cp : Collections.list(knowledge.contextPoints())) {
 
             Information publicKey = extractInformation(cp, PKI_INFORMATION_PUBLIC_KEY_NAME);
             Information transmitterList = extractInformation(cp, PKI_INFORMATION_PUBLIC_TRANSMITTER_LIST_NAME);
+            byte[] encodedKey = publicKey.getContentAsByte();
 
-            sharkCertificateList.add(new SharkCertificate(
+            SharkCertificate sharkCertificate = new SharkCertificate(
                     cp.getContextCoordinates().getPeer(),
                     cp.getContextCoordinates().getRemotePeer(),
                     getLinkedListFromByteArray(transmitterList.getContentAsByte()),
-                    keyFactory.generatePublic(new X509EncodedKeySpec(publicKey.getContentAsByte())),
+                    SharkCryptoService.getPublicKey(encodedKey, SharkKeyPairAlgorithm.RSA.name()), //TODO: determine dynamically
                     new Date(cp.getContextCoordinates().getTime().getDuration())
-            ));
+            );
+
+            addToIndex(byFingerprint, fingerprint(encodedKey), sharkCertificate);
+            for (String si : sharkCertificate.getSubject().getSI()) {
+                addToIndex(bySI, siKey(si), sharkCertificate);
+            }
+        }
+
+        certificatesBySI = bySI;
+        certificatesByFingerprint = byFingerprint;
+    }
+
+    /**
+     * Subject identifiers are equal ignoring case (see SharkCSAlgebra.identical).
+     */
+    private static String siKey(String si) {
+        return si == null ? null : si.toLowerCase(Locale.ROOT);
+    }
+
+    private void addToIndex(HashMap<String, List<SharkCertificate>> index, String key, SharkCertificate sharkCertificate) {
+        List<SharkCertificate> certificates = index.get(key);
+        if (certificates == null) {
+            certificates = new ArrayList<>();
+            index.put(key, certificates);
+        }
+        certificates.add(sharkCertificate);
+    }
+
+    /**
+     * Indexed certificates are shared - callers get their own transmitter list.
+     */
+    private SharkCertificate copy(SharkCertificate sharkCertificate) {
+        return new SharkCertificate(
+                sharkCertificate.getSubject(),
+                sharkCertificate.getIssuer(),
+                new LinkedList<>(sharkCertificate.getTransmitterList()),
+                sharkCertificate.getSubjectPublicKey(),
+                sharkCertificate.getValidity());
+    }
+
+    private String fingerprint(byte[] encodedKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(encodedKey);
+            StringBuilder s = new StringBuilder();
+            for (byte b : digest) {
+                s.append(String.format("%02x", b));
+            }
+            return s.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // each Java platform supports SHA-256
+            throw new IllegalStateException(e);
         }
-        return sharkCertificateList;
     }
 
     @Override
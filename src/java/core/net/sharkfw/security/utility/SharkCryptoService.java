@@ -0,0 +1,328 @@
+package net.sharkfw.security.utility;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Pools of <code>Cipher</code>, <code>Signature</code> and <code>KeyFactory</code>
+ * instances keyed by algorithm. Looking up a provider is expensive and
+ * those objects must not be used by two threads at once.
+ *
+ * <p>An instance is taken from a pool (<code>get...</code>) and must be
+ * given back (<code>release...</code>) when it isn't used any longer -
+ * e.g. when a stream is finished. It must not be used after releasing.
+ * Instances which aren't given back are simply collected.</p>
+ *
+ * <p>Decoded public keys are cached by their encoding.</p>
+ *
+ * @author ac
+ * @author thsc
+ */
+public final class SharkCryptoService {
+
+    /** instances kept per algorithm */
+    private static final int MAX_POOLED = 16;
+
+    private static final int MAX_PUBLIC_KEYS = 1024;
+
+    private static final ConcurrentHashMap<String, Queue<Cipher>> ciphers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Queue<Signature>> signatures = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Queue<KeyFactory>> keyFactories = new ConcurrentHashMap<>();
+
+    private static final Map<EncodedKey, PublicKey> publicKeys = new LinkedHashMap<EncodedKey, PublicKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<EncodedKey, PublicKey> eldest) {
+            return this.size() > MAX_PUBLIC_KEYS;
+        }
+    };
+
+    private SharkCryptoService() {
+    }
+
+    private static <T> Queue<T> pool(ConcurrentHashMap<String, Queue<T>> pools, String algorithm) {
+        Queue<T> pool = pools.get(algorithm);
+        if(pool == null) {
+            Queue<T> newPool = new ConcurrentLinkedQueue<>();
+            pool = pools.putIfAbsent(algorithm, newPool);
+            if(pool == null) {
+                pool = newPool;
+            }
+        }
+
+        return pool;
+    }
+
+    private static <T> void release(ConcurrentHashMap<String, Queue<T>> pools, String algorithm, T instance) {
+        Queue<T> pool = SharkCryptoService.pool(pools, algorithm);
+
+        // a few more might be pooled under load - doesn't matter
+        if(pool.size() < MAX_POOLED) {
+            pool.offer(instance);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                                pools                               //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param transformation e.g. "RSA" or "AES/GCM/NoPadding"
+     * @return cipher for exclusive use until released - must be initialized
+     */
+    public static Cipher getCipher(String transformation)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+
+        Cipher cipher = SharkCryptoService.pool(ciphers, transformation).poll();
+        if(cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+        }
+
+        return cipher;
+    }
+
+    public static void releaseCipher(String transformation, Cipher cipher) {
+        if(cipher != null) {
+            SharkCryptoService.release(ciphers, transformation, cipher);
+        }
+    }
+
+    /**
+     * @param algorithm e.g. "SHA1withRSA"
+     * @return signature for exclusive use until released - must be initialized
+     */
+    public static Signature getSignature(String algorithm) throws NoSuchAlgorithmException {
+        Signature signature = SharkCryptoService.pool(signatures, algorithm).poll();
+        if(signature == null) {
+            signature = Signature.getInstance(algorithm);
+        }
+
+        return signature;
+    }
+
+    public static void releaseSignature(String algorithm, Signature signature) {
+        if(signature != null) {
+            SharkCryptoService.release(signatures, algorithm, signature);
+        }
+    }
+
+    /**
+     * Decodes X.509 encoded public keys. Keys are cached.
+     *
+     * @param encoded
+     * @param algorithm e.g. "RSA"
+     * @return public key
+     */
+    public static PublicKey getPublicKey(byte[] encoded, String algorithm)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+
+        EncodedKey encodedKey = new EncodedKey(algorithm, encoded);
+        synchronized(publicKeys) {
+            PublicKey publicKey = publicKeys.get(encodedKey);
+            if(publicKey != null) {
+                return publicKey;
+            }
+        }
+
+        KeyFactory keyFactory = SharkCryptoService.pool(keyFactories, algorithm).poll();
+        if(keyFactory == null) {
+            keyFactory = KeyFactory.getInstance(algorithm);
+        }
+
+        PublicKey publicKey;
+        try {
+            publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+        }
+        finally {
+            SharkCryptoService.release(keyFactories, algorithm, keyFactory);
+        }
+
+        synchronized(publicKeys) {
+            publicKeys.put(encodedKey, publicKey);
+        }
+
+        return publicKey;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                           byte arrays                              //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param data
+     * @param key public key, private key or secret key
+     * @param transformation
+     * @return encrypted data
+     */
+    public static byte[] encrypt(byte[] data, Key key, String transformation)
+            throws GeneralSecurityException {
+
+        return SharkCryptoService.doFinal(Cipher.ENCRYPT_MODE, data, key, transformation);
+    }
+
+    /**
+     * @param data
+     * @param key public key, private key or secret key
+     * @param transformation
+     * @return decrypted data
+     */
+    public static byte[] decrypt(byte[] data, Key key, String transformation)
+            throws GeneralSecurityException {
+
+        return SharkCryptoService.doFinal(Cipher.DECRYPT_MODE, data, key, transformation);
+    }
+
+    private static byte[] doFinal(int mode, byte[] data, Key key, String transformation)
+            throws GeneralSecurityException {
+
+        Cipher cipher = SharkCryptoService.getCipher(transformation);
+        try {
+            cipher.init(mode, key);
+            return cipher.doFinal(data);
+        }
+        finally {
+            SharkCryptoService.releaseCipher(transformation, cipher);
+        }
+    }
+
+    public static byte[] sign(byte[] data, PrivateKey privateKey, String algorithm)
+            throws GeneralSecurityException {
+
+        Signature signature = SharkCryptoService.getSignature(algorithm);
+        try {
+            signature.initSign(privateKey);
+            signature.update(data);
+            return signature.sign();
+        }
+        finally {
+            SharkCryptoService.releaseSignature(algorithm, signature);
+        }
+    }
+
+    public static boolean verify(byte[] data, byte[] signatureBytes, PublicKey publicKey,
+            String algorithm) throws GeneralSecurityException {
+
+        Signature signature = SharkCryptoService.getSignature(algorithm);
+        try {
+            signature.initVerify(publicKey);
+            signature.update(data);
+            return signature.verify(signatureBytes);
+        }
+        finally {
+            SharkCryptoService.releaseSignature(algorithm, signature);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                            byte buffers                            //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts remaining bytes of input into output.
+     *
+     * @return number of bytes written into output
+     */
+    public static int encrypt(ByteBuffer input, ByteBuffer output, Key key,
+            String transformation) throws GeneralSecurityException {
+
+        return SharkCryptoService.doFinal(Cipher.ENCRYPT_MODE, input, output, key, transformation);
+    }
+
+    /**
+     * Decrypts remaining bytes of input into output.
+     *
+     * @return number of bytes written into output
+     */
+    public static int decrypt(ByteBuffer input, ByteBuffer output, Key key,
+            String transformation) throws GeneralSecurityException {
+
+        return SharkCryptoService.doFinal(Cipher.DECRYPT_MODE, input, output, key, transformation);
+    }
+
+    private static int doFinal(int mode, ByteBuffer input, ByteBuffer output, Key key,
+            String transformation) throws GeneralSecurityException {
+
+        Cipher cipher = SharkCryptoService.getCipher(transformation);
+        try {
+            cipher.init(mode, key);
+            return cipher.doFinal(input, output);
+        }
+        finally {
+            SharkCryptoService.releaseCipher(transformation, cipher);
+        }
+    }
+
+    public static byte[] sign(ByteBuffer data, PrivateKey privateKey, String algorithm)
+            throws GeneralSecurityException {
+
+        Signature signature = SharkCryptoService.getSignature(algorithm);
+        try {
+            signature.initSign(privateKey);
+            signature.update(data);
+            return signature.sign();
+        }
+        finally {
+            SharkCryptoService.releaseSignature(algorithm, signature);
+        }
+    }
+
+    public static boolean verify(ByteBuffer data, byte[] signatureBytes, PublicKey publicKey,
+            String algorithm) throws GeneralSecurityException {
+
+        Signature signature = SharkCryptoService.getSignature(algorithm);
+        try {
+            signature.initVerify(publicKey);
+            signature.update(data);
+            return signature.verify(signatureBytes);
+        }
+        finally {
+            SharkCryptoService.releaseSignature(algorithm, signature);
+        }
+    }
+
+    /**
+     * Key of public key cache
+     */
+    private static class EncodedKey {
+        private final String algorithm;
+        private final byte[] encoded;
+        private final int hash;
+
+        EncodedKey(String algorithm, byte[] encoded) {
+            this.algorithm = algorithm;
+            this.encoded = encoded.clone();
+            this.hash = 31 * algorithm.hashCode() + Arrays.hashCode(encoded);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof EncodedKey)) {
+                return false;
+            }
+
+            EncodedKey other = (EncodedKey) o;
+            return this.algorithm.equals(other.algorithm)
+                    && Arrays.equals(this.encoded, other.encoded);
+        }
+    }
+}
@@ -4,15 +4,14 @@ import net.sharkfw.security.key.SharkKeyAlgorithm;
 import net.sharkfw.security.key.SharkKeyPairAlgorithm;
 import net.sharkfw.system.Base64;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.security.*;
 
 /**
+ * Ciphers are taken from {@link SharkCryptoService} - all methods
+ * can be called concurrently.
+ *
  * @author ac
  */
 
@@ -20,8 +19,6 @@ import java.security.*;
 
 public class SharkCryptography {
 
-    private static Cipher cipher;
-
     /**
      * Encode byte-array.
      * @param data
@@ -30,18 +27,8 @@ public class SharkCryptography {
      */
     public static String encodeSessionKey(byte[] data, PrivateKey privateKey, SharkKeyPairAlgorithm sharkKeyPairAlgorithm) {
         try {
-            cipher = Cipher.getInstance(sharkKeyPairAlgorithm.name());
-            cipher.init(Cipher.ENCRYPT_MODE, privateKey);
-            return Base64.encodeBytes(cipher.doFinal(data));
-        } catch (InvalidKeyException e) {
-            return null;
-        } catch (BadPaddingException e) {
-            return null;
-        } catch (IllegalBlockSizeException e) {
-            return null;
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        } catch (NoSuchPaddingException e) {
+            return Base64.encodeBytes(SharkCryptoService.encrypt(data, privateKey, sharkKeyPairAlgorithm.name()));
+        } catch (GeneralSecurityException e) {
             return null;
         }
     }
@@ -56,18 +43,8 @@ public class SharkCryptography {
     public static byte[] decodeSessionKey(String base64String, PublicKey publicKey, SharkKeyPairAlgorithm sharkKeyPairAlgorithm) {
         try {
             byte[] buffer = Base64.decode(base64String);
-            cipher = Cipher.getInstance(sharkKeyPairAlgorithm.name());
-            cipher.init(Cipher.DECRYPT_MODE, publicKey);
-            return cipher.doFinal(buffer);
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        } catch (NoSuchPaddingException e) {
-            return null;
-        } catch (IllegalBlockSizeException e) {
-            return null;
-        } catch (BadPaddingException e) {
-            return null;
-        } catch (InvalidKeyException e) {
+            return SharkCryptoService.decrypt(buffer, publicKey, sharkKeyPairAlgorithm.name());
+        } catch (GeneralSecurityException e) {
             return null;
         } catch (IOException e) {
             return null;
@@ -84,18 +61,8 @@ public class SharkCryptography {
     public static String encodeData(byte[] data, byte[] sessionKey, SharkKeyAlgorithm sharkKeyAlgorithm) {
         try {
             SecretKeySpec secretKeySpec = new SecretKeySpec(sessionKey, sharkKeyAlgorithm.name());
-            cipher = Cipher.getInstance(sharkKeyAlgorithm.name());
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-            return Base64.encodeBytes(cipher.doFinal(data));
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        } catch (NoSuchPaddingException e) {
-            return null;
-        } catch (InvalidKeyException e) {
-            return null;
-        } catch (BadPaddingException e) {
-            return null;
-        } catch (IllegalBlockSizeException e) {
+            return Base64.encodeBytes(SharkCryptoService.encrypt(data, secretKeySpec, sharkKeyAlgorithm.name()));
+        } catch (GeneralSecurityException e) {
             return null;
         }
     }
@@ -109,18 +76,8 @@ public class SharkCryptography {
      */
     public static String encodeData(byte[] data, PublicKey publicKey, SharkKeyPairAlgorithm sharkKeyPairAlgorithm) {
         try {
-            cipher = Cipher.getInstance(sharkKeyPairAlgorithm.name());
-            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-            return Base64.encodeBytes(cipher.doFinal(data));
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        } catch (NoSuchPaddingException e) {
-            return null;
-        } catch (InvalidKeyException e) {
-            return null;
-        } catch (BadPaddingException e) {
-            return null;
-        } catch (IllegalBlockSizeException e) {
+            return Base64.encodeBytes(SharkCryptoService.encrypt(data, publicKey, sharkKeyPairAlgorithm.name()));
+        } catch (GeneralSecurityException e) {
             return null;
         }
     }
@@ -136,18 +93,8 @@ public class SharkCryptography {
         try {
             byte[] data = Base64.decode(base64String);
             SecretKeySpec secretKeySpec = new SecretKeySpec(sessionKey, sharkKeyAlgorithm.name());
-            cipher = Cipher.getInstance(sharkKeyAlgorithm.name());
-            cipher.init(Cipher.DECRYPT_MODE, secretKeySpec);
-            return cipher.doFinal(data);
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        } catch (NoSuchPaddingException e) {
-            return null;
-        } catch (InvalidKeyException e) {
-            return null;
-        } catch (BadPaddingException e) {
-            return null;
-        } catch (IllegalBlockSizeException e) {
+            return SharkCryptoService.decrypt(data, secretKeySpec, sharkKeyAlgorithm.name());
+        } catch (GeneralSecurityException e) {
             return null;
         } catch (IOException e) {
             return null;
@@ -164,20 +111,10 @@ public class SharkCryptography {
     public static byte[] decodeData(String base64String, PrivateKey privateKey, SharkKeyPairAlgorithm sharkKeyPairAlgorithm) {
         try {
             byte[] data = Base64.decode(base64String);
-            cipher = Cipher.getInstance(sharkKeyPairAlgorithm.name());
-            cipher.init(Cipher.DECRYPT_MODE, privateKey);
-            return cipher.doFinal(data);
+            return SharkCryptoService.decrypt(data, privateKey, sharkKeyPairAlgorithm.name());
         } catch (IOException e) {
             return null;
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        } catch (NoSuchPaddingException e) {
-            return null;
-        } catch (InvalidKeyException e) {
-            return null;
-        } catch (BadPaddingException e) {
-            return null;
-        } catch (IllegalBlockSizeException e) {
+        } catch (GeneralSecurityException e) {
             return null;
         }
     }
@@ -24,15 +24,8 @@ public class SharkSign {
      */
     public static byte[] sign(byte[] data, PrivateKey privateKey, SharkSignatureAlgorithm sharkSignatureAlgorithm) {
         try {
-            Signature signature = Signature.getInstance(sharkSignatureAlgorithm.name());
-            signature.initSign(privateKey);
-            signature.update(data);
-            return signature.sign();
-        } catch (NoSuchAlgorithmException e) {
-            return null;
-        } catch (InvalidKeyException e) {
-            return null;
-        } catch (SignatureException e) {
+            return SharkCryptoService.sign(data, privateKey, sharkSignatureAlgorithm.name());
+        } catch (GeneralSecurityException e) {
             return null;
         }
     }
@@ -47,15 +40,8 @@ public class SharkSign {
      */
     public static boolean verify(byte[] data, byte[] signature, PublicKey publicKey, SharkSignatureAlgorithm sharkSignatureAlgorithm) {
         try {
-            Signature sig = Signature.getInstance(sharkSignatureAlgorithm.name());
-            sig.initVerify(publicKey);
-            sig.update(data);
-            return sig.verify(signature);
-        } catch (NoSuchAlgorithmException e) {
-            return false;
-        } catch (InvalidKeyException e) {
-            return false;
-        } catch (SignatureException e) {
+            return SharkCryptoService.verify(data, signature, publicKey, sharkSignatureAlgorithm.name());
+        } catch (GeneralSecurityException e) {
             return false;
         }
     }
@@ -0,0 +1,29 @@
+package net.sharkfw.system;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic counter of a {@link Metrics} registry, e.g. bytes sent.
+ *
+ * @author thsc
+ */
+public class Counter {
+
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment() {
+        this.value.incrementAndGet();
+    }
+
+    public void add(long n) {
+        this.value.addAndGet(n);
+    }
+
+    public long get() {
+        return this.value.get();
+    }
+
+    void reset() {
+        this.value.set(0);
+    }
+}
@@ -0,0 +1,18 @@
+package net.sharkfw.system;
+
+/**
+ * Current value which is read when metrics are pulled, e.g. a queue depth.
+ *
+ * @see Metrics#registerGauge(String, Gauge)
+ * @author thsc
+ */
+public interface Gauge {
+
+    /**
+     * Called by any thread which reads metrics - must be cheap and
+     * must not block for long.
+     *
+     * @return current value
+     */
+    public long getValue();
+}
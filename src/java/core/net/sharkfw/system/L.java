@@ -10,9 +10,15 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.sharkfw.knowledgeBase.*;
 
 /**
+ * Log messages are written by a background thread. They are kept in a
+ * bounded buffer meanwhile - oldest messages are dropped if it runs full.
+ * Building messages can be expensive (e.g. {@link #kb2String(SharkKB)}),
+ * guard those calls with {@link #isDebug()} or {@link #isEnabled(int)}.
  *
  * @author redmann, Thomas Schwotzer
  */
@@ -24,11 +30,21 @@ public class L {
     public static final int LOGLEVEL_DEBUG = 3;
     public static final int LOGLEVEL_ALL = 4;
     
-    private static int loglevel;
+    /** messages kept until written */
+    public static final int BUFFER_SIZE = 1024;
+    
+    private static volatile int loglevel;
     
     private static PrintStream out = System.out;
     private static PrintStream err = System.err;
     
+    private static volatile boolean asynchronous = true;
+    private static final ArrayBlockingQueue<LogEntry> buffer = 
+            new ArrayBlockingQueue<>(BUFFER_SIZE);
+    private static final AtomicInteger dropped = new AtomicInteger();
+    private static Thread writer = null;
+    private static int pending = 0; // guarded by buffer
+    
     static {
         L.setLogLevel(L.LOGLEVEL_SILENT);
     }
@@ -37,6 +53,56 @@ public class L {
         L.loglevel = level;
     }
     
+    /**
+     * @param level e.g. LOGLEVEL_DEBUG
+     * @return true if messages of that level are logged
+     */
+    public static boolean isEnabled(int level) {
+        switch(level) {
+            case LOGLEVEL_ALL: return loglevel == LOGLEVEL_ALL;
+            case LOGLEVEL_DEBUG: return loglevel >= LOGLEVEL_DEBUG;
+            case LOGLEVEL_SILENT: return false;
+            // warnings and errors
+            default: return loglevel >= LOGLEVEL_ERROR;
+        }
+    }
+    
+    /**
+     * @return true if debug messages are logged
+     */
+    public static boolean isDebug() {
+        return L.isEnabled(LOGLEVEL_DEBUG);
+    }
+    
+    /**
+     * Messages are written by a background thread (default) or by the
+     * calling thread.
+     */
+    public static synchronized void setAsynchronous(boolean on) {
+        if(!on) {
+            L.flush();
+        }
+        L.asynchronous = on;
+    }
+    
+    /**
+     * Waits until buffered messages are written - at most a second.
+     */
+    public static void flush() {
+        ArrayBlockingQueue<LogEntry> b = L.buffer;
+        synchronized(b) {
+            long end = System.currentTimeMillis() + 1000;
+            while(L.pending > 0 && System.currentTimeMillis() < end) {
+                try {
+                    b.wait(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
     public static void setLogfile(String filename) {
         File file = new File(filename);
         try {
@@ -48,6 +114,18 @@ public class L {
         }
     }
     
+    private static class LogEntry {
+        final long time;
+        final String msg;
+        final PrintStream stream;
+        
+        LogEntry(long time, String msg, PrintStream stream) {
+            this.time = time;
+            this.msg = msg;
+            this.stream = stream;
+        }
+    }
+    
     private static void doLog(Object o, String msg, int level) {
         String loglevelString = "LOG";
 
@@ -63,14 +141,81 @@ public class L {
             className = o.getClass().getName();
         }
         
-        String logString = getTimestamp() + " ["+ className +"] " + loglevelString + ": " + msg;
+        String logString = " ["+ className +"] " + loglevelString + ": " + msg;
+        PrintStream stream = loglevel == LOGLEVEL_ERROR ? L.err : L.out;
         
-        if(loglevel == LOGLEVEL_ERROR) {
-            L.err.println(logString);
-            L.err.flush();
-        } else {
-            L.out.println(logString);
-            L.out.flush();
+        if(!L.asynchronous) {
+            stream.println(getTimestamp(System.currentTimeMillis()) + logString);
+            stream.flush();
+            return;
+        }
+        
+        ArrayBlockingQueue<LogEntry> b = L.buffer;
+        LogEntry entry = new LogEntry(System.currentTimeMillis(), logString, stream);
+        synchronized(b) {
+            while(!b.offer(entry)) {
+                // full - drop oldest message
+                if(b.poll() != null) {
+                    L.dropped.incrementAndGet();
+                    L.pending--;
+                }
+            }
+            L.pending++;
+        }
+        
+        L.startWriter();
+    }
+    
+    private static synchronized void startWriter() {
+        if(L.writer != null) {
+            return;
+        }
+        
+        L.writer = new Thread("SharkLog") {
+            @Override
+            public void run() {
+                L.write();
+            }
+        };
+        L.writer.setDaemon(true);
+        L.writer.start();
+        
+        // don't lose last messages
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                L.flush();
+            }
+        });
+    }
+    
+    private static void write() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        ArrayBlockingQueue<LogEntry> b = L.buffer;
+        for(;;) {
+            LogEntry entry;
+            try {
+                entry = b.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            
+            int lost = L.dropped.getAndSet(0);
+            if(lost > 0) {
+                entry.stream.println(sdf.format(new Date(entry.time)) 
+                        + " [" + L.class.getName() + "] WARNING: " 
+                        + lost + " log messages dropped");
+            }
+            
+            entry.stream.println(sdf.format(new Date(entry.time)) + entry.msg);
+            
+            synchronized(b) {
+                L.pending--;
+                if(b.isEmpty()) {
+                    entry.stream.flush();
+                    b.notifyAll();
+                }
+            }
         }
     }
 
@@ -81,7 +226,7 @@ public class L {
      * @param o
      */
     public static void l(String msg, Object o) {
-        if(loglevel == LOGLEVEL_ALL) {
+        if(L.isEnabled(LOGLEVEL_ALL)) {
             L.doLog(o, msg, LOGLEVEL_ALL);
         }
     }
@@ -94,9 +239,7 @@ public class L {
      */
     public static void d(String msg, Object o) {
 
-        if(loglevel == LOGLEVEL_ALL 
-                || loglevel == LOGLEVEL_DEBUG
-                ) {
+        if(L.isEnabled(LOGLEVEL_DEBUG)) {
             L.doLog(o, msg, LOGLEVEL_DEBUG);
         }
     }
@@ -114,11 +257,7 @@ public class L {
      */
     public static void e(String msg, Object o) {
 
-        if(loglevel == LOGLEVEL_ALL 
-                || loglevel == LOGLEVEL_DEBUG
-                || loglevel == LOGLEVEL_WARNING
-                || loglevel == LOGLEVEL_ERROR
-                ) {
+        if(L.isEnabled(LOGLEVEL_ERROR)) {
             L.doLog(o, msg, LOGLEVEL_ERROR);
         }
     }
@@ -132,17 +271,12 @@ public class L {
      */
     public static void w(String msg, Object o) {
     
-        if(loglevel == LOGLEVEL_ALL 
-                || loglevel == LOGLEVEL_DEBUG
-                || loglevel == LOGLEVEL_WARNING
-                || loglevel == LOGLEVEL_ERROR
-                ) {
+        if(L.isEnabled(LOGLEVEL_WARNING)) {
             L.doLog(o, msg, LOGLEVEL_WARNING);
         }
     }
 
-    private static String getTimestamp() {
-      long currentTime = System.currentTimeMillis();
+    private static String getTimestamp(long currentTime) {
       SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
       
       return sdf.format(new Date(currentTime));
@@ -431,9 +565,13 @@ public class L {
         }
     }
     
+    /**
+     * Debug output of byte array.
+     */
     public static void printByte(byte[] b, String label) {
-        L.out.print(L.byteArrayToString(b,label));
-        L.out.flush();
+        if(L.isDebug()) {
+            L.doLog(null, L.byteArrayToString(b,label), LOGLEVEL_DEBUG);
+        }
     }
     
     public static String byteArrayToString(byte[] b, String label) {
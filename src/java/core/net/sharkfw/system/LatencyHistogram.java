@@ -0,0 +1,128 @@
+package net.sharkfw.system;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non negative values (e.g. durations in microseconds) with
+ * a fixed relative error.
+ *
+ * <p>Values below 16 have a bucket of their own. Each power of two above
+ * is split into 16 buckets of same width. A percentile is reported as
+ * upper bound of its bucket - at most 1/16 above the recorded value. The
+ * whole range of long values fits into 960 buckets. Recording doesn't
+ * allocate and doesn't lock.</p>
+ *
+ * @author thsc
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MASK = SUB_BUCKETS - 1;
+
+    static final int NUMBER_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+
+        // position of highest bit - at least SUB_BUCKET_BITS
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & MASK);
+    }
+
+    /**
+     * @return highest value which falls into that bucket
+     */
+    static long upperBound(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+
+        return lower + (1L << shift) - 1;
+    }
+
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+
+        this.buckets.incrementAndGet(LatencyHistogram.index(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+
+        long currentMax = this.max.get();
+        while(value > currentMax && !this.max.compareAndSet(currentMax, value)) {
+            currentMax = this.max.get();
+        }
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @return average of recorded values, 0 if nothing was recorded
+     */
+    public long getMean() {
+        long n = this.count.get();
+        return n == 0 ? 0 : this.sum.get() / n;
+    }
+
+    /**
+     * Values recorded meanwhile may or may not be taken into account.
+     *
+     * @param percentile e.g. 99.9
+     * @return value which isn't exceeded by that percentage of recorded
+     * values, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = this.count.get();
+        if(n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n);
+        rank = Math.max(1, rank);
+
+        long seen = 0;
+        for(int i = 0; i < NUMBER_BUCKETS; i++) {
+            seen += this.buckets.get(i);
+            if(seen >= rank) {
+                return Math.min(LatencyHistogram.upperBound(i), this.max.get());
+            }
+        }
+
+        // values recorded while iterating
+        return this.max.get();
+    }
+
+    void reset() {
+        for(int i = 0; i < NUMBER_BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.count.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+    }
+}
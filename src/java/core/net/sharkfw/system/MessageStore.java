@@ -30,7 +30,7 @@ public abstract class MessageStore<T> {
     protected abstract void restore(String frozenStatus);
     protected abstract String serialize();
     
-    protected Iterator<T> getMessages(long since) {
+    protected synchronized Iterator<T> getMessages(long since) {
         ArrayList<T> tempMsgList = new ArrayList();
         
         int size = this.messages.size();
@@ -60,7 +60,7 @@ public abstract class MessageStore<T> {
         return this.getMessages(0); // get all
     }
     
-    protected void addMessage(T message) {
+    protected synchronized void addMessage(T message) {
         if(message != null) {
             MessageSlot entry = new MessageSlot(message);
             this.messages.add(entry);
@@ -0,0 +1,479 @@
+package net.sharkfw.system;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime metrics of engine, protocol stubs and knowledge ports: counters,
+ * gauges and latency histograms by name.
+ *
+ * <p>Metrics are switched off by default. Instrumented code asks
+ * {@link #start()} for a start time - which is 0 when switched off - and
+ * hands it to {@link #stop(String, long)}. Nothing is measured, no name is
+ * built and nothing is allocated in that case. Streams and channels are only
+ * wrapped by {@link #count(InputStream, String)} and its siblings if metrics
+ * are switched on when a connection is created. A wrapped channel isn't
+ * a socket channel any longer - file content is copied instead of being
+ * transferred by the operating system.</p>
+ *
+ * <p>Names are dot separated. Recorded by the framework:</p>
+ * <ul>
+ * <li><code>kep.parse</code>, <code>kep.dispatch</code> - reading a received
+ * KEP message and handing it to knowledge ports (microseconds)</li>
+ * <li><code>kep.send</code> - serializing and sending a KEP message
+ * including replies (microseconds)</li>
+ * <li><code>kp.&lt;class&gt;.insert</code>, <code>kp.&lt;class&gt;.expose</code> -
+ * <code>doInsert()</code> and <code>doExpose()</code> of a knowledge port
+ * (microseconds)</li>
+ * <li><code>stub.&lt;class&gt;.bytesIn</code>, <code>stub.&lt;class&gt;.bytesOut</code>
+ * - bytes received and sent by a protocol stub</li>
+ * <li><code>engine.&lt;n&gt;.kep.sessions</code>,
+ * <code>engine.&lt;n&gt;.asyncSender.waiting</code>,
+ * <code>engine.&lt;n&gt;.outboundQueue.size</code> - queue depths of a running
+ * engine (see {@link net.sharkfw.peer.SharkEngine#getMetricsPrefix()})</li>
+ * </ul>
+ *
+ * <p>Metrics are read by {@link #snapshot()}, written by {@link #dump(PrintStream)}
+ * - periodically after {@link #startDump(long, PrintStream)}. J2SE offers
+ * them via JMX as well.</p>
+ *
+ * @author thsc
+ */
+public final class Metrics {
+
+    private static volatile boolean enabled = false;
+
+    private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService dumper = null; // guarded by Metrics.class
+
+    private Metrics() {
+    }
+
+    /**
+     * Switching on affects measurements which start afterwards and
+     * connections which are created afterwards.
+     */
+    public static void setEnabled(boolean on) {
+        Metrics.enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return Metrics.enabled;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                              registry                              //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return counter of that name - created if it doesn't exist
+     */
+    public static Counter counter(String name) {
+        Counter counter = Metrics.counters.get(name);
+        if(counter == null) {
+            Counter newCounter = new Counter();
+            counter = Metrics.counters.putIfAbsent(name, newCounter);
+            if(counter == null) {
+                counter = newCounter;
+            }
+        }
+
+        return counter;
+    }
+
+    /**
+     * @return histogram of that name - created if it doesn't exist
+     */
+    public static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = Metrics.histograms.get(name);
+        if(histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = Metrics.histograms.putIfAbsent(name, newHistogram);
+            if(histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Gauges are read even if metrics are switched off. A gauge of same
+     * name is replaced.
+     */
+    public static void registerGauge(String name, Gauge gauge) {
+        Metrics.gauges.put(name, gauge);
+    }
+
+    public static void unregisterGauge(String name) {
+        Metrics.gauges.remove(name);
+    }
+
+    /**
+     * Counters and histograms start from scratch. Gauges are kept.
+     */
+    public static void reset() {
+        for(Counter counter : Metrics.counters.values()) {
+            counter.reset();
+        }
+
+        for(LatencyHistogram histogram : Metrics.histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                             recording                              //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return start time for {@link #stop(String, long)} - 0 if metrics
+     * are switched off
+     */
+    public static long start() {
+        return Metrics.enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records time since start in microseconds. Does nothing if start is 0.
+     *
+     * @param name histogram
+     * @param start result of {@link #start()}
+     */
+    public static void stop(String name, long start) {
+        if(start != 0) {
+            Metrics.histogram(name).record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Adds n to a counter if metrics are switched on.
+     */
+    public static void add(String name, long n) {
+        if(Metrics.enabled) {
+            Metrics.counter(name).add(n);
+        }
+    }
+
+    /**
+     * @return stream which counts bytes read if metrics are switched on,
+     * the stream itself otherwise
+     */
+    public static InputStream count(InputStream is, String name) {
+        if(!Metrics.enabled) {
+            return is;
+        }
+
+        return new CountingInputStream(is, Metrics.counter(name));
+    }
+
+    /**
+     * @return stream which counts bytes written if metrics are switched on,
+     * the stream itself otherwise
+     */
+    public static OutputStream count(OutputStream os, String name) {
+        if(!Metrics.enabled) {
+            return os;
+        }
+
+        return new CountingOutputStream(os, Metrics.counter(name));
+    }
+
+    /**
+     * @return channel which counts bytes written if metrics are switched on,
+     * the channel itself otherwise (null as well)
+     */
+    public static WritableByteChannel count(WritableByteChannel channel, String name) {
+        if(!Metrics.enabled || channel == null) {
+            return channel;
+        }
+
+        return new CountingWritableChannel(channel, Metrics.counter(name));
+    }
+
+    /**
+     * @return channel which counts bytes read if metrics are switched on,
+     * the channel itself otherwise (null as well)
+     */
+    public static ReadableByteChannel count(ReadableByteChannel channel, String name) {
+        if(!Metrics.enabled || channel == null) {
+            return channel;
+        }
+
+        return new CountingReadableChannel(channel, Metrics.counter(name));
+    }
+
+    /**
+     * @return channel which is counted by that channel - the channel
+     * itself if it doesn't count
+     */
+    public static Channel unwrap(Channel channel) {
+        if(channel instanceof CountingWritableChannel) {
+            return ((CountingWritableChannel) channel).channel;
+        }
+
+        if(channel instanceof CountingReadableChannel) {
+            return ((CountingReadableChannel) channel).channel;
+        }
+
+        return channel;
+    }
+
+    /**
+     * @return name of class of o - used as part of a metrics name
+     */
+    public static String nameOf(Object o) {
+        String name = o.getClass().getSimpleName();
+
+        // anonymous class
+        return name.length() > 0 ? name : o.getClass().getName();
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                              reading                               //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Current values sorted by name. A histogram is reported by
+     * <code>name.count</code>, <code>.mean</code>, <code>.p50</code>,
+     * <code>.p90</code>, <code>.p99</code> and <code>.max</code>.
+     *
+     * @return copy of all metrics
+     */
+    public static SortedMap<String, Long> snapshot() {
+        TreeMap<String, Long> snapshot = new TreeMap<>();
+
+        for(Map.Entry<String, Counter> entry : Metrics.counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+
+        for(Map.Entry<String, Gauge> entry : Metrics.gauges.entrySet()) {
+            try {
+                snapshot.put(entry.getKey(), entry.getValue().getValue());
+            }
+            catch(RuntimeException re) {
+                L.w("cannot read gauge " + entry.getKey() + ": " + re.getMessage(), Metrics.class);
+            }
+        }
+
+        for(Map.Entry<String, LatencyHistogram> entry : Metrics.histograms.entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+
+            snapshot.put(name + ".count", histogram.getCount());
+            snapshot.put(name + ".mean", histogram.getMean());
+            snapshot.put(name + ".p50", histogram.getPercentile(50));
+            snapshot.put(name + ".p90", histogram.getPercentile(90));
+            snapshot.put(name + ".p99", histogram.getPercentile(99));
+            snapshot.put(name + ".max", histogram.getMax());
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Writes a snapshot - a line per value.
+     */
+    public static void dump(PrintStream out) {
+        SortedMap<String, Long> snapshot = Metrics.snapshot();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("metrics ");
+        sb.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(new Date()));
+        sb.append('\n');
+        for(Map.Entry<String, Long> entry : snapshot.entrySet()) {
+            sb.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        }
+
+        out.print(sb.toString());
+        out.flush();
+    }
+
+    /**
+     * Dumps metrics periodically by a background thread. A running dump
+     * is replaced.
+     *
+     * @param period milliseconds
+     * @param out
+     */
+    public static synchronized void startDump(long period, final PrintStream out) {
+        Metrics.stopDump();
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SharkMetrics");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Metrics.dump(out);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        Metrics.dumper = executor;
+    }
+
+    public static synchronized void stopDump() {
+        if(Metrics.dumper != null) {
+            Metrics.dumper.shutdownNow();
+            Metrics.dumper = null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                              streams                               //
+    ////////////////////////////////////////////////////////////////////////
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final Counter counter;
+
+        CountingInputStream(InputStream is, Counter counter) {
+            super(is);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0) {
+                this.counter.increment();
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) {
+                this.counter.add(n);
+            }
+
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if(skipped > 0) {
+                this.counter.add(skipped);
+            }
+
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            // bytes read twice would be counted twice
+            return false;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final Counter counter;
+
+        CountingOutputStream(OutputStream os, Counter counter) {
+            super(os);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.counter.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.counter.add(len);
+        }
+    }
+
+    private static class CountingWritableChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private final Counter counter;
+
+        CountingWritableChannel(WritableByteChannel channel, Counter counter) {
+            this.channel = channel;
+            this.counter = counter;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = this.channel.write(src);
+            if(n > 0) {
+                this.counter.add(n);
+            }
+
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    private static class CountingReadableChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+        private final Counter counter;
+
+        CountingReadableChannel(ReadableByteChannel channel, Counter counter) {
+            this.channel = channel;
+            this.counter = counter;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = this.channel.read(dst);
+            if(n > 0) {
+                this.counter.add(n);
+            }
+
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
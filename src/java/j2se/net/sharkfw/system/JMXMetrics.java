@@ -0,0 +1,145 @@
+package net.sharkfw.system;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Offers {@link Metrics} via JMX (e.g. jconsole) as MBean
+ * <code>net.sharkfw:type=Metrics</code>. Each value of a
+ * {@link Metrics#snapshot()} is a read only attribute. Attribute
+ * <code>Enabled</code> switches metrics on and off.
+ *
+ * <p>JMX isn't available on Android - that's why this class isn't part
+ * of core.</p>
+ *
+ * @author thsc
+ */
+public class JMXMetrics implements DynamicMBean {
+
+    public static final String OBJECT_NAME = "net.sharkfw:type=Metrics";
+
+    private static final String ENABLED = "Enabled";
+    private static final String RESET = "reset";
+
+    /**
+     * Registers metrics at platform MBean server - if not already done.
+     */
+    public static synchronized void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if(!server.isRegistered(name)) {
+            server.registerMBean(new JMXMetrics(), name);
+        }
+    }
+
+    public static synchronized void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if(server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if(ENABLED.equals(attribute)) {
+            return Metrics.isEnabled();
+        }
+
+        Long value = Metrics.snapshot().get(attribute);
+        if(value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        if(!ENABLED.equals(attribute.getName())) {
+            throw new AttributeNotFoundException("read only attribute: " + attribute.getName());
+        }
+
+        Metrics.setEnabled(Boolean.TRUE.equals(attribute.getValue()));
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Long> snapshot = Metrics.snapshot();
+
+        AttributeList list = new AttributeList();
+        for(String attribute : attributes) {
+            if(ENABLED.equals(attribute)) {
+                list.add(new Attribute(ENABLED, Metrics.isEnabled()));
+            }
+            else if(snapshot.containsKey(attribute)) {
+                list.add(new Attribute(attribute, snapshot.get(attribute)));
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        AttributeList set = new AttributeList();
+        for(Attribute attribute : attributes.asList()) {
+            try {
+                this.setAttribute(attribute);
+                set.add(attribute);
+            } catch (AttributeNotFoundException ex) {
+                // not set
+            }
+        }
+
+        return set;
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+
+        if(RESET.equals(actionName)) {
+            Metrics.reset();
+            return null;
+        }
+
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        attributes.add(new MBeanAttributeInfo(ENABLED, "boolean",
+                "metrics are recorded", true, true, true));
+
+        // attributes come and go with new names
+        for(Map.Entry<String, Long> entry : Metrics.snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), "java.lang.Long",
+                    entry.getKey(), true, false, false));
+        }
+
+        MBeanOperationInfo reset = new MBeanOperationInfo(RESET,
+                "counters and histograms start from scratch",
+                new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+
+        return new MBeanInfo(JMXMetrics.class.getName(), "Shark runtime metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null, new MBeanOperationInfo[] {reset}, null);
+    }
+}
@@ -4,17 +4,29 @@ import com.sun.mail.util.MailSSLSocketFactory;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.mail.*;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimePartDataSource;
+import javax.mail.util.ByteArrayDataSource;
+import javax.activation.DataHandler;
+import net.sharkfw.protocols.MessageStreamHandler;
 import net.sharkfw.protocols.MessageStub;
 import net.sharkfw.protocols.PeerAddress;
 import net.sharkfw.protocols.RequestHandler;
+import net.sharkfw.protocols.UndeliveredMessageListener;
 import net.sharkfw.system.Base64;
 import net.sharkfw.system.L;
-import net.sharkfw.system.Streamer;
 
 /**
  * Implementation of a message stub based on SMTP and POP3
@@ -31,6 +43,13 @@ import net.sharkfw.system.Streamer;
  * Sender identity must be provided by the Shark Engine
  * which must be transmitted as parameter in the constructor.
  * 
+ * Messages to the same recipient can be collected for a while
+ * (see {@link #setBatchDelay(long)}) and are sent as parts of a single 
+ * multipart mail in that case. SMTP connection is kept open and reused.
+ * Batched messages are sent after {@link #sendMessage(byte[], String)} has
+ * returned - messages of a batch which couldn't be sent are handed to an
+ * {@link UndeliveredMessageListener}.
+ * 
  * @author thsc
  */
 
@@ -40,6 +59,11 @@ public final class MailMessageStub implements MessageStub, Runnable {
     private static final int MINIMAL_CHECKING_DELAY = 60000; // one minute
     private static final int DEFAULT_MAX_MAIL_LENGTH = 1024; // MByte
     private static final int PARALLEL_MESSAGE_CAPACITY = 2; // 3 mails should fit into a mailbox at once
+    private static final String BATCH_HEADER = "X-Shark-Batch";
+    private static final int MAX_BATCH_MESSAGES = 64;
+    
+    /** messages are sent immediately - no batching */
+    public static final long DEFAULT_BATCH_DELAY = 0;
 
     private RequestHandler handler;
     private String smtpHost;
@@ -63,6 +87,24 @@ public final class MailMessageStub implements MessageStub, Runnable {
     private final boolean sslPOP3;
     private final int maxMessageLen;
     
+    private long batchDelay = DEFAULT_BATCH_DELAY;
+    private final HashMap<String, Batch> batches = new HashMap<>();
+    private ScheduledThreadPoolExecutor batchTimer = null;
+    private UndeliveredMessageListener undeliveredListener = null;
+    
+    private final List<Provider> providers = new ArrayList<>();
+    private Session smtpSession = null;
+    private Transport smtpTransport = null;
+    private Store store = null;
+    
+    /**
+     * Messages waiting for a recipient
+     */
+    private static class Batch {
+        final List<byte[]> messages = new ArrayList<>();
+        long size = 0;
+    }
+    
     /**
      * 
      * @param handler
@@ -142,6 +184,10 @@ public final class MailMessageStub implements MessageStub, Runnable {
             this.mailCheckThread.interrupt();
         }        
         this.mailCheckThread = null;
+        
+        // don't keep anything back
+        this.flushBatches();
+        this.closeTransport();
     }
     
     public boolean started() {
@@ -205,6 +251,50 @@ public final class MailMessageStub implements MessageStub, Runnable {
         this.replyAddress = addr + "?" + PeerAddress.MAXLEN_PARAMETER + "=" + String.valueOf(nettoLen);
     }
 
+    /**
+     * Messages to the same recipient are collected for at most
+     * <code>delay</code> ms and are sent within a single mail afterwards.
+     * A batch is sent earlier if it would exceed the mail length
+     * announced by this stub.
+     * 
+     * @param delay delay in ms - 0 sends each message immediately (default)
+     */
+    public void setBatchDelay(long delay) {
+        this.batchDelay = delay;
+        if(delay <= 0) {
+            this.flushBatches();
+        }
+    }
+    
+    public long getBatchDelay() {
+        return this.batchDelay;
+    }
+    
+    /**
+     * Messages of batches which couldn't be sent are handed to that
+     * listener, e.g. to queue them for another attempt by
+     * {@link #sendMessageNow(byte[], String)}. They are only logged
+     * if there is no listener.
+     * 
+     * @param listener 
+     */
+    public void setUndeliveredMessageListener(UndeliveredMessageListener listener) {
+        this.undeliveredListener = listener;
+    }
+    
+    /**
+     * Sessions are created with this provider, e.g. to use another 
+     * transport or store implementation for smtp or pop3.
+     * 
+     * @param provider 
+     */
+    public synchronized void setMailProvider(Provider provider) {
+        this.providers.add(provider);
+        this.closeTransport();
+        this.smtpSession = null;
+        this.closeStore();
+    }
+    
     @Override
     public void sendMessage(byte[] msgBytes, String recAddress) throws IOException {
         recAddress = this.makePlainMailAddress(recAddress);
@@ -214,40 +304,215 @@ public final class MailMessageStub implements MessageStub, Runnable {
           L.e("Messageloop! From " + this.pop3UserName + " to: " + recAddress, this);
         }
         
-        msgBytes = Base64.encodeBytesToBytes(msgBytes);
-        String msgText = new String(msgBytes, "UTF-8");
+        if(this.batchDelay <= 0) {
+            List<byte[]> single = new ArrayList<>();
+            single.add(msgBytes);
+            this.sendMail(recAddress, single);
+            return;
+        }
         
-        if(!this.sslSMTP) {
-            try {
-                Properties props = new Properties();
-                props.put("mail.smtp.host", this.smtpHost);
-                props.put("mail.from", this.pop3Address);
-                Session session = Session.getInstance(props, null);
-
-                MimeMessage mimeMsg = new MimeMessage(session);
-                mimeMsg.setFrom();
-                mimeMsg.setRecipients(javax.mail.Message.RecipientType.TO, recAddress);
-
-                mimeMsg.setSubject(SUBJECT);
-
-                mimeMsg.setText(msgText, "UTF-8");
+        List<byte[]> full = null;
+        synchronized(this.batches) {
+            Batch batch = this.batches.get(recAddress);
+            
+            // base64 encoding makes it a third longer
+            long encodedLen = msgBytes.length * 4 / 3;
+            
+            if(batch != null && (batch.size + encodedLen > this.getMaxBatchSize()
+                    || batch.messages.size() >= MAX_BATCH_MESSAGES)) {
+                
+                // send what we have and start a new batch
+                full = batch.messages;
+                this.batches.remove(recAddress);
+                batch = null;
+            }
+            
+            if(batch == null) {
+                batch = new Batch();
+                this.batches.put(recAddress, batch);
+                this.scheduleFlush(recAddress, batch);
+            }
+            
+            batch.messages.add(msgBytes);
+            batch.size += encodedLen;
+        }
+        
+        if(full != null) {
+            // failure concerns earlier messages - not that one
+            this.sendBatch(recAddress, full);
+        }
+    }
+    
+    /**
+     * Sends a message at once - even if batching is switched on.
+     * 
+     * @param msgBytes
+     * @param recAddress
+     * @throws IOException message wasn't sent
+     */
+    public void sendMessageNow(byte[] msgBytes, String recAddress) throws IOException {
+        List<byte[]> single = new ArrayList<>();
+        single.add(msgBytes);
+        this.sendMail(this.makePlainMailAddress(recAddress), single);
+    }
+    
+    private long getMaxBatchSize() {
+        return (long)this.maxMessageLen * 1024 / MailMessageStub.PARALLEL_MESSAGE_CAPACITY;
+    }
+    
+    private void scheduleFlush(final String recAddress, final Batch batch) {
+        if(this.batchTimer == null) {
+            this.batchTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MailBatch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        
+        this.batchTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(MailMessageStub.this.batches) {
+                    // already sent?
+                    if(MailMessageStub.this.batches.get(recAddress) != batch) {
+                        return;
+                    }
+                    MailMessageStub.this.batches.remove(recAddress);
+                }
+                
+                MailMessageStub.this.sendBatch(recAddress, batch.messages);
+            }
+        }, this.batchDelay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Sends all collected messages now.
+     */
+    public void flushBatches() {
+        HashMap<String, Batch> pending;
+        synchronized(this.batches) {
+            pending = new HashMap<>(this.batches);
+            this.batches.clear();
+        }
+        
+        for(String recAddress : pending.keySet()) {
+            this.sendBatch(recAddress, pending.get(recAddress).messages);
+        }
+    }
+    
+    /**
+     * Nobody waits for a batch - failures are handed to the undelivered
+     * message listener.
+     */
+    private void sendBatch(String recAddress, List<byte[]> messages) {
+        try {
+            this.sendMail(recAddress, messages);
+        } catch (IOException ex) {
+            UndeliveredMessageListener listener = this.undeliveredListener;
+            if(listener == null) {
+                L.w("couldn't send batch to " + recAddress + " - messages lost: " + ex.getMessage(), this);
+                return;
+            }
+            
+            L.d("couldn't send batch to " + recAddress + ": " + ex.getMessage(), this);
+            for(byte[] msg : messages) {
+                listener.undelivered(msg, recAddress, ex);
+            }
+        }
+    }
+    
+    /**
+     * A single message is sent as base64 text mail as ever. More messages
+     * become parts of a multipart mail.
+     */
+    private synchronized void sendMail(String recAddress, List<byte[]> messages) throws IOException {
+        try {
+            Session session = this.getSMTPSession();
+            
+            MimeMessage mimeMsg = messages.size() == 1 ? 
+                    new MimeMessage(session) : new BatchMessage(session);
+            mimeMsg.setFrom(new InternetAddress(this.pop3Address));
+            mimeMsg.setRecipients(javax.mail.Message.RecipientType.TO, recAddress);
+            mimeMsg.setSubject(SUBJECT);
+            
+            if(messages.size() == 1) {
+                byte[] msgBytes = Base64.encodeBytesToBytes(messages.get(0));
+                mimeMsg.setText(new String(msgBytes, "UTF-8"), "UTF-8");
                 mimeMsg.setHeader("Content-Type", SHARK_CONTENT_TYPE);
-
-                Transport smtpTransport = session.getTransport("smtp");
-                smtpTransport.connect(this.smtpHost, this.smtpUserName, this.smtppwd);
-
-                smtpTransport.sendMessage(mimeMsg, mimeMsg.getAllRecipients());
-
-                smtpTransport.close();
-            } catch (MessagingException ex) {
-                L.e("couldn't send message: " + ex.getMessage(), this);
-                throw new IOException(ex.getMessage());
+            } else {
+                MimeMultipart multipart = new MimeMultipart();
+                for(byte[] msgBytes : messages) {
+                    MimeBodyPart part = new MimeBodyPart();
+                    part.setDataHandler(new DataHandler(
+                            new ByteArrayDataSource(msgBytes, SHARK_CONTENT_TYPE)));
+                    part.setHeader("Content-Type", SHARK_CONTENT_TYPE);
+                    part.setHeader("Content-Transfer-Encoding", "base64");
+                    multipart.addBodyPart(part);
+                }
+                
+                // parts are encoded while written
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                multipart.writeTo(body);
+                mimeMsg.setDataHandler(new DataHandler(
+                        new ByteArrayDataSource(body.toByteArray(), multipart.getContentType())));
+                mimeMsg.setHeader("Content-Type", multipart.getContentType());
+                mimeMsg.setHeader(BATCH_HEADER, String.valueOf(messages.size()));
+                L.d("batch of " + messages.size() + " messages to " + recAddress, this);
             }
-        } else {
+            
+            mimeMsg.saveChanges();
+            
+            try {
+                Transport transport = this.getTransport();
+                transport.sendMessage(mimeMsg, mimeMsg.getAllRecipients());
+            }
+            catch(MessagingException ex) {
+                // server might have dropped an idle connection - once again
+                L.d("resend with new smtp connection: " + ex.getMessage(), this);
+                this.closeTransport();
+                Transport transport = this.getTransport();
+                transport.sendMessage(mimeMsg, mimeMsg.getAllRecipients());
+            }
+        } catch (MessagingException ex) {
+            L.e("couldn't send message: " + ex.getMessage(), this);
+            this.closeTransport();
+            throw new IOException(ex.getMessage());
+        }
+    }
+    
+    /**
+     * Multipart body is already written. Content must not be 
+     * parsed again when saving - there might be no content handler
+     * for multipart (e.g. android activation).
+     */
+    private static class BatchMessage extends MimeMessage {
+        BatchMessage(Session session) {
+            super(session);
+        }
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            this.setHeader("MIME-Version", "1.0");
+            this.updateMessageID();
+        }
+    }
+    
+    private Session getSMTPSession() {
+        if(this.smtpSession != null) {
+            return this.smtpSession;
+        }
         
+        Properties props = new Properties();
+        Authenticator auth = null;
+        if(!this.sslSMTP) {
+            props.put("mail.smtp.host", this.smtpHost);
+            props.put("mail.from", this.pop3Address);
+        } else {
             // SSL
             L.d("set SSL / TLS parameters", this);
-            Properties props = new Properties();
             props.put("mail.smtp.user", this.smtpUserName);
             props.put("mail.smtp.host", this.smtpHost);
             props.put("mail.smtp.port", SSL_PORT);
@@ -257,28 +522,75 @@ public final class MailMessageStub implements MessageStub, Runnable {
             props.put("mail.smtp.socketFactory.port", SSL_PORT);
             props.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
             props.put("mail.smtp.socketFactory.fallback", "false");
-
-            SecurityManager security = System.getSecurityManager();
-
+            
+            auth = new SharkAuthenticatorWrapper(this.smtpUserName, this.smtppwd);
+        }
+        
+        this.smtpSession = this.createSession(props, auth);
+        return this.smtpSession;
+    }
+    
+    private Session createSession(Properties props, Authenticator auth) {
+        Session session = Session.getInstance(props, auth);
+        for(Provider provider : this.providers) {
             try {
-                Authenticator auth = new SharkAuthenticatorWrapper(this.smtpUserName, this.smtppwd);
-                Session session = Session.getInstance(props, auth);
-                //session.setDebug(true);
-
-                MimeMessage msg = new MimeMessage(session);
-                msg.setText(msgText, "UTF-8");
-                msg.setSubject(SUBJECT);
-                msg.setFrom(new InternetAddress(this.pop3Address));
-                msg.setRecipients(javax.mail.Message.RecipientType.TO, recAddress);
-                msg.setHeader("Content-Type", SHARK_CONTENT_TYPE);
-
-                Transport.send(msg);
+                session.setProvider(provider);
+            } catch (NoSuchProviderException ex) {
+                L.w("cannot set mail provider: " + ex.getMessage(), this);
+            }
+        }
+        return session;
+    }
+    
+    private Transport getTransport() throws MessagingException {
+        if(this.smtpTransport == null || !this.smtpTransport.isConnected()) {
+            this.closeTransport();
+            Transport transport = this.getSMTPSession().getTransport("smtp");
+            transport.connect(this.smtpHost, this.smtpUserName, this.smtppwd);
+            this.smtpTransport = transport;
+        }
+        
+        return this.smtpTransport;
+    }
+    
+    private synchronized void closeTransport() {
+        if(this.smtpTransport != null) {
+            try {
+                this.smtpTransport.close();
+            } catch (MessagingException ex) {
+                // ignore
             }
-            catch (Exception mex) {
-                L.d("couldn't send message: " + mex.getMessage(), this);
-                throw new IOException(mex.getMessage());
+            this.smtpTransport = null;
+        }
+    }
+    
+    private void closeStore() {
+        if(this.store != null) {
+            try {
+                this.store.close();
+            } catch (MessagingException ex) {
+                // ignore
             }
+            this.store = null;
+        }
+    }
+    
+    /**
+     * Message is decoded while read by handler if it can handle streams.
+     */
+    private void deliver(InputStream is) throws IOException {
+        if(this.handler instanceof MessageStreamHandler) {
+            ((MessageStreamHandler)this.handler).handleMessage(is, this);
+            return;
         }
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        this.handler.handleMessage(baos.toByteArray(), this);
     }
 
     @Override
@@ -292,42 +604,14 @@ public final class MailMessageStub implements MessageStub, Runnable {
     @Override
     public void run() {
         /*
-         * we do the whole process in each loop:
-         * opening connection, checking for mails and closing
-         * connection. Might be somewhat time consuming but
-         * it's better safe resource on mail server side?
+         * store connection is kept, folder is opened and closed in each 
+         * loop: pop3 shows new mails only after re-opening the inbox.
          */
         do {
         	L.d((this.dequeue?"Dequeue":"Check")+"ing mails for: " + this.pop3UserName, this);
-            Store store = null;
             Folder folder = null;
-            Session session = null;
             try {
-                if(!this.sslSMTP) {
-                    session = Session.getDefaultInstance( new Properties() );
-
-                    store = session.getStore( "pop3" );
-                } else {
-                    // SSL
-                    L.d("setting up SSL", this);
-                    Properties props = new Properties();
-
-                    props.put("mail.host", this.pop3Host);
-                    props.put("mail.store.protocol", "pop3s");
-                    props.put("mail.pop3s.auth", "true");
-                    props.put("mail.pop3s.port", "995");
-                    
-                    MailSSLSocketFactory socketFactory= new MailSSLSocketFactory();
-                    // that's hards stuff, though - I trust anyone, means: encryption is useless
-                    // nevertheless - shark makes its own security.
-                    socketFactory.setTrustAllHosts(true);
-                    props.put("mail.pop3s.socketFactory", socketFactory);
-
-                    session = Session.getDefaultInstance(props, null);              
-                    store = session.getStore();
-                }
-
-                store.connect( this.pop3Host, this.pop3UserName, this.pop3pwd );
+                Store store = this.getStore();
                 folder = store.getFolder( "INBOX" );
                 folder.open( Folder.READ_WRITE );
 
@@ -339,30 +623,30 @@ public final class MailMessageStub implements MessageStub, Runnable {
                   Message m = messages[i];
 
                   String contentType = m.getContentType();
-                  
-                  Address[] from = m.getFrom();
+                  boolean batch = m.getHeader(BATCH_HEADER) != null 
+                          && m.isMimeType("multipart/*");
 
-                  if(contentType.equalsIgnoreCase(SHARK_CONTENT_TYPE)) {
+                  if(contentType.equalsIgnoreCase(SHARK_CONTENT_TYPE) || batch) {
                       // mark message as deleted
                       m.setFlag(Flags.Flag.DELETED, true);
 
                       if (!this.dequeue) {	
-                      // read it
-                      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                      
-                      InputStream is = m.getInputStream();
-                      Streamer.stream(is, baos, 1000);
-
-                      // TODO: can this be null?
-                      
-                      // Decode Base64 encoded message
-                      byte[] received = baos.toByteArray();
-                      byte[] decoded = Base64.decode(received);
-                      
-                      // Pass message on as byte[] to the upper protocol levels.
-                      //this.handleMessage(partNumber, maxParts, channelID, from, decoded);
+                      // Pass message on to the upper protocol levels.
                       L.d("Passing on message " + (i+1) + " of " + messages.length + " on " + this.pop3UserName, this);
-                      this.handler.handleMessage(decoded, this);
+                      
+                      if(!batch) {
+                          // Decode Base64 encoded message while reading
+                          this.deliver(new Base64.InputStream(m.getInputStream(), Base64.DECODE));
+                      } else {
+                          // parsed from source - transfer encoding is removed while reading parts
+                          Multipart multipart = new MimeMultipart(new MimePartDataSource((MimePart) m));
+                          for(int p = 0; p < multipart.getCount(); p++) {
+                              BodyPart part = multipart.getBodyPart(p);
+                              if(part.isMimeType(SHARK_CONTENT_TYPE)) {
+                                  this.deliver(part.getInputStream());
+                              }
+                          }
+                      }
                       
                       } else {
                     	  L.d("dequeueing message " + (i+1) + " of " + messages.length + " on " + this.pop3UserName, this);
@@ -372,16 +656,14 @@ public final class MailMessageStub implements MessageStub, Runnable {
             } catch (Exception ex) {
                 L.l("exception during "+(sslPOP3?"ssl":"")+"mail access for "+pop3UserName+"("+pop3pwd+") was handled:", this);
                 L.d(ex.getMessage(), ex);
+                // reconnect next time
+                this.closeStore();
             } finally {
                 try {
                     // in any case: close and expunge deleted mails
-                    if(folder != null) {
+                    if(folder != null && folder.isOpen()) {
                         folder.close( true );
                     }
-                    
-                    if(store != null) {
-                        store.close();
-                    }
                 } catch (MessagingException ex) {
                     // I have done what I could - ignore that desaster.
                 } catch (IllegalStateException ex2) {
@@ -404,9 +686,45 @@ public final class MailMessageStub implements MessageStub, Runnable {
             }
             
         } while (this.checkAgain);
+        this.closeStore();
         this.finished = true;
     }
     
+    private synchronized Store getStore() throws MessagingException, java.security.GeneralSecurityException {
+        if(this.store != null && this.store.isConnected()) {
+            return this.store;
+        }
+        this.closeStore();
+        
+        Store newStore;
+        if(!this.sslSMTP) {
+            Session session = this.createSession(new Properties(), null);
+            newStore = session.getStore( "pop3" );
+        } else {
+            // SSL
+            L.d("setting up SSL", this);
+            Properties props = new Properties();
+
+            props.put("mail.host", this.pop3Host);
+            props.put("mail.store.protocol", "pop3s");
+            props.put("mail.pop3s.auth", "true");
+            props.put("mail.pop3s.port", "995");
+
+            MailSSLSocketFactory socketFactory= new MailSSLSocketFactory();
+            // that's hards stuff, though - I trust anyone, means: encryption is useless
+            // nevertheless - shark makes its own security.
+            socketFactory.setTrustAllHosts(true);
+            props.put("mail.pop3s.socketFactory", socketFactory);
+
+            Session session = this.createSession(props, null);
+            newStore = session.getStore();
+        }
+        
+        newStore.connect( this.pop3Host, this.pop3UserName, this.pop3pwd );
+        this.store = newStore;
+        return this.store;
+    }
+    
 //    protected void handleMessage(String[] partNumber, String[] maxNumber, 
 //            String[] channelID, Address[] from, byte[] msg) {
 //        
@@ -4,6 +4,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import net.sharkfw.kep.format.ChunkedContent;
+import net.sharkfw.knowledgeBase.ChannelInformation;
 import net.sharkfw.knowledgeBase.ContextCoordinates;
 import net.sharkfw.knowledgeBase.ContextPoint;
 import net.sharkfw.knowledgeBase.Information;
@@ -15,7 +23,10 @@ import net.sharkfw.knowledgeBase.SharkKBException;
 import net.sharkfw.knowledgeBase.TXSemanticTag;
 import net.sharkfw.knowledgeBase.Taxonomy;
 import net.sharkfw.knowledgeBase.filesystem.FSSharkKB;
+import net.sharkfw.protocols.SharkOutputStream;
+import net.sharkfw.protocols.UTF8SharkOutputStream;
 import net.sharkfw.system.L;
+import net.sharkfw.system.Metrics;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -240,4 +251,74 @@ public class FSSharkKBTest {
         
         Assert.assertTrue(SharkCSAlgebra.identical(owner, aliceTag));
      }
+     
+    @Test
+    public void stalledPeerTimesOut() throws Exception {
+        this.stalledPeerTimesOut(false, false);
+    }
+    
+    @Test
+    public void stalledPeerTimesOutOnCountedChannel() throws Exception {
+        this.stalledPeerTimesOut(true, false);
+    }
+    
+    @Test
+    public void stalledPeerTimesOutOnChunkedContent() throws Exception {
+        this.stalledPeerTimesOut(true, true);
+    }
+    
+    /**
+     * @param counted channel is wrapped by metrics
+     * @param chunked content is written in chunks (KEP 1.1)
+     */
+    private void stalledPeerTimesOut(boolean counted, boolean chunked) throws Exception {
+        FSSharkKB.removeFSStorage(FOLDER);
+        new File(FOLDER).mkdirs();
+        
+        FSSharkKB kb = new FSSharkKB(FOLDER);
+        SemanticTag javaTag = kb.createSemanticTag("Java", "http://www.java.net");
+        ContextPoint cp = kb.createContextPoint(kb.createContextCoordinates(
+                javaTag, null, null, null, null, null, SharkCS.DIRECTION_OUT));
+        
+        // more than socket buffers can take
+        Information i = cp.addInformation(new byte[8 * 1024 * 1024]);
+        
+        ServerSocket server = new ServerSocket(0);
+        server.setReceiveBufferSize(4096);
+        SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress("localhost", server.getLocalPort()));
+        // peer accepts but never reads
+        Socket peer = server.accept();
+        Metrics.setEnabled(counted);
+        try {
+            channel.socket().setSendBufferSize(4096);
+            channel.socket().setSoTimeout(500);
+            WritableByteChannel target = Metrics.count((WritableByteChannel) channel, "test.bytesOut");
+            
+            long start = System.currentTimeMillis();
+            try {
+                if(chunked) {
+                    SharkOutputStream os = new UTF8SharkOutputStream(
+                            channel.socket().getOutputStream(), target);
+                    os.setBinaryNumbers(true);
+                    ChunkedContent.write(i, i.getContentLength(), os, null, null);
+                } else {
+                    ((ChannelInformation) i).transferContentTo(target);
+                }
+                Assert.fail("stalled peer not detected");
+            }
+            catch(SocketTimeoutException e) {
+                // expected
+            }
+            
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            Assert.assertFalse(channel.isOpen());
+        }
+        finally {
+            Metrics.setEnabled(false);
+            channel.close();
+            peer.close();
+            server.close();
+        }
+    }
 }
\ No newline at end of file
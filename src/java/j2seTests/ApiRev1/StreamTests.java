@@ -102,5 +102,45 @@ public class StreamTests {
       // Check that the exception has been thrown
       Assert.assertTrue(exception);
   }
+
+    @Test
+    public void testBinaryNumbers() throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SharkOutputStream sos = new UTF8SharkOutputStream(baos);
+      sos.setBinaryNumbers(true);
+      
+      sos.write("Hello World!");
+      sos.writeInt(-42);
+      sos.writeLong(1234567890123L);
+      sos.write("");
+      sos.write("\u00e4\u00f6\u00fc");
+      
+      // 4 + 12 + 4 + 8 + 4 + 4 + 6 bytes
+      Assert.assertEquals(42, baos.size());
+      
+      SharkInputStream sis = new StandardSharkInputStream(new ByteArrayInputStream(baos.toByteArray()));
+      sis.setBinaryNumbers(true);
+      
+      Assert.assertEquals("Hello World!", sis.readUTF8());
+      Assert.assertEquals(-42, sis.readInt());
+      Assert.assertEquals(1234567890123L, sis.readLong());
+      Assert.assertEquals("", sis.readUTF8());
+      Assert.assertEquals("\u00e4\u00f6\u00fc", sis.readUTF8());
+  }
+    
+    @Test
+    public void testStringNumbers() throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SharkOutputStream sos = new UTF8SharkOutputStream(baos);
+      
+      // KEP 1.0 - numbers are strings
+      sos.writeInt(42);
+      sos.writeLong(-7);
+      
+      SharkInputStream sis = new StandardSharkInputStream(new ByteArrayInputStream(baos.toByteArray()));
+      
+      Assert.assertEquals("42", sis.readUTF8());
+      Assert.assertEquals(-7, sis.readLong());
+  }
     
 }
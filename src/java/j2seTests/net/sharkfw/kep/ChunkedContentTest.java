@@ -0,0 +1,223 @@
+package net.sharkfw.kep;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Enumeration;
+import net.sharkfw.kep.format.ChunkedContent;
+import net.sharkfw.kep.format.XMLSerializer;
+import net.sharkfw.knowledgeBase.ContextPoint;
+import net.sharkfw.knowledgeBase.Information;
+import net.sharkfw.knowledgeBase.Knowledge;
+import net.sharkfw.knowledgeBase.SemanticTag;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.protocols.SharkInputStream;
+import net.sharkfw.protocols.SharkOutputStream;
+import net.sharkfw.protocols.StandardSharkInputStream;
+import net.sharkfw.protocols.UTF8SharkOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class ChunkedContentTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private byte[] content;
+    private Knowledge k;
+    private Information info;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        this.content = new byte[2500];
+        for(int i = 0; i < this.content.length; i++) {
+            this.content[i] = (byte) i;
+        }
+
+        InMemoSharkKB kb = new InMemoSharkKB();
+        SemanticTag topic = kb.createSemanticTag("Chunks", "http://chunks.org");
+        ContextPoint cp = kb.createContextPoint(kb.createContextCoordinates(topic, null, null, null, null, null, SharkCS.DIRECTION_INOUT));
+        this.info = cp.addInformation(this.content);
+
+        this.k = kb.createKnowledge();
+        this.k.addContextPoint(cp);
+
+        this.directory = new File(System.getProperty("java.io.tmpdir"), "sharkfw_chunktest_" + System.nanoTime());
+    }
+
+    private ContentTransfers createTransfers() {
+        ContentTransfers transfers = new ContentTransfers(this.directory);
+        transfers.setChunkSize(CHUNK_SIZE);
+        return transfers;
+    }
+
+    private byte[] write(ContentTransfers transfers) throws Exception {
+        return this.write(transfers, null, null);
+    }
+
+    /**
+     * @param whileWriting runs after transfer id is written - like a
+     * resume request which arrives while content is written
+     */
+    private byte[] write(ContentTransfers transfers, Object connection,
+            final Runnable whileWriting) throws Exception {
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final String transferID = ChunkedContent.getTransferID(this.info, this.content.length);
+        OutputStream out = new OutputStream() {
+            private boolean done = whileWriting == null;
+
+            @Override
+            public void write(int b) throws IOException {
+                this.write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                baos.write(b, off, len);
+                if(!this.done && new String(baos.toByteArray(), "ISO-8859-1").contains(transferID)) {
+                    this.done = true;
+                    whileWriting.run();
+                }
+            }
+        };
+
+        SharkOutputStream sos = new UTF8SharkOutputStream(out);
+        sos.setBinaryNumbers(true);
+
+        new XMLSerializer().write(this.k, sos, transfers, connection, null);
+
+        return baos.toByteArray();
+    }
+
+    private Knowledge parse(byte[] msg, ContentTransfers transfers,
+            ContentTransfers.ResumeListener listener) throws Exception {
+
+        SharkInputStream sis = new StandardSharkInputStream(new ByteArrayInputStream(msg));
+        sis.setBinaryNumbers(true);
+
+        return new XMLSerializer().parseKnowledge(sis, transfers, listener, null, null);
+    }
+
+    private Information firstInformation(Knowledge received) {
+        ContextPoint cp = received.contextPoints().nextElement();
+        Enumeration<Information> infoEnum = cp.enumInformation();
+        return infoEnum.hasMoreElements() ? infoEnum.nextElement() : null;
+    }
+
+    @Test
+    public void testChunkedRoundTrip() throws Exception {
+        byte[] msg = this.write(this.createTransfers());
+
+        Knowledge received = this.parse(msg, this.createTransfers(), null);
+
+        Information receivedInfo = this.firstInformation(received);
+        assertNotNull(receivedInfo);
+        assertTrue(Arrays.equals(this.content, receivedInfo.getContentAsByte()));
+    }
+
+    @Test
+    public void testResumeInterruptedTransfer() throws Exception {
+        final ContentTransfers sender = this.createTransfers();
+        ContentTransfers receiver = this.createTransfers();
+
+        // connection drops within third chunk
+        byte[] msg = this.write(sender);
+        byte[] truncated = Arrays.copyOf(msg, msg.length - 400);
+
+        try {
+            this.parse(truncated, receiver, null);
+            fail("interrupted transfer must fail");
+        }
+        catch(IOException ioe) {
+            // expected
+        }
+
+        // content is sent again - receiver asks for missing chunk
+        final Object connection = new Object();
+        final BitSet[] requested = new BitSet[1];
+        final ContentTransfers.ResumeListener listener = new ContentTransfers.ResumeListener() {
+            @Override
+            public void requestMissingChunks(String transferID, BitSet missing) {
+                requested[0] = missing;
+                sender.missingChunks(connection, transferID, missing);
+            }
+        };
+
+        // request arrives while sender writes
+        final String transferID = ChunkedContent.getTransferID(this.info, this.content.length);
+        final PartialContent partial = receiver.getPartialContent(transferID, this.content.length, CHUNK_SIZE);
+        byte[] resumed = this.write(sender, connection, new Runnable() {
+            @Override
+            public void run() {
+                listener.requestMissingChunks(transferID, partial.missingChunks());
+            }
+        });
+        assertTrue(resumed.length < msg.length - 1500);
+        assertFalse(requested[0].get(0));
+        assertTrue(requested[0].get(2));
+
+        Knowledge received = this.parse(resumed, receiver, listener);
+
+        Information receivedInfo = this.firstInformation(received);
+        assertNotNull(receivedInfo);
+        assertTrue(Arrays.equals(this.content, receivedInfo.getContentAsByte()));
+
+        // partial content was removed
+        assertEquals(0, receiver.getPartialContent(transferID, this.content.length, CHUNK_SIZE).receivedChunks());
+    }
+
+    @Test
+    public void testResumeIsBoundToConnection() throws Exception {
+        final ContentTransfers sender = this.createTransfers();
+        final String transferID = ChunkedContent.getTransferID(this.info, this.content.length);
+        final BitSet missing = new BitSet();
+        missing.set(2);
+
+        byte[] full = this.write(sender);
+
+        // request of another peer doesn't affect this transfer
+        byte[] msg = this.write(sender, new Object(), new Runnable() {
+            @Override
+            public void run() {
+                sender.missingChunks(new Object(), transferID, missing);
+            }
+        });
+        assertEquals(full.length, msg.length);
+
+        // request which arrives after content was written is dropped
+        Object connection = new Object();
+        sender.missingChunks(connection, transferID, missing);
+        msg = this.write(sender, connection, null);
+        assertEquals(full.length, msg.length);
+    }
+
+    @Test
+    public void testPartialContentIsCollected() throws Exception {
+        ContentTransfers transfers = this.createTransfers();
+        PartialContent partial = transfers.getPartialContent("old", this.content.length, CHUNK_SIZE);
+        partial.write(0, 0, this.content, 0, CHUNK_SIZE);
+        partial.chunkReceived(0);
+        partial.close();
+
+        assertEquals(0, transfers.collectGarbage());
+
+        long old = System.currentTimeMillis() - ContentTransfers.DEFAULT_MAX_AGE - 1000;
+        for(File file : this.directory.listFiles()) {
+            file.setLastModified(old);
+        }
+
+        assertEquals(1, transfers.collectGarbage());
+        assertEquals(0, this.directory.listFiles().length);
+    }
+}
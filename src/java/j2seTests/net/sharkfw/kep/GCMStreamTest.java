@@ -0,0 +1,99 @@
+package net.sharkfw.kep;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class GCMStreamTest {
+
+    private SecretKey key;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        this.key = KeyGenerator.getInstance("AES").generateKey();
+        this.data = new byte[100000];
+        new Random(42).nextBytes(this.data);
+    }
+
+    private byte[] encrypt(byte[] data, int chunkSize) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GCMEncryptingOutputStream os = new GCMEncryptingOutputStream(baos, this.key, chunkSize);
+
+        // single bytes and larger parts
+        os.write(data, 0, 10);
+        for(int i = 10; i < 20 && i < data.length; i++) {
+            os.write(data[i]);
+        }
+        os.write(data, 20, data.length - 20);
+        os.doFinal();
+
+        return baos.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int n;
+        while((n = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, n);
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] encrypted = this.encrypt(this.data, 4096);
+
+        // nonce, 25 chunks each with length and tag
+        assertEquals(12 + this.data.length + 25 * (4 + 16), encrypted.length);
+
+        InputStream is = new GCMDecryptingInputStream(new ByteArrayInputStream(encrypted), this.key);
+        assertArrayEquals(this.data, readAll(is));
+        assertEquals(-1, is.read());
+    }
+
+    @Test
+    public void testNothingIsReadBehindMessage() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(this.encrypt(this.data, 1000));
+        stream.write(this.encrypt(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21}, 1000));
+
+        ByteArrayInputStream bais = new ByteArrayInputStream(stream.toByteArray());
+        assertArrayEquals(this.data, readAll(new GCMDecryptingInputStream(bais, this.key)));
+
+        InputStream second = new GCMDecryptingInputStream(bais, this.key);
+        assertEquals(1, second.read());
+        assertEquals(21, readAll(second).length + 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testModifiedContentIsDetected() throws Exception {
+        byte[] encrypted = this.encrypt(this.data, 4096);
+        encrypted[5000] ^= 1;
+
+        readAll(new GCMDecryptingInputStream(new ByteArrayInputStream(encrypted), this.key));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncationIsDetected() throws Exception {
+        byte[] encrypted = this.encrypt(this.data, 4096);
+
+        // cut off final chunk
+        int length = 12 + 24 * (4096 + 4 + 16);
+        readAll(new GCMDecryptingInputStream(new ByteArrayInputStream(
+                Arrays.copyOf(encrypted, length)), this.key));
+    }
+}
@@ -0,0 +1,126 @@
+package net.sharkfw.kep;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class KEPSessionExecutorTest {
+
+    private static Runnable waitFor(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    // end
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testRejectIfFull() throws Exception {
+        KEPSessionExecutor executor = new KEPSessionExecutor(2, 2, 0,
+                KEPSessionExecutor.OverloadPolicy.REJECT);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        for(int i = 0; i < 4; i++) {
+            assertTrue(executor.execute(waitFor(latch), new TestStreamConnection("tcp://10.0.0." + i + ":7070")));
+        }
+
+        TestStreamConnection fifth = new TestStreamConnection("tcp://10.0.0.5:7070");
+        assertFalse(executor.execute(waitFor(latch), fifth));
+        assertTrue(fifth.closed);
+        assertEquals(4, executor.getNumberSessions());
+        assertEquals(1, executor.getNumberRejected());
+
+        latch.countDown();
+        Thread.sleep(500);
+        assertEquals(0, executor.getNumberSessions());
+        assertTrue(executor.execute(waitFor(latch), fifth));
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPooledConnectionIsNotRejected() throws Exception {
+        KEPSessionExecutor executor = new KEPSessionExecutor(1, 0, 0,
+                KEPSessionExecutor.OverloadPolicy.REJECT);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        assertTrue(executor.execute(waitFor(latch), new TestStreamConnection("tcp://10.0.0.1:7070")));
+
+        // full - shared connection waits for a thread instead
+        TestStreamConnection pooled = new TestStreamConnection("tcp://10.0.0.2:7070");
+        final CountDownLatch ran = new CountDownLatch(1);
+        assertTrue(executor.executePooled(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, pooled));
+        assertFalse(pooled.closed);
+        assertEquals(0, executor.getNumberRejected());
+
+        latch.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBlockUntilPlaceIsFree() throws Exception {
+        KEPSessionExecutor executor = new KEPSessionExecutor(1, 0, 0,
+                KEPSessionExecutor.OverloadPolicy.BLOCK);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        assertTrue(executor.execute(waitFor(latch), new TestStreamConnection("tcp://10.0.0.1:7070")));
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException ex) {
+                    // go ahead
+                }
+                latch.countDown();
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        assertTrue(executor.execute(waitFor(latch), new TestStreamConnection("tcp://10.0.0.2:7070")));
+        assertTrue(System.currentTimeMillis() - start >= 250);
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPeerBeyondShareIsRejectedFirst() throws Exception {
+        KEPSessionExecutor executor = new KEPSessionExecutor(2, 1, 1,
+                KEPSessionExecutor.OverloadPolicy.BLOCK);
+
+        CountDownLatch latch = new CountDownLatch(1);
+
+        // greedy peer takes free places - different ports, same host
+        assertTrue(executor.execute(waitFor(latch), new TestStreamConnection("tcp://10.0.0.1:4001")));
+        assertTrue(executor.execute(waitFor(latch), new TestStreamConnection("tcp://10.0.0.1:4002")));
+
+        // no place right now - rejected without waiting
+        long start = System.currentTimeMillis();
+        assertTrue(executor.execute(waitFor(latch), new TestStreamConnection("tcp://10.0.0.1:4003")));
+        TestStreamConnection greedy = new TestStreamConnection("tcp://10.0.0.1:4004");
+        assertFalse(executor.execute(waitFor(latch), greedy));
+        assertTrue(greedy.closed);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        latch.countDown();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,66 @@
+package net.sharkfw.kep;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import net.sharkfw.peer.J2SEAndroidSharkEngine;
+import net.sharkfw.peer.SharkEngine;
+import net.sharkfw.protocols.StreamConnection;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class KEPVersionTest {
+
+    private static StreamConnection createConnection() {
+        return (StreamConnection) Proxy.newProxyInstance(
+                StreamConnection.class.getClassLoader(),
+                new Class<?>[] {StreamConnection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if(method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testLegacyVersionByDefault() {
+        SharkEngine se = new J2SEAndroidSharkEngine();
+
+        assertTrue(se.getLegacyKEPFormat());
+        assertEquals(KEPMessage.VERSION_1_0, se.getKEPVersion(createConnection(), "tcp://localhost:7070"));
+        assertEquals(KEPMessage.VERSION_1_0, se.getKEPVersion(null, null));
+    }
+
+    @Test
+    public void testCurrentVersionAfterPeerUsedIt() {
+        SharkEngine se = new J2SEAndroidSharkEngine();
+        StreamConnection con = createConnection();
+
+        se.currentKEPReceived(con, new String[] {"tcp://localhost:7070"});
+
+        assertEquals(KEPMessage.THISVERSION, se.getKEPVersion(con, null));
+        assertEquals(KEPMessage.THISVERSION, se.getKEPVersion(null, "tcp://localhost:7070"));
+
+        // other peers
+        assertEquals(KEPMessage.VERSION_1_0, se.getKEPVersion(createConnection(), "tcp://localhost:7071"));
+    }
+
+    @Test
+    public void testCurrentVersionOptIn() {
+        SharkEngine se = new J2SEAndroidSharkEngine();
+        se.setLegacyKEPFormat(false);
+
+        assertEquals(KEPMessage.THISVERSION, se.getKEPVersion(null, "tcp://localhost:7071"));
+    }
+}
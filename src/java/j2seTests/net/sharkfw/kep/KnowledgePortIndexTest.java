@@ -0,0 +1,85 @@
+package net.sharkfw.kep;
+
+import java.util.List;
+import net.sharkfw.knowledgeBase.FragmentationParameter;
+import net.sharkfw.knowledgeBase.Interest;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.SharkKB;
+import net.sharkfw.knowledgeBase.STSet;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.peer.KnowledgePort;
+import net.sharkfw.peer.StandardKP;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class KnowledgePortIndexTest {
+
+    private static final String SHARK_SI = "http://www.sharksystem.net/";
+    private static final String JAVA_SI = "http://www.java.com/";
+
+    private static Interest interest(String si) throws Exception {
+        Interest interest = InMemoSharkKB.createInMemoInterest();
+        if(si != null) {
+            interest.setTopics(topics(si));
+        }
+
+        return interest;
+    }
+
+    private static STSet topics(String si) throws Exception {
+        STSet topics = InMemoSharkKB.createInMemoSTSet();
+        topics.createSemanticTag("topic", si);
+        return topics;
+    }
+
+    @Test
+    public void testRouteByTopic() throws Exception {
+        SharkKB kb = new InMemoSharkKB();
+        KnowledgePortIndex index = new KnowledgePortIndex();
+
+        StandardKP sharkKP = new StandardKP(null, interest(SHARK_SI), kb);
+        StandardKP javaKP = new StandardKP(null, interest(JAVA_SI), kb);
+        StandardKP anyKP = new StandardKP(null, interest(null), kb);
+
+        assertTrue(index.add(sharkKP));
+        assertTrue(index.add(javaKP));
+        assertTrue(index.add(anyKP));
+        assertFalse(index.add(sharkKP));
+
+        List<KnowledgePort> kps = index.candidates(
+                KnowledgePortIndex.topicSIs(topics(SHARK_SI.toUpperCase())));
+        assertEquals(2, kps.size());
+        assertSame(sharkKP, kps.get(0));
+        assertSame(anyKP, kps.get(1));
+
+        // message on any topic reaches all
+        assertEquals(3, index.candidates(
+                KnowledgePortIndex.topicSIs(InMemoSharkKB.createInMemoSTSet())).size());
+
+        index.remove(sharkKP);
+        kps = index.candidates(KnowledgePortIndex.topicSIs(topics(SHARK_SI)));
+        assertEquals(1, kps.size());
+        assertSame(anyKP, kps.get(0));
+    }
+
+    @Test
+    public void testOTPExtendingTopicsTakesAll() throws Exception {
+        SharkKB kb = new InMemoSharkKB();
+        KnowledgePortIndex index = new KnowledgePortIndex();
+
+        StandardKP kp = new StandardKP(null, interest(SHARK_SI), kb);
+        index.add(kp);
+        assertTrue(index.candidates(KnowledgePortIndex.topicSIs(topics(JAVA_SI))).isEmpty());
+
+        FragmentationParameter[] otp = KnowledgePort.getZeroFP();
+        otp[SharkCS.DIM_TOPIC] = new FragmentationParameter(false, true, 1);
+        kp.setOtp(otp);
+        index.update(kp);
+
+        assertEquals(1, index.candidates(KnowledgePortIndex.topicSIs(topics(JAVA_SI))).size());
+    }
+}
@@ -0,0 +1,332 @@
+package net.sharkfw.kep;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import net.sharkfw.knowledgeBase.ContextPoint;
+import net.sharkfw.knowledgeBase.Knowledge;
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.SemanticTag;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.SharkKBException;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.peer.J2SEAndroidSharkEngine;
+import net.sharkfw.peer.KEPConnection;
+import net.sharkfw.peer.KEPInMessage;
+import net.sharkfw.peer.KnowledgePort;
+import net.sharkfw.peer.SharkEngine;
+import net.sharkfw.pki.SharkPublicKeyStorage;
+import net.sharkfw.system.SharkNotSupportedException;
+import net.sharkfw.protocols.MessageStub;
+import net.sharkfw.protocols.RequestHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class SessionKeyCacheTest {
+
+    private KeyPair alice;
+    private KeyPair bob;
+    private SecretKey key;
+
+    /**
+     * Keeps last message
+     */
+    private static class TestMessageStub implements MessageStub {
+        byte[] msg;
+
+        @Override
+        public void setReplyAddressString(String addr) {
+        }
+
+        @Override
+        public void sendMessage(byte[] msg, String recAddress) throws IOException {
+            this.msg = msg;
+        }
+
+        @Override
+        public String getReplyAddressString() {
+            return null;
+        }
+
+        @Override
+        public void setHandler(RequestHandler handler) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public boolean started() {
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        this.alice = gen.generateKeyPair();
+        this.bob = gen.generateKeyPair();
+        this.key = KeyGenerator.getInstance("AES").generateKey();
+    }
+
+    @Test
+    public void testKeyIsReusedAndRotated() throws Exception {
+        SessionKeyCache cache = new SessionKeyCache();
+        cache.setMaxUses(3);
+
+        assertNull(cache.sentTo(this.bob.getPublic()));
+
+        byte[] wrapped = new byte[] {1, 2, 3};
+        SessionKeyCache.SessionKey sessionKey = cache.wrapped(this.bob.getPublic(), this.key, wrapped);
+        assertEquals(SessionKeyCache.keyID(wrapped), sessionKey.getID());
+
+        assertSame(sessionKey, cache.sentTo(this.bob.getPublic()));
+        assertSame(sessionKey, cache.sentTo(this.bob.getPublic()));
+        assertNull(cache.sentTo(this.alice.getPublic()));
+
+        // third use was the last one
+        assertNull(cache.sentTo(this.bob.getPublic()));
+
+        cache.wrapped(this.bob.getPublic(), this.key, wrapped);
+        cache.reset(sessionKey.getID());
+        assertNull(cache.sentTo(this.bob.getPublic()));
+    }
+
+    @Test
+    public void testRejectedMessagesAreSentAgain() throws Exception {
+        SessionKeyCache cache = new SessionKeyCache();
+        SessionKeyCache.SessionKey sessionKey = cache.wrapped(this.bob.getPublic(), this.key, new byte[] {1, 2, 3});
+
+        final List<String> resent = new ArrayList<>();
+        byte[][] nonces = new byte[3][];
+        for(int i = 0; i < 3; i++) {
+            final String name = "message" + i;
+            nonces[i] = cache.createNonce();
+            sessionKey.referred(nonces[i], new Runnable() {
+                @Override
+                public void run() {
+                    resent.add(name);
+                }
+            });
+        }
+
+        // receiver rejects second message - it rejects third one as well
+        for(Runnable resend : cache.reset(sessionKey.getID(), nonces[1])) {
+            resend.run();
+        }
+        assertEquals(Arrays.asList("message1", "message2"), resent);
+        assertNull(cache.sentTo(this.bob.getPublic()));
+
+        // first one came over another connection - key is dropped already
+        resent.clear();
+        for(Runnable resend : cache.reset(sessionKey.getID(), nonces[0])) {
+            resend.run();
+        }
+        assertEquals(Arrays.asList("message0"), resent);
+
+        // sent again already
+        assertTrue(cache.reset(sessionKey.getID(), nonces[2]).isEmpty());
+        assertTrue(cache.reset(42, nonces[2]).isEmpty());
+    }
+
+    @Test
+    public void testMessageKeysDiffer() throws Exception {
+        SessionKeyCache cache = new SessionKeyCache();
+        byte[] nonce = cache.createNonce();
+
+        SecretKey k1 = SessionKeyCache.deriveKey(this.key, nonce);
+        SecretKey k2 = SessionKeyCache.deriveKey(this.key, nonce);
+        SecretKey k3 = SessionKeyCache.deriveKey(this.key, cache.createNonce());
+
+        assertArrayEquals(k1.getEncoded(), k2.getEncoded());
+        assertFalse(Arrays.equals(k1.getEncoded(), k3.getEncoded()));
+        assertEquals(this.key.getEncoded().length, k1.getEncoded().length);
+
+        cache.unwrapped(new byte[] {4, 5}, this.key);
+        assertSame(this.key, cache.receivedKey(SessionKeyCache.keyID(new byte[] {4, 5})));
+        assertNull(cache.receivedKey(42));
+    }
+
+    private Knowledge createKnowledge() throws Exception {
+        InMemoSharkKB kb = new InMemoSharkKB();
+        SemanticTag topic = kb.createSemanticTag("Shark", "http://sharksystem.net");
+        PeerSemanticTag peer = kb.createPeerSemanticTag("Alice", "http://alice.org", "tcp://localhost:7070");
+
+        ContextPoint cp = kb.createContextPoint(kb.createContextCoordinates(
+                topic, peer, null, null, null, null, SharkCS.DIRECTION_INOUT));
+        cp.addInformation("secret content");
+
+        Knowledge k = kb.createKnowledge();
+        k.addContextPoint(cp);
+        return k;
+    }
+
+    private byte[] send(SharkEngine sender, Knowledge k) throws Exception {
+        TestMessageStub stub = new TestMessageStub();
+        KEPOutMessage out = new KEPOutMessage(sender, stub,
+                KEPMessage.getKnowledgeSerializer(), "mail://bob@shark.net");
+        out.initSecurity(this.alice.getPrivate(), this.bob.getPublic(),
+                new String[] {"http://alice.org"}, false);
+        out.insert(k);
+
+        return stub.msg;
+    }
+
+    /**
+     * Knows both peers
+     */
+    private SharkPublicKeyStorage createStorage(final KeyPair owner) {
+        return new SharkPublicKeyStorage() {
+            @Override
+            public PublicKey getPublicKey(String[] si) throws SharkKBException {
+                return si[0].equals("http://alice.org") ? 
+                        SessionKeyCacheTest.this.alice.getPublic() : SessionKeyCacheTest.this.bob.getPublic();
+            }
+
+            @Override
+            public PublicKey getPublicKey(PeerSemanticTag peer) throws SharkKBException {
+                return this.getPublicKey(peer.getSI());
+            }
+
+            @Override
+            public PrivateKey getPrivateKey() throws SharkKBException {
+                return owner.getPrivate();
+            }
+        };
+    }
+
+    private Knowledge receive(SharkEngine receiver, byte[] msg) throws Exception {
+        KEPInMessage in = new KEPInMessage(receiver, msg, new TestMessageStub());
+        in.initSecurity(this.bob.getPrivate(), null, SharkEngine.SecurityLevel.MUST,
+                SharkEngine.SecurityLevel.NO, SharkEngine.SecurityReplyPolicy.SAME, false);
+        in.parse();
+        assertTrue(in.receivedMessageEncrypted());
+
+        return in.getKnowledge();
+    }
+
+    private static String content(Knowledge k) throws Exception {
+        ContextPoint cp = k.contextPoints().nextElement();
+        return cp.getInformation().next().getContentAsString();
+    }
+
+    @Test
+    public void testLaterMessagesReferToKey() throws Exception {
+        SharkEngine sender = new J2SEAndroidSharkEngine();
+        SharkEngine receiver = new J2SEAndroidSharkEngine();
+        Knowledge k = this.createKnowledge();
+
+        // session key references need KEP 1.1
+        sender.setLegacyKEPFormat(false);
+
+        byte[] first = this.send(sender, k);
+        byte[] second = this.send(sender, k);
+
+        // key not confirmed yet - sent again with second message
+        assertTrue(second.length >= first.length);
+        assertEquals("secret content", content(this.receive(new J2SEAndroidSharkEngine(), second)));
+
+        assertEquals("secret content", content(this.receive(receiver, first)));
+        assertEquals("secret content", content(this.receive(receiver, second)));
+
+        // receiver confirms key
+        SessionKeyCache sentKeys = sender.getSessionKeyCache();
+        sentKeys.confirmed(sentKeys.sentTo(this.bob.getPublic()).getID());
+
+        // no wrapped key in third message
+        byte[] third = this.send(sender, k);
+        assertTrue(third.length < first.length);
+        assertEquals("secret content", content(this.receive(receiver, third)));
+
+        // receiver restarted - doesn't know key anymore
+        try {
+            this.receive(new J2SEAndroidSharkEngine(), this.send(sender, k));
+            fail("unknown session key accepted");
+        }
+        catch(SharkNotSupportedException e) {
+            // ok - message is skipped
+        }
+
+        // without cache each message transmits a key
+        sender.setSessionKeyCache(null);
+        assertEquals("secret content", content(this.receive(new J2SEAndroidSharkEngine(), this.send(sender, k))));
+
+        // block encryption is still understood
+        sender.setLegacyEncryption(true);
+        assertEquals("secret content", content(this.receive(new J2SEAndroidSharkEngine(), this.send(sender, k))));
+    }
+
+    @Test
+    public void testRejectedKnowledgeArrivesAfterRestart() throws Exception {
+        PeerSemanticTag alicePeer = InMemoSharkKB.createInMemoPeerSemanticTag(
+                "Alice", "http://alice.org", "tcp://localhost:7076");
+        PeerSemanticTag bobPeer = InMemoSharkKB.createInMemoPeerSemanticTag(
+                "Bob", "http://bob.org", "tcp://localhost:7077");
+
+        SharkEngine aliceSE = new J2SEAndroidSharkEngine();
+        aliceSE.setLegacyKEPFormat(false);
+        aliceSE.initSecurity(alicePeer, this.createStorage(this.alice),
+                SharkEngine.SecurityLevel.MUST, SharkEngine.SecurityLevel.NO,
+                SharkEngine.SecurityReplyPolicy.SAME, false);
+
+        SharkEngine bobSE = new J2SEAndroidSharkEngine();
+        bobSE.initSecurity(bobPeer, this.createStorage(this.bob),
+                SharkEngine.SecurityLevel.MUST, SharkEngine.SecurityLevel.NO,
+                SharkEngine.SecurityReplyPolicy.SAME, false);
+
+        final List<Knowledge> arrived = Collections.synchronizedList(new ArrayList<Knowledge>());
+        new KnowledgePort(bobSE) {
+            @Override
+            protected void doInsert(Knowledge knowledge, KEPConnection kepConnection) {
+                arrived.add(knowledge);
+            }
+
+            @Override
+            protected void doExpose(SharkCS interest, KEPConnection kepConnection) {
+            }
+        };
+
+        Knowledge k = this.createKnowledge();
+        bobSE.startTCP(7077);
+        try {
+            // bob confirms session key
+            aliceSE.sendKnowledge(k, bobPeer, null);
+            Thread.sleep(1000);
+            assertEquals(1, arrived.size());
+
+            // bob restarts - doesn't know key anymore
+            bobSE.setSessionKeyCache(new SessionKeyCache());
+
+            aliceSE.sendKnowledge(k, bobPeer, null);
+            for(int i = 0; i < 50 && arrived.size() < 2; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, arrived.size());
+            ContextPoint cp = arrived.get(1).contextPoints().nextElement();
+            assertEquals("http://sharksystem.net", cp.getContextCoordinates().getTopic().getSI()[0]);
+        }
+        finally {
+            bobSE.stopTCP();
+            aliceSE.stopTCP();
+        }
+    }
+}
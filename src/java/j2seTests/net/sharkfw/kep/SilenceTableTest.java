@@ -0,0 +1,81 @@
+package net.sharkfw.kep;
+
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.SemanticTag;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class SilenceTableTest {
+
+    @Test
+    public void testFingerprintIgnoresOrder() throws Exception {
+        InMemoSharkKB kb = new InMemoSharkKB();
+        SemanticTag java = kb.createSemanticTag("Java", new String[] {"http://java.com", "http://java.net"});
+        PeerSemanticTag alice = kb.createPeerSemanticTag("Alice", "http://alice.org", "tcp://localhost:5555");
+
+        SharkCS cs1 = kb.createInterest(kb.createContextCoordinates(java, alice, null, null, null, null, SharkCS.DIRECTION_OUT));
+
+        InMemoSharkKB kb2 = new InMemoSharkKB();
+        SemanticTag java2 = kb2.createSemanticTag("Java", new String[] {"http://java.net", "http://java.com"});
+        PeerSemanticTag alice2 = kb2.createPeerSemanticTag("Alice", "http://alice.org", "tcp://localhost:5555");
+
+        SharkCS cs2 = kb2.createInterest(kb2.createContextCoordinates(java2, alice2, null, null, null, null, SharkCS.DIRECTION_OUT));
+        SharkCS cs3 = kb2.createInterest(kb2.createContextCoordinates(java2, alice2, null, null, null, null, SharkCS.DIRECTION_IN));
+
+        assertEquals(SilenceTable.fingerprint(cs1), SilenceTable.fingerprint(cs2));
+        assertFalse(SilenceTable.fingerprint(cs1).equals(SilenceTable.fingerprint(cs3)));
+    }
+
+    @Test
+    public void testSilentPeriod() throws Exception {
+        SilenceTable table = new SilenceTable(200);
+        SilenceTable.Fingerprint fp = new SilenceTable.Fingerprint(1, 2);
+
+        assertFalse(table.silent(fp));
+        table.sent(fp);
+        assertTrue(table.silent(fp));
+
+        Thread.sleep(400);
+        assertFalse(table.silent(fp));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testBoundedSize() throws Exception {
+        SilenceTable table = new SilenceTable(2000, 10);
+        for(int i = 0; i < 10; i++) {
+            table.sent(new SilenceTable.Fingerprint(i, i));
+        }
+        
+        // next bucket
+        Thread.sleep(600);
+        for(int i = 90; i < 100; i++) {
+            table.sent(new SilenceTable.Fingerprint(i, i));
+        }
+
+        // oldest bucket was dropped
+        assertEquals(10, table.size());
+        assertFalse(table.silent(new SilenceTable.Fingerprint(0, 0)));
+        assertTrue(table.silent(new SilenceTable.Fingerprint(99, 99)));
+    }
+
+    @Test
+    public void testBurstWithinOneBucket() throws Exception {
+        SilenceTable table = new SilenceTable(60000, 10);
+        for(int i = 0; i < 1000; i++) {
+            table.sent(new SilenceTable.Fingerprint(i, i));
+            assertTrue(table.size() <= 10);
+        }
+
+        // newest are kept
+        assertFalse(table.silent(new SilenceTable.Fingerprint(989, 989)));
+        assertTrue(table.silent(new SilenceTable.Fingerprint(990, 990)));
+        assertTrue(table.silent(new SilenceTable.Fingerprint(999, 999)));
+    }
+}
@@ -0,0 +1,152 @@
+package net.sharkfw.kep;
+
+import ApiRev1.DummyKP;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Lock;
+import net.sharkfw.knowledgeBase.Interest;
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.STSet;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.peer.J2SEAndroidSharkEngine;
+import net.sharkfw.protocols.SharkOutputStream;
+import net.sharkfw.protocols.UTF8SharkOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class StreamConnectionPoolTest {
+
+    private static final String ADDRESS = "tcp://localhost:7070";
+
+    @Test
+    public void testFreeConnectionIsReused() {
+        StreamConnectionPool pool = new StreamConnectionPool();
+        assertNull(pool.get(ADDRESS));
+
+        TestStreamConnection con = new TestStreamConnection(ADDRESS);
+        pool.add(ADDRESS, con);
+
+        assertSame(con, pool.get(ADDRESS));
+        assertNull(pool.get("tcp://localhost:7071"));
+
+        // broken while writing
+        Lock lock = pool.startWriting(con);
+        assertNotNull(lock);
+        pool.writingDone(con, lock, true);
+        assertNull(pool.get(ADDRESS));
+    }
+
+    @Test
+    public void testBusyConnections() {
+        StreamConnectionPool pool = new StreamConnectionPool();
+        pool.setMaxConnectionsPerPeer(2);
+
+        TestStreamConnection con1 = new TestStreamConnection(ADDRESS);
+        pool.add(ADDRESS, con1);
+        Lock lock1 = pool.startWriting(con1);
+
+        // busy - open another one
+        assertNull(pool.get(ADDRESS));
+        TestStreamConnection con2 = new TestStreamConnection(ADDRESS);
+        pool.add(ADDRESS, con2);
+        assertSame(con2, pool.get(ADDRESS));
+
+        // both busy - limit reached, writer has to wait
+        Lock lock2 = pool.startWriting(con2);
+        assertNotNull(pool.get(ADDRESS));
+
+        pool.writingDone(con1, lock1, false);
+        pool.writingDone(con2, lock2, false);
+        assertSame(con1, pool.get(ADDRESS));
+    }
+
+    @Test
+    public void testIdleConnectionIsClosed() throws Exception {
+        StreamConnectionPool pool = new StreamConnectionPool();
+        pool.setKeepAlive(200);
+
+        TestStreamConnection con = new TestStreamConnection(ADDRESS);
+        pool.add(ADDRESS, con);
+
+        Thread.sleep(400);
+        assertNull(pool.get(ADDRESS));
+        assertTrue(con.closed);
+    }
+
+    @Test
+    public void testIdleConnectionIsSwept() throws Exception {
+        StreamConnectionPool pool = new StreamConnectionPool();
+        pool.setKeepAlive(200);
+
+        TestStreamConnection con = new TestStreamConnection(ADDRESS);
+        pool.add(ADDRESS, con);
+
+        // peer is never contacted again - no get()
+        for(int i = 0; i < 50 && !con.closed; i++) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(con.closed);
+        assertFalse(pool.getAddresses().hasMoreElements());
+    }
+
+    @Test
+    public void testNoPoolingWithoutKeepAlive() {
+        StreamConnectionPool pool = new StreamConnectionPool();
+        pool.setKeepAlive(0);
+
+        TestStreamConnection con = new TestStreamConnection(ADDRESS);
+        pool.add(ADDRESS, con);
+
+        assertNull(pool.get(ADDRESS));
+        assertNull(pool.startWriting(con));
+    }
+
+    @Test
+    public void testStaleConnectionIsRetried() throws Exception {
+        J2SEAndroidSharkEngine alice = new J2SEAndroidSharkEngine();
+        DummyKP aliceKP = new DummyKP(alice);
+        alice.startTCP(5579);
+
+        J2SEAndroidSharkEngine bob = new J2SEAndroidSharkEngine();
+        bob.startTCP(5580);
+        try {
+            // peer went away meanwhile - connection breaks on first write
+            String address = "tcp://localhost:5579";
+            bob.getKepStub().addConnection(address, new TestStreamConnection(address) {
+                @Override
+                public SharkOutputStream getOutputStream() {
+                    return new UTF8SharkOutputStream(new OutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            throw new IOException("connection reset");
+                        }
+                    });
+                }
+            });
+
+            Interest interest = InMemoSharkKB.createInMemoInterest();
+            STSet topics = InMemoSharkKB.createInMemoSTSet();
+            topics.createSemanticTag("Shark", "http://www.sharksystem.net/");
+            interest.setTopics(topics);
+
+            PeerSemanticTag alicePeer = InMemoSharkKB.createInMemoPeerSemanticTag(
+                    "Alice", "http://alice.org", address);
+            bob.sendInterest(interest, alicePeer, null);
+
+            for(int i = 0; i < 50 && aliceKP.lastInterest == null; i++) {
+                Thread.sleep(100);
+            }
+
+            assertNotNull(aliceKP.lastInterest);
+        }
+        finally {
+            bob.stopTCP();
+            alice.stopTCP();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.sharkfw.kep;
+
+import java.io.IOException;
+import net.sharkfw.protocols.ConnectionListenerManager;
+import net.sharkfw.protocols.SharkInputStream;
+import net.sharkfw.protocols.SharkOutputStream;
+import net.sharkfw.protocols.StreamConnection;
+
+/**
+ * Stream connection without streams - for tests which only need an address.
+ *
+ * @author thsc
+ */
+class TestStreamConnection extends ConnectionListenerManager implements StreamConnection {
+    private final String address;
+    boolean closed = false;
+
+    TestStreamConnection(String address) {
+        this.address = address;
+    }
+
+    @Override
+    public SharkInputStream getInputStream() { return null; }
+
+    @Override
+    public SharkOutputStream getOutputStream() { return null; }
+
+    @Override
+    public void sendMessage(byte[] msg) throws IOException { }
+
+    @Override
+    public String getReplyAddressString() { return null; }
+
+    @Override
+    public String getReceiverAddressString() { return this.address; }
+
+    @Override
+    public String getLocalAddressString() { return null; }
+
+    @Override
+    public void setLocalAddressString(String localAddress) { }
+
+    @Override
+    public synchronized void close() { this.closed = true; }
+}
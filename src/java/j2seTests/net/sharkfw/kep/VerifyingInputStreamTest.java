@@ -0,0 +1,204 @@
+package net.sharkfw.kep;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Random;
+import net.sharkfw.knowledgeBase.ContextPoint;
+import net.sharkfw.knowledgeBase.Knowledge;
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.SemanticTag;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.peer.J2SEAndroidSharkEngine;
+import net.sharkfw.peer.KEPInMessage;
+import net.sharkfw.peer.SharkEngine;
+import net.sharkfw.pki.SharkPublicKeyStorage;
+import net.sharkfw.protocols.MessageStub;
+import net.sharkfw.protocols.RequestHandler;
+import net.sharkfw.system.SharkSecurityException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class VerifyingInputStreamTest {
+
+    private KeyPair alice;
+    private KeyPair bob;
+    private byte[] data;
+
+    /**
+     * Keeps last message
+     */
+    private static class TestMessageStub implements MessageStub {
+        byte[] msg;
+
+        @Override
+        public void setReplyAddressString(String addr) {
+        }
+
+        @Override
+        public void sendMessage(byte[] msg, String recAddress) throws IOException {
+            this.msg = msg;
+        }
+
+        @Override
+        public String getReplyAddressString() {
+            return null;
+        }
+
+        @Override
+        public void setHandler(RequestHandler handler) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public boolean started() {
+            return true;
+        }
+    }
+
+    /**
+     * Knows a single key
+     */
+    private static class TestKeyStorage implements SharkPublicKeyStorage {
+        private final PublicKey key;
+
+        TestKeyStorage(PublicKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public PublicKey getPublicKey(String[] si) {
+            return this.key;
+        }
+
+        @Override
+        public PublicKey getPublicKey(PeerSemanticTag peer) {
+            return this.key;
+        }
+
+        @Override
+        public PrivateKey getPrivateKey() {
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        this.alice = gen.generateKeyPair();
+        this.bob = gen.generateKeyPair();
+
+        this.data = new byte[100000];
+        new Random(42).nextBytes(this.data);
+    }
+
+    private byte[] sign(byte[] data) throws IOException {
+        SigningOutputStream sos = new SigningOutputStream(new ByteArrayOutputStream(), this.alice.getPrivate());
+        sos.write(data, 0, 10);
+        sos.write(data[10]);
+        sos.write(data, 11, data.length - 11);
+        return sos.getSignature();
+    }
+
+    private static void readAll(InputStream is) throws IOException {
+        byte[] buffer = new byte[1000];
+        is.read();
+        while(is.read(buffer) != -1) {
+            // nothing
+        }
+    }
+
+    @Test
+    public void testChunksAreVerifiedInOrder() throws Exception {
+        byte[] signature = this.sign(this.data);
+
+        VerifyingInputStream vis = new VerifyingInputStream(new ByteArrayInputStream(this.data), this.alice.getPublic());
+        readAll(vis);
+        assertTrue(vis.verify(signature));
+
+        this.data[50000] ^= 1;
+        vis = new VerifyingInputStream(new ByteArrayInputStream(this.data), this.alice.getPublic());
+        readAll(vis);
+        assertFalse(vis.verify(signature));
+
+        // small message
+        byte[] small = new byte[100];
+        new Random(7).nextBytes(small);
+        vis = new VerifyingInputStream(new ByteArrayInputStream(small), this.alice.getPublic());
+        readAll(vis);
+        assertTrue(vis.verify(this.sign(small)));
+    }
+
+    private byte[] sendSigned() throws Exception {
+        InMemoSharkKB kb = new InMemoSharkKB();
+        SemanticTag topic = kb.createSemanticTag("Shark", "http://sharksystem.net");
+        ContextPoint cp = kb.createContextPoint(kb.createContextCoordinates(
+                topic, null, null, null, null, null, SharkCS.DIRECTION_INOUT));
+        cp.addInformation(this.data);
+
+        Knowledge k = kb.createKnowledge();
+        k.addContextPoint(cp);
+
+        TestMessageStub stub = new TestMessageStub();
+        KEPOutMessage out = new KEPOutMessage(new J2SEAndroidSharkEngine(), stub,
+                KEPMessage.getKnowledgeSerializer(), "mail://bob@shark.net");
+        out.initSecurity(this.alice.getPrivate(), null, new String[] {"http://alice.org"}, true);
+        out.insert(k);
+
+        return stub.msg;
+    }
+
+    private KEPInMessage receive(byte[] msg, PublicKey key) throws Exception {
+        KEPInMessage in = new KEPInMessage(new J2SEAndroidSharkEngine(), msg, new TestMessageStub());
+        in.initSecurity(null, new TestKeyStorage(key), SharkEngine.SecurityLevel.NO,
+                SharkEngine.SecurityLevel.MUST, SharkEngine.SecurityReplyPolicy.SAME, true);
+        in.parse();
+
+        return in;
+    }
+
+    @Test
+    public void testSignedMessage() throws Exception {
+        byte[] msg = this.sendSigned();
+
+        KEPInMessage in = this.receive(msg, this.alice.getPublic());
+        ContextPoint cp = in.getKnowledge().contextPoints().nextElement();
+        assertArrayEquals(this.data, cp.getInformation().next().getContentAsByte());
+
+        try {
+            this.receive(msg, this.bob.getPublic());
+            fail("wrong signature accepted");
+        }
+        catch(SharkSecurityException e) {
+            // ok
+        }
+
+        // no key - rejected before reading content
+        try {
+            this.receive(msg, null);
+            fail("unverifiable message accepted");
+        }
+        catch(SharkSecurityException e) {
+            // ok
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package net.sharkfw.kep;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.sharkfw.kep.format.XMLSerializer;
+import net.sharkfw.knowledgeBase.ContextPoint;
+import net.sharkfw.knowledgeBase.Knowledge;
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.SemanticTag;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.SharkKBException;
+import net.sharkfw.knowledgeBase.SharkVocabulary;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.peer.J2SEAndroidSharkEngine;
+import net.sharkfw.peer.KEPConnection;
+import net.sharkfw.peer.KnowledgePort;
+import net.sharkfw.peer.SharkEngine;
+import net.sharkfw.protocols.SharkInputStream;
+import net.sharkfw.protocols.SharkOutputStream;
+import net.sharkfw.protocols.StandardSharkInputStream;
+import net.sharkfw.protocols.UTF8SharkOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class VocabularyCacheTest {
+
+    private InMemoSharkKB kb;
+    private Knowledge k;
+
+    private VocabularyCache sender;
+    private VocabularyCache.Table sent;
+    private long resetID;
+    private int resetMessage;
+    private VocabularyCache.Table dropped;
+
+    /**
+     * Receiver talks back to sender directly.
+     */
+    private final VocabularyCache.Listener listener = new VocabularyCache.Listener() {
+        @Override
+        public void acknowledgeVocabulary(long id, List<String> refs) {
+            VocabularyCacheTest.this.sender.acknowledged(id, refs);
+        }
+
+        @Override
+        public void resetVocabulary(long id, int message) {
+            VocabularyCacheTest.this.resetID = id;
+            VocabularyCacheTest.this.resetMessage = message;
+            VocabularyCacheTest.this.dropped = VocabularyCacheTest.this.sender.reset(id);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        this.kb = new InMemoSharkKB();
+        for(int i = 0; i < 20; i++) {
+            this.kb.createSemanticTag("Topic" + i, "http://topics.org/" + i);
+        }
+        PeerSemanticTag alice = this.kb.createPeerSemanticTag("Alice", "http://alice.org", "tcp://localhost:7070");
+        SemanticTag topic = this.kb.getTopicSTSet().getSemanticTag("http://topics.org/0");
+
+        ContextPoint cp = this.kb.createContextPoint(this.kb.createContextCoordinates(
+                topic, alice, null, null, null, null, SharkCS.DIRECTION_INOUT));
+        cp.addInformation("some content");
+
+        this.k = this.kb.createKnowledge();
+        this.k.addContextPoint(cp);
+
+        this.sender = new VocabularyCache();
+        this.sent = this.sender.sentTo("tcp://localhost:7071");
+        this.resetID = VocabularyCache.NO_TABLE;
+        this.dropped = null;
+    }
+
+    private byte[] write(VocabularyCache.Table vocabulary) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SharkOutputStream sos = new UTF8SharkOutputStream(baos);
+        sos.setBinaryNumbers(true);
+
+        new XMLSerializer().write(this.k, sos, null, null, vocabulary);
+
+        return baos.toByteArray();
+    }
+
+    private Knowledge parse(byte[] msg, VocabularyCache vocabularies) throws Exception {
+        SharkInputStream sis = new StandardSharkInputStream(new ByteArrayInputStream(msg));
+        sis.setBinaryNumbers(true);
+
+        return new XMLSerializer().parseKnowledge(sis, null, null, vocabularies, this.listener);
+    }
+
+    private void assertVocabulary(Knowledge received) throws Exception {
+        SharkVocabulary vocabulary = received.getVocabulary();
+        for(int i = 0; i < 20; i++) {
+            SemanticTag tag = vocabulary.getTopicSTSet().getSemanticTag("http://topics.org/" + i);
+            assertNotNull(tag);
+            assertEquals("Topic" + i, tag.getName());
+        }
+        assertNotNull(vocabulary.getPeerSTSet().getSemanticTag("http://alice.org"));
+    }
+
+    @Test
+    public void testKnownTagsAreReferenced() throws Exception {
+        VocabularyCache received = new VocabularyCache();
+
+        byte[] first = this.write(this.sent);
+        this.assertVocabulary(this.parse(first, received));
+
+        byte[] second = this.write(this.sent);
+        assertTrue(second.length < first.length);
+        this.assertVocabulary(this.parse(second, received));
+    }
+
+    @Test
+    public void testUnacknowledgedTagsAreSentInFull() throws Exception {
+        // first message gets lost - nothing is acknowledged
+        byte[] first = this.write(this.sent);
+        byte[] second = this.write(this.sent);
+        assertEquals(first.length, second.length);
+
+        this.assertVocabulary(this.parse(second, new VocabularyCache()));
+        assertEquals(VocabularyCache.NO_TABLE, this.resetID);
+    }
+
+    @Test
+    public void testChangedTagIsSentAgain() throws Exception {
+        VocabularyCache received = new VocabularyCache();
+
+        this.parse(this.write(this.sent), received);
+
+        this.kb.getTopicSTSet().getSemanticTag("http://topics.org/3").setName("Renamed");
+
+        Knowledge k2 = this.parse(this.write(this.sent), received);
+        SemanticTag tag = k2.getVocabulary().getTopicSTSet().getSemanticTag("http://topics.org/3");
+        assertEquals("Renamed", tag.getName());
+    }
+
+    @Test
+    public void testUnknownTableIsReset() throws Exception {
+        this.parse(this.write(this.sent), new VocabularyCache());
+        byte[] second = this.write(this.sent);
+
+        // receiver has lost its table meanwhile
+        try {
+            this.parse(second, new VocabularyCache());
+            fail("knowledge with unresolved references delivered");
+        }
+        catch(SharkKBException e) {
+            // expected
+        }
+
+        assertEquals(this.sent.getID(), this.resetID);
+        assertFalse(this.sent.getID() == this.sender.sentTo("tcp://localhost:7071").getID());
+    }
+
+    @Test
+    public void testEvictedTableGetsRejectedMessageAgain() throws Exception {
+        VocabularyCache received = new VocabularyCache();
+        this.parse(this.write(this.sent), received);
+        byte[] second = this.write(this.sent);
+        byte[] third = this.write(this.sent);
+
+        // receiver talks to many other peers meanwhile
+        for(int id = 1; id <= VocabularyCache.MAX_TABLES; id++) {
+            received.receivedFrom(id);
+        }
+
+        try {
+            this.parse(third, received);
+            fail("knowledge with unresolved references delivered");
+        }
+        catch(SharkKBException e) {
+            // expected
+        }
+
+        try {
+            this.parse(second, received);
+            fail("knowledge with unresolved references delivered");
+        }
+        catch(SharkKBException e) {
+            // expected
+        }
+
+        // second message was rejected after table was reset - still known
+        assertNotNull(this.dropped);
+        assertEquals("tcp://localhost:7071", this.dropped.getAddress());
+        assertSame(this.k, this.dropped.rejected(this.resetMessage));
+        assertNull(this.dropped.rejected(this.resetMessage));
+
+        // sent in full with a new table
+        this.assertVocabulary(this.parse(
+                this.write(this.sender.sentTo("tcp://localhost:7071")), received));
+    }
+
+    @Test
+    public void testRejectedKnowledgeArrivesAfterRestart() throws Exception {
+        SharkEngine alice = new J2SEAndroidSharkEngine();
+        alice.setLegacyKEPFormat(false);
+        SharkEngine bob = new J2SEAndroidSharkEngine();
+
+        final List<Knowledge> arrived = Collections.synchronizedList(new ArrayList<Knowledge>());
+        new KnowledgePort(bob) {
+            @Override
+            protected void doInsert(Knowledge knowledge, KEPConnection kepConnection) {
+                arrived.add(knowledge);
+            }
+
+            @Override
+            protected void doExpose(SharkCS interest, KEPConnection kepConnection) {
+            }
+        };
+
+        PeerSemanticTag bobPeer = InMemoSharkKB.createInMemoPeerSemanticTag(
+                "Bob", "http://bob.org", "tcp://localhost:7075");
+
+        bob.startTCP(7075);
+        try {
+            alice.sendKnowledge(this.k, bobPeer, null);
+            Thread.sleep(1000);
+            assertEquals(1, arrived.size());
+
+            // bob restarts - his vocabulary tables are gone
+            bob.setVocabularyCache(new VocabularyCache());
+
+            alice.sendKnowledge(this.k, bobPeer, null);
+            Thread.sleep(1000);
+            assertEquals(2, arrived.size());
+            this.assertVocabulary(arrived.get(1));
+        }
+        finally {
+            bob.stopTCP();
+            alice.stopTCP();
+        }
+    }
+}
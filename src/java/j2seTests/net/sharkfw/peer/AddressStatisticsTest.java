@@ -0,0 +1,215 @@
+package net.sharkfw.peer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.protocols.ConnectionStatusListener;
+import net.sharkfw.protocols.RequestHandler;
+import net.sharkfw.protocols.SharkInputStream;
+import net.sharkfw.protocols.SharkOutputStream;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.protocols.StreamStub;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class AddressStatisticsTest {
+
+    private static class TestConnection implements StreamConnection {
+        volatile boolean closed = false;
+
+        @Override
+        public SharkInputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public SharkOutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public void sendMessage(byte[] msg) throws IOException {
+        }
+
+        @Override
+        public String getReplyAddressString() {
+            return null;
+        }
+
+        @Override
+        public String getReceiverAddressString() {
+            return null;
+        }
+
+        @Override
+        public String getLocalAddressString() {
+            return null;
+        }
+
+        @Override
+        public void setLocalAddressString(String localAddress) {
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+
+        @Override
+        public void addConnectionListener(ConnectionStatusListener newListener) {
+        }
+
+        @Override
+        public void removeConnectionListener(ConnectionStatusListener listener) {
+        }
+    }
+
+    /**
+     * Connects after a delay - or fails if connection is null
+     */
+    private static class TestStub implements StreamStub {
+        private final long delay;
+        final TestConnection connection;
+
+        TestStub(long delay, TestConnection connection) {
+            this.delay = delay;
+            this.connection = connection;
+        }
+
+        @Override
+        public StreamConnection createStreamConnection(String addressString) throws IOException {
+            try {
+                Thread.sleep(this.delay);
+            }
+            catch(InterruptedException ie) {
+                throw new IOException("interrupted");
+            }
+
+            if(this.connection == null) {
+                throw new IOException("connection refused");
+            }
+            return this.connection;
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public void setHandler(RequestHandler handler) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public boolean started() {
+            return true;
+        }
+    }
+
+    @Test
+    public void testRanking() throws Exception {
+        J2SEAndroidSharkEngine engine = new J2SEAndroidSharkEngine();
+        AddressStatistics stats = engine.getAddressStatistics();
+
+        String mail = "mail://alice@shark.net";
+        String tcp1 = "tcp://host1:7070";
+        String tcp2 = "tcp://host2:7070";
+        String[] addresses = new String[] {mail, tcp1, tcp2};
+
+        // stream first - order kept otherwise
+        assertArrayEquals(new String[] {tcp1, tcp2, mail}, engine.prioritizeAddresses(addresses));
+
+        stats.success(tcp2, 10);
+        stats.failure(tcp1);
+        assertTrue(stats.isSuspended(tcp1));
+
+        // failed address comes even after mail
+        assertArrayEquals(new String[] {tcp2, mail, tcp1}, engine.prioritizeAddresses(addresses));
+
+        // no negative cache - failure still counts
+        stats.setNegativeTTL(0);
+        assertFalse(stats.isSuspended(tcp1));
+        assertArrayEquals(new String[] {tcp2, tcp1, mail}, engine.prioritizeAddresses(addresses));
+
+        stats.success(tcp1, 5);
+        assertEquals(0, stats.getHealth(tcp1).getConsecutiveFailures());
+        assertEquals(5, stats.getHealth(tcp1).getLatency());
+        assertNull(stats.getHealth(mail));
+    }
+
+    @Test
+    public void testSlowAddressLosesRace() throws Exception {
+        AddressStatistics stats = new AddressStatistics();
+        ConnectionRacer racer = new ConnectionRacer(stats);
+        racer.setStagger(50);
+
+        TestStub slow = new TestStub(2000, new TestConnection());
+        TestStub fast = new TestStub(0, new TestConnection());
+
+        long start = System.currentTimeMillis();
+        ConnectionRacer.Connected connected = racer.connect(
+                Arrays.asList("tcp://slow:1", "tcp://fast:1"),
+                Arrays.<StreamStub>asList(slow, fast));
+
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals("tcp://fast:1", connected.address);
+        assertSame(fast.connection, connected.connection);
+        assertEquals(1, stats.getHealth("tcp://fast:1").getSuccesses());
+
+        // late connection isn't used
+        for(int i = 0; i < 50 && !slow.connection.closed; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(slow.connection.closed);
+        assertFalse(fast.connection.closed);
+
+        racer.shutdown();
+    }
+
+    @Test
+    public void testFailedAddressIsSuspended() throws Exception {
+        AddressStatistics stats = new AddressStatistics();
+        ConnectionRacer racer = new ConnectionRacer(stats);
+
+        TestStub refused = new TestStub(0, null);
+        TestStub ok = new TestStub(0, new TestConnection());
+
+        ConnectionRacer.Connected connected = racer.connect(
+                Arrays.asList("tcp://refused:1", "tcp://ok:1"),
+                Arrays.<StreamStub>asList(refused, ok));
+        assertEquals("tcp://ok:1", connected.address);
+        assertTrue(stats.isSuspended("tcp://refused:1"));
+
+        // nothing reachable
+        assertNull(racer.connect(Arrays.asList("tcp://refused:1"),
+                Arrays.<StreamStub>asList(refused)));
+        assertEquals(2, stats.getHealth("tcp://refused:1").getFailures());
+
+        racer.shutdown();
+    }
+
+    @Test
+    public void testReachablePeerIsNotSuspended() throws Exception {
+        J2SEAndroidSharkEngine se = new J2SEAndroidSharkEngine();
+        AddressStatistics stats = se.getAddressStatistics();
+        stats.failure("tcp://alice:1");
+        assertTrue(stats.isSuspended("tcp://alice:1"));
+
+        // alice has just sent a message
+        se.peerReachable(InMemoSharkKB.createInMemoPeerSemanticTag(
+                "Alice", "http://alice.org", "tcp://alice:1"));
+        assertFalse(stats.isSuspended("tcp://alice:1"));
+    }
+}
@@ -0,0 +1,115 @@
+package net.sharkfw.peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class AsyncKEPSenderTest {
+
+    @Test
+    public void testSamePeerInOrder() throws Exception {
+        AsyncKEPSender sender = new AsyncKEPSender(4);
+
+        final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        for(int i = 0; i < 40; i++) {
+            final int n = i;
+            futures.add(sender.send("tcp://localhost:7070", new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                    sent.add(n);
+                    running.decrementAndGet();
+                    return null;
+                }
+            }));
+        }
+
+        for(Future<Void> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(40, sent.size());
+        for(int i = 0; i < 40; i++) {
+            assertEquals(i, (int) sent.get(i));
+        }
+        assertEquals(1, maxRunning.get());
+        assertEquals(0, sender.getNumberWaiting());
+
+        sender.shutdown();
+    }
+
+    @Test
+    public void testPeersInParallel() throws Exception {
+        AsyncKEPSender sender = new AsyncKEPSender(3);
+
+        // no message completes before three peers are served at once
+        final CountDownLatch allRunning = new CountDownLatch(3);
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            futures.add(sender.send("tcp://10.0.0." + i + ":7070", new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    allRunning.countDown();
+                    if(!allRunning.await(5, TimeUnit.SECONDS)) {
+                        throw new Exception("peers are not served in parallel");
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for(Future<Void> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        sender.shutdown();
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        AsyncKEPSender sender = new AsyncKEPSender(1);
+
+        Future<Void> failed = sender.send("tcp://localhost:7070", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                throw new java.io.IOException("peer unreachable");
+            }
+        });
+
+        Future<Void> next = sender.send("tcp://localhost:7070", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                return null;
+            }
+        });
+
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            fail("exception expected");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof java.io.IOException);
+        }
+
+        // queue goes on
+        assertNull(next.get(10, TimeUnit.SECONDS));
+
+        sender.shutdown();
+    }
+}
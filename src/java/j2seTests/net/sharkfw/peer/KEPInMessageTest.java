@@ -0,0 +1,104 @@
+package net.sharkfw.peer;
+
+import java.io.ByteArrayOutputStream;
+import net.sharkfw.kep.KEPMessage;
+import net.sharkfw.kep.format.XMLSerializer;
+import net.sharkfw.knowledgeBase.Interest;
+import net.sharkfw.knowledgeBase.PeerSTSet;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.protocols.UTF8SharkOutputStream;
+import net.sharkfw.system.SharkNotSupportedException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class KEPInMessageTest {
+
+    /**
+     * @return unsigned, unencrypted KEP message without content
+     */
+    private static byte[] createMessage(String version, int cmd) throws Exception {
+        return createMessage(version, cmd, null);
+    }
+
+    /**
+     * @param content written after header - can be null
+     */
+    private static byte[] createMessage(String version, int cmd, String content) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        UTF8SharkOutputStream os = new UTF8SharkOutputStream(baos);
+        os.write(version);
+        os.setBinaryNumbers(KEPMessage.THISVERSION.equals(version));
+        os.writeInt(cmd);
+        os.writeInt(KEPMessage.XML);
+        os.write("n"); // no peer si
+        os.write("n"); // not signed
+        os.writeInt(0); // not encrypted
+        if(content != null) {
+            os.write(content);
+        }
+        os.getOutputStream().flush();
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return serialized interest of a peer with that address
+     */
+    private static String createInterest(String address) throws Exception {
+        Interest interest = InMemoSharkKB.createInMemoInterest();
+        PeerSTSet peers = InMemoSharkKB.createInMemoPeerSTSet();
+        peers.merge(InMemoSharkKB.createInMemoPeerSemanticTag("Alice", "http://alice.org", address));
+        interest.setPeers(peers);
+
+        return new XMLSerializer().serializeSharkCS(interest);
+    }
+
+    @Test
+    public void testUnknownVersionIsRejected() throws Exception {
+        SharkEngine se = new J2SEAndroidSharkEngine();
+        KEPInMessage msg = new KEPInMessage(se, createMessage("KEP 2.0 ", KEPMessage.KEP_EXPOSE), null);
+
+        try {
+            msg.parse();
+            fail("unknown version accepted");
+        }
+        catch(SharkNotSupportedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAnnouncedVersionIsAnswered() throws Exception {
+        SharkEngine se = new J2SEAndroidSharkEngine();
+        String alice = "tcp://localhost:7073";
+        String bob = "tcp://localhost:7074";
+
+        // older peer
+        new KEPInMessage(se, createMessage(KEPMessage.VERSION_1_0,
+                KEPMessage.KEP_EXPOSE, createInterest(bob)), null).parse();
+        assertEquals(KEPMessage.VERSION_1_0, se.getKEPVersion(null, bob));
+
+        // peer which understands current version but sends KEP 1.0
+        new KEPInMessage(se, createMessage(KEPMessage.VERSION_1_0_UPGRADE,
+                KEPMessage.KEP_EXPOSE, createInterest(alice)), null).parse();
+        assertEquals(KEPMessage.THISVERSION, se.getKEPVersion(null, alice));
+    }
+
+    @Test
+    public void testUnknownCommandIsRejected() throws Exception {
+        SharkEngine se = new J2SEAndroidSharkEngine();
+        KEPInMessage msg = new KEPInMessage(se, createMessage(KEPMessage.VERSION_1_0, 99), null);
+
+        try {
+            msg.parse();
+            fail("unknown command accepted");
+        }
+        catch(SharkNotSupportedException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package net.sharkfw.peer;
+
+import ApiRev1.DummyKP;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import net.sharkfw.knowledgeBase.Interest;
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.STSet;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class OutboundQueueTest {
+
+    private static Interest createInterest() throws Exception {
+        Interest interest = InMemoSharkKB.createInMemoInterest();
+        STSet topics = InMemoSharkKB.createInMemoSTSet();
+        topics.createSemanticTag("Shark", "http://www.sharksystem.net/");
+        interest.setTopics(topics);
+        return interest;
+    }
+
+    @Test
+    public void testQueuedUntilRecipientIsOnline() throws Exception {
+        J2SEAndroidSharkEngine alice = new J2SEAndroidSharkEngine();
+        OutboundQueue queue = new OutboundQueue(alice, null);
+        queue.setBackoff(100, 400);
+        alice.setOutboundQueue(queue);
+        alice.startTCP(5591);
+
+        PeerSemanticTag bobPeer = InMemoSharkKB.createInMemoPeerSemanticTag(
+                "Bob", "http://bob.org", "tcp://localhost:5592");
+
+        // bob is offline
+        alice.sendInterest(createInterest(), bobPeer, null);
+        assertEquals(1, queue.size());
+
+        J2SEAndroidSharkEngine bob = new J2SEAndroidSharkEngine();
+        DummyKP bobKP = new DummyKP(bob);
+        bob.startTCP(5592);
+
+        for(int i = 0; i < 100 && bobKP.lastInterest == null; i++) {
+            Thread.sleep(100);
+        }
+
+        assertNotNull(bobKP.lastInterest);
+        assertEquals(0, queue.size());
+
+        queue.shutdown();
+        alice.stopTCP();
+        bob.stopTCP();
+    }
+
+    @Test
+    public void testNewMessagesQueuedBehindWaitingOnes() throws Exception {
+        J2SEAndroidSharkEngine alice = new J2SEAndroidSharkEngine();
+        OutboundQueue queue = new OutboundQueue(alice, null);
+        queue.setBackoff(60000, 60000);
+        alice.setOutboundQueue(queue);
+
+        PeerSemanticTag bobPeer = InMemoSharkKB.createInMemoPeerSemanticTag(
+                "Bob", "http://bob.org", "tcp://localhost:5594");
+
+        // bob is offline - first retry fails as well
+        alice.sendInterest(createInterest(), bobPeer, null);
+        for(int i = 0; i < 100 && queue.getFailures(bobPeer) == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, queue.getFailures(bobPeer));
+        assertTrue(queue.isWaiting(bobPeer));
+
+        J2SEAndroidSharkEngine bob = new J2SEAndroidSharkEngine();
+        DummyKP bobKP = new DummyKP(bob);
+        bob.startTCP(5594);
+
+        // bob is online but must not get second message before first one
+        alice.sendInterest(createInterest(), bobPeer, null);
+        assertEquals(2, queue.size());
+        assertNull(bobKP.lastInterest);
+
+        queue.retryAll();
+        for(int i = 0; i < 100 && queue.size() > 0; i++) {
+            Thread.sleep(100);
+        }
+
+        assertEquals(0, queue.size());
+        assertNotNull(bobKP.lastInterest);
+        assertFalse(queue.isWaiting(bobPeer));
+
+        queue.shutdown();
+        bob.stopTCP();
+    }
+
+    @Test
+    public void testLogSurvivesRestart() throws Exception {
+        File file = File.createTempFile("outbound", ".log");
+        file.delete();
+        file.deleteOnExit();
+
+        J2SEAndroidSharkEngine alice = new J2SEAndroidSharkEngine();
+        OutboundQueue queue = new OutboundQueue(alice, new OutboundLog(file));
+        queue.setBackoff(60000, 60000);
+
+        PeerSemanticTag bobPeer = InMemoSharkKB.createInMemoPeerSemanticTag(
+                "Bob", "http://bob.org", "tcp://localhost:5593");
+        PeerSemanticTag clara = InMemoSharkKB.createInMemoPeerSemanticTag(
+                "Clara", "http://clara.org", (String) null);
+
+        assertTrue(queue.add(createInterest(), bobPeer));
+        assertTrue(queue.add(createInterest(), bobPeer));
+        // no address - nothing to retry
+        assertFalse(queue.add(createInterest(), clara));
+        queue.shutdown();
+
+        OutboundQueue restored = new OutboundQueue(alice, new OutboundLog(file));
+        assertEquals(2, restored.size());
+
+        restored.clear();
+        restored.shutdown();
+        assertEquals(0, new OutboundQueue(alice, new OutboundLog(file)).size());
+    }
+
+    @Test
+    public void testUndeliveredMessageIsResent() throws Exception {
+        final List<byte[]> resent = new ArrayList<>();
+        J2SEAndroidSharkEngine alice = new J2SEAndroidSharkEngine() {
+            int attempts = 0;
+
+            @Override
+            protected boolean resendMessage(byte[] msg, String recAddress) throws IOException {
+                assertEquals("mail://bob@shark.net", recAddress);
+                if(this.attempts++ == 0) {
+                    throw new IOException("still down");
+                }
+
+                synchronized(resent) {
+                    resent.add(msg);
+                }
+                return true;
+            }
+        };
+
+        OutboundQueue queue = new OutboundQueue(alice, null);
+        queue.setBackoff(10, 10);
+        alice.setOutboundQueue(queue);
+
+        alice.rememberUndeliveredMessage(new byte[] {1, 2, 3}, "mail://bob@shark.net");
+
+        for(int i = 0; i < 100 && queue.size() > 0; i++) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(0, queue.size());
+        synchronized(resent) {
+            assertEquals(1, resent.size());
+            assertArrayEquals(new byte[] {1, 2, 3}, resent.get(0));
+        }
+        queue.shutdown();
+    }
+}
@@ -0,0 +1,148 @@
+package net.sharkfw.protocols.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.sharkfw.protocols.MessageStub;
+import net.sharkfw.protocols.RequestHandler;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.protocols.StreamStub;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class WebServerTest {
+
+    private static final int PORT = 5581;
+
+    private static class TestHandler implements RequestHandler {
+        final ArrayBlockingQueue<StreamConnection> streams = new ArrayBlockingQueue<>(10);
+
+        @Override
+        public void handleMessage(byte[] msg, MessageStub stub) {
+        }
+
+        @Override
+        public void handleStream(StreamConnection con) {
+            this.streams.add(con);
+        }
+
+        @Override
+        public void handleNewConnectionStream(StreamConnection con) {
+        }
+    }
+
+    private static class TestStub implements StreamStub {
+        @Override
+        public StreamConnection createStreamConnection(String addressString) {
+            return null;
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return "http://localhost:" + PORT;
+        }
+
+        @Override
+        public void setHandler(RequestHandler handler) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public boolean started() {
+            return true;
+        }
+    }
+
+    @Test
+    public void testHeaderEndsAtEmptyLine() throws Exception {
+        byte[] request = "POST HTTP/1.1\r\nUser-Agent: Shark\r\n\r\nKEP".getBytes("ISO-8859-1");
+        PushbackInputStream is = new PushbackInputStream(new ByteArrayInputStream(request), 8192);
+
+        String header = WebServer.readHeader(is);
+        assertEquals("POST HTTP/1.1\r\nUser-Agent: Shark\r\n\r\n", header);
+
+        // message is left in stream
+        assertEquals('K', is.read());
+        assertEquals('E', is.read());
+        assertEquals('P', is.read());
+        assertEquals(-1, is.read());
+
+        // stream ends within header
+        assertNull(WebServer.readHeader(new PushbackInputStream(new ByteArrayInputStream(
+                "GET / HTTP/1.1\r\n".getBytes("ISO-8859-1")), 8192)));
+    }
+
+    @Test
+    public void testSharkClientAndBrowser() throws Exception {
+        TestHandler handler = new TestHandler();
+        WebServer server = new WebServer(PORT, handler, new TestStub());
+        new Thread(server).start();
+
+        File file = File.createTempFile("shark", ".html");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write("<html>shark</html>".getBytes("ISO-8859-1"));
+        fos.close();
+
+        try {
+            // browser keeps connection open for two requests
+            Socket browser = new Socket("localhost", PORT);
+            browser.setSoTimeout(5000);
+            OutputStream out = browser.getOutputStream();
+            PushbackInputStream in = new PushbackInputStream(browser.getInputStream(), 8192);
+
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+            String response = WebServer.readHeader(in);
+            assertTrue(response.startsWith("HTTP/1.1 302"));
+            assertTrue(response.contains("Connection: keep-alive"));
+
+            server.setFilePath(file.getAbsolutePath());
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+            response = WebServer.readHeader(in);
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+            byte[] body = new byte[18];
+            int len = 0;
+            while(len < body.length) {
+                len += in.read(body, len, body.length - len);
+            }
+            assertEquals("<html>shark</html>", new String(body, "ISO-8859-1"));
+            assertEquals(-1, in.read());
+            browser.close();
+
+            // shark client - stream is handed over behind header
+            HTTPConnection client = new HTTPConnection("localhost", PORT, "http://localhost:1", true);
+            client.getOutputStream().getOutputStream().write("KEP".getBytes("ISO-8859-1"));
+            client.getOutputStream().getOutputStream().flush();
+
+            StreamConnection con = handler.streams.poll(5, TimeUnit.SECONDS);
+            assertNotNull(con);
+            InputStream kepIn = con.getInputStream().getInputStream();
+            assertEquals('K', kepIn.read());
+            assertEquals('E', kepIn.read());
+            assertEquals('P', kepIn.read());
+
+            con.close();
+            client.close();
+        }
+        finally {
+            server.hold();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.sharkfw.protocols.m2s;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class FileMessageStorageTest {
+
+    private static final String ID = "1:mail://alice@shark.net";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dir = File.createTempFile("m2s", "");
+        this.dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    private static byte[] read(InputStream is) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int b;
+        while((b = is.read()) != -1) {
+            baos.write(b);
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testSendPackages() throws Exception {
+        FileMessageStorage storage = new FileMessageStorage(this.dir);
+
+        OutputStream os = storage.getOutputStream(ID, "mail://bob@shark.net", 4);
+        os.write("0123456789".getBytes("UTF-8"));
+        os.close();
+
+        // not complete yet
+        try {
+            storage.getNumberOfPackages(ID);
+            fail("incomplete message found");
+        }
+        catch(Exception e) {
+            // ok
+        }
+
+        storage.finishedStoringForLaterSending(ID);
+
+        // survives restart
+        storage = new FileMessageStorage(this.dir);
+        assertEquals(3, storage.getNumberOfPackages(ID));
+        assertEquals("mail://bob@shark.net", storage.getRecipientAddress(ID));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        storage.streamPackage(baos, ID, 2);
+        assertEquals("89", baos.toString("UTF-8"));
+        baos.reset();
+        storage.streamPackage(baos, ID, 0);
+        assertEquals("0123", baos.toString("UTF-8"));
+
+        storage.removeToSend(ID);
+        assertEquals(0, this.dir.listFiles().length);
+    }
+
+    @Test
+    public void testReceivePartsInAnyOrder() throws Exception {
+        FileMessageStorage storage = new FileMessageStorage(this.dir);
+
+        assertTrue(storage.savePart(ID, 2, true, new ByteArrayInputStream("89".getBytes("UTF-8"))));
+        assertTrue(storage.savePart(ID, 0, false, new ByteArrayInputStream("0123".getBytes("UTF-8"))));
+        assertFalse(storage.savePart(ID, 0, false, new ByteArrayInputStream("0123".getBytes("UTF-8"))));
+        assertFalse(storage.completelyReceived(ID));
+
+        // restart - a torn record at the end is cut off
+        File file = this.dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.write(new byte[] {0, 0, 0, 1, 0, 0, 0});
+        raf.close();
+
+        storage = new FileMessageStorage(this.dir);
+        assertEquals(2, storage.getReceivedPackageNumbers(ID).cardinality());
+
+        storage.savePart(ID, 1, false, new ByteArrayInputStream("4567".getBytes("UTF-8")));
+        assertTrue(storage.completelyReceived(ID));
+
+        MessagesToStreamInputStream is = new MessagesToStreamInputStream(storage, ID);
+        assertEquals("0123456789", new String(read(is), "UTF-8"));
+
+        // read messages are removed
+        assertEquals(0, this.dir.listFiles().length);
+    }
+
+    @Test
+    public void testCollectGarbage() throws Exception {
+        FileMessageStorage storage = new FileMessageStorage(this.dir);
+        storage.savePart(ID, 0, false, new ByteArrayInputStream("0123".getBytes("UTF-8")));
+
+        assertEquals(0, storage.collectGarbage(60000));
+        assertEquals(1, storage.collectGarbage(-1));
+        assertFalse(storage.completelyReceived(ID));
+    }
+
+    @Test
+    public void testStaleMessagesRemovedAtStart() throws Exception {
+        FileMessageStorage storage = new FileMessageStorage(this.dir);
+        storage.savePart(ID, 0, false, new ByteArrayInputStream("0123".getBytes("UTF-8")));
+        storage.savePart("fresh", 0, false, new ByteArrayInputStream("0123".getBytes("UTF-8")));
+
+        File[] files = this.dir.listFiles();
+        assertEquals(2, files.length);
+        for(File file : files) {
+            if(file.getName().startsWith("66")) { // hex of 'f'
+                continue;
+            }
+            file.setLastModified(System.currentTimeMillis()
+                    - FileMessageStorage.DEFAULT_MAX_AGE - 60000);
+        }
+
+        // restart
+        storage = new FileMessageStorage(this.dir);
+        assertEquals(1, this.dir.listFiles().length);
+        assertFalse(storage.completelyReceived(ID));
+        assertEquals(1, storage.getReceivedPackageNumbers("fresh").cardinality());
+    }
+}
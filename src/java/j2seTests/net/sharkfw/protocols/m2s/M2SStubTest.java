@@ -0,0 +1,431 @@
+package net.sharkfw.protocols.m2s;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.protocols.MessageStub;
+import net.sharkfw.protocols.RequestHandler;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.system.SharkException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class M2SStubTest {
+
+    private static final String ALICE = "mail://alice@shark.net";
+    private static final String BOB = "mail://bob@shark.net";
+
+    /**
+     * Messages are queued until they are delivered by test.
+     */
+    private static class Network {
+        final HashMap<String, TestMessageStub> stubs = new HashMap<>();
+        final List<Object[]> queue = new ArrayList<>();
+        int inserts = 0;
+        int acks = 0;
+        String lastID = null;
+        boolean dropAck = false;
+
+        void deliverAll(boolean reverse, int dropPackage) throws IOException {
+            while(!this.queue.isEmpty()) {
+                List<Object[]> batch = new ArrayList<>(this.queue);
+                this.queue.clear();
+                if(reverse) {
+                    Collections.reverse(batch);
+                }
+
+                for(Object[] m : batch) {
+                    byte[] msg = (byte[]) m[0];
+                    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(msg));
+                    this.lastID = dis.readUTF();
+                    if(dis.readInt() == M2SStub.M2S_INSERT) {
+                        this.inserts++;
+                        if(dis.readInt() == dropPackage) {
+                            // lost once
+                            dropPackage = -1;
+                            continue;
+                        }
+                    } else {
+                        this.acks++;
+                        if(this.dropAck) {
+                            this.dropAck = false;
+                            continue;
+                        }
+                    }
+
+                    TestMessageStub recipient = this.stubs.get((String) m[1]);
+                    recipient.handler.handleMessage(msg, recipient);
+                }
+            }
+        }
+    }
+
+    private static class TestMessageStub implements MessageStub {
+        private final Network network;
+        private String address;
+        RequestHandler handler;
+
+        TestMessageStub(Network network, String address) {
+            this.network = network;
+            this.address = address;
+            network.stubs.put(address, this);
+        }
+
+        @Override
+        public void setReplyAddressString(String addr) {
+            this.address = addr;
+        }
+
+        @Override
+        public void sendMessage(byte[] msg, String recAddress) throws IOException {
+            int index = recAddress.indexOf('?');
+            if(index != -1) {
+                recAddress = recAddress.substring(0, index);
+            }
+            this.network.queue.add(new Object[] {msg, recAddress});
+        }
+
+        @Override
+        public String getReplyAddressString() {
+            return this.address;
+        }
+
+        @Override
+        public void setHandler(RequestHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public boolean started() {
+            return true;
+        }
+    }
+
+    private static class TestHandler implements RequestHandler {
+        final List<StreamConnection> streams = new ArrayList<>();
+
+        @Override
+        public void handleMessage(byte[] msg, MessageStub stub) {
+        }
+
+        @Override
+        public void handleStream(StreamConnection con) {
+            this.streams.add(con);
+        }
+
+        @Override
+        public void handleNewConnectionStream(StreamConnection con) {
+        }
+    }
+
+    /**
+     * Peer which sends and receives parts stop-and-wait, as older
+     * versions do: receiver asks for next part after each part
+     */
+    private static class OlderPeer implements RequestHandler {
+        final TestMessageStub stub;
+        final List<byte[]> toSend = new ArrayList<>();
+        final TreeMap<Integer, byte[]> received = new TreeMap<>();
+        int duplicates = 0;
+        boolean acknowledged = false;
+        
+        OlderPeer(Network network, String address) {
+            this.stub = new TestMessageStub(network, address);
+            this.stub.setHandler(this);
+        }
+        
+        void send(String id, byte[] message, int partSize, String recipient) throws IOException {
+            int number = (message.length + partSize - 1) / partSize;
+            for(int i = 0; i < number; i++) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                M2SMessage.writeM2SHeader(baos, id, i, i == number - 1);
+                int offset = i * partSize;
+                baos.write(message, offset, Math.min(partSize, message.length - offset));
+                this.toSend.add(baos.toByteArray());
+            }
+            
+            this.stub.sendMessage(this.toSend.remove(0), recipient);
+        }
+
+        @Override
+        public void handleMessage(byte[] msg, MessageStub stub) {
+            try {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(msg));
+                String id = dis.readUTF();
+                int cmd = dis.readInt();
+                if(cmd == M2SStub.M2S_INSERT) {
+                    int number = dis.readInt();
+                    boolean isLast = dis.readBoolean();
+                    byte[] part = new byte[dis.available()];
+                    dis.readFully(part);
+                    if(this.received.put(number, part) != null) {
+                        this.duplicates++;
+                    }
+                    if(!isLast) {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        DataOutputStream dos = new DataOutputStream(baos);
+                        dos.writeUTF(id);
+                        dos.writeInt(M2SStub.M2S_ASK);
+                        dos.writeUTF(this.stub.getReplyAddressString());
+                        this.stub.sendMessage(baos.toByteArray(), id.substring(id.indexOf(':') + 1));
+                    }
+                } else if(cmd == M2SStub.M2S_ASK) {
+                    String replyAddress = dis.readUTF();
+                    if(!this.toSend.isEmpty()) {
+                        this.stub.sendMessage(this.toSend.remove(0), replyAddress);
+                    }
+                } else {
+                    this.acknowledged = true;
+                }
+            }
+            catch(IOException e) {
+                fail(e.getMessage());
+            }
+        }
+
+        @Override
+        public void handleStream(StreamConnection con) {
+        }
+
+        @Override
+        public void handleNewConnectionStream(StreamConnection con) {
+        }
+    }
+
+    private static byte[] createMessage(int len) {
+        byte[] message = new byte[len];
+        for(int i = 0; i < len; i++) {
+            message[i] = (byte) ('a' + i % 26);
+        }
+        return message;
+    }
+
+    private static byte[] readAll(StreamConnection con) throws IOException {
+        InputStream is = con.getInputStream().getInputStream();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int b;
+        while((b = is.read()) != -1) {
+            baos.write(b);
+        }
+        return baos.toByteArray();
+    }
+
+    private static void assertRemoved(MessageStorage storage, String id) {
+        try {
+            storage.getNumberOfPackages(id);
+            fail("message still stored");
+        }
+        catch(SharkException e) {
+            // ok
+        }
+    }
+
+    private static void transfer(boolean reverse, int dropPackage, int maxAcks) throws Exception {
+        Network network = new Network();
+        MessageStorage aliceStorage = new SharkKBMessageStorage(new InMemoSharkKB());
+        M2SStub alice = new M2SStub(aliceStorage,
+                new TestMessageStub(network, ALICE), new TestHandler());
+        TestHandler bobHandler = new TestHandler();
+        new M2SStub(new SharkKBMessageStorage(new InMemoSharkKB()),
+                new TestMessageStub(network, BOB), bobHandler);
+
+        // 1 kByte messages - 11 parts
+        byte[] message = createMessage(10000);
+        StreamConnection con = alice.createStreamConnection(BOB + "?maxLength=1");
+        OutputStream os = con.getOutputStream().getOutputStream();
+        os.write(message);
+        os.flush();
+
+        // first window is sent without waiting
+        assertEquals(M2SStub.DEFAULT_WINDOW, network.queue.size());
+
+        network.deliverAll(reverse, dropPackage);
+        String id = network.lastID;
+
+        assertEquals(1, bobHandler.streams.size());
+        assertArrayEquals(message, readAll(bobHandler.streams.get(0)));
+
+        // far less acks than parts
+        assertTrue(network.acks <= maxAcks);
+        if(!reverse) {
+            assertEquals(dropPackage == -1 ? 11 : 12, network.inserts);
+        }
+
+        // sender dropped message after final ack
+        assertRemoved(aliceStorage, id);
+    }
+
+    @Test
+    public void testWindowedTransfer() throws Exception {
+        transfer(false, -1, 3);
+    }
+
+    @Test
+    public void testOutOfOrderArrival() throws Exception {
+        // late parts look lost - their duplicates are acknowledged
+        transfer(true, -1, 8);
+    }
+
+    @Test
+    public void testLostPartIsResent() throws Exception {
+        transfer(false, 3, 4);
+    }
+
+    @Test
+    public void testLostLastPartIsRetransmitted() throws Exception {
+        Network network = new Network();
+        MessageStorage aliceStorage = new SharkKBMessageStorage(new InMemoSharkKB());
+        M2SStub alice = new M2SStub(aliceStorage,
+                new TestMessageStub(network, ALICE), new TestHandler());
+        TestHandler bobHandler = new TestHandler();
+        new M2SStub(new SharkKBMessageStorage(new InMemoSharkKB()),
+                new TestMessageStub(network, BOB), bobHandler);
+
+        byte[] message = createMessage(10000);
+        StreamConnection con = alice.createStreamConnection(BOB + "?maxLength=1");
+        OutputStream os = con.getOutputStream().getOutputStream();
+        os.write(message);
+        os.flush();
+
+        // last part is lost - nobody sends anything
+        network.deliverAll(false, 10);
+        String id = network.lastID;
+        assertTrue(bobHandler.streams.isEmpty());
+
+        // too early
+        alice.retransmit(System.currentTimeMillis());
+        assertTrue(network.queue.isEmpty());
+
+        // final ack is lost, too
+        network.dropAck = true;
+        long later = System.currentTimeMillis() + M2SStub.DEFAULT_RETRANSMIT_TIMEOUT;
+        alice.retransmit(later);
+        assertFalse(network.queue.isEmpty());
+        network.deliverAll(false, -1);
+
+        assertEquals(1, bobHandler.streams.size());
+        assertArrayEquals(message, readAll(bobHandler.streams.get(0)));
+
+        // receiver acknowledges completed message again
+        alice.retransmit(later + M2SStub.DEFAULT_RETRANSMIT_TIMEOUT);
+        network.deliverAll(false, -1);
+        assertEquals(1, bobHandler.streams.size());
+        assertRemoved(aliceStorage, id);
+        alice.stop();
+    }
+
+    @Test
+    public void testIDsAreUniqueAcrossRuns() throws Exception {
+        Network network = new Network();
+        M2SStub first = new M2SStub(new SharkKBMessageStorage(new InMemoSharkKB()),
+                new TestMessageStub(network, ALICE), new TestHandler());
+        // restarted peer
+        M2SStub second = new M2SStub(new SharkKBMessageStorage(new InMemoSharkKB()),
+                new TestMessageStub(network, ALICE), new TestHandler());
+
+        String id = first.getNewID();
+        assertFalse(id.equals(second.getNewID()));
+        assertFalse(id.equals(first.getNewID()));
+        assertTrue(id.endsWith(":" + ALICE));
+    }
+
+    @Test
+    public void testOlderSenderIsAsked() throws Exception {
+        Network network = new Network();
+        OlderPeer alice = new OlderPeer(network, ALICE);
+        TestHandler bobHandler = new TestHandler();
+        new M2SStub(new SharkKBMessageStorage(new InMemoSharkKB()),
+                new TestMessageStub(network, BOB), bobHandler);
+        
+        // older ids have no window mark
+        String id = "7:" + ALICE;
+        assertFalse(M2SStub.isWindowed(id));
+        
+        byte[] message = createMessage(10000);
+        alice.send(id, message, 1000, BOB);
+        network.deliverAll(false, -1);
+        
+        assertEquals(1, bobHandler.streams.size());
+        assertArrayEquals(message, readAll(bobHandler.streams.get(0)));
+        
+        // an ask for each but last part - no acknowledgement
+        assertEquals(9, network.acks);
+        assertFalse(alice.acknowledged);
+    }
+    
+    @Test
+    public void testOlderRecipientAsks() throws Exception {
+        Network network = new Network();
+        MessageStorage aliceStorage = new SharkKBMessageStorage(new InMemoSharkKB());
+        M2SStub alice = new M2SStub(aliceStorage,
+                new TestMessageStub(network, ALICE), new TestHandler());
+        OlderPeer bob = new OlderPeer(network, BOB);
+        
+        byte[] message = createMessage(10000);
+        StreamConnection con = alice.createStreamConnection(BOB + "?maxLength=1");
+        OutputStream os = con.getOutputStream().getOutputStream();
+        os.write(message);
+        os.flush();
+        
+        network.deliverAll(false, -1);
+        String id = network.lastID;
+        assertTrue(M2SStub.isWindowed(id));
+        
+        // each part once
+        assertEquals(11, network.inserts);
+        assertEquals(0, bob.duplicates);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for(byte[] part : bob.received.values()) {
+            baos.write(part);
+        }
+        assertArrayEquals(message, baos.toByteArray());
+        
+        // no acknowledgement follows - sender is done after last part
+        assertRemoved(aliceStorage, id);
+        alice.stop();
+    }
+
+    @Test
+    public void testSingleMessage() throws Exception {
+        Network network = new Network();
+        M2SStub alice = new M2SStub(new SharkKBMessageStorage(new InMemoSharkKB()),
+                new TestMessageStub(network, ALICE), new TestHandler());
+        TestHandler bobHandler = new TestHandler();
+        new M2SStub(new SharkKBMessageStorage(new InMemoSharkKB()),
+                new TestMessageStub(network, BOB), bobHandler);
+
+        byte[] message = createMessage(500);
+        StreamConnection con = alice.createStreamConnection(BOB + "?maxLength=1");
+        OutputStream os = con.getOutputStream().getOutputStream();
+        os.write(message);
+        os.flush();
+
+        network.deliverAll(false, -1);
+
+        assertEquals(1, network.inserts);
+        assertEquals(0, network.acks);
+        assertArrayEquals(message, readAll(bobHandler.streams.get(0)));
+    }
+}
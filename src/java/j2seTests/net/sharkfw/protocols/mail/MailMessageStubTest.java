@@ -0,0 +1,453 @@
+package net.sharkfw.protocols.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import javax.mail.Address;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+import net.sharkfw.protocols.MessageStreamHandler;
+import net.sharkfw.protocols.MessageStub;
+import net.sharkfw.protocols.RequestHandler;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.protocols.UndeliveredMessageListener;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs mail stubs against an in-process mail server.
+ *
+ * @author thsc
+ */
+public class MailMessageStubTest {
+
+    private static final String ALICE = "alice@shark.net";
+    private static final String BOB = "bob@shark.net";
+    private static final String CLARA = "clara@shark.net";
+
+    /** mails by recipient */
+    static final HashMap<String, List<MimeMessage>> mailboxes = new HashMap<>();
+    static int connects = 0;
+    static boolean smtpDown = false;
+
+    public static class TestTransport extends Transport {
+        public TestTransport(Session session, URLName url) {
+            super(session, url);
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user,
+                String password) throws MessagingException {
+            synchronized(mailboxes) {
+                connects++;
+            }
+            return true;
+        }
+
+        @Override
+        public void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+            synchronized(mailboxes) {
+                if(smtpDown) {
+                    throw new MessagingException("smtp server down");
+                }
+            }
+
+            try {
+                // like on the wire
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                msg.writeTo(baos);
+
+                synchronized(mailboxes) {
+                    for(Address address : addresses) {
+                        MimeMessage copy = new MimeMessage(this.session,
+                                new ByteArrayInputStream(baos.toByteArray()));
+                        mailbox(address.toString()).add(copy);
+                    }
+                }
+            }
+            catch(IOException e) {
+                throw new MessagingException(e.getMessage());
+            }
+        }
+    }
+
+    public static class TestStore extends Store {
+        private String user;
+
+        public TestStore(Session session, URLName url) {
+            super(session, url);
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user,
+                String password) throws MessagingException {
+            this.user = user;
+            return true;
+        }
+
+        @Override
+        public Folder getDefaultFolder() throws MessagingException {
+            return new TestFolder(this, this.user);
+        }
+
+        @Override
+        public Folder getFolder(String name) throws MessagingException {
+            return new TestFolder(this, this.user);
+        }
+
+        @Override
+        public Folder getFolder(URLName url) throws MessagingException {
+            return new TestFolder(this, this.user);
+        }
+    }
+
+    private static class TestFolder extends Folder {
+        private final String user;
+        private List<MimeMessage> messages = null;
+
+        TestFolder(Store store, String user) {
+            super(store);
+            this.user = user;
+        }
+
+        @Override
+        public String getName() {
+            return "INBOX";
+        }
+
+        @Override
+        public String getFullName() {
+            return "INBOX";
+        }
+
+        @Override
+        public Folder getParent() {
+            return null;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public Folder[] list(String pattern) {
+            return new Folder[0];
+        }
+
+        @Override
+        public char getSeparator() {
+            return '/';
+        }
+
+        @Override
+        public int getType() {
+            return HOLDS_MESSAGES;
+        }
+
+        @Override
+        public boolean create(int type) {
+            return false;
+        }
+
+        @Override
+        public boolean hasNewMessages() {
+            return false;
+        }
+
+        @Override
+        public Folder getFolder(String name) {
+            return null;
+        }
+
+        @Override
+        public boolean delete(boolean recurse) {
+            return false;
+        }
+
+        @Override
+        public boolean renameTo(Folder f) {
+            return false;
+        }
+
+        @Override
+        public void open(int mode) {
+            synchronized(mailboxes) {
+                this.messages = new ArrayList<>(mailbox(this.user));
+            }
+            this.mode = mode;
+        }
+
+        @Override
+        public void close(boolean expunge) {
+            if(expunge) {
+                synchronized(mailboxes) {
+                    Iterator<MimeMessage> iter = mailbox(this.user).iterator();
+                    while(iter.hasNext()) {
+                        try {
+                            if(iter.next().isSet(Flags.Flag.DELETED)) {
+                                iter.remove();
+                            }
+                        }
+                        catch(MessagingException e) {
+                            // keep it
+                        }
+                    }
+                }
+            }
+            this.messages = null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.messages != null;
+        }
+
+        @Override
+        public Flags getPermanentFlags() {
+            return new Flags(Flags.Flag.DELETED);
+        }
+
+        @Override
+        public int getMessageCount() {
+            return this.messages.size();
+        }
+
+        @Override
+        public Message getMessage(int msgnum) {
+            return this.messages.get(msgnum - 1);
+        }
+
+        @Override
+        public void appendMessages(Message[] msgs) {
+        }
+
+        @Override
+        public Message[] expunge() {
+            return new Message[0];
+        }
+    }
+
+    private static class TestHandler implements RequestHandler {
+        final List<byte[]> received = new ArrayList<>();
+
+        @Override
+        public void handleMessage(byte[] msg, MessageStub stub) {
+            synchronized(this.received) {
+                this.received.add(msg);
+            }
+        }
+
+        @Override
+        public void handleStream(StreamConnection con) {
+        }
+
+        @Override
+        public void handleNewConnectionStream(StreamConnection con) {
+        }
+    }
+
+    private static class TestStreamHandler extends TestHandler implements MessageStreamHandler {
+        int streams = 0;
+
+        @Override
+        public void handleMessage(InputStream msg, MessageStub stub) throws IOException {
+            this.streams++;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            int b;
+            while((b = msg.read()) != -1) {
+                baos.write(b);
+            }
+            this.handleMessage(baos.toByteArray(), stub);
+        }
+    }
+
+    static List<MimeMessage> mailbox(String address) {
+        List<MimeMessage> mailbox = mailboxes.get(address);
+        if(mailbox == null) {
+            mailbox = new ArrayList<>();
+            mailboxes.put(address, mailbox);
+        }
+        return mailbox;
+    }
+
+    private static int mailCount(String address) {
+        synchronized(mailboxes) {
+            return mailbox(address).size();
+        }
+    }
+
+    private static MailMessageStub createStub(RequestHandler handler, String address, int maxLen) {
+        MailMessageStub stub = new MailMessageStub(handler, "smtp.shark.net", address, "pwd", false,
+                "pop3.shark.net", address, address, "pwd", 1, false, maxLen);
+
+        stub.setMailProvider(new Provider(Provider.Type.TRANSPORT, "smtp",
+                TestTransport.class.getName(), "sharkfw", "1.0"));
+        stub.setMailProvider(new Provider(Provider.Type.STORE, "pop3",
+                TestStore.class.getName(), "sharkfw", "1.0"));
+
+        return stub;
+    }
+
+    private static byte[] message(int number, int len) {
+        byte[] message = new byte[len];
+        for(int i = 0; i < len; i++) {
+            message[i] = (byte) (number + i);
+        }
+        return message;
+    }
+
+    private static void receive(MailMessageStub stub, TestHandler handler, int expected) throws Exception {
+        stub.start();
+        for(int i = 0; i < 100 && handler.received.size() < expected; i++) {
+            Thread.sleep(20);
+        }
+        stub.stop();
+    }
+
+    @Before
+    public void setUp() {
+        synchronized(mailboxes) {
+            mailboxes.clear();
+            connects = 0;
+            smtpDown = false;
+        }
+    }
+
+    @Test
+    public void testMessagesAreBatchedPerRecipient() throws Exception {
+        MailMessageStub alice = createStub(new TestHandler(), ALICE, 1024);
+        alice.setBatchDelay(60000);
+
+        alice.sendMessage(message(1, 100), "mail://" + BOB + "?maxLength=256");
+        alice.sendMessage(message(2, 2000), "mail://" + BOB);
+        alice.sendMessage(message(3, 100), "mail://" + CLARA);
+        alice.sendMessage(message(4, 10), "mail://" + BOB);
+
+        // nothing sent yet
+        assertEquals(0, mailCount(BOB));
+
+        alice.flushBatches();
+        assertEquals(1, mailCount(BOB));
+        assertEquals(1, mailCount(CLARA));
+
+        // smtp connection reused
+        assertEquals(1, connects);
+
+        // received as stream
+        TestStreamHandler bobHandler = new TestStreamHandler();
+        MailMessageStub bob = createStub(bobHandler, BOB, 1024);
+        receive(bob, bobHandler, 3);
+
+        assertEquals(3, bobHandler.streams);
+        assertArrayEquals(message(1, 100), bobHandler.received.get(0));
+        assertArrayEquals(message(2, 2000), bobHandler.received.get(1));
+        assertArrayEquals(message(4, 10), bobHandler.received.get(2));
+        assertEquals(0, mailCount(BOB));
+
+        // single message is a plain shark mail
+        TestHandler claraHandler = new TestHandler();
+        MailMessageStub clara = createStub(claraHandler, CLARA, 1024);
+        receive(clara, claraHandler, 1);
+
+        assertEquals(1, claraHandler.received.size());
+        assertArrayEquals(message(3, 100), claraHandler.received.get(0));
+    }
+
+    @Test
+    public void testBatchIsSentAfterDelay() throws Exception {
+        MailMessageStub alice = createStub(new TestHandler(), ALICE, 1024);
+        alice.setBatchDelay(100);
+
+        alice.sendMessage(message(1, 100), "mail://" + BOB);
+        alice.sendMessage(message(2, 100), "mail://" + BOB);
+
+        for(int i = 0; i < 100 && mailCount(BOB) == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, mailCount(BOB));
+    }
+
+    @Test
+    public void testFullBatchIsSentAtOnce() throws Exception {
+        // 512 bytes per mail
+        MailMessageStub alice = createStub(new TestHandler(), ALICE, 1);
+        alice.setBatchDelay(60000);
+
+        alice.sendMessage(message(1, 300), "mail://" + BOB);
+        assertEquals(0, mailCount(BOB));
+        alice.sendMessage(message(2, 300), "mail://" + BOB);
+        assertEquals(1, mailCount(BOB));
+
+        alice.stop();
+        assertEquals(2, mailCount(BOB));
+
+        TestHandler bobHandler = new TestHandler();
+        MailMessageStub bob = createStub(bobHandler, BOB, 1);
+        receive(bob, bobHandler, 2);
+        assertEquals(2, bobHandler.received.size());
+        assertArrayEquals(message(2, 300), bobHandler.received.get(1));
+    }
+
+    @Test
+    public void testFailedBatchIsHandedBack() throws Exception {
+        MailMessageStub alice = createStub(new TestHandler(), ALICE, 1024);
+        alice.setBatchDelay(60000);
+
+        final List<byte[]> undelivered = new ArrayList<>();
+        alice.setUndeliveredMessageListener(new UndeliveredMessageListener() {
+            @Override
+            public void undelivered(byte[] msg, String recAddress, IOException cause) {
+                assertEquals(BOB, recAddress);
+                undelivered.add(msg);
+            }
+        });
+
+        alice.sendMessage(message(1, 100), "mail://" + BOB);
+        alice.sendMessage(message(2, 100), "mail://" + BOB);
+
+        synchronized(mailboxes) {
+            smtpDown = true;
+        }
+        alice.flushBatches();
+
+        assertEquals(0, mailCount(BOB));
+        assertEquals(2, undelivered.size());
+        assertArrayEquals(message(1, 100), undelivered.get(0));
+        assertArrayEquals(message(2, 100), undelivered.get(1));
+
+        // another attempt isn't batched again
+        synchronized(mailboxes) {
+            smtpDown = false;
+        }
+        for(byte[] msg : undelivered) {
+            alice.sendMessageNow(msg, BOB);
+        }
+        assertEquals(2, mailCount(BOB));
+    }
+
+    @Test
+    public void testNoBatchingByDefault() throws Exception {
+        MailMessageStub alice = createStub(new TestHandler(), ALICE, 1024);
+
+        alice.sendMessage(message(1, 100), "mail://" + BOB);
+        alice.sendMessage(message(2, 100), "mail://" + BOB);
+        assertEquals(2, mailCount(BOB));
+        assertEquals(1, connects);
+    }
+}
@@ -0,0 +1,213 @@
+package net.sharkfw.protocols.tcp;
+
+import ApiRev1.DummyKP;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import net.sharkfw.knowledgeBase.ContextCoordinates;
+import net.sharkfw.knowledgeBase.ContextPoint;
+import net.sharkfw.knowledgeBase.FragmentationParameter;
+import net.sharkfw.knowledgeBase.Information;
+import net.sharkfw.knowledgeBase.Interest;
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.SemanticTag;
+import net.sharkfw.knowledgeBase.SharkCS;
+import net.sharkfw.knowledgeBase.SharkKB;
+import net.sharkfw.knowledgeBase.STSet;
+import net.sharkfw.knowledgeBase.TXSemanticTag;
+import net.sharkfw.knowledgeBase.Taxonomy;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.peer.J2SEAndroidSharkEngine;
+import net.sharkfw.peer.KnowledgePort;
+import net.sharkfw.peer.StandardKP;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class NIOStreamStubTest {
+
+    /**
+     * Bob (plain TCP) sends an interest to Alice (NIO stub). Alice answers
+     * with knowledge over the same connection.
+     */
+    @Test
+    public void testExchangeWithNIOPeer() throws Exception {
+        J2SEAndroidSharkEngine alice = new J2SEAndroidSharkEngine();
+        alice.setNIOTCP(true);
+        SharkKB aliceKB = new InMemoSharkKB();
+
+        Taxonomy topicsTX = aliceKB.getTopicsAsTaxonomy();
+        TXSemanticTag tools = topicsTX.createTXSemanticTag("Tools", "http://tools.org");
+        TXSemanticTag shovel = topicsTX.createTXSemanticTag("Shovel", "http://shovel.org");
+        shovel.move(tools);
+
+        PeerSemanticTag alicePeer = aliceKB.createPeerSemanticTag("Alice", "http://alice.org", "tcp://localhost:5575");
+        aliceKB.setOwner(alicePeer);
+        PeerSemanticTag bobPeer = aliceKB.createPeerSemanticTag("Bob", "http://bob.org", (String[]) null);
+
+        ContextCoordinates shovelCoords = aliceKB.createContextCoordinates(shovel, alicePeer, null, null, null, null, SharkCS.DIRECTION_OUT);
+        ContextPoint shovelCp = aliceKB.createContextPoint(shovelCoords);
+        shovelCp.addInformation("A shovel is a cool tool!");
+
+        FragmentationParameter[] fpArray = KnowledgePort.getZeroFP();
+        fpArray[SharkCS.DIM_TOPIC] = new FragmentationParameter(true, true, 1);
+
+        SharkCS interest = aliceKB.contextualize(shovelCoords, fpArray);
+        StandardKP aliceKp = new StandardKP(alice, interest, fpArray, aliceKB);
+        aliceKp.setOtp(fpArray);
+        alice.startTCP(5575);
+
+        J2SEAndroidSharkEngine bob = new J2SEAndroidSharkEngine();
+        SharkKB bobKB = new InMemoSharkKB();
+        SemanticTag bobTools = bobKB.createSemanticTag("Tools", "http://tools.org");
+        PeerSemanticTag bobLocalPeer = bobKB.createPeerSemanticTag("Bob", "http://bob.org", (String[]) null);
+        bobKB.setOwner(bobPeer);
+
+        SharkCS bobAs = bobKB.createContextCoordinates(bobTools, null, bobLocalPeer, null, null, null, SharkCS.DIRECTION_IN);
+        new StandardKP(bob, bobAs, fpArray, bobKB);
+
+        try {
+            bob.publishAllKP(alicePeer);
+            Thread.sleep(1000);
+
+            TXSemanticTag bobShovel = bobKB.getTopicsAsTaxonomy().getSemanticTag(new String[]{"http://shovel.org"});
+            PeerSemanticTag bobsAlice = bobKB.getPeerSemanticTag(alicePeer.getSI());
+            assertNotNull(bobShovel);
+            assertNotNull(bobsAlice);
+
+            ContextPoint cp = bobKB.getContextPoint(bobKB.createContextCoordinates(
+                    bobShovel, bobsAlice, null, null, null, null, SharkCS.DIRECTION_IN));
+            assertNotNull(cp);
+
+            Enumeration<Information> infoEnum = cp.enumInformation();
+            assertEquals("A shovel is a cool tool!", new String(infoEnum.nextElement().getContentAsByte()));
+        }
+        finally {
+            alice.stopTCP();
+        }
+    }
+
+    /**
+     * A peer which sends half a message and stalls binds a worker. Other
+     * peers are served anyway - even by a single worker pool.
+     */
+    @Test
+    public void testStalledPeerDoesNotBlockWorkers() throws Exception {
+        J2SEAndroidSharkEngine alice = new J2SEAndroidSharkEngine();
+        DummyKP aliceKP = new DummyKP(alice);
+        NIOStreamStub stub = new NIOStreamStub(alice.getKepStub(), 5577);
+        stub.setWorkerThreads(1);
+        stub.start();
+
+        Socket stalled = new Socket("localhost", 5577);
+        try {
+            // beginning of a KEP message - the rest never comes
+            stalled.getOutputStream().write('2');
+            stalled.getOutputStream().flush();
+            Thread.sleep(200);
+
+            Interest interest = InMemoSharkKB.createInMemoInterest();
+            STSet topics = InMemoSharkKB.createInMemoSTSet();
+            topics.createSemanticTag("Shark", "http://www.sharksystem.net/");
+            interest.setTopics(topics);
+
+            PeerSemanticTag alicePeer = InMemoSharkKB.createInMemoPeerSemanticTag(
+                    "Alice", "http://alice.org", "tcp://localhost:5577");
+
+            J2SEAndroidSharkEngine bob = new J2SEAndroidSharkEngine();
+            bob.sendInterest(interest, alicePeer, null);
+
+            // well below socket timeout of stalled connection
+            for(int i = 0; i < 50 && aliceKP.lastInterest == null; i++) {
+                Thread.sleep(100);
+            }
+
+            assertNotNull(aliceKP.lastInterest);
+        }
+        finally {
+            stalled.close();
+            stub.stop();
+        }
+    }
+
+    /**
+     * Pool doesn't grow beyond its maximum - a stalled peer which would 
+     * need another waiting worker is closed.
+     */
+    @Test
+    public void testStalledPeersBeyondMaximumAreClosed() throws Exception {
+        J2SEAndroidSharkEngine alice = new J2SEAndroidSharkEngine();
+        NIOStreamStub stub = new NIOStreamStub(alice.getKepStub(), 5583);
+        stub.setWorkerThreads(1);
+        stub.setMaxWorkerThreads(2);
+        stub.start();
+
+        Socket first = new Socket("localhost", 5583);
+        Socket second = new Socket("localhost", 5583);
+        try {
+            // beginning of a KEP message - the rest never comes
+            first.getOutputStream().write('2');
+            first.getOutputStream().flush();
+            Thread.sleep(200);
+
+            second.getOutputStream().write('2');
+            second.getOutputStream().flush();
+
+            // closed well below socket timeout
+            second.setSoTimeout(3000);
+            assertEquals(-1, second.getInputStream().read());
+
+            // first one still waits
+            first.setSoTimeout(200);
+            try {
+                first.getInputStream().read();
+                fail("waiting connection was closed");
+            }
+            catch(SocketTimeoutException e) {
+                // expected
+            }
+        }
+        finally {
+            first.close();
+            second.close();
+            stub.stop();
+        }
+    }
+
+    /**
+     * Lots of idle connections don't need threads and are closed after
+     * idle timeout.
+     */
+    @Test
+    public void testIdleConnectionsWithoutThreads() throws Exception {
+        J2SEAndroidSharkEngine engine = new J2SEAndroidSharkEngine();
+        NIOStreamStub stub = new NIOStreamStub(engine.getKepStub(), 5576);
+        stub.setIdleTimeout(2000);
+        stub.start();
+
+        int threadsBefore = Thread.activeCount();
+        ArrayList<Socket> sockets = new ArrayList<>();
+        try {
+            for(int i = 0; i < 200; i++) {
+                sockets.add(new Socket("localhost", 5576));
+            }
+            Thread.sleep(500);
+
+            assertEquals(200, stub.getNumberConnections());
+            assertTrue(Thread.activeCount() < threadsBefore + 10);
+
+            Thread.sleep(3500);
+            assertEquals(0, stub.getNumberConnections());
+        }
+        finally {
+            for(Socket s : sockets) {
+                s.close();
+            }
+            stub.stop();
+        }
+    }
+}
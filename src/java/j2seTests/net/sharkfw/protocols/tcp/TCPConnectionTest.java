@@ -0,0 +1,50 @@
+package net.sharkfw.protocols.tcp;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class TCPConnectionTest {
+
+    @Test
+    public void testAwaitDataDoesNotConsume() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            TCPConnection con = new TCPConnection("localhost", server.getLocalPort());
+            Socket remote = server.accept();
+
+            // nothing sent yet
+            long start = System.currentTimeMillis();
+            assertFalse(con.awaitData(200));
+            assertTrue(System.currentTimeMillis() - start >= 150);
+            assertFalse(con.awaitData(0));
+
+            OutputStream out = remote.getOutputStream();
+            out.write(42);
+            out.write(43);
+            out.flush();
+
+            assertTrue(con.awaitData(5000));
+            assertTrue(con.awaitData(5000));
+
+            // both bytes can be read
+            assertEquals(42, con.getInputStream().getInputStream().read());
+            assertEquals(43, con.getInputStream().getInputStream().read());
+
+            // remote peer closes
+            remote.close();
+            assertFalse(con.awaitData(5000));
+
+            con.close();
+        }
+        finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package net.sharkfw.security.pki.storage;
+
+import net.sharkfw.knowledgeBase.PeerSemanticTag;
+import net.sharkfw.knowledgeBase.inmemory.InMemoSharkKB;
+import net.sharkfw.pki.SharkPublicKeyStorage;
+import net.sharkfw.security.pki.SharkCertificate;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class SharkPkiStorageIndexTest {
+
+    private SharkPkiStorage sharkPkiStorage;
+    private PeerSemanticTag alice;
+    private PeerSemanticTag bob;
+    private PeerSemanticTag clara;
+    private PublicKey aliceKey;
+    private PublicKey claraKey;
+    private Date date;
+
+    @Before
+    public void setUp() throws Exception {
+        alice = InMemoSharkKB.createInMemoPeerSemanticTag("alice", "http://www.alice.de", "192.168.0.1");
+        bob = InMemoSharkKB.createInMemoPeerSemanticTag("bob", new String[]{"http://www.bob.de", "http://www.bob.net"}, new String[]{"192.168.0.2"});
+        clara = InMemoSharkKB.createInMemoPeerSemanticTag("clara", "http://www.clara.de", "192.168.0.3");
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        aliceKey = gen.generateKeyPair().getPublic();
+        claraKey = gen.generateKeyPair().getPublic();
+        date = new Date(System.currentTimeMillis() + 1000000);
+
+        sharkPkiStorage = new SharkPkiStorage(new InMemoSharkKB(), alice);
+        sharkPkiStorage.addSharkCertificate(certificate(alice, bob, aliceKey));
+    }
+
+    private SharkCertificate certificate(PeerSemanticTag subject, PeerSemanticTag issuer, PublicKey key) {
+        LinkedList<PeerSemanticTag> transmitterList = new LinkedList<>();
+        transmitterList.add(issuer);
+        return new SharkCertificate(subject, issuer, transmitterList, key, date);
+    }
+
+    @Test
+    public void testLookupByKey() throws Exception {
+        SharkCertificate sharkCertificate = sharkPkiStorage.getSharkCertificate(bob, aliceKey);
+        assertNotNull(sharkCertificate);
+        assertEquals(aliceKey, sharkCertificate.getSubjectPublicKey());
+        assertEquals("bob", sharkCertificate.getIssuer().getName());
+
+        assertNull(sharkPkiStorage.getSharkCertificate(bob, claraKey));
+        assertNull(sharkPkiStorage.getSharkCertificate(clara, aliceKey));
+    }
+
+    @Test
+    public void testLookupBySI() throws Exception {
+        assertEquals(aliceKey, sharkPkiStorage.getPublicKey(new String[]{"http://unknown", "http://www.alice.de"}));
+        assertNull(sharkPkiStorage.getPublicKey(new String[]{"http://www.clara.de"}));
+
+        List<SharkCertificate> certificates = sharkPkiStorage.getSharkCertificates(alice.getSI());
+        assertEquals(1, certificates.size());
+
+        // returned certificates don't change the index
+        certificates.get(0).addTransmitter(clara);
+        assertEquals(1, sharkPkiStorage.getSharkCertificates(alice.getSI()).get(0).getTransmitterList().size());
+    }
+
+    @Test
+    public void testLookupIgnoresCase() throws Exception {
+        assertEquals(aliceKey, sharkPkiStorage.getPublicKey(new String[]{"HTTP://www.Alice.de"}));
+        assertEquals(1, sharkPkiStorage.getSharkCertificates(new String[]{"http://WWW.ALICE.DE"}).size());
+    }
+
+    @Test
+    public void testUsedAsPublicKeyStorage() throws Exception {
+        SharkPublicKeyStorage keyStorage = sharkPkiStorage;
+        assertEquals(aliceKey, keyStorage.getPublicKey(alice));
+        assertNull(keyStorage.getPublicKey(clara));
+        assertNull(keyStorage.getPrivateKey());
+    }
+
+    @Test
+    public void testIndexIsRebuiltAfterAdding() throws Exception {
+        assertNull(sharkPkiStorage.getPublicKey(clara.getSI()));
+        assertEquals(1, sharkPkiStorage.getSharkCertificateList().size());
+
+        sharkPkiStorage.addSharkCertificate(certificate(clara, bob, claraKey));
+
+        assertEquals(claraKey, sharkPkiStorage.getPublicKey(clara.getSI()));
+        assertNotNull(sharkPkiStorage.getSharkCertificate(bob, claraKey));
+        assertEquals(2, sharkPkiStorage.getSharkCertificateList().size());
+    }
+}
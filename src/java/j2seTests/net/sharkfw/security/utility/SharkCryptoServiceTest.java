@@ -0,0 +1,128 @@
+package net.sharkfw.security.utility;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import net.sharkfw.security.key.SharkKeyAlgorithm;
+import net.sharkfw.security.key.SharkKeyPairAlgorithm;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class SharkCryptoServiceTest {
+
+    private KeyPair keyPair;
+    private SecretKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        this.keyPair = gen.generateKeyPair();
+        this.key = KeyGenerator.getInstance("AES").generateKey();
+    }
+
+    @Test
+    public void testCipherIsReused() throws Exception {
+        // transformation isn't used elsewhere - pool is empty
+        String transformation = "AES/CTR/NoPadding";
+        Cipher cipher = SharkCryptoService.getCipher(transformation);
+        Cipher other = SharkCryptoService.getCipher(transformation);
+        assertNotSame(cipher, other);
+
+        SharkCryptoService.releaseCipher(transformation, cipher);
+        assertSame(cipher, SharkCryptoService.getCipher(transformation));
+
+        SharkCryptoService.releaseCipher(transformation, other);
+    }
+
+    @Test
+    public void testPublicKeyIsCached() throws Exception {
+        byte[] encoded = this.keyPair.getPublic().getEncoded();
+
+        PublicKey publicKey = SharkCryptoService.getPublicKey(encoded, "RSA");
+        assertEquals(this.keyPair.getPublic(), publicKey);
+        assertSame(publicKey, SharkCryptoService.getPublicKey(encoded.clone(), "RSA"));
+    }
+
+    @Test
+    public void testByteBuffers() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(42).nextBytes(data);
+
+        ByteBuffer encrypted = ByteBuffer.allocateDirect(2000);
+        SharkCryptoService.encrypt(ByteBuffer.wrap(data), encrypted, this.key, "AES");
+        encrypted.flip();
+
+        ByteBuffer decrypted = ByteBuffer.allocate(2000);
+        assertEquals(data.length, SharkCryptoService.decrypt(encrypted, decrypted, this.key, "AES"));
+        decrypted.flip();
+
+        byte[] result = new byte[decrypted.remaining()];
+        decrypted.get(result);
+        assertArrayEquals(data, result);
+
+        byte[] signature = SharkCryptoService.sign(ByteBuffer.wrap(data), this.keyPair.getPrivate(), "SHA1withRSA");
+        assertTrue(SharkCryptoService.verify(data, signature, this.keyPair.getPublic(), "SHA1withRSA"));
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        final byte[] sessionKey = this.key.getEncoded();
+
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for(int i = 0; i < 200; i++) {
+                        byte[] data = new byte[1 + random.nextInt(500)];
+                        random.nextBytes(data);
+
+                        String encoded = SharkCryptography.encodeData(data, sessionKey, SharkKeyAlgorithm.AES);
+                        byte[] decoded = SharkCryptography.decodeData(encoded, sessionKey, SharkKeyAlgorithm.AES);
+                        if(decoded == null || !Arrays.equals(data, decoded)) {
+                            failures.incrementAndGet();
+                        }
+
+                        if(i % 20 == 0) {
+                            byte[] small = new byte[16];
+                            random.nextBytes(small);
+                            String rsa = SharkCryptography.encodeData(small,
+                                    SharkCryptoServiceTest.this.keyPair.getPublic(), SharkKeyPairAlgorithm.RSA);
+                            byte[] back = SharkCryptography.decodeData(rsa,
+                                    SharkCryptoServiceTest.this.keyPair.getPrivate(), SharkKeyPairAlgorithm.RSA);
+                            if(!Arrays.equals(small, back)) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+    }
+}
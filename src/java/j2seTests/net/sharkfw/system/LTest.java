@@ -0,0 +1,65 @@
+package net.sharkfw.system;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class LTest {
+
+    @After
+    public void tearDown() {
+        L.setAsynchronous(true);
+        L.setLogLevel(L.LOGLEVEL_SILENT);
+    }
+
+    @Test
+    public void testLevels() {
+        L.setLogLevel(L.LOGLEVEL_SILENT);
+        assertFalse(L.isDebug());
+        assertFalse(L.isEnabled(L.LOGLEVEL_ERROR));
+
+        L.setLogLevel(L.LOGLEVEL_WARNING);
+        assertTrue(L.isEnabled(L.LOGLEVEL_ERROR));
+        assertTrue(L.isEnabled(L.LOGLEVEL_WARNING));
+        assertFalse(L.isDebug());
+
+        L.setLogLevel(L.LOGLEVEL_DEBUG);
+        assertTrue(L.isDebug());
+        assertFalse(L.isEnabled(L.LOGLEVEL_ALL));
+
+        L.setLogLevel(L.LOGLEVEL_ALL);
+        assertTrue(L.isDebug());
+        assertTrue(L.isEnabled(L.LOGLEVEL_ALL));
+    }
+
+    @Test
+    public void testBufferedMessagesAreWritten() throws Exception {
+        File logfile = File.createTempFile("sharklog", ".txt");
+        logfile.deleteOnExit();
+        L.setLogfile(logfile.getAbsolutePath());
+
+        L.setLogLevel(L.LOGLEVEL_WARNING);
+        L.d("not written", this);
+        for(int i = 0; i < 100; i++) {
+            L.w("message " + i, this);
+        }
+        L.flush();
+
+        String log = new String(Files.readAllBytes(logfile.toPath()), "UTF-8");
+        assertFalse(log.contains("not written"));
+        assertTrue(log.contains("WARNING: message 0\n"));
+        assertTrue(log.contains("WARNING: message 99\n"));
+        assertTrue(log.indexOf("message 0\n") < log.indexOf("message 99\n"));
+
+        L.setAsynchronous(false);
+        L.w("synchronous", this);
+        log = new String(Files.readAllBytes(logfile.toPath()), "UTF-8");
+        assertTrue(log.contains("WARNING: synchronous"));
+    }
+}
@@ -0,0 +1,217 @@
+package net.sharkfw.system;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.SortedMap;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import net.sharkfw.peer.J2SEAndroidSharkEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author thsc
+ */
+public class MetricsTest {
+
+    @Before
+    public void setUp() {
+        Metrics.setEnabled(true);
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.stopDump();
+        Metrics.unregisterGauge("test.gauge");
+    }
+
+    @Test
+    public void testBuckets() {
+        for(long v = 0; v < 100000; v += 7) {
+            int index = LatencyHistogram.index(v);
+            assertTrue(LatencyHistogram.upperBound(index) >= v);
+            assertTrue(LatencyHistogram.upperBound(index) <= v + v / 16);
+        }
+
+        assertEquals(LatencyHistogram.NUMBER_BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.NUMBER_BUCKETS - 1));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        for(int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMean());
+        assertEquals(1000, histogram.getMax());
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 500 + 500 / 16);
+
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testSwitchedOff() {
+        Metrics.setEnabled(false);
+
+        long start = Metrics.start();
+        assertEquals(0, start);
+        Metrics.stop("test.off", start);
+        Metrics.add("test.off.counter", 10);
+
+        InputStream is = new ByteArrayInputStream(new byte[10]);
+        assertSame(is, Metrics.count(is, "test.off.bytes"));
+
+        SortedMap<String, Long> snapshot = Metrics.snapshot();
+        assertFalse(snapshot.containsKey("test.off.count"));
+        assertFalse(snapshot.containsKey("test.off.counter"));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        long start = Metrics.start();
+        Metrics.stop("test.latency", start);
+        Metrics.add("test.counter", 3);
+        Metrics.add("test.counter", 4);
+        Metrics.registerGauge("test.gauge", new Gauge() {
+            @Override
+            public long getValue() {
+                return 42;
+            }
+        });
+
+        OutputStream os = Metrics.count(new ByteArrayOutputStream(), "test.bytesOut");
+        os.write(new byte[100], 10, 50);
+        os.write(1);
+
+        InputStream is = Metrics.count(new ByteArrayInputStream(new byte[30]), "test.bytesIn");
+        is.read();
+        while(is.read(new byte[8]) != -1) {
+            // nothing
+        }
+
+        SortedMap<String, Long> snapshot = Metrics.snapshot();
+        assertEquals(Long.valueOf(1), snapshot.get("test.latency.count"));
+        assertEquals(Long.valueOf(7), snapshot.get("test.counter"));
+        assertEquals(Long.valueOf(42), snapshot.get("test.gauge"));
+        assertEquals(Long.valueOf(51), snapshot.get("test.bytesOut"));
+        assertEquals(Long.valueOf(30), snapshot.get("test.bytesIn"));
+
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        Metrics.dump(new PrintStream(dump));
+        assertTrue(dump.toString().contains("test.counter = 7"));
+
+        Metrics.reset();
+        assertEquals(Long.valueOf(0), Metrics.snapshot().get("test.counter"));
+        assertEquals(Long.valueOf(42), Metrics.snapshot().get("test.gauge"));
+    }
+
+    @Test
+    public void testChannels() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        WritableByteChannel out = Metrics.count(Channels.newChannel(baos), "test.channelOut");
+        out.write(ByteBuffer.wrap(new byte[40]));
+
+        ReadableByteChannel in = Metrics.count(Channels.newChannel(
+                new ByteArrayInputStream(new byte[25])), "test.channelIn");
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        while(in.read(buffer) != -1) {
+            buffer.clear();
+        }
+
+        SortedMap<String, Long> snapshot = Metrics.snapshot();
+        assertEquals(Long.valueOf(40), snapshot.get("test.channelOut"));
+        assertEquals(Long.valueOf(25), snapshot.get("test.channelIn"));
+
+        Metrics.setEnabled(false);
+        WritableByteChannel plain = Channels.newChannel(baos);
+        assertSame(plain, Metrics.count(plain, "test.channelOut"));
+    }
+
+    @Test
+    public void testEngineGaugesWhileRunning() throws Exception {
+        J2SEAndroidSharkEngine engine = new J2SEAndroidSharkEngine();
+        String name = engine.getMetricsPrefix() + "outboundQueue.size";
+        assertFalse(Metrics.snapshot().containsKey(name));
+
+        engine.startTCP(5578);
+        try {
+            assertEquals(Long.valueOf(0), Metrics.snapshot().get(name));
+
+            // each engine has gauges of its own
+            J2SEAndroidSharkEngine other = new J2SEAndroidSharkEngine();
+            assertFalse(name.equals(other.getMetricsPrefix() + "outboundQueue.size"));
+        }
+        finally {
+            engine.stopTCP();
+        }
+
+        assertFalse(Metrics.snapshot().containsKey(name));
+    }
+
+    @Test
+    public void testPeriodicDump() throws Exception {
+        Metrics.add("test.counter", 1);
+
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(dump);
+        Metrics.startDump(10, out);
+
+        long end = System.currentTimeMillis() + 5000;
+        while(System.currentTimeMillis() < end) {
+            synchronized(out) {
+                if(dump.toString().contains("test.counter = 1")) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        fail("no dump");
+    }
+
+    @Test
+    public void testJMX() throws Exception {
+        Metrics.add("test.counter", 5);
+
+        JMXMetrics.register();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMXMetrics.OBJECT_NAME);
+
+            assertEquals(5L, server.getAttribute(name, "test.counter"));
+
+            server.setAttribute(name, new Attribute("Enabled", false));
+            assertFalse(Metrics.isEnabled());
+
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "test.counter"));
+        }
+        finally {
+            JMXMetrics.unregister();
+        }
+    }
+}
@@ -8,22 +8,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sharkfw.system.TimeLong;
+import net.sharkfw.knowledgeBase.ChannelInformation;
 import net.sharkfw.knowledgeBase.SharkKBException;
 import net.sharkfw.knowledgeBase.inmemory.InMemoInformation;
+import net.sharkfw.protocols.ChannelWatchdog;
 import net.sharkfw.system.L;
 
 /**
  *
  * @author thsc
  */
-public class FSInformation extends InMemoInformation {
+public class FSInformation extends InMemoInformation implements ChannelInformation {
     private File contentFile;
 	private FileLock  _fLock;
     private String folder;
@@ -175,42 +182,76 @@ public class FSInformation extends InMemoInformation {
         }
     }
     
-    private static final int MAX_BUFFER_LEN = 1024*100; // 100 kByte
+    /**
+     * Content is transferred from and to sockets in chunks of that size. 
+     * A chunk must be transferred within socket timeout.
+     */
+    private static final long TRANSFER_CHUNK = 64 * 1024;
     
     @Override
     public void setContent(InputStream is, long len) {
-        byte[] buffer = null;
-        int index = 0;
-        
-        FileOutputStream fos;
         try {
-            fos = new FileOutputStream(this.contentFile);
-			lockFile(fos.getChannel(), true);
+            // a file can hand over its channel - other streams are wrapped
+            ReadableByteChannel source;
+            if(is instanceof FileInputStream) {
+                source = ((FileInputStream) is).getChannel();
+            } else {
+                source = Channels.newChannel(is);
+            }
+            
+            this.transferContentFrom(source, len);
+        } catch (Exception ex) {
+            L.e("setContent(InputStream,"+len+"): couldn't write information to file: " + ex.getMessage(), this);
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Reads exactly <code>len</code> bytes from the channel and uses them
+     * as new content. A socket channel is closed if a chunk isn't read 
+     * within socket timeout.
+     * 
+     * @throws IOException if channel ended before len bytes were read
+     */
+    public void transferContentFrom(ReadableByteChannel source, long len) throws IOException {
+        FileOutputStream fos = new FileOutputStream(this.contentFile);
+        try {
+            FileChannel fileChannel = fos.getChannel();
+			lockFile(fileChannel, true);
             
-            while(len > 0) {
-                int byte2write = (int) (len > MAX_BUFFER_LEN ? MAX_BUFFER_LEN : len);
-                if(buffer == null) {
-                    buffer = new byte[byte2write];
+            ChannelWatchdog watchdog = new ChannelWatchdog(source, fileChannel);
+            long position = 0;
+            while(position < len) {
+                long chunk = len - position;
+                if(watchdog.enabled()) {
+                    chunk = Math.min(chunk, TRANSFER_CHUNK);
                 }
-
-                // fill buffer
-                int bytesRead = is.read(buffer);
-
-                // write to content
-                fos.write(buffer, 0, bytesRead);
                 
-                len -= bytesRead;
+                long transferred;
+                watchdog.arm();
+                try {
+                    transferred = fileChannel.transferFrom(source, position, chunk);
+                }
+                catch(ClosedChannelException ex) {
+                    throw watchdog.failure(ex, "reading content after " + position + " of " + len + " bytes");
+                }
+                finally {
+                    watchdog.disarm();
+                }
+                
+                if(transferred <= 0) {
+                    throw new IOException("channel ended after " + position + " of " + len + " bytes");
+                }
+                position += transferred;
             }
+        }
+        finally {
 			unlockFile();
             fos.close();
-            
-            this.setTimes();
-            this.persist();
-            
-        } catch (Exception ex) {
-            L.e("setContent(InputStream,"+len+"): couldn't write information to file: " + ex.getMessage(), this);
-            ex.printStackTrace();
         }
+        
+        this.setTimes();
+        this.persist();
     }
     
     @Override
@@ -226,17 +267,15 @@ public class FSInformation extends InMemoInformation {
     
     @Override
     public void streamContent(OutputStream os) {
-        FileInputStream fis;
         try {
-            fis = new FileInputStream(this.contentFile);
-			lockFile(fis.getChannel(), false);	
-            int b = fis.read();
-            while(b != -1) {
-                os.write(b);
-                b = fis.read();
+            WritableByteChannel target;
+            if(os instanceof FileOutputStream) {
+                target = ((FileOutputStream) os).getChannel();
+            } else {
+                target = Channels.newChannel(os);
             }
-			unlockFile();
-            fis.close();
+            
+            this.transferContentTo(target);
         } catch (Exception ex) {
             L.l("streamContent(): couldn't read information from file (might be ok - no content)" + ex.getMessage(), this);
 			ex.printStackTrace();
@@ -250,9 +289,72 @@ public class FSInformation extends InMemoInformation {
 //        }
     }
     
+    /**
+     * A blocking socket channel ignores socket timeout while writing - a
+     * stalled peer would block for ever. Content is written in chunks
+     * instead. The channel is closed if a chunk isn't written within
+     * socket timeout. 
+     */
+    @Override
+    public long transferContentTo(WritableByteChannel target) throws IOException {
+        FileInputStream fis = new FileInputStream(this.contentFile);
+        try {
+            FileChannel fileChannel = fis.getChannel();
+			lockFile(fileChannel, false);
+            
+            ChannelWatchdog watchdog = new ChannelWatchdog(target, fileChannel);
+            long len = fileChannel.size();
+            long position = 0;
+            while(position < len) {
+                long chunk = len - position;
+                if(watchdog.enabled()) {
+                    chunk = Math.min(chunk, TRANSFER_CHUNK);
+                }
+                
+                // transferTo can send less than asked for - e.g. on sockets
+                long transferred;
+                watchdog.arm();
+                try {
+                    transferred = fileChannel.transferTo(position, chunk, target);
+                }
+                catch(ClosedChannelException ex) {
+                    throw watchdog.failure(ex, "writing content after " + position + " of " + len + " bytes");
+                }
+                finally {
+                    watchdog.disarm();
+                }
+                
+                if(transferred <= 0) {
+                    throw new IOException("cannot write content after " + position + " of " + len + " bytes");
+                }
+                position += transferred;
+            }
+            
+            return position;
+        }
+        finally {
+			unlockFile();
+            fis.close();
+        }
+    }
+    
+    @Override
+    public ByteBuffer mapContent() throws IOException {
+        FileInputStream fis = new FileInputStream(this.contentFile);
+        try {
+            FileChannel fileChannel = fis.getChannel();
+            // mapping stays valid after the channel is closed
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        }
+        finally {
+            fis.close();
+        }
+    }
+    
     /**
      * Handle with care - this creates a byte array and copies any byte 
-     * into that array. Might be huge.
+     * into that array. Might be huge. Use mapContent() to avoid the copy 
+     * at all.
      * 
      * @return 
      */
@@ -277,12 +379,17 @@ public class FSInformation extends InMemoInformation {
 			e.printStackTrace();
 		}
 		if (fis != null) {
-			lockFile(fis.getChannel(), false);	
+            FileChannel fileChannel = fis.getChannel();
+			lockFile(fileChannel, false);	
 			try {
-				int got = fis.read(content);
-				if (got < 0) {
-					// end-of-file was reached
-				}
+                // read can return less than asked for
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while(buffer.hasRemaining()) {
+                    if(fileChannel.read(buffer) < 0) {
+                        // end-of-file was reached
+                        break;
+                    }
+                }
 			} catch (IOException e) {
 				// read interrupted or other IO error
 				System.out.println("getContentAsByte(): error in read(): " + e.getMessage());
@@ -551,7 +658,10 @@ public class FSInformation extends InMemoInformation {
 	private void unlockFile() {
 		if (_fLock != null) {
 			try {
-				_fLock.release();
+				// closed channel released it already
+				if (_fLock.isValid()) {
+					_fLock.release();
+				}
 			} catch (IOException e) {
 				L.l("getContentAsByte(): error in unlockFile(): " + e.getMessage(), this);
 				e.printStackTrace();
@@ -1,7 +1,6 @@
 package net.sharkfw.peer;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
@@ -11,14 +10,7 @@ import java.util.Iterator;
 import java.util.Map;
 import net.sharkfw.kep.SharkProtocolNotSupportedException;
 import net.sharkfw.kep.SimpleKEPStub;
-import net.sharkfw.kep.format.XMLSerializer;
-import net.sharkfw.knowledgeBase.ContextCoordinates;
-import net.sharkfw.knowledgeBase.ContextPoint;
-import net.sharkfw.knowledgeBase.Information;
-import net.sharkfw.knowledgeBase.Knowledge;
 import net.sharkfw.knowledgeBase.PeerSemanticTag;
-import net.sharkfw.knowledgeBase.SemanticTag;
-import net.sharkfw.knowledgeBase.SharkCS;
 import net.sharkfw.knowledgeBase.SharkCSAlgebra;
 import net.sharkfw.knowledgeBase.SharkKB;
 import net.sharkfw.knowledgeBase.SharkKBException;
@@ -29,6 +21,7 @@ import net.sharkfw.protocols.m2s.M2SStub;
 import net.sharkfw.protocols.m2s.MessageStorage;
 import net.sharkfw.protocols.m2s.SharkKBMessageStorage;
 import net.sharkfw.protocols.mail.MailMessageStub;
+import net.sharkfw.protocols.tcp.NIOStreamStub;
 import net.sharkfw.protocols.tcp.TCPStreamStub;
 import net.sharkfw.system.L;
 import net.sharkfw.system.Util;
@@ -64,7 +57,8 @@ public class J2SEAndroidSharkEngine extends SharkEngine {
     private int defaultHTTPPort = 8080;
     private int kpStoreCount = 0;
     
-	TCPStreamStub tcp;
+	StreamStub tcp;
+    private boolean nioTCP = false;
     private static final boolean DEFAULT_SSL = false;
     private boolean sslSMTP = DEFAULT_SSL, sslPOP3 = DEFAULT_SSL;
     
@@ -82,6 +76,13 @@ public class J2SEAndroidSharkEngine extends SharkEngine {
 
     @Override
     protected StreamStub createTCPStreamStub(RequestHandler handler, int port, boolean isHTTP) throws SharkProtocolNotSupportedException {
+        if(this.nioTCP) {
+            NIOStreamStub nio = new NIOStreamStub(handler, port);
+            nio.setIdleTimeout(this.getIdleTimeout(Protocols.TCP));
+            tcp = nio;
+            return tcp;
+        }
+        
         try {
             tcp = new TCPStreamStub(handler, port);
             return tcp;
@@ -162,6 +163,19 @@ public class J2SEAndroidSharkEngine extends SharkEngine {
 	}
 
 
+    /**
+     * TCP connections are accepted by a selector based stub instead of
+     * keeping a thread for each connection. Recommended for peers which
+     * are connected to lots of other peers at the same time. Must be set
+     * before TCP is started.
+     * 
+     * @param nio true if selector based stub is to be used
+     * @see NIOStreamStub
+     */
+    public void setNIOTCP(boolean nio) {
+        this.nioTCP = nio;
+    }
+
     // ===========================================================================
     // API rev. 3 methods
     /**
@@ -290,7 +304,7 @@ public class J2SEAndroidSharkEngine extends SharkEngine {
 	public MessageStub createMailStub(RequestHandler handler) 
                 throws SharkProtocolNotSupportedException  {
         
-        return new MailMessageStub(handler, 
+        MailMessageStub mailStub = new MailMessageStub(handler, 
                 this.getSMTPHost(), 
                 this.getSMTPUserName(),
                 this.getSMTPPassword(),
@@ -302,15 +316,65 @@ public class J2SEAndroidSharkEngine extends SharkEngine {
                 this.mailCheckInterval,
                 this.sslPOP3,
                 this.maxMailMessageSize);
+        
+        mailStub.setBatchDelay(this.mailBatchDelay);
+        mailStub.setUndeliveredMessageListener(new UndeliveredMessageListener() {
+            @Override
+            public void undelivered(byte[] msg, String recAddress, IOException cause) {
+                J2SEAndroidSharkEngine.this.rememberUndeliveredMessage(msg, recAddress);
+            }
+        });
+        
+        this.mailMessageStub = mailStub;
+        return mailStub;
     }
     
-    private SharkKBMessageStorage kbStorage = null;
+    private MailMessageStub mailMessageStub = null;
+    
+    /**
+     * Undelivered messages come from mail batches - they are sent
+     * by a mail of their own.
+     */
+    @Override
+    protected boolean resendMessage(byte[] msg, String recAddress) throws IOException {
+        MailMessageStub mailStub = this.mailMessageStub;
+        if(mailStub == null) {
+            return false;
+        }
+        
+        mailStub.sendMessageNow(msg, recAddress);
+        return true;
+    }
+    
+    private long mailBatchDelay = MailMessageStub.DEFAULT_BATCH_DELAY;
+    
+    /**
+     * Messages to the same peer are collected for at most that time
+     * and sent within a single mail. Must be set before mail is started.
+     * 
+     * @param delay delay in ms - 0 sends each message immediately
+     */
+    public void setMailBatchDelay(long delay) {
+        this.mailBatchDelay = delay;
+    }
+    
+    private MessageStorage messageStorage = null;
     public MessageStorage getMessageStorage() throws SharkKBException {
-        if(this.kbStorage == null) {
-            this.kbStorage = new SharkKBMessageStorage(new InMemoSharkKB());
+        if(this.messageStorage == null) {
+            this.messageStorage = new SharkKBMessageStorage(new InMemoSharkKB());
         }
         
-        return this.kbStorage;
+        return this.messageStorage;
+    }
+    
+    /**
+     * Storage of long messages which are sent and received over mail in 
+     * parts. Must be set before mail is started.
+     * 
+     * @param storage e.g. a {@link net.sharkfw.protocols.m2s.FileMessageStorage}
+     */
+    public void setMessageStorage(MessageStorage storage) {
+        this.messageStorage = storage;
     }
     
     @Override
@@ -642,153 +706,6 @@ public class J2SEAndroidSharkEngine extends SharkEngine {
         }
     }
         
-    /////////////////////////////////////////////////////////////////
-    //                 remember unsent messages                    //
-    /////////////////////////////////////////////////////////////////
-    
-    private SharkKB unsentMessagesKB;
-    private static final String UNSENTMESSAGE_SI = "http://www.sharksystem.net/vocabulary/unsentMesssages";
-    private SemanticTag unsentMessagesST = InMemoSharkKB.createInMemoSemanticTag("UnsentMessage", UNSENTMESSAGE_SI);
-    
-    private static final String INTEREST_CONTENT_TYPE = "x-shark/interest";
-    private static final String KNOWLEDGE_CONTENT_TYPE = "x-shark/knowledge";
-    
-    public void setUnsentMessagesKB(SharkKB kb) {
-       this.unsentMessagesKB = kb; 
-    }
-    
-    private ContextCoordinates getUnsentCC(PeerSemanticTag recipient) {
-        return InMemoSharkKB.createInMemoContextCoordinates(
-                this.unsentMessagesST, recipient, null, null, 
-                null, null, SharkCS.DIRECTION_NOTHING);
-    }
-    
-    private ContextPoint getUnsentMessageCP(PeerSemanticTag recipient) {
-        if(this.unsentMessagesKB != null) {
-            try {
-                ContextPoint cp = this.unsentMessagesKB.createContextPoint(
-                        this.getUnsentCC(recipient));
-
-                return cp;
-            }
-            catch(SharkKBException e) {
-            }
-        }
-        
-        return null;
-    }
-    
-    private XMLSerializer xs = null;
-    
-    private XMLSerializer getXMLSerializer() {
-        if(this.xs == null) {
-            this.xs = new XMLSerializer();
-        }
-        
-        return this.xs;
-    }
-
-    public void rememberUnsentInterest(SharkCS interest, PeerSemanticTag recipient) {
-        ContextPoint cp = this.getUnsentMessageCP(recipient);
-        
-        if(cp == null) {
-            L.w("cannot save unsent interest: ", this);
-            return;
-        }
-        
-        try {
-            String interestString = this.getXMLSerializer().serializeSharkCS(interest);
-            Information i = cp.addInformation(interestString);
-            
-            i.setContentType(INTEREST_CONTENT_TYPE);
-            
-        } catch (SharkKBException ex) {
-            L.d("cannot serialize interest", this);
-        }
-    }
-    
-    public void rememberUnsentKnowledge(Knowledge k, PeerSemanticTag recipient) {
-        ContextPoint cp = this.getUnsentMessageCP(recipient);
-        
-        if(cp == null) {
-            L.w("cannot save unsent knowledge: ", this);
-            return;
-        }
-        
-        try {
-            Information i = cp.addInformation();
-            OutputStream os = i.getOutputStream();
-            SharkOutputStream sos = new UTF8SharkOutputStream(os);
-            this.getXMLSerializer().write(k, sos);
-            i.setContentType(KNOWLEDGE_CONTENT_TYPE);
-        } catch (Exception ex) {
-            L.d("cannot serialize knowledge", this);
-        }
-    }
-    
-    public void sendUnsentMessages() {
-        if(this.unsentMessagesKB != null) {
-            try {
-                Enumeration<ContextPoint> cpEnum = this.unsentMessagesKB.getAllContextPoints();
-                if(cpEnum == null) {
-                    return;
-                }
-                
-                while(cpEnum.hasMoreElements()) {
-                    ContextPoint cp = cpEnum.nextElement();
-                    
-                    this.unsentMessagesKB.removeContextPoint(cp.getContextCoordinates());
-                    
-                    Enumeration<Information> infoEnum = cp.enumInformation();
-                    if(infoEnum == null) {
-                        continue;
-                    }
-                    
-                    while(infoEnum.hasMoreElements()) {
-                        Information i = infoEnum.nextElement();
-                        
-                        if(i.getContentType().equalsIgnoreCase(INTEREST_CONTENT_TYPE)) {
-                            // Interest
-                            String serialeInterest = i.getContentAsString();
-                            SharkCS deserializeSharkCS = this.getXMLSerializer().deserializeSharkCS(serialeInterest);
-                            cp.removeInformation(i);
-                            
-                            // TODO reset - prevent loop!
-                        }
-                        else if(i.getContentType().equalsIgnoreCase(KNOWLEDGE_CONTENT_TYPE)) {
-                            // knowledge
-                            // TODO
-                        }
-                        
-                    }
-                }
-                
-            }
-            catch(SharkKBException e) {
-                
-            }
-        }
-    }
-    
-    public void removeUnsentMessages() {
-        if(this.unsentMessagesKB != null) {
-            try {
-                Enumeration<ContextPoint> cpEnum = this.unsentMessagesKB.getAllContextPoints();
-                if(cpEnum == null) {
-                    return;
-                }
-                
-                while(cpEnum.hasMoreElements()) {
-                    ContextPoint cp = cpEnum.nextElement();
-                    this.unsentMessagesKB.removeContextPoint(cp.getContextCoordinates());
-                }
-            }
-            catch(SharkKBException e) {
-                L.d("problems while iterating stored unsent messages", this);
-            }
-        }
-    }
-
     /////////////////////////////////////////////////////////////////
     //                           others                            //
     /////////////////////////////////////////////////////////////////
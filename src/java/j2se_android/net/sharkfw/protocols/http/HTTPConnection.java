@@ -5,6 +5,7 @@
 package net.sharkfw.protocols.http;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -20,7 +21,19 @@ public class HTTPConnection extends TCPConnection {
     private final boolean isRequest;
     
     public HTTPConnection(Socket s, String replyAddressString, boolean isRequest) throws IOException {
-        super(s, replyAddressString);
+        this(s, null, replyAddressString, isRequest);
+    }
+
+    /**
+     * @param s
+     * @param is stream of socket which was used to read the HTTP header -
+     * bytes after the header are read from it first
+     * @param replyAddressString
+     * @param isRequest
+     * @throws IOException 
+     */
+    public HTTPConnection(Socket s, InputStream is, String replyAddressString, boolean isRequest) throws IOException {
+        super(s, is, replyAddressString);
         this.isRequest = isRequest;
         
         if(this.isRequest) {
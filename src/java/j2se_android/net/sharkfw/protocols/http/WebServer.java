@@ -8,12 +8,23 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Date;
-import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.sharkfw.protocols.Protocols;
 import net.sharkfw.protocols.RequestHandler;
 import net.sharkfw.protocols.StreamStub;
@@ -21,11 +32,27 @@ import net.sharkfw.protocols.tcp.SharkServer;
 import net.sharkfw.system.L;
 
 /**
+ * <p>Accept thread only accepts connections. Request headers are read and
+ * browsers are served by a bounded pool of threads - a slow client doesn't
+ * hold up others. Connections beyond pool and queue are closed.</p>
+ *
+ * <p>Browsers can send further requests over the same connection
+ * (keep alive). Files are sent from file system to socket without copying
+ * them through the heap.</p>
  *
  * @author Jacob Zschunke
  */
 public class WebServer implements SharkServer {
 
+    public static final int DEFAULT_WORKER_THREADS = 16;
+
+    /**
+     * Longer request headers are refused
+     */
+    private static final int MAX_HEADER_LENGTH = 8192;
+    private static final int MAX_QUEUED = 256;
+    private static final int KEEP_ALIVE_TIMEOUT = 5000;
+
     private int port;
     private boolean isRunning = true;
     private StreamStub stub;
@@ -33,138 +60,329 @@ public class WebServer implements SharkServer {
     private String redirectURL = "http://www.sharksystem.net";
     private String filePath = null;
     private ServerSocket server;
+    private int socketTimeout = 10000;
+    private final ThreadPoolExecutor workers;
 
     public WebServer(int port, RequestHandler handler, StreamStub stub) throws IOException {
-        this.port = port;
         this.handler = handler;
         this.stub = stub;
         if (port == Protocols.ARBITRARY_PORT) {
             port = 8080;
-            server = new ServerSocket(port);
-        } else {
-            server = new ServerSocket(port);
         }
 
+        // accepted sockets of a channel based server socket own a channel
+        server = ServerSocketChannel.open().socket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        this.port = server.getLocalPort();
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(DEFAULT_WORKER_THREADS,
+                DEFAULT_WORKER_THREADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "WebServer-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.workers.allowCoreThreadTimeOut(true);
+
         L.d("HTTP Server is bound to port " + this.port, this);
     }
 
     /**
      * The Webserver will listen to any HTTP-Requests. If a Shark Client
      * (identified through the <b>User-Agent: Shark</b> parameter in the Request)
-     * connects to the Webserver, the Request Header will be discarded and the 
+     * connects to the Webserver, the Request Header will be discarded and the
      * Stream will be handled as usual <code>TCPConnection</code>.
      * If a Browser tries to connect to the Webserver it will either redirect the
      * User to a specified Website or show a stored HTML file.
      */
-    @SuppressWarnings("unused")
     @Override
     public void run() {
         try {
             while (isRunning) {
                 L.d("TCP Server accepts connection requests", this);
-                Socket sock = server.accept();
-                InputStream is = sock.getInputStream();
-
-                List<Byte> bytes = new ArrayList<Byte>();
-
-                // Read the HTTP Request from the stream                                
-                for (int i = 0; i < 2048; i++) {
-                    bytes.add((byte) is.read());
-                    int count = 0;
-                    // check when we hit the double 'newline' cause its the end
-                    // of the request
-                    if (bytes.size() > 3) {
-                        byte[] endingBytes = new byte[4];
-                        endingBytes[0] = bytes.get(bytes.size() - 1);
-                        endingBytes[1] = bytes.get(bytes.size() - 2);
-                        endingBytes[2] = bytes.get(bytes.size() - 3);
-                        endingBytes[3] = bytes.get(bytes.size() - 4);
-
-                        if (endingBytes[0] == (byte) '\n'
-                                && endingBytes[1] == (byte) '\r'
-                                && endingBytes[2] == (byte) '\n'
-                                && endingBytes[3] == (byte) '\r') {
-                            break;
+                final Socket sock = server.accept();
+                try {
+                    this.workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            WebServer.this.serve(sock);
                         }
-                    }
+                    });
+                }
+                catch(RejectedExecutionException ree) {
+                    L.w("too many HTTP connections - connection closed", this);
+                    sock.close();
+                }
+            }
+        } catch (IOException e) {
+            // nothing todo
+        }
+    }
+
+    public void hold() {
+        this.isRunning = false;
+        try {
+            this.server.close();
+        } catch (IOException ex) {
+            L.e("HTTP Server hold failed: " + ex.getMessage(), this);
+        }
+    }
+
+    /**
+     * Browsers are redirected to that URL if no file is set
+     * @param redirectURL
+     */
+    public void setRedirectURL(String redirectURL) {
+        this.redirectURL = redirectURL;
+    }
+
+    /**
+     * File is sent to browsers
+     * @param filePath HTML file - null to redirect browsers
+     */
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    /**
+     * Handles a single connection until it is closed or handed over to
+     * a KEP session.
+     */
+    private void serve(Socket sock) {
+        try {
+            sock.setSoTimeout(this.socketTimeout);
+            // header is read in blocks - bytes behind it are pushed back
+            PushbackInputStream is = new PushbackInputStream(
+                    sock.getInputStream(), MAX_HEADER_LENGTH);
+
+            boolean keepAlive;
+            do {
+                String request;
+                try {
+                    request = WebServer.readHeader(is);
+                }
+                catch(SocketTimeoutException ste) {
+                    // idle browser
+                    request = null;
                 }
 
-                byte[] buf = new byte[bytes.size()];
-                for (int i = 0; i < bytes.size(); i++) {
-                    buf[i] = bytes.get(i).byteValue();
+                if(request == null) {
+                    break;
                 }
-                String request = new String(buf);
 
                 // is it a Shark-Client or Browser...
                 if (request.contains("User-Agent: Shark")) {
                     // ... its a Shark-Client. Handle that stream as TCPConnection
-                    HTTPConnection con = new HTTPConnection(sock, this.stub.getLocalAddress(), false);
-                    
+                    HTTPConnection con = new HTTPConnection(sock, is, this.stub.getLocalAddress(), false);
+
                     L.d("Calling handler for stream", this);
                     handler.handleStream(con);
-                } else {
-                    // ... its a Browser or anything else so respond to it.
-                    this.respondToBrowser(sock);
-                    sock.close();
+
+                    // connection belongs to session now
+                    return;
                 }
+
+                // ... its a Browser or anything else so respond to it.
+                keepAlive = this.respondToBrowser(sock, is, request);
+                sock.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            } while(keepAlive);
+        }
+        catch(IOException e) {
+            L.d("HTTP connection failed: " + e.getMessage(), this);
+        }
+
+        try {
+            sock.close();
+        } catch (IOException ex) {
+            // closed anyway
+        }
+    }
+
+    /**
+     * Reads request header up to the empty line. Bytes after that line
+     * (a KEP message) are pushed back into stream.
+     *
+     * @param is pushback buffer must hold a header
+     * @return header or null if stream ended or header is too long
+     */
+    static String readHeader(PushbackInputStream is) throws IOException {
+        byte[] buf = new byte[MAX_HEADER_LENGTH];
+        int len = 0;
+
+        // number of bytes of CR LF CR LF already found at the end
+        int matched = 0;
+        for(;;) {
+            if(len == buf.length) {
+                L.w("HTTP request header too long", WebServer.class);
+                return null;
             }
-        } catch (IOException e) {
-            // nothing todo
+
+            int n = is.read(buf, len, buf.length - len);
+            if(n == -1) {
+                return null;
+            }
+
+            int end = len + n;
+            for(int i = len; i < end; i++) {
+                matched = WebServer.nextMatch(matched, buf[i]);
+                if(matched == 4) {
+                    is.unread(buf, i + 1, end - i - 1);
+                    return new String(buf, 0, i + 1, "ISO-8859-1");
+                }
+            }
+            len = end;
         }
     }
 
-    public void hold() {
-        this.isRunning = false;
+    private static int nextMatch(int matched, byte b) {
+        if(b == '\r') {
+            return matched == 2 ? 3 : 1;
+        }
+
+        if(b == '\n') {
+            if(matched == 1) {
+                return 2;
+            }
+            if(matched == 3) {
+                return 4;
+            }
+        }
+
+        return 0;
     }
 
-    private void respondToBrowser(Socket sock) throws IOException {
-        PrintStream ps = new PrintStream(sock.getOutputStream());
+    /**
+     * @return value of that header field or null
+     */
+    private static String getField(String request, String name) {
+        String[] lines = request.split("\r\n");
+        // first line is request line
+        for(int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if(colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return lines[i].substring(colon + 1).trim();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if browser can send another request over that connection
+     */
+    private static boolean isKeepAlive(String request) {
+        String connection = WebServer.getField(request, "Connection");
+        if(connection != null) {
+            connection = connection.toLowerCase(Locale.ROOT);
+        }
+
+        if(request.startsWith("HTTP/1.1", request.indexOf("\r\n") - "HTTP/1.1".length())) {
+            return connection == null || !connection.contains("close");
+        }
+
+        return connection != null && connection.contains("keep-alive");
+    }
+
+    /**
+     * @return true if connection is kept open
+     */
+    private boolean respondToBrowser(Socket sock, InputStream is, String request) throws IOException {
+        boolean keepAlive = WebServer.isKeepAlive(request);
+
+        // skip request body - only bodies with known length can be skipped
+        String length = WebServer.getField(request, "Content-Length");
+        if(length != null) {
+            try {
+                long left = Long.parseLong(length);
+                while(left > 0) {
+                    long skipped = is.skip(left);
+                    if(skipped <= 0) {
+                        if(is.read() == -1) {
+                            break;
+                        }
+                        skipped = 1;
+                    }
+                    left -= skipped;
+                }
+            }
+            catch(NumberFormatException nfe) {
+                keepAlive = false;
+            }
+        } else if(WebServer.getField(request, "Transfer-Encoding") != null) {
+            keepAlive = false;
+        }
+
+        OutputStream out = sock.getOutputStream();
 
         if (this.filePath != null) {
             File file = new File(filePath);
             if (file.exists()) {
-                this.sendFile(file, ps);
+                this.sendFile(file, sock, out, keepAlive);
+                return keepAlive;
             }
         }
-        this.redirectTo(ps, this.redirectURL);
+
+        this.redirectTo(out, this.redirectURL, keepAlive);
+        return keepAlive;
     }
 
-    private void redirectTo(PrintStream out, String url) {
-        out.print("HTTP/1.1 302 FOUND\r\n");
-        Date now = new Date();
-        out.print("Date: " + now + "\r\n");
-        out.print("Server: Redirector 1.0\r\n");
-        out.print("Location: " + url + "\r\n");
-        out.print("Content-type: text/html\r\n\r\n");
+    private void redirectTo(OutputStream out, String url, boolean keepAlive) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 302 FOUND\r\n");
+        sb.append("Date: ").append(new Date()).append("\r\n");
+        sb.append("Server: Redirector 1.0\r\n");
+        sb.append("Location: ").append(url).append("\r\n");
+        sb.append("Content-Length: 0\r\n");
+        sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        sb.append("Content-type: text/html\r\n\r\n");
+
+        out.write(sb.toString().getBytes("ISO-8859-1"));
         out.flush();
     }
-    static final byte[] EOL = {(byte) '\r', (byte) '\n'};
-
-    private void sendFile(File file, PrintStream ps) throws IOException {
-        // write Response-Header
-        ps.print("HTTP/1.0 200 OK");
-        ps.write(EOL);
-        ps.print("Server: Shark-Webserver");
-        ps.write(EOL);
-        ps.print("Date: " + (new Date()));
-        ps.write(EOL);
-        ps.print("Content-length: " + file.length());
-        ps.write(EOL);
-        ps.print("Last Modified: " + (new Date()));
-        ps.write(EOL);
-        ps.print("Content-type: text/html");
-        ps.write(EOL);
-        ps.write(EOL);
 
+    private void sendFile(File file, Socket sock, OutputStream out, boolean keepAlive) throws IOException {
         FileInputStream fis = new FileInputStream(file);
-        int b = 0;
-        while (b != -1) {
-            b = fis.read();
-            ps.write(b);
-        }
+        try {
+            FileChannel fileChannel = fis.getChannel();
+            long length = fileChannel.size();
 
-        ps.flush();
-        fis.close();
+            // write Response-Header
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 200 OK\r\n");
+            sb.append("Server: Shark-Webserver\r\n");
+            sb.append("Date: ").append(new Date()).append("\r\n");
+            sb.append("Content-length: ").append(length).append("\r\n");
+            sb.append("Last Modified: ").append(new Date(file.lastModified())).append("\r\n");
+            sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+            sb.append("Content-type: text/html\r\n\r\n");
+            out.write(sb.toString().getBytes("ISO-8859-1"));
+            out.flush();
+
+            SocketChannel channel = sock.getChannel();
+            if(channel != null) {
+                // zero copy
+                long position = 0;
+                while(position < length) {
+                    position += fileChannel.transferTo(position, length - position, channel);
+                }
+            } else {
+                byte[] buf = new byte[8192];
+                int n;
+                while((n = fis.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+                out.flush();
+            }
+        }
+        finally {
+            fis.close();
+        }
     }
 
     @Override
@@ -0,0 +1,449 @@
+package net.sharkfw.protocols.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import net.sharkfw.protocols.ConnectionListenerManager;
+import net.sharkfw.protocols.SharkInputStream;
+import net.sharkfw.protocols.SharkOutputStream;
+import net.sharkfw.protocols.StandardSharkInputStream;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.protocols.UTF8SharkOutputStream;
+import net.sharkfw.system.L;
+import net.sharkfw.system.Metrics;
+
+/**
+ * Connection accepted by a {@link NIOStreamStub}. The channel is in non
+ * blocking mode and is watched by a selector thread of the stub. That thread
+ * fills a read buffer and drains a write buffer of this connection.
+ *
+ * <p>Streams of this connection are blocking views on those buffers. They
+ * are used by a worker thread while a KEP message is read and answered.
+ * Nobody needs a thread while the connection is idle.</p>
+ *
+ * @author thsc
+ */
+class NIOConnection extends ConnectionListenerManager implements StreamConnection {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final NIOStreamStub.IOLoop loop;
+    private SelectionKey key = null;
+
+    // buffers are kept in fill mode
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer writeBuffer;
+
+    private final String recAddress;
+    private final int portNo;
+    private String localAddress;
+    private final String replyAddressString;
+
+    private final int socketTimeout;
+    private long lastActivity = System.currentTimeMillis();
+
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * A worker is busy with this connection or connection is used by
+     * a session of its own
+     */
+    private boolean dispatched = false;
+
+    /**
+     * Connection is handled by a worker of the pool - not by a thread of
+     * its own
+     */
+    private boolean worker = false;
+
+    // bytes are counted if metrics were switched on when connection was created
+    private final InputStream in = Metrics.count(new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = this.read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return NIOConnection.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return NIOConnection.this.available();
+        }
+    }, "stub.NIOStreamStub.bytesIn");
+
+    private final OutputStream out = Metrics.count(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            NIOConnection.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            NIOConnection.this.flush();
+        }
+    }, "stub.NIOStreamStub.bytesOut");
+
+    NIOConnection(SocketChannel channel, NIOStreamStub.IOLoop loop,
+            String replyAddressString, int bufferSize, int socketTimeout) {
+
+        this.channel = channel;
+        this.loop = loop;
+        this.replyAddressString = replyAddressString;
+        this.localAddress = replyAddressString;
+        this.socketTimeout = socketTimeout;
+
+        this.readBuffer = ByteBuffer.allocate(bufferSize);
+        this.writeBuffer = ByteBuffer.allocate(bufferSize);
+
+        Socket s = channel.socket();
+        this.recAddress = s.getInetAddress().getHostAddress();
+        this.portNo = s.getPort();
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                     called by selector thread                      //
+    ////////////////////////////////////////////////////////////////////////
+
+    SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SelectionKey getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return operations the selector has to watch on this connection
+     */
+    synchronized int interestOps() {
+        int ops = 0;
+
+        if(!this.eof && this.readBuffer.hasRemaining()) {
+            ops |= SelectionKey.OP_READ;
+        }
+
+        if(this.writeBuffer.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        return ops;
+    }
+
+    /**
+     * Channel is readable.
+     *
+     * @return true if a worker has to be dispatched to this connection
+     * @throws IOException
+     */
+    synchronized boolean readReady() throws IOException {
+        int n = this.channel.read(this.readBuffer);
+        if(n < 0) {
+            this.eof = true;
+        }
+
+        this.lastActivity = System.currentTimeMillis();
+        this.notifyAll();
+
+        if(!this.dispatched && (this.readBuffer.position() > 0 || this.eof)) {
+            this.dispatched = true;
+            this.worker = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Channel is writable.
+     */
+    synchronized void writeReady() throws IOException {
+        this.writeBuffer.flip();
+        this.channel.write(this.writeBuffer);
+        this.writeBuffer.compact();
+
+        this.lastActivity = System.currentTimeMillis();
+        this.notifyAll();
+    }
+
+    /**
+     * @return true if nothing happend on that connection since idle timeout
+     */
+    synchronized boolean idle(long now, long idleTimeout) {
+        return !this.dispatched && this.writeBuffer.position() == 0
+                && now - this.lastActivity > idleTimeout;
+    }
+
+    /**
+     * Connection is used by a thread of its own (e.g. a KEP session).
+     * Selector must not dispatch workers.
+     */
+    synchronized void setDispatched() {
+        this.dispatched = true;
+        this.worker = false;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                        called by worker thread                     //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Worker asks for more data after handling a message. If there is
+     * nothing, it leaves and this connection can be dispatched again.
+     *
+     * @return true if there is another message to be read
+     */
+    boolean moreInput() {
+        boolean close;
+        synchronized(this) {
+            if(this.readBuffer.position() > 0) {
+                return true;
+            }
+
+            this.dispatched = false;
+            this.worker = false;
+            close = this.eof;
+        }
+
+        if(close) {
+            // remote peer closed connection and everything is read
+            this.close();
+        }
+
+        return false;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+
+        if(this.readBuffer.position() == 0) {
+            this.blocked(true);
+            try {
+                long deadline = System.currentTimeMillis() + this.socketTimeout;
+                while(this.readBuffer.position() == 0) {
+                    if(this.eof) {
+                        return -1;
+                    }
+
+                    if(this.closed) {
+                        throw new IOException("connection closed");
+                    }
+
+                    long wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0) {
+                        throw new SocketTimeoutException("read timed out");
+                    }
+
+                    this.waitFor(wait);
+                }
+            }
+            finally {
+                this.blocked(false);
+            }
+        }
+
+        boolean wasFull = !this.readBuffer.hasRemaining();
+
+        this.readBuffer.flip();
+        int n = Math.min(len, this.readBuffer.remaining());
+        this.readBuffer.get(b, off, n);
+        this.readBuffer.compact();
+
+        if(wasFull) {
+            // selector stopped reading - there is room again
+            this.loop.update(this);
+        }
+
+        return n;
+    }
+
+    private synchronized int available() {
+        return this.readBuffer.position();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(!this.writeBuffer.hasRemaining()) {
+                this.blocked(true);
+                try {
+                    long deadline = System.currentTimeMillis() + this.socketTimeout;
+                    while(!this.writeBuffer.hasRemaining()) {
+                        if(this.closed) {
+                            throw new IOException("connection closed");
+                        }
+
+                        long wait = deadline - System.currentTimeMillis();
+                        if(wait <= 0) {
+                            throw new SocketTimeoutException("write timed out");
+                        }
+
+                        // let selector drain the buffer
+                        this.loop.update(this);
+                        this.waitFor(wait);
+                    }
+                }
+                finally {
+                    this.blocked(false);
+                }
+            }
+
+            if(this.closed) {
+                throw new IOException("connection closed");
+            }
+
+            int n = Math.min(len, this.writeBuffer.remaining());
+            this.writeBuffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private synchronized void flush() throws IOException {
+        if(this.closed) {
+            throw new IOException("connection closed");
+        }
+
+        if(this.writeBuffer.position() > 0) {
+            this.loop.update(this);
+        }
+    }
+
+    /**
+     * A worker waiting for the peer doesn't count as worker of the pool -
+     * other connections are served meanwhile.
+     * 
+     * @throws IOException if too many workers wait already
+     */
+    private void blocked(boolean blocked) throws IOException {
+        if(this.worker && !this.loop.workerBlocked(blocked)) {
+            throw new IOException("too many workers wait for their peers");
+        }
+    }
+
+    private void waitFor(long millis) throws InterruptedIOException {
+        try {
+            this.wait(millis);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.getMessage());
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //                          StreamConnection                          //
+    ////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public SharkInputStream getInputStream() {
+        return new StandardSharkInputStream(this.in);
+    }
+
+    @Override
+    public SharkOutputStream getOutputStream() {
+        return new UTF8SharkOutputStream(this.out);
+    }
+
+    @Override
+    public void sendMessage(byte[] msg) throws IOException {
+        this.out.write(msg);
+        this.out.flush();
+    }
+
+    @Override
+    public String getReplyAddressString() {
+        return this.replyAddressString;
+    }
+
+    @Override
+    public String getReceiverAddressString() {
+        return "tcp://" + this.recAddress + ":" + Integer.toString(this.portNo);
+    }
+
+    @Override
+    public String getLocalAddressString() {
+        return this.localAddress;
+    }
+
+    @Override
+    public void setLocalAddressString(String localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * Closes connection after pending data are written (at most socket
+     * timeout).
+     */
+    @Override
+    public void close() {
+        synchronized(this) {
+            if(this.closed) {
+                return;
+            }
+
+            long deadline = System.currentTimeMillis() + this.socketTimeout;
+            while(this.writeBuffer.position() > 0 && this.channel.isOpen()) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) {
+                    break;
+                }
+
+                this.loop.update(this);
+                try {
+                    this.wait(wait);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+
+        this.closeNow();
+    }
+
+    /**
+     * Closes connection immediately. Pending data are lost. Selector
+     * thread must not call close().
+     */
+    void closeNow() {
+        synchronized(this) {
+            if(this.closed) {
+                return;
+            }
+
+            this.closed = true;
+            this.notifyAll();
+        }
+
+        L.d("Closing NIO connection to: " + this.getReceiverAddressString(), this);
+        try {
+            // cancels key as well
+            this.channel.close();
+        } catch (IOException ex) {
+            L.d(ex.getMessage(), this);
+        }
+
+        this.loop.closed(this);
+        this.notifyConnectionClosed();
+    }
+}
@@ -0,0 +1,572 @@
+package net.sharkfw.protocols.tcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.StringTokenizer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.sharkfw.kep.KEPStub;
+import net.sharkfw.protocols.Protocols;
+import net.sharkfw.protocols.RequestHandler;
+import net.sharkfw.protocols.StreamConnection;
+import net.sharkfw.protocols.StreamStub;
+import net.sharkfw.system.L;
+import net.sharkfw.system.Util;
+
+/**
+ * TCP stub which serves lots of connected peers with a few threads.
+ *
+ * <p>{@link TCPStreamStub} keeps a thread (KEP session) for each accepted
+ * connection. This stub puts accepted connections in non blocking mode and
+ * watches them with a small number of selector threads (I/O threads). Each
+ * connection has a read and a write buffer which are filled and drained by
+ * its I/O thread.</p>
+ *
+ * <p>If data arrive on a connection, it is handed to a worker pool. A worker
+ * reads KEP messages from the read buffer and hands them to the KEP stub
+ * until no more data are buffered. KEP messages have no length field - the
+ * end of a message is only known after parsing it. Thus, parsing itself
+ * happens in the worker. A connection only binds a thread while a message
+ * is received and handled. Idle connections are closed after idle timeout.</p>
+ *
+ * <p>A worker which waits for the rest of a message (slow or stalled peer)
+ * doesn't count as worker. The pool gets another thread for that time -
+ * peers which send half a message cannot starve the others. Pool doesn't
+ * grow beyond {@link #setMaxWorkerThreads(int) maximum}. A connection
+ * whose worker would have to wait beyond that is closed.</p>
+ *
+ * <p>The wire format is plain KEP. Peers using {@link TCPStreamStub} can
+ * connect to this stub and vice versa. Outgoing connections are ordinary
+ * {@link TCPConnection}s.</p>
+ *
+ * @author thsc
+ */
+public class NIOStreamStub implements StreamStub {
+
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_WORKER_THREADS = 16;
+    public static final int DEFAULT_MAX_WORKER_THREADS = 256;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000; // 1 minute
+
+    /**
+     * Selectors wake up at least that often to find idle connections
+     */
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    /**
+     * Connection requests queued by the OS before they are accepted
+     */
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private RequestHandler handler;
+    private final int port;
+
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int maxWorkerThreads = DEFAULT_MAX_WORKER_THREADS;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int bufferSize = NIOConnection.DEFAULT_BUFFER_SIZE;
+    private int socketTimeout = 10000;
+
+    private ServerSocketChannel serverChannel = null;
+    private IOLoop[] loops = null;
+    private ThreadPoolExecutor workers = null;
+    private int nextLoop = 0;
+    private int portNumber;
+    private String localAddress;
+
+    /**
+     * @param handler Listener which will be notified if a message arrives
+     * @param port Port the Server is listening on
+     */
+    public NIOStreamStub(RequestHandler handler, int port) {
+        this.handler = handler;
+        this.port = port;
+    }
+
+    /**
+     * Number of selector threads. Must be set before stub is started.
+     * @param ioThreads
+     */
+    public void setIOThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Number of threads handling KEP messages. Must be set before stub is
+     * started.
+     * @param workerThreads
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Upper bound of pool size - workers waiting for their peers included.
+     * Never below number of worker threads.
+     * @param maxWorkerThreads
+     */
+    public void setMaxWorkerThreads(int maxWorkerThreads) {
+        this.maxWorkerThreads = maxWorkerThreads;
+    }
+
+    /**
+     * Connections without any traffic are closed after that time.
+     * @param idleTimeout milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Size of read and write buffer of each connection. Must be set before
+     * stub is started.
+     * @param bufferSize
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if(this.started()) {
+            return;
+        }
+
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().setReuseAddress(true);
+        if (this.port == Protocols.ARBITRARY_PORT) {
+            ssc.socket().bind(new InetSocketAddress(0), ACCEPT_BACKLOG);
+        } else {
+            ssc.socket().bind(new InetSocketAddress(this.port), ACCEPT_BACKLOG);
+        }
+        ssc.configureBlocking(false);
+
+        this.portNumber = ssc.socket().getLocalPort();
+        this.serverChannel = ssc;
+        this.localAddress = this.getLocalAddress();
+
+        int threads = Math.max(1, this.workerThreads);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+
+        this.loops = new IOLoop[Math.max(1, this.ioThreads)];
+        for(int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new IOLoop(i == 0 ? ssc : null);
+            Thread t = new Thread(this.loops[i], "NIOStreamStub-" + this.portNumber + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        L.l("NIO stub is bound to port " + this.portNumber, this);
+    }
+
+    @Override
+    public synchronized boolean started() {
+        return this.serverChannel != null;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if(!this.started()) {
+            return;
+        }
+
+        for(int i = 0; i < this.loops.length; i++) {
+            this.loops[i].shutdown();
+        }
+
+        try {
+            this.serverChannel.close();
+        } catch (IOException ex) {
+            L.e("NIO stub stop failed: " + ex.getMessage(), this);
+        }
+
+        this.workers.shutdown();
+
+        this.serverChannel = null;
+        this.loops = null;
+        this.workers = null;
+    }
+
+    @Override
+    public void setHandler(RequestHandler handler) {
+        this.handler = handler;
+    }
+
+    public int getPortNumber() {
+        return this.portNumber;
+    }
+
+    /**
+     * @return number of connections watched by selectors
+     */
+    public synchronized int getNumberConnections() {
+        if(this.loops == null) {
+            return 0;
+        }
+
+        int number = 0;
+        for(int i = 0; i < this.loops.length; i++) {
+            number += this.loops[i].numberConnections();
+        }
+
+        return number;
+    }
+
+    /**
+     * @return "tcp://hostname:port" or null if an error occurs
+     */
+    @Override
+    public String getLocalAddress() {
+        String hostName;
+        try {
+            InetAddress adr = InetAddress.getLocalHost();
+            hostName = Util.DNtoIP(adr.getHostAddress());
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+
+        return "tcp://" + hostName + ":" + Integer.toString(this.portNumber);
+    }
+
+    /**
+     * Outgoing connections are plain TCP connections. Data are only expected
+     * as replies and those connections are short living.
+     *
+     * @param addrStr e.g. tcp://213.32.123.42:4221
+     */
+    @Override
+    public StreamConnection createStreamConnection(String addrStr) throws IOException {
+        if (!addrStr.startsWith(Protocols.TCP_PREFIX)) {
+            throw new IOException("NIO stub cannot send to address:" + addrStr);
+        }
+
+        StringTokenizer st = new StringTokenizer(addrStr.substring(Protocols.TCP_PREFIX.length()), ":");
+
+        String hostname;
+        int portno;
+        try {
+            hostname = st.nextToken();
+            portno = Integer.parseInt(st.nextToken());
+        } catch (NoSuchElementException ne) {
+            throw new IOException("wrong connection string format: " + addrStr);
+        } catch (NumberFormatException nfe) {
+            throw new IOException("wrong connection string format: " + addrStr);
+        }
+
+        if (this.started() && hostname.equalsIgnoreCase("localhost") && portno == this.portNumber) {
+            throw new IOException("message loop detected");
+        }
+
+        return new TCPConnection(hostname, portno);
+    }
+
+    private synchronized IOLoop nextLoop() {
+        this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+        return this.loops[this.nextLoop];
+    }
+
+    /**
+     * A connection has data. Let a worker read and handle messages.
+     */
+    private void dispatch(final NIOConnection con) {
+        if(!(this.handler instanceof KEPStub)) {
+            return;
+        }
+
+        final KEPStub kepStub = (KEPStub) this.handler;
+        ThreadPoolExecutor pool = this.workers;
+        if(pool == null) {
+            con.closeNow();
+            return;
+        }
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    do {
+                        kepStub.handleStreamMessage(con);
+                    } while(con.moreInput());
+                } catch (IOException ex) {
+                    // stream is in undefined state
+                    L.d("IOException while handling KEP message - close connection: " + ex.getMessage(), this);
+                    kepStub.removeStreamConnection(con);
+                    con.close();
+                }
+                catch(RuntimeException re) {
+                    L.w("cannot handle KEP message: " + re.getMessage(), this);
+                    kepStub.removeStreamConnection(con);
+                    con.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * A worker waits for a peer (blocked) or goes on. Waiting workers
+     * aren't counted - pool grows and shrinks by one.
+     * 
+     * @return false if pool has reached its maximum - worker must not wait
+     */
+    private boolean workerBlocked(boolean blocked) {
+        ThreadPoolExecutor pool = this.workers;
+        if(pool == null) {
+            return true;
+        }
+
+        synchronized(pool) {
+            int threads = Math.max(1, this.workerThreads);
+            int size = pool.getCorePoolSize() + (blocked ? 1 : -1);
+            if(blocked && size > Math.max(threads, this.maxWorkerThreads)) {
+                L.w("too many workers wait for their peers: " + pool.getCorePoolSize(), this);
+                return false;
+            }
+            
+            size = Math.max(size, threads);
+
+            // core size must not exceed maximum size
+            if(blocked) {
+                pool.setMaximumPoolSize(size);
+                pool.setCorePoolSize(size);
+            } else {
+                pool.setCorePoolSize(size);
+                pool.setMaximumPoolSize(size);
+            }
+        }
+        
+        return true;
+    }
+
+    /**
+     * Selector thread. It accepts connections (first loop only), reads and
+     * writes data and closes idle connections.
+     */
+    class IOLoop implements Runnable {
+        private final Selector selector;
+        private final ServerSocketChannel acceptChannel;
+
+        private final ArrayList<NIOConnection> pending = new ArrayList<>();
+        private final ArrayList<NIOConnection> registering = new ArrayList<>();
+        private int numberConnections = 0;
+        private volatile boolean running = true;
+
+        IOLoop(ServerSocketChannel acceptChannel) throws IOException {
+            this.selector = Selector.open();
+            this.acceptChannel = acceptChannel;
+
+            if(acceptChannel != null) {
+                acceptChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+            }
+        }
+
+        /**
+         * Interest of connection changed - e.g. data are to be written. Can
+         * be called by any thread.
+         */
+        void update(NIOConnection con) {
+            synchronized(this.pending) {
+                this.pending.add(con);
+            }
+            this.selector.wakeup();
+        }
+
+        /**
+         * Worker of that connection waits for its peer or goes on.
+         * 
+         * @return false if worker must not wait
+         */
+        boolean workerBlocked(boolean blocked) {
+            return NIOStreamStub.this.workerBlocked(blocked);
+        }
+
+        void closed(NIOConnection con) {
+            synchronized(this.pending) {
+                this.numberConnections--;
+            }
+            this.selector.wakeup();
+        }
+
+        int numberConnections() {
+            synchronized(this.pending) {
+                return this.numberConnections;
+            }
+        }
+
+        /**
+         * Hand accepted connection to this loop.
+         */
+        void register(NIOConnection con) {
+            synchronized(this.pending) {
+                this.registering.add(con);
+                this.numberConnections++;
+            }
+            this.selector.wakeup();
+        }
+
+        void shutdown() {
+            this.running = false;
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+
+            while(this.running) {
+                try {
+                    this.selector.select(IDLE_CHECK_INTERVAL);
+                } catch (IOException ex) {
+                    L.e("selector failed: " + ex.getMessage(), this);
+                    break;
+                }
+
+                this.processPending();
+
+                Iterator<SelectionKey> keyIter = this.selector.selectedKeys().iterator();
+                while(keyIter.hasNext()) {
+                    SelectionKey key = keyIter.next();
+                    keyIter.remove();
+
+                    if(!key.isValid()) {
+                        continue;
+                    }
+
+                    if(key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+
+                    NIOConnection con = (NIOConnection) key.attachment();
+                    try {
+                        boolean dispatch = false;
+                        if(key.isReadable()) {
+                            dispatch = con.readReady();
+                        }
+
+                        if(key.isValid() && key.isWritable()) {
+                            con.writeReady();
+                        }
+
+                        if(key.isValid()) {
+                            key.interestOps(con.interestOps());
+                        }
+
+                        if(dispatch) {
+                            NIOStreamStub.this.dispatch(con);
+                        }
+                    } catch (IOException ex) {
+                        L.d("NIO connection broken: " + ex.getMessage(), this);
+                        con.closeNow();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if(now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                    lastIdleCheck = now;
+                    this.closeIdleConnections(now);
+                }
+            }
+
+            // shut down - close all connections
+            for(SelectionKey key : this.selector.keys()) {
+                if(key.attachment() instanceof NIOConnection) {
+                    ((NIOConnection) key.attachment()).closeNow();
+                }
+            }
+
+            try {
+                this.selector.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+
+        private void processPending() {
+            ArrayList<NIOConnection> newConnections;
+            ArrayList<NIOConnection> changed;
+            synchronized(this.pending) {
+                newConnections = new ArrayList<>(this.registering);
+                this.registering.clear();
+                changed = new ArrayList<>(this.pending);
+                this.pending.clear();
+            }
+
+            for(NIOConnection con : newConnections) {
+                try {
+                    SelectionKey key = con.getChannel().register(this.selector,
+                            con.interestOps(), con);
+                    con.setKey(key);
+                } catch (IOException ex) {
+                    L.d("cannot register NIO connection: " + ex.getMessage(), this);
+                    con.closeNow();
+                }
+            }
+
+            for(NIOConnection con : changed) {
+                SelectionKey key = con.getKey();
+                if(key != null && key.isValid()) {
+                    key.interestOps(con.interestOps());
+                }
+            }
+        }
+
+        private void accept() {
+            SocketChannel channel;
+            try {
+                // take anything waiting - one event can stand for many peers
+                while((channel = this.acceptChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    this.accepted(channel);
+                }
+            } catch (IOException ex) {
+                L.d("accept failed: " + ex.getMessage(), this);
+            }
+        }
+
+        private void accepted(SocketChannel channel) {
+            IOLoop loop = NIOStreamStub.this.nextLoop();
+            NIOConnection con = new NIOConnection(channel, loop,
+                    NIOStreamStub.this.localAddress,
+                    NIOStreamStub.this.bufferSize,
+                    NIOStreamStub.this.socketTimeout);
+
+            loop.register(con);
+
+            RequestHandler h = NIOStreamStub.this.handler;
+            if(!(h instanceof KEPStub)) {
+                // handler needs a stream of its own - let it have it
+                con.setDispatched();
+                h.handleStream(con);
+            }
+        }
+
+        private void closeIdleConnections(long now) {
+            ArrayList<NIOConnection> idle = new ArrayList<>();
+            for(SelectionKey key : this.selector.keys()) {
+                if(key.isValid() && key.attachment() instanceof NIOConnection) {
+                    NIOConnection con = (NIOConnection) key.attachment();
+                    if(con.idle(now, NIOStreamStub.this.idleTimeout)) {
+                        idle.add(con);
+                    }
+                }
+            }
+
+            for(NIOConnection con : idle) {
+                L.d("close idle connection: " + con.getReceiverAddressString(), this);
+                con.closeNow();
+            }
+        }
+    }
+}
@@ -3,15 +3,21 @@ package net.sharkfw.protocols.tcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import net.sharkfw.protocols.ConnectionListenerManager;
+import net.sharkfw.protocols.IdleAwareConnection;
 import net.sharkfw.protocols.SharkInputStream;
 import net.sharkfw.protocols.SharkOutputStream;
 import net.sharkfw.protocols.StandardSharkInputStream;
-import net.sharkfw.protocols.StreamConnection;
 import net.sharkfw.protocols.UTF8SharkOutputStream;
 import net.sharkfw.system.L;
+import net.sharkfw.system.Metrics;
 import net.sharkfw.system.Streamer;
 
 /**
@@ -21,15 +27,20 @@ import net.sharkfw.system.Streamer;
  *
  * @author thsc
  */
-public class TCPConnection extends ConnectionListenerManager implements StreamConnection {
+public class TCPConnection extends ConnectionListenerManager implements IdleAwareConnection {
     
+    private static final String BYTES_IN = "stub.TCPStreamStub.bytesIn";
+    private static final String BYTES_OUT = "stub.TCPStreamStub.bytesOut";
+
     private int portNo;
     private String localAddress;
     private String recAddress;
     private String replyAddressString;
     private Socket s;
+    private SocketChannel channel;
     private OutputStream out;
-    private InputStream in;
+    private PushbackInputStream in;
+    private WritableByteChannel outChannel;
     private int socketTimeout = 10000;
 
     public TCPConnection(String recAddress, int port) throws UnknownHostException, IOException {
@@ -54,15 +65,16 @@ public class TCPConnection extends ConnectionListenerManager implements StreamCo
         System.out.println("Trying to connect to " + this.recAddress + ":"
                 + this.portNo);
         try {
-            s = new Socket(this.recAddress, this.portNo);
+            // open socket by a channel - allows zero copy transfer of file content
+            this.channel = SocketChannel.open(new InetSocketAddress(this.recAddress, this.portNo));
+            s = this.channel.socket();
         }
         catch(RuntimeException re) {
             throw new IOException(re.getMessage());
         }
         
         s.setSoTimeout(this.socketTimeout);
-        this.out = s.getOutputStream();
-        this.in = s.getInputStream();
+        this.initStreams(null);
         L.d("Creating TCPConnection w/ local address of:" + s.getLocalAddress() + ":" + s.getLocalPort(), this);
         
         this.localAddress = replyAddressString;
@@ -77,8 +89,23 @@ public class TCPConnection extends ConnectionListenerManager implements StreamCo
      * @throws IOException
      */
     public TCPConnection(Socket s, String replyAddressString) throws IOException {
+        this(s, null, replyAddressString);
+    }
+
+    /**
+     * Saves the given Socket whose first bytes were already read into
+     * a buffer, e.g. together with a HTTP header.
+     *
+     * @param s Socket with an established connection
+     * @param is stream which returns buffered bytes first and reads from
+     * socket afterwards - null reads from socket
+     * @param replyAddressString
+     * @throws IOException
+     */
+    public TCPConnection(Socket s, InputStream is, String replyAddressString) throws IOException {
       L.d("Using existing socket: '" + s.getInetAddress().getHostAddress() +"'", this);
         this.s = s;
+        this.channel = s.getChannel(); // null if socket wasn't created by a channel
         s.setSoTimeout(this.socketTimeout);
         this.replyAddressString = replyAddressString;
         this.localAddress = replyAddressString;
@@ -86,8 +113,23 @@ public class TCPConnection extends ConnectionListenerManager implements StreamCo
         this.recAddress = this.s.getInetAddress().getHostAddress();
         this.portNo = this.s.getPort();
 
-        this.out = this.s.getOutputStream();
-        this.in = this.s.getInputStream();
+        this.initStreams(is);
+    }
+    
+    /**
+     * Content transferred over the channel is counted as well.
+     * 
+     * @param is buffered stream of socket - null if there is none
+     */
+    private void initStreams(InputStream is) throws IOException {
+        this.out = Metrics.count(this.s.getOutputStream(), BYTES_OUT);
+        this.outChannel = Metrics.count((WritableByteChannel) this.channel, BYTES_OUT);
+
+        if(is == null) {
+            this.in = new PushbackInputStream(Metrics.count(this.s.getInputStream(), BYTES_IN));
+        } else {
+            this.in = new PushbackInputStream(Metrics.count(is, BYTES_IN));
+        }
     }
 
     public String getReplyAddressString() {
@@ -126,7 +168,7 @@ public class TCPConnection extends ConnectionListenerManager implements StreamCo
     }
 
     public SharkOutputStream getOutputStream() {
-        return new UTF8SharkOutputStream(this.out);
+        return new UTF8SharkOutputStream(this.out, this.outChannel);
     }
 
     /**
@@ -148,6 +190,38 @@ public class TCPConnection extends ConnectionListenerManager implements StreamCo
         }
     }
 
+    /**
+     * Waits by a read with socket timeout. A byte that arrives is pushed
+     * back and read again by the next message.
+     */
+    @Override
+    public boolean awaitData(long timeout) throws IOException {
+        if(this.in.available() > 0) {
+            return true;
+        }
+        
+        if(timeout <= 0) {
+            return false;
+        }
+        
+        this.s.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+        try {
+            int b = this.in.read();
+            if(b == -1) {
+                return false;
+            }
+            
+            this.in.unread(b);
+            return true;
+        }
+        catch(SocketTimeoutException ste) {
+            return false;
+        }
+        finally {
+            this.s.setSoTimeout(this.socketTimeout);
+        }
+    }
+
   public String getReceiverAddressString() {
     return "tcp://" + this.recAddress + ":" + Integer.toString(this.portNo);
   }
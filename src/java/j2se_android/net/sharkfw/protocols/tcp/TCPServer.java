@@ -2,6 +2,7 @@ package net.sharkfw.protocols.tcp;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import net.sharkfw.protocols.Protocols;
 import net.sharkfw.protocols.RequestHandler;
 import net.sharkfw.protocols.StreamStub;
@@ -36,10 +37,13 @@ class TCPServer implements SharkServer {
     public TCPServer(int port, RequestHandler handler, StreamStub stub)
             throws IOException {
         try {
+            // accepted sockets of a channel based server socket own a channel
+            listen_socket = ServerSocketChannel.open().socket();
+            listen_socket.setReuseAddress(true);
             if (port == Protocols.ARBITRARY_PORT) {
-                listen_socket = new ServerSocket(0);
+                listen_socket.bind(new InetSocketAddress(0));
             } else {
-                listen_socket = new ServerSocket(port);
+                listen_socket.bind(new InetSocketAddress(port));
             }
         } catch (IOException e) {
             throw e;